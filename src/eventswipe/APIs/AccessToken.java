@@ -50,6 +50,13 @@ public class AccessToken {
         this.expiryDate = expiryDate;
     }
 
+    /**
+     * @return true if the token has no expiry date or has expired
+     */
+    public boolean isExpired() {
+        return expiryDate == null || !expiryDate.after(new Date());
+    }
+
     /**
      * @return the tokenType
      */
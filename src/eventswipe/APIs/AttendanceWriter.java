@@ -0,0 +1,239 @@
+package eventswipe.APIs;
+
+import eventswipe.APIs.BookingSystemAPI.STATUS;
+import eventswipe.exceptions.EarlyRegistrationException;
+import eventswipe.metrics.Metrics;
+import eventswipe.models.Booking;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces attendance records into batched calls to
+ * {@link BookingSystemAPI#markStatus(STATUS, List, String)}.
+ * <p>
+ * Pending records are grouped by event and entry slot session. A group is
+ * written when it reaches the batch size or when its oldest record has waited
+ * for the maximum delay, whichever comes first. If a batch fails, its records
+ * are retried one at a time so every booking gets its own result; only a
+ * batch refused as too early, which applies to the whole event, fails every
+ * record without a retry. Failed
+ * batches and retried records are counted as "attendance.batchFailures" and
+ * "attendance.retries".
+ *
+ * @author Matt Wildman http://bitbucket.org/mattwildman
+ */
+public class AttendanceWriter {
+
+    /**
+     * Receives the result of each attendance record. Called on the writer thread.
+     */
+    public interface Callback {
+
+        /**
+         * @param booking The Booking marked as attended in the booking system
+         */
+        void marked(Booking booking);
+
+        /**
+         * @param booking The Booking that could not be marked as attended
+         * @param ex      The reason it could not be marked
+         */
+        void failed(Booking booking, Exception ex);
+    }
+
+    /**
+     * Constructs an attendance writer.
+     *
+     * @param api            The booking system to write to
+     * @param maxBatch       The number of pending records which triggers a write
+     * @param maxDelayMillis The longest a record waits before it is written
+     */
+    public AttendanceWriter(BookingSystemAPI api, int maxBatch, long maxDelayMillis) {
+        this.api = api;
+        this.maxBatch = maxBatch;
+        this.maxDelayMillis = maxDelayMillis;
+        this.pending = new HashMap<>();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "attendance-writer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Queues a booking to be marked as attended.
+     *
+     * @param eventKey The unique identifier for the event in the booking system
+     * @param booking  The Booking to mark as attended
+     * @param callback Receives the result
+     */
+    public void submit(String eventKey, Booking booking, Callback callback) {
+        final BatchKey key = new BatchKey(eventKey, booking.getSessionId());
+        boolean full;
+        boolean first;
+        synchronized (pending) {
+            List<Pending> batch = pending.get(key);
+            if (batch == null) {
+                batch = new ArrayList<>();
+                pending.put(key, batch);
+            }
+            batch.add(new Pending(booking, callback));
+            first = batch.size() == 1;
+            full = batch.size() >= maxBatch;
+        }
+        Runnable write = new Runnable() {
+            @Override
+            public void run() {
+                write(key);
+            }
+        };
+        if (full) {
+            scheduler.execute(write);
+        }
+        else if (first) {
+            scheduler.schedule(write, maxDelayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes every pending record and waits for the writes to finish.
+     */
+    public void flush() {
+        try {
+            scheduler.submit(new Runnable() {
+                @Override
+                public void run() {
+                    List<BatchKey> keys;
+                    synchronized (pending) {
+                        keys = new ArrayList<>(pending.keySet());
+                    }
+                    for (BatchKey key : keys) {
+                        write(key);
+                    }
+                }
+            }).get();
+        } catch (Exception ex) {
+            LOG.log(Level.SEVERE, "Error flushing attendance records", ex);
+        }
+    }
+
+    /**
+     * @return The number of records waiting to be written
+     */
+    public int getPendingCount() {
+        int count = 0;
+        synchronized (pending) {
+            for (List<Pending> batch : pending.values()) {
+                count += batch.size();
+            }
+        }
+        return count;
+    }
+
+    private void write(BatchKey key) {
+        List<Pending> batch;
+        synchronized (pending) {
+            batch = pending.remove(key);
+        }
+        if (batch == null || batch.isEmpty()) {
+            return;
+        }
+        List<String> ids = new ArrayList<>(batch.size());
+        for (Pending p : batch) {
+            ids.add(p.booking.getBookingId().toString());
+        }
+        try {
+            api.markStatus(STATUS.ATTENDED, ids, key.eventKey);
+            for (Pending p : batch) {
+                p.callback.marked(p.booking);
+            }
+        } catch (EarlyRegistrationException er) {
+            for (Pending p : batch) {
+                p.callback.failed(p.booking, er);
+            }
+        } catch (IOException | RuntimeException ex) {
+            batchFailures.incrementAndGet();
+            LOG.log(Level.WARNING, "Batch of " + batch.size() + " attendance records failed", ex);
+            if (batch.size() == 1) {
+                batch.get(0).callback.failed(batch.get(0).booking, ex);
+            }
+            else {
+                writeSingly(key, batch);
+            }
+        }
+    }
+
+    private void writeSingly(BatchKey key, List<Pending> batch) {
+        for (Pending p : batch) {
+            retries.incrementAndGet();
+            try {
+                api.markStatus(STATUS.ATTENDED, p.booking.getBookingId().toString(), key.eventKey);
+                p.callback.marked(p.booking);
+            } catch (IOException | RuntimeException ex) {
+                p.callback.failed(p.booking, ex);
+            }
+        }
+    }
+
+    private final BookingSystemAPI api;
+    private final int maxBatch;
+    private final long maxDelayMillis;
+    private final Map<BatchKey, List<Pending>> pending;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicLong batchFailures = Metrics.getInstance().counter("attendance.batchFailures");
+    private final AtomicLong retries = Metrics.getInstance().counter("attendance.retries");
+
+    private static final Logger LOG = Logger.getLogger(AttendanceWriter.class.getName());
+
+    private static final class Pending {
+
+        Pending(Booking booking, Callback callback) {
+            this.booking = booking;
+            this.callback = callback;
+        }
+
+        private final Booking booking;
+        private final Callback callback;
+
+    }
+
+    private static final class BatchKey {
+
+        BatchKey(String eventKey, String sessionId) {
+            this.eventKey = eventKey;
+            this.sessionId = sessionId == null ? "" : sessionId;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof BatchKey)) {
+                return false;
+            }
+            BatchKey k = (BatchKey) other;
+            return eventKey.equals(k.eventKey) && sessionId.equals(k.sessionId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * eventKey.hashCode() + sessionId.hashCode();
+        }
+
+        private final String eventKey;
+        private final String sessionId;
+
+    }
+
+}
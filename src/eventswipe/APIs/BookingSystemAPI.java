@@ -1,5 +1,6 @@
 package eventswipe.APIs;
 
+import eventswipe.metrics.Metrics;
 import eventswipe.models.*;
 import java.io.IOException;
 import java.util.List;
@@ -46,6 +47,21 @@ public abstract class BookingSystemAPI {
      */
     public abstract List<Booking> getBookingList(String eventKey, String sessionKey) throws IOException;
 
+    /**
+     * Gets the list of bookings for an event session if it has changed since it
+     * was last fetched.
+     *
+     * @param eventKey   The unique identifier for the event in the booking system
+     * @param sessionKey The identifier for the timeslot session
+     * @param previous   The snapshot from the last fetch, or null
+     * @return           A new snapshot, which is not modified if the list hasn't changed
+     * @throws IOException
+     * @see BookingListSnapshot
+     */
+    public abstract BookingListSnapshot getBookingListSnapshot(String eventKey,
+                                                               String sessionKey,
+                                                               BookingListSnapshot previous) throws IOException;
+
     /**
      * Gets the waiting list of students for an event.
      *
@@ -170,6 +186,19 @@ public abstract class BookingSystemAPI {
      * @see Student
      */
     public abstract Student getStudent(String stuNumber) throws IOException;
+
+    /**
+     * Returns the Student corresponding to a student number if the connection
+     * already knows them, eg. from a cache, without asking the booking system.
+     * By default nothing is kept.
+     *
+     * @param stuNumber The student number in the booking system
+     * @return          The corresponding Student, or null if they aren't known locally
+     * @see #getStudent(String)
+     */
+    public Student getKnownStudent(String stuNumber) {
+        return null;
+    }
     
     /**
      * Returns a List of students matching a search term.
@@ -274,6 +303,15 @@ public abstract class BookingSystemAPI {
      */
     public abstract void init() throws IOException;
 
+    /**
+     * Publishes metrics about the booking system connection, eg. token
+     * refreshes or cache hits. Calls to the booking system are timed by
+     * {@link InstrumentedBookingSystem}, so by default there is nothing to add.
+     *
+     * @param metrics The Metrics to publish to
+     */
+    public void registerMetrics(Metrics metrics) {}
+
     /**
      * All possible booking statuses in the booking system.
      */
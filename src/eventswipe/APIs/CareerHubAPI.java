@@ -2,16 +2,21 @@ package eventswipe.APIs;
 
 import eventswipe.EventSwipeData;
 import eventswipe.exceptions.*;
+import eventswipe.metrics.Metrics;
 import eventswipe.utils.*;
 import eventswipe.models.*;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.CookieHandler;
 import java.net.CookieManager;
 import java.net.CookieStore;
 import java.net.HttpCookie;
+import java.net.HttpURLConnection;
 import java.net.URLEncoder;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
@@ -46,6 +51,12 @@ public class CareerHubAPI extends BookingSystemAPI {
         SECRET = p.get(EventSwipeData.API_SECRET_KEY);
         STU_NUM_PATTERN = p.get(EventSwipeData.STUDENT_ID_PATTERN_KEY);
         ADMIN_URL = HOST + "admin/";
+        tokens.clear();
+        studentCache.clear();
+        notFoundCache.clear();
+        searchCache.clear();
+        HttpUtils.setTimeouts(getTimeout(p, EventSwipeData.CONNECT_TIMEOUT_KEY, DEFAULT_CONNECT_TIMEOUT),
+                              getTimeout(p, EventSwipeData.READ_TIMEOUT_KEY, DEFAULT_READ_TIMEOUT));
 
         LOGIN_URL =            ADMIN_URL + "login/";
         QUERY_URL_TEMPL =      ADMIN_URL + "events/bookings/query/%s?sessionId=%s";
@@ -82,64 +93,124 @@ public class CareerHubAPI extends BookingSystemAPI {
 
     @Override
     public String getAPIToken(String scope) throws IOException {
-        AccessToken t = tokens.get(scope);
-        if (t == null || t.getExpiryDate().before(new Date())) {
-            t = new AccessToken();
-            String apiURL = HOST + "oauth/token";
-            String postdata = "grant_type=client_credentials" +
-                              "&client_id=" + URLEncoder.encode(API_ID, charset) +
-                              "&client_secret=" + URLEncoder.encode(SECRET, charset) +
-                              "&scope=" + scope;
-            Map<String,String> requestHeaders = new HashMap<>();
-            requestHeaders.put("Content-Type", "application/x-www-form-urlencoded");
-            String response = HttpUtils.sendDataToURL(apiURL, "POST", postdata, charset, requestHeaders);
-            JSONObject apiData = new JSONObject(response);
-            t.setScope(scope);
-            t.setToken(apiData.getString("access_token"));
-            t.setTokenType(apiData.getString("token_type"));
-            int expiresInMins = apiData.getInt("expires_in")/60 - 1;
-            t.setExpiryDate(Utils.addMins(new Date(), expiresInMins));
-            tokens.put(scope, t);
-        }
-        return t.getToken();
+        return tokens.getToken(scope);
+    }
+
+    /**
+     * @return The manager holding this booking system's API tokens, eg. for its metrics
+     */
+    public TokenManager getTokenManager() {
+        return tokens;
+    }
+
+    @Override
+    public void registerMetrics(Metrics metrics) {
+        metrics.gauge("api.token.refreshes", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return tokens.getRefreshCount();
+            }
+        });
+        metrics.gauge("api.token.failures", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return tokens.getFailureCount();
+            }
+        });
+        metrics.gauge("api.token.meanRefreshMillis", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return tokens.getMeanRefreshMillis();
+            }
+        });
+        metrics.gauge("api.token.maxRefreshMillis", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return tokens.getMaxRefreshMillis();
+            }
+        });
+        metrics.gauge("api.studentCache.hits", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return studentCache.getHitCount();
+            }
+        });
+        metrics.gauge("api.studentCache.misses", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return studentCache.getMissCount();
+            }
+        });
+        metrics.gauge("api.searchCache.hits", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return searchCache.getHitCount();
+            }
+        });
+        metrics.gauge("api.searchCache.misses", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return searchCache.getMissCount();
+            }
+        });
+    }
+
+    private AccessToken fetchAPIToken(String scope) throws IOException {
+        AccessToken t = new AccessToken();
+        String apiURL = HOST + "oauth/token";
+        String postdata = "grant_type=client_credentials" +
+                          "&client_id=" + URLEncoder.encode(API_ID, charset) +
+                          "&client_secret=" + URLEncoder.encode(SECRET, charset) +
+                          "&scope=" + scope;
+        Map<String,String> requestHeaders = new HashMap<>();
+        requestHeaders.put("Content-Type", "application/x-www-form-urlencoded");
+        String response = HttpUtils.sendDataToURL(apiURL, "POST", postdata, charset, requestHeaders);
+        JSONObject apiData = new JSONObject(response);
+        t.setScope(scope);
+        t.setToken(apiData.getString("access_token"));
+        t.setTokenType(apiData.getString("token_type"));
+        int expiresInMins = apiData.getInt("expires_in")/60 - 1;
+        t.setExpiryDate(Utils.addMins(new Date(), expiresInMins));
+        return t;
     }
 
     @Override
     public List<Booking> getBookingList(String eventKey, String sessionKey) throws IOException {
         List<Booking> bookings = new ArrayList<>();
-        String response = HttpUtils.getDataFromURL(String.format(QUERY_URL_TEMPL, eventKey, sessionKey));
-        LOG.log(Level.FINER, "Booking list JSON for event {0}: {1}", new Object[]{eventKey, response});
-        JSONObject bookingData = new JSONObject(response);
-        JSONArray jsonBookings = bookingData.getJSONArray("bookings");
-        for (int i=0; i < jsonBookings.length(); i++) {
-            JSONObject jsonBooking = jsonBookings.getJSONObject(i);
-            Booking booking;
-            try {
-                booking = new Booking(jsonBooking.getString("externalId"));
-                if (!jsonBooking.isNull("firstName")) {
-                    booking.setFirstName(jsonBooking.getString("firstName"));
-                } 
-                else {
-                    booking.setFirstName("");
-                }
-                if (!jsonBooking.isNull("lastName")) {
-                    booking.setLastName(jsonBooking.getString("lastName"));
-                } 
-                else {
-                    booking.setLastName("");
-                }
-                booking.setId(jsonBooking.getInt("jobSeekerId"));
-                booking.setBookingId(jsonBooking.getInt("id"));
-                booking.setSessionId(sessionKey);
-                booking.setStatus(jsonBooking.getInt("status"));
-                bookings.add(booking);
-            } catch (org.json.JSONException je) {
-                LOG.log(Level.SEVERE, "Empty student number for id: {0}", jsonBooking.getInt("jobSeekerId"));
-            }
+        String url = String.format(QUERY_URL_TEMPL, eventKey, sessionKey);
+        try (HttpUtils.Response response = HttpUtils.getResponseFromURL(url, new HashMap<String,String>())) {
+            CareerHubDecoder.readBookingList(new JsonReader(response.getReader()), sessionKey, bookings);
         }
+        cacheStudents(bookings);
         return bookings;
     }
 
+    @Override
+    public BookingListSnapshot getBookingListSnapshot(String eventKey,
+                                                      String sessionKey,
+                                                      BookingListSnapshot previous) throws IOException {
+        String url = String.format(QUERY_URL_TEMPL, eventKey, sessionKey);
+        Map<String,String> requestHeaders = new HashMap<>();
+        if (previous != null && previous.getETag() != null) {
+            requestHeaders.put("If-None-Match", previous.getETag());
+        }
+        try (HttpUtils.Response response = HttpUtils.getResponseFromURL(url, requestHeaders)) {
+            if (previous != null && response.getStatus() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return BookingListSnapshot.unmodified(previous);
+            }
+            byte[] body = response.asBytes();
+            String hash = Utils.hash(body);
+            if (previous != null && hash.equals(previous.getHash())) {
+                return BookingListSnapshot.unmodified(previous);
+            }
+            List<Booking> bookings = new ArrayList<>();
+            JsonReader json = new JsonReader(new InputStreamReader(new ByteArrayInputStream(body), response.getCharset()));
+            CareerHubDecoder.readBookingList(json, sessionKey, bookings);
+            cacheStudents(bookings);
+            return new BookingListSnapshot(bookings, response.getHeader("ETag"), hash);
+        }
+    }
+
     @Override
     public List<String> getUnspecified(String eventKey) throws IOException {
         List<String> unspecifiedNumbers = new ArrayList<>();
@@ -155,13 +226,17 @@ public class CareerHubAPI extends BookingSystemAPI {
     @Override
     public List<Student> getWaitingList(String eventKey) throws IOException {
         List<Student> waitingList = new ArrayList<>();
-        Document doc = Jsoup.connect(WAITING_LIST_BASE + eventKey).timeout(0).get();
+        Document doc = getDocument(WAITING_LIST_BASE + eventKey);
         Elements linkElems = doc.select("#ctl00_ctl00_mainContent_mainContent_grid > tbody > tr > td:nth-child(2) > a");
         for (Element link : linkElems) {
             String url = link.attr("href");
             int id = Integer.parseInt(url.split("id=")[1]);
             Student waiting = new Student();
             waiting.setId(id);
+            String name = link.text().trim();
+            int split = name.indexOf(' ');
+            waiting.setFirstName(split < 0 ? name : name.substring(0, split));
+            waiting.setLastName(split < 0 ? "" : name.substring(split + 1));
             waitingList.add(waiting);
         }
         return waitingList;
@@ -197,6 +272,9 @@ public class CareerHubAPI extends BookingSystemAPI {
         }
         booking.setStatus(status);
         booking.setId(statusObject.getInt("jobSeekerId"));
+        if (statusObject.has("bookingId") && !statusObject.isNull("bookingId")) {
+            booking.setBookingId(statusObject.getInt("bookingId"));
+        }
         return booking;
     }
 
@@ -229,15 +307,36 @@ public class CareerHubAPI extends BookingSystemAPI {
         url += eventKey + "?sessionId="; //intentionally empty query parameter
         try {
             String response = HttpUtils.sendDataToURL(url, "POST", postData, this.getCharset(), requestHeaders);
-            if (response.equals("{\"error\":\"You can only set attendance from an hour before the event starts\"}")) {
+            if (isEarlyRegistrationResponse(response)) {
                 throw new EarlyRegistrationException("Too early to mark as attended");
             }
         }
         catch (IOException ioe) {
-            if (ioe.getMessage().equals("Server returned HTTP response code: 400 for URL: " +
-                                        MARK_ATTENDED_URL)) {
+            //a bare 400 only means too early for a single record; a batch may have been refused for any one id
+            if (bookingIds.size() == 1 && ioe.getMessage() != null &&
+                ioe.getMessage().startsWith("Server returned HTTP response code: 400 for URL: " +
+                                            MARK_ATTENDED_URL)) {
                 throw new EarlyRegistrationException("Too early to mark as attended");
             }
+            throw ioe;
+        }
+    }
+
+    /**
+     * Whether a response refuses attendance because the event hasn't started.
+     * Whitespace is normalized first, as the response is read as it is sent,
+     * line breaks and all.
+     */
+    private static boolean isEarlyRegistrationResponse(String response) {
+        String normalized = response.replaceAll("\\s+", " ").trim();
+        if (!normalized.startsWith("{") || !normalized.contains("error")) {
+            return false;
+        }
+        try {
+            String error = new JSONObject(normalized).optString("error", "");
+            return error.replaceAll("\\s+", " ").trim().equals(EARLY_REGISTRATION_ERROR);
+        } catch (org.json.JSONException je) {
+            return false;
         }
     }
 
@@ -308,15 +407,73 @@ public class CareerHubAPI extends BookingSystemAPI {
             booking.setBookingId(jsonResponse.getInt("bookingId"));
             booking.setStatus(this.getUNSPECIFIED_STATUS());
         } catch (IOException ioe) {
-            if (ioe.getMessage().startsWith("Server returned HTTP response code: 409 for URL:")) {
+            if (ioe.getMessage() != null &&
+                ioe.getMessage().startsWith("Server returned HTTP response code: 409 for URL:")) {
                 throw new EventFullException("Event is fully booked", externalId);
             }
+            throw ioe;
         }
         return booking;
     }
 
+    /**
+     * Looks up a student, using the student cache where possible. Student numbers
+     * which weren't found are remembered for a few minutes.
+     */
     @Override
     public Student getStudent(String externalId) throws IOException {
+        Student student = studentCache.get(externalId);
+        if (student != null) {
+            return student;
+        }
+        if (notFoundCache.get(externalId) != null) {
+            throw new NoStudentFoundException("No users with student number " + externalId, externalId);
+        }
+        try {
+            student = fetchStudent(externalId);
+        } catch (NoStudentFoundException ex) {
+            notFoundCache.put(externalId, Boolean.TRUE);
+            throw ex;
+        }
+        studentCache.put(externalId, student);
+        return student;
+    }
+
+    @Override
+    public Student getKnownStudent(String stuNumber) {
+        return studentCache.get(stuNumber);
+    }
+
+    /**
+     * @return The cache of students by student number, eg. for its statistics
+     */
+    public ExpiringCache<String, Student> getStudentCache() {
+        return studentCache;
+    }
+
+    /**
+     * @return The cache of student search results, eg. for its statistics
+     */
+    public ExpiringCache<String, List<Student>> getSearchCache() {
+        return searchCache;
+    }
+
+    private void cacheStudents(List<Booking> bookings) {
+        for (Booking b : bookings) {
+            if (b.getId() == null) {
+                continue;
+            }
+            Student student = new Student();
+            student.setStuNumber(b.getStuNumber());
+            student.setFirstName(b.getFirstName());
+            student.setLastName(b.getLastName());
+            student.setId(b.getId());
+            studentCache.put(b.getStuNumber(), student);
+            notFoundCache.remove(b.getStuNumber());
+        }
+    }
+
+    private Student fetchStudent(String externalId) throws IOException {
         String query = "?s=" + externalId +
                        "&type=JobSeeker&maxResults=1&current=Current&active=true";
         String stuData = HttpUtils.getDataFromURL(STUDENT_SEARCH_BASE + query);
@@ -352,121 +509,40 @@ public class CareerHubAPI extends BookingSystemAPI {
 
     @Override
     public List<Student> getStudents(String search) throws IOException {
-        List<Student> students = new ArrayList<>();
         String query = "?s=" + search +
                        "&maxResults=100&current=Current&active=true";
-        String stuData = HttpUtils.getDataFromURL(STUDENT_SEARCH_BASE + query);
-        JSONArray jsonStudents = new JSONArray(stuData);
-        for (int i=0; i < jsonStudents.length(); i++) {
-            JSONObject jsonStudent = jsonStudents.getJSONObject(i);
-            Student student = new Student();
-            
-            if (!jsonStudent.isNull("FirstName")) {
-              student.setFirstName(jsonStudent.getString("FirstName"));
-            } else {
-              student.setFirstName("");
-            }
-
-            if (!jsonStudent.isNull("LastName")) {
-                student.setLastName(jsonStudent.getString("LastName"));
-            } else {
-                student.setLastName("");
-            }
-
-            student.setId(jsonStudent.getInt("Id"));
-            String stuNum = getEmptyStuNumString();
-            try {
-                stuNum = (String) jsonStudent.get("ExternalId");
-            } catch (java.lang.ClassCastException ex) {
-                System.err.println("Empty student number error. Student id: " + student.getId());
-            }
-            student.setStuNumber(stuNum);
-            students.add(student);
+        List<Student> students = searchCache.get(search);
+        if (students != null) {
+            return students;
+        }
+        try (HttpUtils.Response response = HttpUtils.getResponseFromURL(STUDENT_SEARCH_BASE + query, new HashMap<String,String>())) {
+            students = Collections.unmodifiableList(
+                    CareerHubDecoder.readStudents(new JsonReader(response.getReader()), getEmptyStuNumString()));
         }
+        searchCache.put(search, students);
         return students;
     }
 
     @Override
     public List<Event> getEventsList() throws IOException {
-        List<Event> events = new ArrayList<>();
-        String venue;
-        String response = HttpUtils.getDataFromURL(EVENT_API_LIST_URL, getAPIAuthHeaders()); 
-        LOG.log(Level.FINER, response);
-        JSONArray jsonEvents = new JSONArray(response);
-        for (int i=0; i < jsonEvents.length(); i++) {
-            JSONObject jsonEvent = jsonEvents.getJSONObject(i);
-            String title = jsonEvent.getString("name");
-            String startDate = jsonEvent.getString("start");
-            String id = JSONObject.numberToString(jsonEvent.getInt("entityId"));
-            Event event = new Event(title, startDate, id);
-            if (!(jsonEvent.isNull("building") && jsonEvent.isNull("location"))) {
-                String building = jsonEvent.getString("building");
-                String location = jsonEvent.getString("location");
-                venue = (location + ", " + building);
-                event.setVenue(venue);
-            }
-            events.add(event);
+        try (HttpUtils.Response response = HttpUtils.getResponseFromURL(EVENT_API_LIST_URL, getAPIAuthHeaders())) {
+            return CareerHubDecoder.readEventsList(new JsonReader(response.getReader()));
         }
-        return events;
     }
 
     @Override
     public Event getEvent(String eventKey, boolean getBookings) throws IOException {
-        String response= HttpUtils.getDataFromURL(EVENT_API_URL + eventKey, getAPIAuthHeaders());
-        JSONObject jsonEvent = new JSONObject(response);
-        String title = jsonEvent.getString("name");
-        String startDate = jsonEvent.getString("start");
-        Event event = new Event(title, startDate, eventKey);
-        
-        String venue = "Venue TBC";
-        if (!(jsonEvent.isNull("building") && jsonEvent.isNull("location"))) {
-          String building = jsonEvent.getString("building");
-          String location = jsonEvent.getString("location");
-          venue = location + ", " + building;
-        }
-        else if (jsonEvent.isNull("offCampusVenue")) {
-            venue = jsonEvent.getString("offCampusVenue");
-        }
-        event.setVenue(venue);
-        startDate = this.prepareActiveDateStr(startDate);
-        event.setStartDate(Utils.strToDate(startDate, ACTIVE_DATE_FORMAT));
-        event.setBookingLimit(0);
-        event.setRegStart(Utils.subtractMins(event.getStartDate(), 60));
-        Integer bookingType = jsonEvent.getInt("bookingType");
-        if (bookingType == 1) { //CH booking
-            event.setBookingList(new ArrayList<Booking>());
-            JSONObject settings = jsonEvent.getJSONObject("bookingSettings");
-            if (settings.isNull("bookingLimit")) {
-                event.setUnlimited(true);
-            }
-            else {
-                event.setUnlimited(false);
-                event.setBookingLimit(settings.getInt("bookingLimit"));
-            }
+        long start = System.nanoTime();
+        Event event;
+        try (HttpUtils.Response response = HttpUtils.getResponseFromURL(EVENT_API_URL + eventKey, getAPIAuthHeaders())) {
+            event = CareerHubDecoder.readEvent(new JsonReader(response.getReader()), eventKey);
         }
-        else {
-            event.setDropIn(true);
-        }
-        JSONArray jsonSessions = jsonEvent.getJSONArray("sessions");
-        for (int i = 0; i < jsonSessions.length(); i++) {
-            JSONObject jsonSession = jsonSessions.getJSONObject(i);
-            Session session = new Session();
-            session.setId(String.valueOf(jsonSession.getInt("id")));
-            String startStr = this.prepareActiveDateStr(jsonSession.getString("start"));
-            String endStr = this.prepareActiveDateStr(jsonSession.getString("end"));
-            session.setStart(Utils.strToDate(startStr, ACTIVE_DATE_FORMAT));
-            session.setEnd(Utils.strToDate(endStr, ACTIVE_DATE_FORMAT));
-            session.setBookingCount(jsonSession.getInt("bookings"));
-            if (bookingType == 1 && getBookings) {
-                List bookings = this.getBookingList(eventKey, session.getId());
-                event.getBookingList().addAll(bookings);
+        LOG.log(Level.INFO, "Event {0} metadata loaded in {1} ms", new Object[]{eventKey, Utils.millisSince(start)});
+        if (!event.isDropIn() && getBookings) {
+            for (Session session : event.getSessions()) {
+                event.getBookingList().addAll(getBookingList(eventKey, session.getId()));
             }
-            event.getSessions().add(session);
         }
-        JSONObject attendance = jsonEvent.getJSONObject("attendance");
-        event.setAttendeeCount(attendance.getInt("attended"));
-        event.setBookingCount(attendance.getInt("total"));
-        event.setUnspecifiedCount(attendance.getInt("unspecified"));
         return event;
     }
     
@@ -476,9 +552,27 @@ public class CareerHubAPI extends BookingSystemAPI {
         return requestHeaders;
     }
 
+    private Document getDocument(String url) throws IOException {
+        try (HttpUtils.Response response = HttpUtils.getResponseFromURL(url, new HashMap<String,String>())) {
+            return Jsoup.parse(response.getStream(), response.getCharset(), url);
+        }
+    }
+
+    private static int getTimeout(Map<String, String> p, String key, int defaultMillis) {
+        String value = p.get(key);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException ex) {
+                LOG.log(Level.WARNING, "Ignoring invalid {0}: {1}", new Object[]{key, value});
+            }
+        }
+        return defaultMillis;
+    }
+
     private String getVerificationToken() throws IOException {
         String token;
-        Document doc = Jsoup.connect(LOGIN_URL).timeout(0).get();
+        Document doc = getDocument(LOGIN_URL);
         Element tokenInput = doc.select("input[name=__RequestVerificationToken]").get(0);
         token = tokenInput.val();
         return token;
@@ -556,10 +650,6 @@ public class CareerHubAPI extends BookingSystemAPI {
     private final int ABSENT_STATUS = 2;
     private final int NOT_BOOKED_STATUS = -2;
 
-    private String prepareActiveDateStr(String str) {
-        return str.replaceAll(":(\\d\\d)$", "$1");
-    }
-
     private String HOST;
     private String API_ID;
     private String SECRET;
@@ -585,9 +675,31 @@ public class CareerHubAPI extends BookingSystemAPI {
     private final String charset = "UTF-8";
     private final String AUTH_COOKIE_NAME = ".CHAUTH";
     
+    private static final int DEFAULT_CONNECT_TIMEOUT = 10000; //milliseconds
+    private static final int DEFAULT_READ_TIMEOUT = 30000; //milliseconds
+    private static final String EARLY_REGISTRATION_ERROR = "You can only set attendance from an hour before the event starts";
+    private static final long TOKEN_REFRESH_AHEAD = 5 * 60 * 1000; //milliseconds
+    private static final int STUDENT_CACHE_SIZE = 10000;
+    private static final long STUDENT_CACHE_TTL = 60 * 60 * 1000; //milliseconds
+    private static final int NOT_FOUND_CACHE_SIZE = 1000;
+    private static final long NOT_FOUND_CACHE_TTL = 5 * 60 * 1000; //milliseconds
+    private static final int SEARCH_CACHE_SIZE = 200;
+    private static final long SEARCH_CACHE_TTL = 5 * 60 * 1000; //milliseconds
+
     private static final Logger LOG = Logger.getLogger(CareerHubAPI.class.getName());
 
-    private final Map<String,AccessToken> tokens = new HashMap<>();
+    private final ExpiringCache<String, Student> studentCache =
+            new ExpiringCache<>(STUDENT_CACHE_SIZE, STUDENT_CACHE_TTL);
+    private final ExpiringCache<String, Boolean> notFoundCache =
+            new ExpiringCache<>(NOT_FOUND_CACHE_SIZE, NOT_FOUND_CACHE_TTL);
+    private final ExpiringCache<String, List<Student>> searchCache =
+            new ExpiringCache<>(SEARCH_CACHE_SIZE, SEARCH_CACHE_TTL);
+    private final TokenManager tokens = new TokenManager(new TokenManager.Fetcher() {
+        @Override
+        public AccessToken fetch(String scope) throws IOException {
+            return fetchAPIToken(scope);
+        }
+    }, TOKEN_REFRESH_AHEAD);
     private static BookingSystemAPI instance = null;
 
 }
\ No newline at end of file
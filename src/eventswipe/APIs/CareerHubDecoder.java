@@ -0,0 +1,362 @@
+package eventswipe.APIs;
+
+import eventswipe.models.Booking;
+import eventswipe.models.Event;
+import eventswipe.models.Session;
+import eventswipe.models.Student;
+import eventswipe.utils.JsonReader;
+import eventswipe.utils.Utils;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decodes CareerHub JSON responses straight into model objects.
+ * <p>
+ * Each method pulls tokens from a {@link JsonReader} over the response stream,
+ * so no String or JSON tree of the whole response is built. Properties may
+ * arrive in any order and unknown properties are skipped.
+ *
+ * @author Matt Wildman http://bitbucket.org/mattwildman
+ */
+public class CareerHubDecoder {
+
+    /**
+     * Decodes a booking list query response, appending each booking to a list.
+     * Bookings without a student number are logged and left out.
+     *
+     * @param json       The response
+     * @param sessionKey The session the bookings belong to
+     * @param bookings   The List the bookings are added to
+     * @throws IOException
+     */
+    public static void readBookingList(JsonReader json, String sessionKey, List<Booking> bookings) throws IOException {
+        json.beginObject();
+        while (json.hasNext()) {
+            if (json.nextName().equals("bookings")) {
+                json.beginArray();
+                while (json.hasNext()) {
+                    Booking booking = readBooking(json, sessionKey);
+                    if (booking != null) {
+                        bookings.add(booking);
+                    }
+                }
+                json.endArray();
+            }
+            else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+    }
+
+    /**
+     * Decodes a list of events.
+     *
+     * @param json The response
+     * @return     A List of Events with their title, start, id and venue
+     * @throws IOException
+     */
+    public static List<Event> readEventsList(JsonReader json) throws IOException {
+        List<Event> events = new ArrayList<>();
+        json.beginArray();
+        while (json.hasNext()) {
+            String title = null;
+            String startDate = null;
+            String id = null;
+            String building = null;
+            String location = null;
+            json.beginObject();
+            while (json.hasNext()) {
+                switch (json.nextName()) {
+                    case "name":
+                        title = json.nextStringOrNull();
+                        break;
+                    case "start":
+                        startDate = json.nextStringOrNull();
+                        break;
+                    case "entityId":
+                        id = json.nextString();
+                        break;
+                    case "building":
+                        building = json.nextStringOrNull();
+                        break;
+                    case "location":
+                        location = json.nextStringOrNull();
+                        break;
+                    default:
+                        json.skipValue();
+                }
+            }
+            json.endObject();
+            Event event = new Event(title, startDate, id);
+            if (building != null || location != null) {
+                event.setVenue(getVenue(location, building));
+            }
+            events.add(event);
+        }
+        json.endArray();
+        return events;
+    }
+
+    /**
+     * Decodes an event. The booking list of a CareerHub booked event is left
+     * empty, to be filled from its sessions.
+     *
+     * @param json     The response
+     * @param eventKey The unique identifier for the event
+     * @return         The Event with its settings, sessions and attendance counts
+     * @throws IOException
+     */
+    public static Event readEvent(JsonReader json, String eventKey) throws IOException {
+        Event event = new Event(null, null, eventKey);
+        String building = null;
+        String location = null;
+        String offCampusVenue = null;
+        int bookingType = 0;
+        Integer bookingLimit = null;
+        json.beginObject();
+        while (json.hasNext()) {
+            switch (json.nextName()) {
+                case "name":
+                    event.setTitle(json.nextStringOrNull());
+                    break;
+                case "start":
+                    String startDate = json.nextString();
+                    event.setStartDateString(startDate);
+                    event.setStartDate(toDate(startDate));
+                    break;
+                case "building":
+                    building = json.nextStringOrNull();
+                    break;
+                case "location":
+                    location = json.nextStringOrNull();
+                    break;
+                case "offCampusVenue":
+                    offCampusVenue = json.nextStringOrNull();
+                    break;
+                case "bookingType":
+                    bookingType = json.nextInt();
+                    break;
+                case "bookingSettings":
+                    bookingLimit = readBookingLimit(json);
+                    break;
+                case "sessions":
+                    json.beginArray();
+                    while (json.hasNext()) {
+                        event.getSessions().add(readSession(json));
+                    }
+                    json.endArray();
+                    break;
+                case "attendance":
+                    readAttendance(json, event);
+                    break;
+                default:
+                    json.skipValue();
+            }
+        }
+        json.endObject();
+        String venue = "Venue TBC";
+        if (building != null || location != null) {
+            venue = getVenue(location, building);
+        }
+        else if (offCampusVenue != null) {
+            venue = offCampusVenue;
+        }
+        event.setVenue(venue);
+        event.setBookingLimit(0);
+        event.setRegStart(Utils.subtractMins(event.getStartDate(), 60));
+        if (bookingType == CAREERHUB_BOOKING) {
+            event.setBookingList(new ArrayList<Booking>());
+            if (bookingLimit == null) {
+                event.setUnlimited(true);
+            }
+            else {
+                event.setUnlimited(false);
+                event.setBookingLimit(bookingLimit);
+            }
+        }
+        else {
+            event.setDropIn(true);
+        }
+        return event;
+    }
+
+    /**
+     * Decodes a student search response.
+     *
+     * @param json          The response
+     * @param emptyStuNumber The student number given to students without one
+     * @return              A List of matching Students
+     * @throws IOException
+     */
+    public static List<Student> readStudents(JsonReader json, String emptyStuNumber) throws IOException {
+        List<Student> students = new ArrayList<>();
+        json.beginArray();
+        while (json.hasNext()) {
+            Student student = new Student();
+            student.setFirstName("");
+            student.setLastName("");
+            student.setStuNumber(emptyStuNumber);
+            json.beginObject();
+            while (json.hasNext()) {
+                switch (json.nextName()) {
+                    case "FirstName":
+                        student.setFirstName(orEmpty(json.nextStringOrNull()));
+                        break;
+                    case "LastName":
+                        student.setLastName(orEmpty(json.nextStringOrNull()));
+                        break;
+                    case "Id":
+                        student.setId(json.nextInt());
+                        break;
+                    case "ExternalId":
+                        if (json.peek() == JsonReader.Token.STRING) {
+                            student.setStuNumber(json.nextString());
+                        }
+                        else {
+                            json.skipValue();
+                        }
+                        break;
+                    default:
+                        json.skipValue();
+                }
+            }
+            json.endObject();
+            if (student.getStuNumber().equals(emptyStuNumber)) {
+                LOG.log(Level.WARNING, "Empty student number error. Student id: {0}", student.getId());
+            }
+            students.add(student);
+        }
+        json.endArray();
+        return students;
+    }
+
+    private static Booking readBooking(JsonReader json, String sessionKey) throws IOException {
+        String externalId = null;
+        String firstName = null;
+        String lastName = null;
+        int jobSeekerId = 0;
+        int id = 0;
+        int status = 0;
+        json.beginObject();
+        while (json.hasNext()) {
+            switch (json.nextName()) {
+                case "externalId":
+                    externalId = json.nextStringOrNull();
+                    break;
+                case "firstName":
+                    firstName = json.nextStringOrNull();
+                    break;
+                case "lastName":
+                    lastName = json.nextStringOrNull();
+                    break;
+                case "jobSeekerId":
+                    jobSeekerId = json.nextInt();
+                    break;
+                case "id":
+                    id = json.nextInt();
+                    break;
+                case "status":
+                    status = json.nextInt();
+                    break;
+                default:
+                    json.skipValue();
+            }
+        }
+        json.endObject();
+        if (externalId == null) {
+            LOG.log(Level.SEVERE, "Empty student number for id: {0}", jobSeekerId);
+            return null;
+        }
+        Booking booking = new Booking(externalId);
+        booking.setFirstName(orEmpty(firstName));
+        booking.setLastName(orEmpty(lastName));
+        booking.setId(jobSeekerId);
+        booking.setBookingId(id);
+        booking.setSessionId(sessionKey);
+        booking.setStatus(status);
+        return booking;
+    }
+
+    private static Session readSession(JsonReader json) throws IOException {
+        Session session = new Session();
+        json.beginObject();
+        while (json.hasNext()) {
+            switch (json.nextName()) {
+                case "id":
+                    session.setId(json.nextString());
+                    break;
+                case "start":
+                    session.setStart(toDate(json.nextString()));
+                    break;
+                case "end":
+                    session.setEnd(toDate(json.nextString()));
+                    break;
+                case "bookings":
+                    session.setBookingCount(json.nextInt());
+                    break;
+                default:
+                    json.skipValue();
+            }
+        }
+        json.endObject();
+        return session;
+    }
+
+    private static Integer readBookingLimit(JsonReader json) throws IOException {
+        Integer bookingLimit = null;
+        json.beginObject();
+        while (json.hasNext()) {
+            if (json.nextName().equals("bookingLimit") && json.peek() != JsonReader.Token.NULL) {
+                bookingLimit = json.nextInt();
+            }
+            else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+        return bookingLimit;
+    }
+
+    private static void readAttendance(JsonReader json, Event event) throws IOException {
+        json.beginObject();
+        while (json.hasNext()) {
+            switch (json.nextName()) {
+                case "attended":
+                    event.setAttendeeCount(json.nextInt());
+                    break;
+                case "total":
+                    event.setBookingCount(json.nextInt());
+                    break;
+                case "unspecified":
+                    event.setUnspecifiedCount(json.nextInt());
+                    break;
+                default:
+                    json.skipValue();
+            }
+        }
+        json.endObject();
+    }
+
+    private static Date toDate(String activeDate) {
+        return Utils.strToDate(activeDate.replaceAll(":(\\d\\d)$", "$1"), ACTIVE_DATE_FORMAT);
+    }
+
+    private static String getVenue(String location, String building) {
+        return orEmpty(location) + ", " + orEmpty(building);
+    }
+
+    private static String orEmpty(String s) {
+        return s == null ? "" : s;
+    }
+
+    private static final int CAREERHUB_BOOKING = 1;
+    private static final String ACTIVE_DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ssZ";
+
+    private static final Logger LOG = Logger.getLogger(CareerHubDecoder.class.getName());
+
+}
@@ -0,0 +1,409 @@
+package eventswipe.APIs;
+
+import eventswipe.metrics.LatencyHistogram;
+import eventswipe.metrics.Metrics;
+import eventswipe.models.*;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Times every call to a booking system.
+ * <p>
+ * Each call is recorded in a latency histogram named after the method, eg.
+ * "api.getBooking", and each call which throws is counted in a matching
+ * failures counter, eg. "api.getBooking.failures". The batched
+ * {@link #markStatus(STATUS, List, String)} is recorded as "api.markStatusBatch".
+ * Methods which only return settings are passed straight through.
+ *
+ * @author Matt Wildman http://bitbucket.org/mattwildman
+ */
+public class InstrumentedBookingSystem extends BookingSystemAPI {
+
+    /**
+     * Constructs an instrumented booking system.
+     *
+     * @param api     The booking system to time
+     * @param metrics The Metrics to record in
+     */
+    public InstrumentedBookingSystem(BookingSystemAPI api, Metrics metrics) {
+        this.api = api;
+        logIn = new Timer(metrics, "logIn");
+        getAPIToken = new Timer(metrics, "getAPIToken");
+        getBookingList = new Timer(metrics, "getBookingList");
+        getBookingListSnapshot = new Timer(metrics, "getBookingListSnapshot");
+        getWaitingList = new Timer(metrics, "getWaitingList");
+        getUnspecified = new Timer(metrics, "getUnspecified");
+        getAttendeeCount = new Timer(metrics, "getAttendeeCount");
+        getBooking = new Timer(metrics, "getBooking");
+        markStatus = new Timer(metrics, "markStatus");
+        markStatusBatch = new Timer(metrics, "markStatusBatch");
+        markAbsent = new Timer(metrics, "markAbsent");
+        markAllUnspecifiedAbsent = new Timer(metrics, "markAllUnspecifiedAbsent");
+        cancelBooking = new Timer(metrics, "cancelBooking");
+        bookStudent = new Timer(metrics, "bookStudent");
+        bookStudentWithStuNumber = new Timer(metrics, "bookStudentWithStuNumber");
+        getStudent = new Timer(metrics, "getStudent");
+        getStudents = new Timer(metrics, "getStudents");
+        getEventsList = new Timer(metrics, "getEventsList");
+        getEvent = new Timer(metrics, "getEvent");
+        api.registerMetrics(metrics);
+    }
+
+    /**
+     * @return The booking system being timed
+     */
+    public BookingSystemAPI getDelegate() {
+        return api;
+    }
+
+    @Override
+    public boolean logIn(String username, char[] password) throws IOException {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            boolean loggedIn = api.logIn(username, password);
+            ok = true;
+            return loggedIn;
+        } finally {
+            logIn.stop(start, ok);
+        }
+    }
+
+    @Override
+    public String getAPIToken(String scope) throws IOException {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            String token = api.getAPIToken(scope);
+            ok = true;
+            return token;
+        } finally {
+            getAPIToken.stop(start, ok);
+        }
+    }
+
+    @Override
+    public List<Booking> getBookingList(String eventKey, String sessionKey) throws IOException {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            List<Booking> bookings = api.getBookingList(eventKey, sessionKey);
+            ok = true;
+            return bookings;
+        } finally {
+            getBookingList.stop(start, ok);
+        }
+    }
+
+    @Override
+    public BookingListSnapshot getBookingListSnapshot(String eventKey,
+                                                      String sessionKey,
+                                                      BookingListSnapshot previous) throws IOException {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            BookingListSnapshot snapshot = api.getBookingListSnapshot(eventKey, sessionKey, previous);
+            ok = true;
+            return snapshot;
+        } finally {
+            getBookingListSnapshot.stop(start, ok);
+        }
+    }
+
+    @Override
+    public List<Student> getWaitingList(String eventKey) throws IOException {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            List<Student> students = api.getWaitingList(eventKey);
+            ok = true;
+            return students;
+        } finally {
+            getWaitingList.stop(start, ok);
+        }
+    }
+
+    @Override
+    public List<String> getUnspecified(String eventKey) throws IOException {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            List<String> stuNumbers = api.getUnspecified(eventKey);
+            ok = true;
+            return stuNumbers;
+        } finally {
+            getUnspecified.stop(start, ok);
+        }
+    }
+
+    @Override
+    public int getAttendeeCount(String eventKey) throws IOException {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            int count = api.getAttendeeCount(eventKey);
+            ok = true;
+            return count;
+        } finally {
+            getAttendeeCount.stop(start, ok);
+        }
+    }
+
+    @Override
+    public Booking getBooking(String studentKey, String eventKey) throws IOException {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            Booking booking = api.getBooking(studentKey, eventKey);
+            ok = true;
+            return booking;
+        } finally {
+            getBooking.stop(start, ok);
+        }
+    }
+
+    @Override
+    public void markStatus(STATUS status, String studentKey, String eventKey) throws IOException {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            api.markStatus(status, studentKey, eventKey);
+            ok = true;
+        } finally {
+            markStatus.stop(start, ok);
+        }
+    }
+
+    @Override
+    public void markStatus(STATUS status, List<String> studentKeys, String eventKey) throws IOException {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            api.markStatus(status, studentKeys, eventKey);
+            ok = true;
+        } finally {
+            markStatusBatch.stop(start, ok);
+        }
+    }
+
+    @Override
+    public void markAbsent(List<String> studentKeys, String eventKey, Boolean notify) throws IOException {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            api.markAbsent(studentKeys, eventKey, notify);
+            ok = true;
+        } finally {
+            markAbsent.stop(start, ok);
+        }
+    }
+
+    @Override
+    public void markAllUnspecifiedAbsent(String eventKey, Boolean notify) throws IOException {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            api.markAllUnspecifiedAbsent(eventKey, notify);
+            ok = true;
+        } finally {
+            markAllUnspecifiedAbsent.stop(start, ok);
+        }
+    }
+
+    @Override
+    public void cancelBooking(String studentKey, String eventKey) throws IOException {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            api.cancelBooking(studentKey, eventKey);
+            ok = true;
+        } finally {
+            cancelBooking.stop(start, ok);
+        }
+    }
+
+    @Override
+    public Booking bookStudent(String studentKey, String eventKey, String sessionKey) throws IOException {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            Booking booking = api.bookStudent(studentKey, eventKey, sessionKey);
+            ok = true;
+            return booking;
+        } finally {
+            bookStudent.stop(start, ok);
+        }
+    }
+
+    @Override
+    public Booking bookStudentWithStuNumber(String stuNumber, String eventKey, String sessionKey) throws IOException {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            Booking booking = api.bookStudentWithStuNumber(stuNumber, eventKey, sessionKey);
+            ok = true;
+            return booking;
+        } finally {
+            bookStudentWithStuNumber.stop(start, ok);
+        }
+    }
+
+    @Override
+    public Student getStudent(String stuNumber) throws IOException {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            Student student = api.getStudent(stuNumber);
+            ok = true;
+            return student;
+        } finally {
+            getStudent.stop(start, ok);
+        }
+    }
+
+    @Override
+    public Student getKnownStudent(String stuNumber) {
+        return api.getKnownStudent(stuNumber);
+    }
+
+    @Override
+    public List<Student> getStudents(String search) throws IOException {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            List<Student> students = api.getStudents(search);
+            ok = true;
+            return students;
+        } finally {
+            getStudents.stop(start, ok);
+        }
+    }
+
+    @Override
+    public List<Event> getEventsList() throws IOException {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            List<Event> events = api.getEventsList();
+            ok = true;
+            return events;
+        } finally {
+            getEventsList.stop(start, ok);
+        }
+    }
+
+    @Override
+    public Event getEvent(String eventKey, boolean getBookings) throws IOException {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            Event event = api.getEvent(eventKey, getBookings);
+            ok = true;
+            return event;
+        } finally {
+            getEvent.stop(start, ok);
+        }
+    }
+
+    @Override
+    public String getAdminEventURL(String eventKey) {
+        return api.getAdminEventURL(eventKey);
+    }
+
+    @Override
+    public String getCharset() {
+        return api.getCharset();
+    }
+
+    @Override
+    public String getEmptyStuNumString() {
+        return api.getEmptyStuNumString();
+    }
+
+    @Override
+    public int getATTENDED_STATUS() {
+        return api.getATTENDED_STATUS();
+    }
+
+    @Override
+    public int getEVENT_FULL_STATUS() {
+        return api.getEVENT_FULL_STATUS();
+    }
+
+    @Override
+    public int getABSENT_STATUS() {
+        return api.getABSENT_STATUS();
+    }
+
+    @Override
+    public int getUNSPECIFIED_STATUS() {
+        return api.getUNSPECIFIED_STATUS();
+    }
+
+    @Override
+    public int getNOT_BOOKED_STATUS() {
+        return api.getNOT_BOOKED_STATUS();
+    }
+
+    @Override
+    public boolean isValidStuNum(String stuNum) {
+        return api.isValidStuNum(stuNum);
+    }
+
+    @Override
+    public String getDateFormat() {
+        return api.getDateFormat();
+    }
+
+    @Override
+    public void init() throws IOException {
+        api.init();
+    }
+
+    @Override
+    public void registerMetrics(Metrics metrics) {
+        api.registerMetrics(metrics);
+    }
+
+    private final BookingSystemAPI api;
+    private final Timer logIn;
+    private final Timer getAPIToken;
+    private final Timer getBookingList;
+    private final Timer getBookingListSnapshot;
+    private final Timer getWaitingList;
+    private final Timer getUnspecified;
+    private final Timer getAttendeeCount;
+    private final Timer getBooking;
+    private final Timer markStatus;
+    private final Timer markStatusBatch;
+    private final Timer markAbsent;
+    private final Timer markAllUnspecifiedAbsent;
+    private final Timer cancelBooking;
+    private final Timer bookStudent;
+    private final Timer bookStudentWithStuNumber;
+    private final Timer getStudent;
+    private final Timer getStudents;
+    private final Timer getEventsList;
+    private final Timer getEvent;
+
+    private static final class Timer {
+
+        Timer(Metrics metrics, String method) {
+            this.latency = metrics.histogram("api." + method);
+            this.failures = metrics.counter("api." + method + ".failures");
+        }
+
+        void stop(long start, boolean ok) {
+            latency.recordSince(start);
+            if (!ok) {
+                failures.incrementAndGet();
+            }
+        }
+
+        private final LatencyHistogram latency;
+        private final AtomicLong failures;
+
+    }
+
+}
@@ -0,0 +1,222 @@
+package eventswipe.APIs;
+
+import eventswipe.utils.Utils;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds the API tokens for each scope and keeps them fresh.
+ * <p>
+ * Once a scope has a token, it is refreshed in the background ahead of its
+ * expiry, so callers only wait for the booking system the first time a scope
+ * is used (or if every refresh has failed until the token expired).
+ * Concurrent requests for the same scope share one fetch.
+ *
+ * @author Matt Wildman http://bitbucket.org/mattwildman
+ * @see AccessToken
+ */
+public class TokenManager {
+
+    /**
+     * Fetches a new token from the booking system.
+     */
+    public interface Fetcher {
+
+        /**
+         * @param scope The scope to fetch a token for
+         * @return      A new AccessToken with its expiry date set
+         * @throws IOException
+         */
+        AccessToken fetch(String scope) throws IOException;
+    }
+
+    /**
+     * Constructs a token manager.
+     *
+     * @param fetcher            Fetches new tokens
+     * @param refreshAheadMillis How long before expiry to refresh a token
+     */
+    public TokenManager(Fetcher fetcher, long refreshAheadMillis) {
+        this.fetcher = fetcher;
+        this.refreshAheadMillis = refreshAheadMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "token-refresher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Returns a valid token for a scope, fetching one only if there is none.
+     *
+     * @param scope The scope you want access to (eg. "Public.Events")
+     * @return      The token to use in API calls
+     * @throws IOException
+     */
+    public String getToken(String scope) throws IOException {
+        Entry entry = entries.get(scope);
+        if (entry != null && !entry.token.isExpired()) {
+            if (System.currentTimeMillis() >= entry.refreshAt) {
+                refresh(scope, false);
+            }
+            return entry.token.getToken();
+        }
+        return Utils.getResult(refresh(scope, true)).token.getToken();
+    }
+
+    /**
+     * Forgets every token, eg. when the booking system credentials change.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return The number of tokens fetched
+     */
+    public long getRefreshCount() {
+        return refreshes.get();
+    }
+
+    /**
+     * @return The number of token fetches which failed
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * @return The time taken by the last token fetch in milliseconds
+     */
+    public long getLastRefreshMillis() {
+        return lastNanos.get() / 1000000;
+    }
+
+    /**
+     * @return The longest time taken by a token fetch in milliseconds
+     */
+    public long getMaxRefreshMillis() {
+        return maxNanos.get() / 1000000;
+    }
+
+    /**
+     * @return The mean time taken by a successful token fetch in milliseconds
+     */
+    public long getMeanRefreshMillis() {
+        long count = refreshes.get();
+        return count == 0 ? 0 : totalNanos.get() / count / 1000000;
+    }
+
+    /**
+     * Starts fetching a token for a scope, unless a fetch is already in flight.
+     *
+     * @param scope   The scope to fetch a token for
+     * @param runHere Whether to fetch on the calling thread rather than in the background
+     * @return        The fetch
+     */
+    private FutureTask<Entry> refresh(final String scope, boolean runHere) {
+        FutureTask<Entry> task = new FutureTask<>(new Callable<Entry>() {
+            @Override
+            public Entry call() throws IOException {
+                return fetch(scope);
+            }
+        });
+        FutureTask<Entry> inFlight = fetches.putIfAbsent(scope, task);
+        if (inFlight != null) {
+            return inFlight;
+        }
+        if (runHere) {
+            task.run();
+        }
+        else {
+            scheduler.execute(task);
+        }
+        return task;
+    }
+
+    private Entry fetch(final String scope) throws IOException {
+        long start = System.nanoTime();
+        try {
+            AccessToken token = fetcher.fetch(scope);
+            long elapsed = System.nanoTime() - start;
+            refreshes.incrementAndGet();
+            totalNanos.addAndGet(elapsed);
+            lastNanos.set(elapsed);
+            long max;
+            while (elapsed > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, elapsed)) {
+                //retry
+            }
+            long now = System.currentTimeMillis();
+            long lifetime = token.getExpiryDate().getTime() - now;
+            long delay = Math.max(lifetime - Math.min(refreshAheadMillis, lifetime / 2), MIN_REFRESH_DELAY);
+            Entry entry = new Entry(token, now + delay);
+            entries.put(scope, entry);
+            scheduleRefresh(scope, delay);
+            return entry;
+        } catch (IOException | RuntimeException ex) {
+            failures.incrementAndGet();
+            lastNanos.set(System.nanoTime() - start);
+            LOG.log(Level.WARNING, "Error fetching API token for " + scope, ex);
+            Entry entry = entries.get(scope);
+            if (entry != null && !entry.token.isExpired()) {
+                scheduleRefresh(scope, RETRY_DELAY);
+            }
+            throw ex;
+        } finally {
+            fetches.remove(scope);
+        }
+    }
+
+    private void scheduleRefresh(final String scope, long delayMillis) {
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Entry entry = entries.get(scope);
+                if (entry != null && System.currentTimeMillis() >= entry.refreshAt) {
+                    refresh(scope, true); //already on the refresher thread
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private final Fetcher fetcher;
+    private final long refreshAheadMillis;
+    private final ScheduledExecutorService scheduler;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, FutureTask<Entry>> fetches = new ConcurrentHashMap<>();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong lastNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    private static final long MIN_REFRESH_DELAY = 1000; //milliseconds
+    private static final long RETRY_DELAY = 10000; //milliseconds
+    private static final Logger LOG = Logger.getLogger(TokenManager.class.getName());
+
+    private static final class Entry {
+
+        Entry(AccessToken token, long refreshAt) {
+            this.token = token;
+            this.refreshAt = refreshAt;
+        }
+
+        private final AccessToken token;
+        private final long refreshAt;
+
+    }
+
+}
@@ -3,6 +3,15 @@ package eventswipe;
 import eventswipe.APIs.*;
 import eventswipe.APIs.BookingSystemAPI.STATUS;
 import eventswipe.exceptions.*;
+import eventswipe.metrics.LatencyHistogram;
+import eventswipe.metrics.Metrics;
+import eventswipe.storage.AttendanceExporter;
+import eventswipe.storage.AttendanceJournal;
+import eventswipe.storage.AuditLog;
+import eventswipe.storage.RosterStore;
+import eventswipe.sync.BookingRefresher;
+import eventswipe.sync.PeerSync;
+import eventswipe.sync.SyncEngine;
 import eventswipe.utils.*;
 import eventswipe.models.*;
 import java.awt.Desktop;
@@ -14,22 +23,38 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
+import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.EventObject;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.JOptionPane;
+import javax.swing.SwingWorker;
 import org.jdesktop.application.Action;
 import org.jdesktop.application.Application;
 import org.jdesktop.application.SingleFrameApplication;
@@ -44,6 +69,17 @@ public class EventSwipeApp extends SingleFrameApplication {
      */
     @Override
     public void startup() {
+        loadProperties();
+        show(new EventSwipeView(this));
+    }
+
+    /**
+     * Reads the booking system properties file, if there is one, and sets up
+     * the booking system and station sync with it.
+     *
+     * @return True if the properties were loaded, false if not
+     */
+    public boolean loadProperties() {
         if (data.isPropertiesFlag()) {
             try {
                 Properties p = getProperties(EventSwipeData.API_PROPERITES_PATH);
@@ -54,14 +90,23 @@ public class EventSwipeApp extends SingleFrameApplication {
                 data.setCustomProperties(pMap);
                 data.setDefaultUsername(p.getProperty(EventSwipeData.USERNAME_KEY, ""));
                 data.setDefaultPassword(p.getProperty(EventSwipeData.PASSWORD_KEY, "").toCharArray());
+                String logDir = p.getProperty(EventSwipeData.LOG_DIR_KEY, "").trim();
+                if (!logDir.isEmpty()) {
+                    logger.setLogDir(new File(logDir));
+                }
                 api.init();
+                PeerSync previous = peerSync;
+                if (previous != null) {
+                    previous.stop();
+                }
+                peerSync = startPeerSync();
             } catch (IOException ex) {
                 data.setPropertiesFlag(false);
                 Logger.getLogger(EventSwipeApp.class.getName()).log(Level.SEVERE, null, ex);
                 logger.logException(ex);
             }
         }
-        show(new EventSwipeView(this));
+        return data.isPropertiesFlag();
     }
 
     @Override
@@ -110,13 +155,60 @@ public class EventSwipeApp extends SingleFrameApplication {
     }
 
     public EventSwipeApp() {
+        this(CareerHubAPI.getInstance());
+    }
+
+    /**
+     * Constructs the application against a booking system, eg. a stub for benchmarks.
+     * Calls to the booking system are timed, see {@link InstrumentedBookingSystem}.
+     *
+     * @param api The booking system to record attendance in
+     */
+    public EventSwipeApp(BookingSystemAPI api) {
         data = EventSwipeData.getInstance();
         logger = EventSwipeLogger.getInstance();
-        api = CareerHubAPI.getInstance();
+        metrics = Metrics.getInstance();
+        confirmLatency = metrics.histogram("scan.confirm");
+        exportLatency = metrics.histogram("attendance.export");
+        markedCount = metrics.counter("attendance.marked");
+        failedCount = metrics.counter("attendance.failures");
+        api = new InstrumentedBookingSystem(api, metrics);
+        this.api = api;
         executor = Executors.newFixedThreadPool(EventSwipeData.MAX_ENTRY_SLOTS);
+        lookupExecutor = Executors.newFixedThreadPool(LOOKUP_THREADS);
+        scanPipeline = new ScanPipeline(this, SCAN_QUEUE_CAPACITY, SCAN_WORKERS);
+        attendanceWriter = new AttendanceWriter(api, ATTENDANCE_BATCH_SIZE, ATTENDANCE_BATCH_DELAY);
+        journal = openJournal();
+        auditLog = openAuditLog();
+        roster = openRoster();
+        syncEngine = new SyncEngine(api, attendanceWriter, SYNC_THREADS);
+        reconciler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "attendee-count-reconciler");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        reconciler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                reconcile();
+            }
+        }, RECONCILE_PERIOD, RECONCILE_PERIOD, TimeUnit.SECONDS);
+        bookingRefresher = new BookingRefresher(data, api, BOOKING_REFRESH_PERIOD);
+        bookingRefresher.start();
         HttpUtils.setCookiePolicy();
         data.setNetFlag(Utils.isInternetReachable());
         data.setPropertiesFlag(propertiesSet());
+        publishMetrics();
+    }
+
+    /**
+     * @return The application's latency histograms, counters and gauges
+     */
+    public Metrics getMetrics() {
+        return metrics;
     }
 
     /**
@@ -205,6 +297,13 @@ public class EventSwipeApp extends SingleFrameApplication {
 
     public void setOnlineModeFlag(boolean flag) {
         data.setOnlineMode(flag);
+        if (!flag) {
+            syncEngine.cancel();
+        }
+    }
+
+    public void setSyncListener(SyncEngine.Listener listener) {
+        syncListener = listener;
     }
 
     public boolean isOnlineMode() {
@@ -220,138 +319,388 @@ public class EventSwipeApp extends SingleFrameApplication {
     }
 
     public Booking checkBooking(String stuNumber) throws MalformedURLException, IOException {
+        return checkBooking(null, stuNumber);
+    }
+
+    /**
+     * Decides the booking status of a scan and records the attendance, for the
+     * Event the scanning station is routed to.
+     *
+     * @param station   The station the scan came from (may be null for the current Event)
+     * @param stuNumber The scanned student number
+     * @return          A Booking of the scan's own, so concurrent scans can't change its status
+     * @throws IOException
+     * @see #routeStation(String, String)
+     */
+    public Booking checkBooking(String station, String stuNumber) throws MalformedURLException, IOException {
+        long start = System.nanoTime();
+        LiveEvent live = data.getLiveEventForStation(station);
+        Event event = live.getEvent();
+        RecordedAttendees recorded = live.getRecordedAttendees();
         Booking bookingResult = new Booking(stuNumber);
-        Event event = data.getEvent();
         boolean booked = true;
         boolean waitingList = false;
+        boolean maybeWaitingList = false;
         boolean alreadyRecorded = false;
-        if (data.getAllRecordedList().contains(stuNumber)) {
+        boolean walkUp = false;
+        if (recorded.contains(stuNumber)) {
             alreadyRecorded = true;
         }
-        else if(data.isCheckingBookingLists()) {
-            booked = false;
-            for (Booking booking : event.getBookingList()) {
-                if (booking.getStuNumber().equals(stuNumber)) {
-                    booked = true;
-                    bookingResult = booking;
-                    break;
-                }
-            }
-            if (!booked && data.isWaitingListFlag()) {
-                if (!event.getWaitingList().isEmpty()) {
-                    Integer studentId = api.getStudent(stuNumber).getId();
-                    for (Student waitingStudent : event.getWaitingList()) {
-                        try {
-                            if (waitingStudent.getId().equals(studentId)) {
-                                waitingList = true;
-                            }
-                        } catch (NullPointerException np) {
-                            System.err.println("Waiting list student " +
-                               waitingStudent.getId() + " has no student number");
-                        }
-                    }
+        else if(live.isCheckingBookingList()) {
+            Session routed = data.getSessionForStation(station);
+            Booking booking = routed == null ? event.getBookingIndex().getByStuNumber(stuNumber) :
+                              event.getBookingIndex().getByStuNumber(stuNumber, routed.getId());
+            if (booking == null && event.getBookingIndex().isLoading() && data.isOnlineMode()) {
+                booking = lookUpBooking(event, stuNumber);
+                if (booking != null && routed != null && booking.getSessionId() != null &&
+                    !routed.getId().equals(booking.getSessionId())) {
+                    booking = null; //booked onto another session
+                }
+            }
+            booked = booking != null;
+            if (booked) {
+                bookingResult = new Booking(booking); //the indexed Booking is shared by concurrent scans
+            }
+            if (!booked && live.isCheckingWaitingList()) {
+                WaitingListIndex waitingListIndex = event.getWaitingListIndex();
+                waitingList = waitingListIndex.containsStuNumber(stuNumber); //resolved in the background
+                if (!waitingList && !waitingListIndex.isResolved()) {
+                    Boolean unresolved = isOnUnresolvedWaitingList(event, waitingListIndex, stuNumber);
+                    waitingList = Boolean.TRUE.equals(unresolved);
+                    maybeWaitingList = unresolved == null;
                 }
             }
         }
         else if (data.isOnlineMode()) {
-            bookingResult = getBooking(stuNumber);
+            walkUp = !event.getBookingIndex().containsStuNumber(stuNumber);
+            bookingResult = getBooking(live, data.getSessionForStation(station), stuNumber);
         }
+        if (booked && !alreadyRecorded) {
+            if (recorded.add(stuNumber)) {
+                journal(event, AttendanceJournal.Type.RECORDED, stuNumber);
+            }
+            else {
+                alreadyRecorded = true; //recorded by a concurrent scan
+            }
+        }
+        fillName(bookingResult);
         bookingResult.setBooked(booked);
         bookingResult.setAlreadyRecorded(alreadyRecorded);
         bookingResult.setOnWaitingList(waitingList);
-        if(booked && !alreadyRecorded) {
-            recordAttendance(bookingResult);
+        bookingResult.setMaybeOnWaitingList(maybeWaitingList);
+        if(booked && !alreadyRecorded && !walkUp) {
+            recordAttendance(live, bookingResult); //a walk-up is recorded once it is booked
         }
+        AuditLog.Decision decision = !booked ? (waitingList ? AuditLog.Decision.WAITING_LIST :
+                                                maybeWaitingList ? AuditLog.Decision.MAYBE_WAITING_LIST :
+                                                AuditLog.Decision.DENIED) :
+                                     alreadyRecorded ? AuditLog.Decision.REPEAT :
+                                     walkUp ? AuditLog.Decision.WALK_UP : AuditLog.Decision.ADMITTED;
+        audit(event, decision, bookingResult, station, (int) ((System.nanoTime() - start) / 1000));
         return bookingResult;
     }
     
-    private Booking getBooking(String stuNumber) throws IOException {
-        Event event = data.getEvent();
-        for (Booking booking : event.getBookingList()) {
-            if (booking.getStuNumber().equals(stuNumber)) {
-                return booking;
+    /**
+     * Checks a student number against the waiting list students whose student
+     * numbers aren't known yet, by their identifier. The identifier is taken
+     * from the student's bookings or the students already known before asking
+     * the booking system, and a student found is resolved in the index.
+     *
+     * @return True or false, or null if the student's identifier can't be found
+     */
+    private Boolean isOnUnresolvedWaitingList(Event event, WaitingListIndex waitingListIndex, String stuNumber) {
+        Booking booking = event.getBookingIndex().getByStuNumber(stuNumber);
+        Integer id = booking == null ? null : booking.getId();
+        if (id == null) {
+            Student student = api.getKnownStudent(stuNumber);
+            if (student == null && data.isOnlineMode()) {
+                try {
+                    student = api.getStudent(stuNumber);
+                } catch (NoStudentFoundException ex) {
+                    return false; //not in the booking system, so on no waiting list
+                } catch (IOException | RuntimeException ex) {
+                    LOG.log(Level.WARNING, "Error looking up student " + stuNumber, ex);
+                }
             }
+            id = student == null ? null : student.getId();
+        }
+        return id == null ? null : waitingListIndex.resolveId(id, stuNumber);
+    }
+
+    /**
+     * Asks the booking system for one student's booking, for scans made while
+     * the booking list is still loading.
+     *
+     * @return The Booking, or null if the student hasn't booked
+     */
+    private Booking lookUpBooking(Event event, String stuNumber) throws IOException {
+        Booking booking = api.getBooking(stuNumber, event.getId());
+        if (booking.getStatus() == api.getNOT_BOOKED_STATUS() ||
+            booking.getBookingId() == null || booking.getBookingId() == 0) {
+            return null;
+        }
+        event.getBookingIndex().add(booking);
+        return booking;
+    }
+
+    private Booking getBooking(LiveEvent live, Session session, String stuNumber) throws IOException {
+        Booking booking = live.getEvent().getBookingIndex().getByStuNumber(stuNumber);
+        if (booking != null) {
+            return new Booking(booking);
         }
         Booking newBooking = new Booking(stuNumber);
-        bookStudent(stuNumber, newBooking);
+        bookStudent(live, session, stuNumber, newBooking);
         newBooking.setStatus(api.getNOT_BOOKED_STATUS());
         return newBooking;
     }
 
     public void bookStudent(String stuNumber, Booking booking) throws IOException {
+        bookStudent(data.getCurrentLiveEvent(), null, stuNumber, booking);
+    }
+
+    /**
+     * Books a walk-up student onto an Event in the background.
+     *
+     * @param session The session to book, or null for the Event's current session
+     */
+    private void bookStudent(final LiveEvent live, final Session session, String stuNumber, Booking booking) {
+        final Event event = live.getEvent();
         if (data.isOnlineMode()) {
             final String stuNumberFin = stuNumber;
             final Booking bookingFin = booking;
             Future<?> response = executor.submit(new Runnable() {
                 @Override
                 public void run() {
-                    Event event = data.getEvent();
-                    for (int i = 0; i < event.getSessions().size(); i++) {
-                        Session s = event.getSessions().get(i);
-                        Date now = new Date();
-                        if ((now.compareTo(s.getStart()) >= 0 && now.compareTo(s.getEnd()) <= 0) || 
-                             i == (event.getSessions().size()-1)) {
-                            try {
-                                Booking newBooking = api.bookStudentWithStuNumber(stuNumberFin, event.getId(), s.getId());
-                                Integer newId = newBooking.getBookingId();
-                                bookingFin.setBookingId(newId);
-                                bookingFin.setSessionId(s.getId());
-                                recordAttendance(bookingFin);
-                                return;
-                            } catch (EventFullException efe) {
-                                event.getUnsavedList().add(stuNumberFin);
-                                data.setSavedFlag(false);
-                                throw efe;
-                            } catch (IOException ex) {
-                                Logger.getLogger(EventSwipeApp.class.getName())
-                                    .log(Level.SEVERE, "Student not booked", ex);
-                                logger.logException(ex);
-                                event.getUnsavedList().add(stuNumberFin);
-                                data.setSavedFlag(false);
-                            }
-                        }
+                    Session s = session != null ? session : event.getCurrentSession();
+                    String sessionId = s == null ? "" : s.getId();
+                    try {
+                        Booking newBooking = api.bookStudentWithStuNumber(stuNumberFin, event.getId(), sessionId);
+                        Integer newId = newBooking.getBookingId();
+                        bookingFin.setBookingId(newId);
+                        bookingFin.setId(newBooking.getId());
+                        bookingFin.setSessionId(sessionId);
+                        addWalkUpBooking(event, new Booking(bookingFin));
+                        recordAttendance(live, bookingFin);
+                    } catch (EventFullException efe) {
+                        addUnsaved(event, stuNumberFin);
+                        scanPipeline.confirm(bookingFin, false, efe);
+                    } catch (IOException | RuntimeException ex) {
+                        Logger.getLogger(EventSwipeApp.class.getName())
+                            .log(Level.SEVERE, "Student not booked", ex);
+                        logger.logException(ex);
+                        addUnsaved(event, stuNumberFin);
+                        scanPipeline.confirm(bookingFin, false, ex);
                     }
                 }
             });
         }
         else {
-            data.getEvent().getUnsavedList().add(stuNumber);
-            data.setSavedFlag(false);
+            addUnsaved(event, stuNumber);
         }
     }
 
+    private void addWalkUpBooking(Event event, Booking booking) {
+        if (event.getBookingList() != null) {
+            synchronized (event.getBookingList()) {
+                event.getBookingList().add(booking);
+            }
+        }
+        event.getBookingIndex().add(booking);
+    }
+
     public void recordAttendance(Booking booking) throws MalformedURLException, IOException {
-        final Event event = data.getEvent();
-        final Booking bookingFin = booking;
+        recordAttendance(data.getCurrentLiveEvent(), booking);
+    }
+
+    /**
+     * Records an attendee and writes the attendance to the booking system or,
+     * when stations are synced and another station is the writer, leaves the
+     * writing to that station. The record is kept as unsaved until the writer
+     * confirms it, so it isn't lost if the writer never gets it.
+     */
+    private void recordAttendance(final LiveEvent live, Booking booking) {
+        Event event = live.getEvent();
+        PeerSync peers = peerSync;
+        if (peers == null || peers.isWriter()) {
+            writeAttendance(live, booking, true);
+        }
+        else {
+            awaitingWriter.put(live.getKey() + '\n' + booking.getStuNumber(), booking);
+            addUnsaved(event, booking.getStuNumber());
+        }
+        if (live.getRecordedAttendees().add(booking.getStuNumber())) {
+            journal(event, AttendanceJournal.Type.RECORDED, booking.getStuNumber());
+        }
+        if (peers != null) {
+            peers.record(live.getKey(), booking.getStuNumber());
+        }
+    }
+
+    /**
+     * Writes an attendance record to the booking system, or keeps it as unsaved.
+     *
+     * @param scanned Whether the record is for a scan on this station, which is told of the outcome
+     */
+    private void writeAttendance(final LiveEvent live, Booking booking, final boolean scanned) {
+        final Event event = live.getEvent();
         if (data.isOnlineMode()) {
             Date now = new Date();
             if (now.after(event.getRegStart())) {
-                Future<?> response = executor.submit(new Runnable() {
+                final long submitted = System.nanoTime();
+                attendanceWriter.submit(event.getId(), booking, new AttendanceWriter.Callback() {
                     @Override
-                    public void run() {
-                        String bookingId = bookingFin.getBookingId().toString();
-                        try {
-                            api.markStatus(STATUS.ATTENDED, bookingId, event.getId());
-                        } catch (IOException ex) {
-                            Logger.getLogger(EventSwipeApp.class.getName()).log(Level.SEVERE, null, ex);
-                            logger.logException(ex);
-                            event.getUnsavedList().add(bookingFin.getStuNumber());
-                            data.setSavedFlag(false);
+                    public void marked(Booking marked) {
+                        confirmLatency.recordSince(submitted);
+                        markedCount.incrementAndGet();
+                        audit(event, AuditLog.Decision.CONFIRMED, marked, null, 0);
+                        live.incrementGlobalAttendeeCount();
+                        journal(event, AttendanceJournal.Type.CONFIRMED, marked.getStuNumber());
+                        PeerSync peers = peerSync;
+                        if (peers != null) {
+                            peers.confirm(live.getKey(), marked.getStuNumber());
+                        }
+                        if (scanned) {
+                            scanPipeline.confirm(marked, true, null);
+                        }
+                        else {
+                            writingForPeers.remove(live.getKey() + '\n' + marked.getStuNumber());
+                            confirmedByWriter(live, marked.getStuNumber());
+                        }
+                    }
+                    @Override
+                    public void failed(Booking failed, Exception ex) {
+                        confirmLatency.recordSince(submitted);
+                        failedCount.incrementAndGet();
+                        Logger.getLogger(EventSwipeApp.class.getName()).log(Level.SEVERE, null, ex);
+                        logger.logException(ex);
+                        addUnsaved(event, failed.getStuNumber());
+                        if (scanned) {
+                            scanPipeline.confirm(failed, false, ex);
+                        }
+                        else {
+                            writingForPeers.remove(live.getKey() + '\n' + failed.getStuNumber());
                         }
                     }
                 });
             }
             else {
                 booking.setStatus(Booking.EARLY_STATUS);
-                event.getUnsavedList().add(booking.getStuNumber());
-                data.setSavedFlag(false);
+                addUnsaved(event, booking.getStuNumber());
             }
         }
         else {
-            event.getUnsavedList().add(booking.getStuNumber());
+            addUnsaved(event, booking.getStuNumber());
+        }
+    }
+
+    /**
+     * Clears the unsaved record of a scan left to another station to write,
+     * once the booking system has confirmed it, and tells the scan of the outcome.
+     */
+    private void confirmedByWriter(LiveEvent live, String stuNumber) {
+        Booking scan = awaitingWriter.remove(live.getKey() + '\n' + stuNumber);
+        if (scan == null) {
+            return;
+        }
+        Event event = live.getEvent();
+        synchronized (event.getUnsavedList()) {
+            event.getUnsavedList().removeAll(Collections.singleton(stuNumber));
+        }
+        data.setSavedFlag(allSaved());
+        scanPipeline.confirm(scan, true, null);
+    }
+
+    private void addUnsaved(Event event, String stuNumber) {
+        synchronized (event.getUnsavedList()) {
+            event.getUnsavedList().add(stuNumber);
+            journal(event, AttendanceJournal.Type.UNSAVED, stuNumber);
+        }
+        audit(event, AuditLog.Decision.UNSAVED, new Booking(stuNumber), null, 0);
+        data.setSavedFlag(false);
+    }
+
+    /**
+     * Records a decision or booking system result in the audit log.
+     *
+     * @param station       The station the scan came from, or null
+     * @param latencyMicros The time taken to decide the scan, or 0
+     */
+    private void audit(Event event, AuditLog.Decision decision, Booking booking, String station, int latencyMicros) {
+        if (auditLog == null) {
+            return;
+        }
+        String session = booking.getSessionId();
+        if (session == null) {
+            Session routed = data.getSessionForStation(station);
+            session = routed != null ? routed.getId() : null;
+        }
+        auditLog.append(System.currentTimeMillis(), decision, booking.getStuNumber(),
+                        getEventKey(event), session, station, latencyMicros);
+    }
+
+    /**
+     * Reads the audit log of decisions and booking system results.
+     *
+     * @param query   The records to read
+     * @param visitor Receives each matching record
+     * @return        The number of matching records
+     * @throws IOException if there is no audit log or it can't be read
+     */
+    public long queryAudit(AuditLog.Query query, AuditLog.Visitor visitor) throws IOException {
+        if (auditLog == null) {
+            throw new IOException("The audit log could not be opened");
+        }
+        return auditLog.openReader().scan(query, visitor);
+    }
+
+    private void journal(Event event, AttendanceJournal.Type type, String stuNumber) {
+        if (journal != null && event.getJournalSession() != null) {
+            journal.append(event.getJournalSession(), type, stuNumber);
+        }
+    }
+
+    private String getEventKey(Event event) {
+        if (event.getId() != null) {
+            return event.getId();
+        }
+        return event.getTitle() != null ? event.getTitle() : data.getEventTitle();
+    }
+
+    /**
+     * Opens a journal session for an event. If the event was closed without
+     * saving, its recorded attendees and unsaved list are rebuilt from the journal.
+     */
+    private void restoreFromJournal(Event event) {
+        if (journal == null) {
+            return;
+        }
+        event.setJournalSession(journal.open(getEventKey(event)));
+        AttendanceJournal.Replay replay = journal.replay(event.getJournalSession());
+        RecordedAttendees recorded = data.getLiveEvent(event).getRecordedAttendees();
+        for (String stuNumber : replay.getRecorded()) {
+            recorded.add(stuNumber);
+        }
+        if (!replay.getUnsaved().isEmpty()) {
+            event.getUnsavedList().addAll(replay.getUnsaved());
             data.setSavedFlag(false);
+            logger.log("Restored " + replay.getUnsaved().size() + " unsaved records from the journal");
+        }
+    }
+
+    /**
+     * Ends the journal sessions of the live events.
+     */
+    private void endJournalSessions() {
+        if (journal == null) {
+            return;
+        }
+        for (LiveEvent live : data.getLiveEvents()) {
+            String session = live.getEvent().getJournalSession();
+            if (session != null) {
+                journal.end(session);
+                live.getEvent().setJournalSession(null);
+            }
         }
-        data.getAllRecordedList().add(booking.getStuNumber());
     }
 
     public String incrementLocalAttendeeCount() {
@@ -364,9 +713,52 @@ public class EventSwipeApp extends SingleFrameApplication {
         return a.toString();
     }
 
-    public String getAttendeeCount() throws MalformedURLException, IOException {
-        Event event = data.getEvent();
-        return String.valueOf(api.getAttendeeCount(event.getId()));
+    /**
+     * @return The total number of attendees for the event, maintained locally
+     *         and reconciled with the booking system in the background
+     */
+    public String getAttendeeCount() {
+        return String.valueOf(data.getGlobalAttendeeCount());
+    }
+
+    /**
+     * Picks up changes to the booking list made in the booking system, in the background.
+     *
+     * @see BookingRefresher
+     */
+    public void refreshBookings() {
+        bookingRefresher.refreshNow();
+    }
+
+    /**
+     * Fetches the attendee count from the booking system in the background.
+     */
+    public void reconcileAttendeeCount() {
+        reconciler.execute(new Runnable() {
+            @Override
+            public void run() {
+                reconcile();
+            }
+        });
+    }
+
+    private void reconcile() {
+        PeerSync peers = peerSync;
+        if (!data.isOnlineMode() || (peers != null && !peers.isWriter())) {
+            return; //synced stations count the writer's confirmations instead
+        }
+        for (LiveEvent live : data.getLiveEvents()) {
+            Event event = live.getEvent();
+            if (event.getId() == null) {
+                continue;
+            }
+            try {
+                live.setGlobalAttendeeCount(api.getAttendeeCount(event.getId()));
+            } catch (Exception ex) {
+                Logger.getLogger(EventSwipeApp.class.getName())
+                    .log(Level.WARNING, "Error reconciling attendee count for event " + event.getId(), ex);
+            }
+        }
     }
 
     public void writeToFile(File file, String content) {
@@ -379,39 +771,170 @@ public class EventSwipeApp extends SingleFrameApplication {
         }
     }
 
+    /**
+     * Asks where to save the attendees and exports them there in the background.
+     *
+     * @see #exportAttendees(File)
+     */
     @Action
     public void saveAttendeesToFile() {
-        String header = "Event attendees";
-	header += " - " + Utils.getDate("dd/MM/yyyy HH:mm:ss")
-                        + System.getProperty("line.separator");
-        FileDialog fDialog = new FileDialog(this.getMainFrame(), 
-                        "Save attendees list", FileDialog.SAVE);
-        fDialog.setVisible(true);
-        String path = fDialog.getDirectory() + fDialog.getFile();
-        if (!path.equals("nullnull")) {
-            if (!path.endsWith(".txt")) {
-                path += ".txt";
+        final File saveFile = chooseExportFile();
+        if (saveFile == null) {
+            return;
+        }
+        new SwingWorker<Long, Void>() {
+            @Override
+            protected Long doInBackground() throws IOException {
+                return exportAttendees(saveFile);
             }
-            File saveFile = new File(path);
-            try {
-                saveFile.createNewFile();
-            } catch (IOException e) {
-                System.err.println("Error: " + e.getMessage());
+            @Override
+            protected void done() {
+                try {
+                    get();
+                    attendeesSaved(saveFile);
+                } catch (InterruptedException | ExecutionException ex) {
+                    Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                    exportFailed(saveFile, cause);
+                }
             }
-            writeToFile(saveFile, header);
-            Event event = data.getEvent();
-            writeToFile(saveFile, event.getTitle() + System.getProperty("line.separator"));
-            for (String stuNum : event.getUnsavedList()) {
-                writeToFile(saveFile, stuNum + System.getProperty("line.separator"));
+        }.execute();
+    }
+
+    /**
+     * Exports the attendees of every live event to a file, replacing it. The
+     * format is chosen by the file's extension, ".jsonl" for JSON Lines, ".json"
+     * for JSON and CSV otherwise, and the columns by the "exportColumns" booking
+     * system property, eg. "STUDENT_NUMBER,LAST_NAME,RECORDED_AT". Only the
+     * unsaved attendees are exported, unless the "exportScope" booking system
+     * property is "all", when the recorded attendees are exported in the order
+     * they arrived, followed by any unsaved records which weren't recorded.
+     *
+     * @param file The file to export to
+     * @return     The number of attendees exported
+     * @throws IOException
+     */
+    public long exportAttendees(File file) throws IOException {
+        String columns = data.getCustomProperties().get(EventSwipeData.EXPORT_COLUMNS_KEY);
+        AttendanceExporter exporter = new AttendanceExporter(AttendanceExporter.Format.forFile(file),
+                                                             AttendanceExporter.Column.parse(columns));
+        final boolean all = EventSwipeData.EXPORT_SCOPE_ALL.equalsIgnoreCase(
+            data.getCustomProperties().get(EventSwipeData.EXPORT_SCOPE_KEY));
+        final List<LiveEvent> liveEvents = new ArrayList<>(data.getLiveEvents());
+        long start = System.nanoTime();
+        long rows = exporter.export(new AttendanceExporter.Source() {
+            @Override
+            public void export(AttendanceExporter.Sink sink) throws IOException {
+                AttendanceExporter.Row row = new AttendanceExporter.Row();
+                for (LiveEvent live : liveEvents) {
+                    exportEvent(live, all, row, sink);
+                }
             }
-            data.setSavedFlag(true);
-            Desktop dk = Desktop.getDesktop();
-            try {
-                dk.open(saveFile);
-            } catch (IOException e) {
-                System.err.println("Error: " + e.getMessage());
+        }, file);
+        for (LiveEvent live : liveEvents) {
+            journal(live.getEvent(), AttendanceJournal.Type.SAVED, null);
+        }
+        exportLatency.recordSince(start);
+        logger.log("Exported " + rows + " attendees to " + file.getName());
+        return rows;
+    }
+
+    private void exportEvent(LiveEvent live, boolean all, AttendanceExporter.Row row,
+                             AttendanceExporter.Sink sink) throws IOException {
+        Event event = live.getEvent();
+        AttendanceJournal.Replay replay = journal == null ? null : journal.replay(event.getJournalSession());
+        Set<String> unsaved;
+        synchronized (event.getUnsavedList()) {
+            unsaved = new LinkedHashSet<>(event.getUnsavedList());
+        }
+        if (!all) {
+            for (String stuNumber : unsaved) {
+                exportAttendee(event, stuNumber, unsaved, replay, row, sink);
+            }
+            return;
+        }
+        List<String> recorded = live.getRecordedAttendees().toList();
+        for (String stuNumber : recorded) {
+            exportAttendee(event, stuNumber, unsaved, replay, row, sink);
+        }
+        Set<String> recordedSet = new HashSet<>(recorded);
+        for (String stuNumber : unsaved) {
+            if (!recordedSet.contains(stuNumber)) {
+                exportAttendee(event, stuNumber, unsaved, replay, row, sink);
+            }
+        }
+    }
+
+    private void exportAttendee(Event event, String stuNumber, Set<String> unsaved,
+                                AttendanceJournal.Replay replay, AttendanceExporter.Row row,
+                                AttendanceExporter.Sink sink) throws IOException {
+        row.clear();
+        row.set(AttendanceExporter.Column.EVENT, getEventKey(event));
+        row.set(AttendanceExporter.Column.EVENT_TITLE, event.getTitle());
+        row.set(AttendanceExporter.Column.STUDENT_NUMBER, stuNumber);
+        Booking booking = event.getBookingIndex().getByStuNumber(stuNumber);
+        if (booking != null) {
+            row.set(AttendanceExporter.Column.SESSION, booking.getSessionId());
+            row.set(AttendanceExporter.Column.FIRST_NAME, booking.getFirstName());
+            row.set(AttendanceExporter.Column.LAST_NAME, booking.getLastName());
+        }
+        RosterStore r = roster;
+        if (r != null && (booking == null || booking.getFirstName() == null || booking.getFirstName().isEmpty())) {
+            Student student = r.get(stuNumber);
+            if (student != null) {
+                row.set(AttendanceExporter.Column.FIRST_NAME, student.getFirstName());
+                row.set(AttendanceExporter.Column.LAST_NAME, student.getLastName());
             }
         }
+        if (unsaved.contains(stuNumber)) {
+            row.set(AttendanceExporter.Column.STATUS, "unsaved");
+        }
+        else if (replay != null && replay.getConfirmed().contains(stuNumber)) {
+            row.set(AttendanceExporter.Column.STATUS, "confirmed");
+        }
+        else {
+            row.set(AttendanceExporter.Column.STATUS, "recorded");
+        }
+        Long recordedAt = replay == null ? null : replay.getRecordedTime(stuNumber);
+        if (recordedAt != null) {
+            row.setRecordedAt(recordedAt);
+        }
+        sink.write(row);
+    }
+
+    private File chooseExportFile() {
+        FileDialog fDialog = new FileDialog(this.getMainFrame(),
+                        "Save attendees list", FileDialog.SAVE);
+        fDialog.setFile("Attendees " + Utils.getDate("dd-MM-yyyy HHmm")
+                        + AttendanceExporter.Format.CSV.getExtension());
+        fDialog.setVisible(true);
+        if (fDialog.getFile() == null) {
+            return null;
+        }
+        String path = fDialog.getDirectory() + fDialog.getFile();
+        String lower = path.toLowerCase();
+        if (!lower.endsWith(".csv") && !lower.endsWith(".jsonl") && !lower.endsWith(".json")) {
+            path += AttendanceExporter.Format.CSV.getExtension();
+        }
+        return new File(path);
+    }
+
+    private void attendeesSaved(File saveFile) {
+        data.setSavedFlag(true);
+        try {
+            Desktop.getDesktop().open(saveFile);
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.WARNING, "Could not open " + saveFile, e);
+        }
+    }
+
+    private void exportFailed(File saveFile, Throwable cause) {
+        Logger.getLogger(EventSwipeApp.class.getName())
+            .log(Level.SEVERE, "Error exporting attendees", cause);
+        logger.log("Error exporting attendees to " + saveFile.getName() + ": " + cause.getMessage());
+        JOptionPane.showMessageDialog(this.getMainFrame(),
+          "The attendees could not be saved: " + cause.getMessage(),
+          "Save failed",
+          JOptionPane.ERROR_MESSAGE);
     }
 
     public void createLog() {
@@ -423,6 +946,9 @@ public class EventSwipeApp extends SingleFrameApplication {
     }
 
     public void clearData() {
+        endJournalSessions();
+        awaitingWriter.clear();
+        writingForPeers.clear();
         data.clearData();
     }
 
@@ -462,18 +988,151 @@ public class EventSwipeApp extends SingleFrameApplication {
             waitingList.add(student);
         }
         data.getEvent().setWaitingList(waitingList);
+        data.getEvent().setWaitingListIndex(new WaitingListIndex(waitingList));
+    }
+
+    /**
+     * Queues a scanned student number to be decided off the event dispatch thread.
+     *
+     * @param input The scanned student number
+     * @return      True if the scan was queued, false if the scan queue is full
+     * @see ScanPipeline
+     */
+    public boolean submitScan(String input) {
+        return scanPipeline.submit(null, input);
+    }
+
+    /**
+     * Queues a scan from a station to be decided off the event dispatch thread
+     * for the Event the station is routed to.
+     *
+     * @param station The station the scan came from
+     * @param input   The scanned student number
+     * @return        True if the scan was queued, false if the scan queue is full
+     * @see #routeStation(String, String)
+     */
+    public boolean submitScan(String station, String input) {
+        return scanPipeline.submit(station, input);
+    }
+
+    /**
+     * Sends the scans from a station to an Event which has been loaded, or to
+     * one of its sessions. Several events can be loaded at once (see
+     * {@link #loadEvent(String, Boolean)}); they share the booking system
+     * connection, API tokens and caches but keep their own counters and
+     * unsaved records.
+     *
+     * @param station A name for the station, eg. "Room 2 door"
+     * @param key     The id of a loaded Event, or of one of its sessions
+     * @return        True if the station was routed, false if no loaded Event matches
+     */
+    public boolean routeStation(String station, String key) {
+        return data.routeStation(station, key);
+    }
+
+    /**
+     * @return Every Event recording attendance, with its counters
+     */
+    public List<LiveEvent> getLiveEvents() {
+        return data.getLiveEvents();
+    }
+
+    /**
+     * Makes a loaded Event the one shown and recorded by default.
+     *
+     * @param key The id of a loaded Event or, offline, its title
+     * @return    True if the Event is loaded, false if not
+     */
+    public boolean setCurrentEvent(String key) {
+        LiveEvent live = data.getLiveEvent(key);
+        if (live == null) {
+            return false;
+        }
+        data.setEvent(live.getEvent());
+        return true;
+    }
+
+    public void setScanListener(ScanPipeline.ScanListener listener) {
+        scanPipeline.setListener(listener);
     }
 
     public Booking processSearchInput(String input) throws MalformedURLException, IOException {
         return checkBooking(input);
     }
 
+    public Booking processScan(String station, String input) throws MalformedURLException, IOException {
+        return checkBooking(station, input);
+    }
+
+    /**
+     * Searches the names on the loaded booking list and waiting list. Works offline.
+     *
+     * @param input A name or part of a name
+     * @return      The matching Students, best matches first
+     * @see NameIndex
+     */
+    public List<Student> searchNames(String input) {
+        Event event = data.getEvent();
+        if (event == null) {
+            return new ArrayList<>();
+        }
+        List<Student> students = event.getNameIndex().search(input, MAX_NAME_RESULTS);
+        RosterStore r = roster;
+        if (students.isEmpty() && r != null) {
+            students = r.search(input, MAX_NAME_RESULTS);
+        }
+        return students;
+    }
+
+    /**
+     * Imports a CSV roster of every student, so names can be found without
+     * the booking system. Replaces any roster imported before.
+     *
+     * @param csv A CSV file with student number, first name and last name columns
+     * @return    The number of students imported
+     * @throws IOException
+     * @see RosterStore
+     */
+    public int importRoster(File csv) throws IOException {
+        long start = System.nanoTime();
+        File store = new File(EventSwipeData.ROSTER_PATH);
+        int count = RosterStore.importCsv(csv, store);
+        roster = RosterStore.open(store);
+        LOG.log(Level.INFO, "Imported {0} students into the roster in {1} ms",
+                new Object[]{count, Utils.millisSince(start)});
+        return count;
+    }
+
+    /**
+     * @return Whether a student roster has been imported
+     */
+    public boolean hasRoster() {
+        return roster != null;
+    }
+
+    /**
+     * Fills in the name of a Booking from the roster, if the name is missing.
+     */
+    private void fillName(Booking booking) {
+        RosterStore r = roster;
+        if (r == null || booking.getStuNumber() == null ||
+            (booking.getFirstName() != null && !booking.getFirstName().isEmpty())) {
+            return;
+        }
+        Student student = r.get(booking.getStuNumber());
+        if (student != null) {
+            booking.setFirstName(student.getFirstName());
+            booking.setLastName(student.getLastName());
+        }
+    }
+
     public List<Student> getStudents(String input) throws MalformedURLException, IOException {
         return api.getStudents(input);
     }
 
     public void addEvent(Event event) {
         data.addEvent(event);
+        restoreFromJournal(event);
     }
 
     public void setEventsOffline(List<String> paths) {
@@ -488,6 +1147,7 @@ public class EventSwipeApp extends SingleFrameApplication {
             for (String number : numberList) {
                 Booking booking = new Booking(number);
                 booking.setSessionId(String.valueOf(i + 1));
+                fillName(booking);
                 bookingList.add(booking);
             }
             event.getBookingList().addAll(bookingList);
@@ -496,32 +1156,187 @@ public class EventSwipeApp extends SingleFrameApplication {
             event.getSessions().add(session);
         }
         data.addEvent(event);
+        restoreFromJournal(event);
         data.setSingleSlot(event.getSessions().size() == 1);
     }
 
-    public Event loadEvent(String eventKey, Boolean useWaitingList) throws IOException {
-        Event event = api.getEvent(eventKey, true);
-        if(useWaitingList) {
-            List<Student> waitingList = api.getWaitingList(eventKey);
-            event.setWaitingList(waitingList);
-            if (!waitingList.isEmpty()) {
-                data.setWaitingListFlag(true);
+    /**
+     * Loads an event with its booking list and, optionally, its waiting list.
+     * The waiting list and the booking list of each session are fetched at the
+     * same time once the event details have arrived.
+     * <p>
+     * The Event becomes the current Event. Events loaded since the data was
+     * last cleared keep recording attendance for the stations routed to them.
+     * <p>
+     * Events with at least {@value #PROGRESSIVE_LOAD_THRESHOLD} bookings are
+     * loaded progressively: this returns as soon as the event details and
+     * waiting list are available and the booking lists are added session by
+     * session in the background. Until they all arrive, a scan which isn't in
+     * the booking index is checked with the booking system.
+     *
+     * @param eventKey       The unique identifier for the event
+     * @param useWaitingList Whether or not to load the waiting list
+     * @return               The loaded Event
+     * @throws IOException
+     */
+    public Event loadEvent(final String eventKey, Boolean useWaitingList) throws IOException {
+        final long start = System.nanoTime();
+        Future<List<Student>> waitingListResult = null;
+        if (useWaitingList) {
+            waitingListResult = lookupExecutor.submit(new Callable<List<Student>>() {
+                @Override
+                public List<Student> call() throws IOException {
+                    List<Student> waitingList = api.getWaitingList(eventKey);
+                    LOG.log(Level.INFO, "Event {0} waiting list loaded in {1} ms",
+                            new Object[]{eventKey, Utils.millisSince(start)});
+                    return waitingList;
+                }
+            });
+        }
+        Event event;
+        try {
+            event = api.getEvent(eventKey, false);
+        } catch (IOException | RuntimeException ex) {
+            if (waitingListResult != null) {
+                waitingListResult.cancel(true);
+            }
+            throw ex;
+        }
+        final List<Future<List<Booking>>> sessionBookings = new ArrayList<>();
+        if (!event.isDropIn()) {
+            for (final Session session : event.getSessions()) {
+                sessionBookings.add(lookupExecutor.submit(new Callable<List<Booking>>() {
+                    @Override
+                    public List<Booking> call() throws IOException {
+                        return api.getBookingList(eventKey, session.getId());
+                    }
+                }));
+            }
+        }
+        boolean progressive = !sessionBookings.isEmpty() &&
+                              event.getBookingCount() >= PROGRESSIVE_LOAD_THRESHOLD;
+        if (!progressive) {
+            try {
+                for (Future<List<Booking>> bookings : sessionBookings) {
+                    event.getBookingList().addAll(Utils.getResult(bookings));
+                }
+            } catch (IOException | RuntimeException ex) {
+                for (Future<List<Booking>> bookings : sessionBookings) {
+                    bookings.cancel(true);
+                }
+                if (waitingListResult != null) {
+                    waitingListResult.cancel(true);
+                }
+                throw ex;
             }
+            LOG.log(Level.INFO, "Event {0} booking lists for {1} sessions loaded in {2} ms",
+                    new Object[]{eventKey, sessionBookings.size(), Utils.millisSince(start)});
+        }
+        if (useWaitingList) {
+            List<Student> waitingList = Utils.getResult(waitingListResult);
+            event.setWaitingList(waitingList);
+            event.setWaitingListIndex(new WaitingListIndex(waitingList));
         }
         data.addEvent(event);
+        if (useWaitingList && !event.getWaitingList().isEmpty()) {
+            data.getLiveEvent(event).setCheckingWaitingList(true);
+            resolveWaitingList(event.getWaitingListIndex());
+        }
+        restoreFromJournal(event);
         data.setSingleSlot(event.getSessions().size() == 1);
+        if (progressive) {
+            event.getBookingIndex().setLoading(true);
+            addBookingsInBackground(event, sessionBookings, start);
+        }
+        LOG.log(Level.INFO, "Event {0} loaded in {1} ms", new Object[]{eventKey, Utils.millisSince(start)});
         return event;
     }
 
+    /**
+     * Adds the booking list of each session to a progressively loaded event as it
+     * arrives. The event stays loading if any session fails, so scans keep being
+     * checked with the booking system.
+     */
+    private void addBookingsInBackground(final Event event,
+                                         final List<Future<List<Booking>>> sessionBookings,
+                                         final long start) {
+        Thread loader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean complete = true;
+                for (Future<List<Booking>> bookings : sessionBookings) {
+                    if (data.getLiveEvent(event) == null) {
+                        return; //the event has been cleared
+                    }
+                    try {
+                        data.addBookings(event, Utils.getResult(bookings));
+                    } catch (IOException | RuntimeException ex) {
+                        complete = false;
+                        LOG.log(Level.SEVERE, "Error loading bookings for event " + event.getId(), ex);
+                        logger.logException(ex);
+                    }
+                }
+                if (complete) {
+                    event.getBookingIndex().setLoading(false);
+                }
+                LOG.log(Level.INFO, "Event {0} booking lists for {1} sessions loaded in the background in {2} ms",
+                        new Object[]{event.getId(), sessionBookings.size(), Utils.millisSince(start)});
+            }
+        }, "booking-loader-" + event.getId());
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * Looks up the student numbers of everyone on a booking system waiting list
+     * in the background, so waiting list checks don't need the booking system.
+     * Students who can't be found are given up on, and the index is complete
+     * once every lookup has finished.
+     */
+    private void resolveWaitingList(final WaitingListIndex waitingListIndex) {
+        final List<Student> unresolved = waitingListIndex.getUnresolved();
+        final AtomicInteger remaining = new AtomicInteger(unresolved.size());
+        for (final Student waiting : unresolved) {
+            lookupExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!resolveWaitingStudent(waitingListIndex, waiting)) {
+                            LOG.log(Level.WARNING, "Waiting list student {0} could not be resolved", waiting.getId());
+                            waitingListIndex.giveUp(waiting);
+                        }
+                    } catch (Exception ex) {
+                        LOG.log(Level.SEVERE, "Error resolving waiting list student " + waiting.getId(), ex);
+                        logger.logException(ex);
+                        waitingListIndex.giveUp(waiting);
+                    } finally {
+                        if (remaining.decrementAndGet() == 0 && !waitingListIndex.isResolved()) {
+                            logger.log(waitingListIndex.getUnresolvable().size()
+                                       + " waiting list students could not be identified by student number");
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private boolean resolveWaitingStudent(WaitingListIndex waitingListIndex, Student waiting) throws IOException {
+        String name = (waiting.getFirstName() + " " + waiting.getLastName()).trim();
+        String search = URLEncoder.encode(name, api.getCharset());
+        for (Student match : api.getStudents(search)) {
+            if (waiting.getId().equals(match.getId()) &&
+                !match.getStuNumber().equals(api.getEmptyStuNumString())) {
+                waitingListIndex.resolve(waiting, match.getStuNumber());
+                return true;
+            }
+        }
+        return false;
+    }
+
     public void goToOnlineMode() throws IOException {
         if (Utils.isInternetReachable()) {
             setOnlineModeFlag(true);
-            try {
-                bookUnsavedRecords();
-            } catch (EventFullException ef) {
-                logger.logException(ef);
-                throw ef;
-            }
+            syncUnsavedRecords();
         }
         else {
             throw new IOException();
@@ -549,13 +1364,28 @@ public class EventSwipeApp extends SingleFrameApplication {
     }
 
     public void addToEarlyList(String stuNumber) {
-        data.getEvent().getUnsavedList().add(stuNumber);
-        data.setSavedFlag(false);
+        addUnsaved(data.getEvent(), stuNumber);
+    }
+
+    /**
+     * Sends the attendance records waiting to be batched to the booking system now.
+     */
+    public void flushAttendance() {
+        attendanceWriter.flush();
     }
 
     public void saveAndFinish() {
+        attendanceWriter.flush();
         if (!data.getSavedFlag()) {
-            this.saveAttendeesToFile();
+            File saveFile = chooseExportFile();
+            if (saveFile != null) {
+                try {
+                    exportAttendees(saveFile); //exiting, so there is nothing to keep responsive
+                    attendeesSaved(saveFile);
+                } catch (IOException ex) {
+                    exportFailed(saveFile, ex);
+                }
+            }
         }
         if (data.getSavedFlag()) {
             System.exit(0);
@@ -575,11 +1405,16 @@ public class EventSwipeApp extends SingleFrameApplication {
     }
 
     public void finish(Boolean markAbsent, Boolean notify) throws MalformedURLException, IOException {
+        attendanceWriter.flush();
         if (!data.getSavedFlag()) {
             this.saveAndFinish();
         }
         else if(markAbsent && data.getSavedFlag()) {
-            api.markAllUnspecifiedAbsent(data.getEvent().getId(), notify);
+            for (LiveEvent live : data.getLiveEvents()) {
+                if (live.getEvent().getId() != null) {
+                    api.markAllUnspecifiedAbsent(live.getEvent().getId(), notify);
+                }
+            }
         }
         System.exit(0);
     }
@@ -631,38 +1466,319 @@ public class EventSwipeApp extends SingleFrameApplication {
         launch(EventSwipeApp.class, args);
     }
 
-    private void bookUnsavedRecords() {
-        data.setSavedFlag(true);
-        Event event = data.getEvent();
-        List<String> saveErrors = new ArrayList<>();
-        for (int i = 0; i < event.getUnsavedList().size(); i++) {
-            String stuNum = event.getUnsavedList().get(i);
-            try {
-                Booking booking = getBooking(stuNum);
-                if (booking.getStatus() != api.getNOT_BOOKED_STATUS()) {
-                    recordAttendance(booking);
+    /**
+     * Syncs the unsaved records of every Event. A sync asked for while one is
+     * running starts once it has finished, so syncs never overlap.
+     */
+    private void syncUnsavedRecords() {
+        synchronized (syncLock) {
+            if (syncing) {
+                resyncRequested = true;
+                return;
+            }
+            syncing = true;
+        }
+        syncUnsavedRecords(data.getLiveEvents().iterator());
+    }
+
+    private void syncRunFinished() {
+        synchronized (syncLock) {
+            syncing = false;
+            if (!resyncRequested) {
+                return;
+            }
+            resyncRequested = false;
+        }
+        if (data.isOnlineMode()) {
+            syncUnsavedRecords();
+        }
+    }
+
+    /**
+     * Syncs the unsaved records of each Event in turn, so the sync progress
+     * shown is for one event at a time.
+     */
+    private void syncUnsavedRecords(final Iterator<LiveEvent> events) {
+        Event next = null;
+        List<String> pending = null;
+        while (next == null && events.hasNext()) {
+            Event event = events.next().getEvent();
+            synchronized (event.getUnsavedList()) {
+                pending = new ArrayList<>(event.getUnsavedList());
+            }
+            if (!pending.isEmpty()) {
+                next = event;
+            }
+        }
+        if (next == null) {
+            syncRunFinished();
+            return;
+        }
+        final Event event = next;
+        final List<String> unsaved = pending;
+        Set<String> confirmed = new HashSet<>();
+        if (journal != null) {
+            confirmed = journal.replay(event.getJournalSession()).getConfirmed();
+        }
+        syncEngine.start(event, unsaved, confirmed, new SyncEngine.Checkpoint() {
+            @Override
+            public void confirmed(Booking booking) {
+                journal(event, AttendanceJournal.Type.CONFIRMED, booking.getStuNumber());
+            }
+        }, new SyncEngine.Listener() {
+            @Override
+            public void progress(int done, int failed, int total) {
+                if (syncListener != null) {
+                    syncListener.progress(done, failed, total);
                 }
-                if (Objects.equals(booking.getStatus(), Booking.EARLY_STATUS)) {
-                    saveErrors.add(stuNum);
+            }
+            @Override
+            public void finished(SyncEngine.Result result) {
+                Set<String> failed = new HashSet<>(result.getUnsaved());
+                synchronized (event.getUnsavedList()) {
+                    for (String stuNum : unsaved) {
+                        if (!failed.contains(stuNum)) {
+                            event.getUnsavedList().remove(stuNum); //entries added since stay unsaved
+                        }
+                    }
+                    journal(event, AttendanceJournal.Type.SAVED, null);
+                    for (String stuNum : event.getUnsavedList()) {
+                        journal(event, AttendanceJournal.Type.UNSAVED, stuNum);
+                    }
                 }
-            } catch (EventFullException ef) {
-                logger.logException(ef);
-                for (int j = i; j < event.getUnsavedList().size(); j++) {
-                    saveErrors.add(event.getUnsavedList().get(j));
+                data.setSavedFlag(allSaved());
+                for (String stuNum : result.getEventFull()) {
+                    logger.log("Student " + stuNum + " couldn't be booked because the event is full");
                 }
-                event.setUnsavedList(saveErrors);
-            } catch (Exception ex) {
-                Logger.getLogger(EventSwipeApp.class.getName()).log(Level.SEVERE, null, ex);
-                logger.logException(ex);
-                saveErrors.add(stuNum);
-            } 
+                reconcileAttendeeCount();
+                if (syncListener != null) {
+                    syncListener.finished(result);
+                }
+                if (result.isCancelled()) {
+                    syncRunFinished();
+                }
+                else {
+                    syncUnsavedRecords(events);
+                }
+            }
+        });
+    }
+
+    private boolean allSaved() {
+        for (LiveEvent live : data.getLiveEvents()) {
+            if (live.getUnsavedCount() > 0) {
+                return false;
+            }
         }
-        if (saveErrors.isEmpty()) {
-            event.getUnsavedList().clear();
+        return true;
+    }
+
+    /**
+     * Starts syncing recorded attendees with the other stations on the local
+     * network, if a peer port has been set in the booking system properties.
+     *
+     * @see PeerSync
+     */
+    private PeerSync startPeerSync() {
+        Map<String, String> p = data.getCustomProperties();
+        String port = p.get(EventSwipeData.PEER_PORT_KEY);
+        if (port == null || port.trim().isEmpty()) {
+            return null;
         }
-        else {
-            event.setUnsavedList(saveErrors);
-            data.setSavedFlag(false);
+        try {
+            List<InetSocketAddress> peers = new ArrayList<>();
+            String peerList = p.get(EventSwipeData.PEERS_KEY);
+            if (peerList != null) {
+                for (String peer : peerList.split(",")) {
+                    peer = peer.trim();
+                    int colon = peer.lastIndexOf(':');
+                    if (colon > 0) {
+                        peers.add(new InetSocketAddress(peer.substring(0, colon),
+                                                        Integer.parseInt(peer.substring(colon + 1))));
+                    }
+                }
+            }
+            String secret = p.get(EventSwipeData.PEER_SECRET_KEY);
+            if (secret == null || secret.isEmpty()) {
+                LOG.log(Level.WARNING, "Not syncing with other stations as no {0} has been set",
+                        EventSwipeData.PEER_SECRET_KEY);
+                return null;
+            }
+            String station = p.get(EventSwipeData.STATION_NAME_KEY);
+            if (station == null || station.trim().isEmpty()) {
+                station = InetAddress.getLocalHost().getHostName();
+            }
+            final PeerSync sync = new PeerSync(station, Integer.parseInt(port.trim()), peers,
+                                               secret.getBytes(Utils.UTF8), new PeerSync.Listener() {
+                @Override
+                public void recorded(String eventKey, String stuNumber) {
+                    LiveEvent live = data.getLiveEvent(eventKey);
+                    if (live != null && live.getRecordedAttendees().add(stuNumber)) {
+                        journal(live.getEvent(), AttendanceJournal.Type.RECORDED, stuNumber);
+                    }
+                }
+                @Override
+                public void confirmed(String eventKey, String stuNumber) {
+                    LiveEvent live = data.getLiveEvent(eventKey);
+                    if (live != null) {
+                        live.incrementGlobalAttendeeCount();
+                        journal(live.getEvent(), AttendanceJournal.Type.CONFIRMED, stuNumber);
+                        confirmedByWriter(live, stuNumber);
+                    }
+                }
+                @Override
+                public void write(String eventKey, String stuNumber) {
+                    writeForPeers(eventKey, stuNumber);
+                }
+            });
+            sync.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    sync.stop();
+                }
+            }, "peer-sync-shutdown"));
+            LOG.log(Level.INFO, "Syncing with {0} stations as {1}", new Object[]{peers.size(), sync.getStationId()});
+            return sync;
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(EventSwipeApp.class.getName())
+                .log(Level.SEVERE, "Error starting station sync", ex);
+            logger.logException(ex);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the attendance of a student recorded on another station, as the
+     * elected writer. The booking is resolved in the background as it may
+     * need the booking system. A record without a booking id is never
+     * written, as the booking system would accept it without marking anyone,
+     * so it is left unconfirmed and the recording station keeps it unsaved
+     * until a later round of gossip writes it again.
+     */
+    private void writeForPeers(final String eventKey, final String stuNumber) {
+        final String key = eventKey + '\n' + stuNumber;
+        if (!writingForPeers.add(key)) {
+            return; //already being written
+        }
+        lookupExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                LiveEvent live = data.getLiveEvent(eventKey);
+                if (live == null) {
+                    writingForPeers.remove(key);
+                    return;
+                }
+                Event event = live.getEvent();
+                if (!data.isOnlineMode() || event.getId() == null || !new Date().after(event.getRegStart())) {
+                    writingForPeers.remove(key);
+                    addUnsaved(event, stuNumber);
+                    return;
+                }
+                Booking booking;
+                try {
+                    booking = syncEngine.resolve(event, stuNumber);
+                } catch (Exception ex) {
+                    writingForPeers.remove(key);
+                    LOG.log(Level.WARNING, "Leaving " + stuNumber + " unconfirmed as its booking could not be resolved", ex);
+                    return;
+                }
+                if (booking == null) {
+                    writingForPeers.remove(key);
+                    alreadyAttended(live, stuNumber);
+                    return;
+                }
+                writeAttendance(live, booking, false);
+            }
+        });
+    }
+
+    /**
+     * Confirms a record written for another station which the booking system
+     * already has as attended.
+     */
+    private void alreadyAttended(LiveEvent live, String stuNumber) {
+        journal(live.getEvent(), AttendanceJournal.Type.CONFIRMED, stuNumber);
+        PeerSync peers = peerSync;
+        if (peers != null) {
+            peers.confirm(live.getKey(), stuNumber);
+        }
+        confirmedByWriter(live, stuNumber);
+    }
+
+    /**
+     * Publishes the queue gauges, registers the metrics MBean and starts
+     * writing the metrics file.
+     */
+    private void publishMetrics() {
+        metrics.gauge("scan.queueDepth", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return scanPipeline.getDepth();
+            }
+        });
+        metrics.gauge("attendance.pending", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return attendanceWriter.getPendingCount();
+            }
+        });
+        metrics.gauge("attendance.unsaved", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                long unsaved = 0;
+                for (LiveEvent live : data.getLiveEvents()) {
+                    unsaved += live.getUnsavedCount();
+                }
+                return unsaved;
+            }
+        });
+        if (journal != null) {
+            metrics.gauge("journal.backlog", new Metrics.Gauge() {
+                @Override
+                public long get() {
+                    return journal.getBacklog();
+                }
+            });
+        }
+        metrics.registerMBean();
+        metrics.startWriting(new File(EventSwipeData.METRICS_PATH), METRICS_WRITE_PERIOD);
+    }
+
+    private AttendanceJournal openJournal() {
+        try {
+            return new AttendanceJournal(new File(EventSwipeData.JOURNAL_PATH));
+        } catch (IOException ex) {
+            Logger.getLogger(EventSwipeApp.class.getName())
+                .log(Level.SEVERE, "Error opening attendance journal", ex);
+            logger.logException(ex);
+            return null;
+        }
+    }
+
+    private AuditLog openAuditLog() {
+        try {
+            return new AuditLog(new File(EventSwipeData.AUDIT_PATH));
+        } catch (IOException ex) {
+            Logger.getLogger(EventSwipeApp.class.getName())
+                .log(Level.SEVERE, "Error opening audit log", ex);
+            logger.logException(ex);
+            return null;
+        }
+    }
+
+    private RosterStore openRoster() {
+        File store = new File(EventSwipeData.ROSTER_PATH);
+        if (!store.exists() && !new File(EventSwipeData.ROSTER_PATH + ".tmp").exists()) {
+            return null;
+        }
+        try {
+            return RosterStore.open(store);
+        } catch (IOException ex) {
+            Logger.getLogger(EventSwipeApp.class.getName())
+                .log(Level.SEVERE, "Error opening student roster", ex);
+            logger.logException(ex);
+            return null;
         }
     }
 
@@ -691,8 +1807,42 @@ public class EventSwipeApp extends SingleFrameApplication {
     }
     
     private final ExecutorService executor;
+    private final ExecutorService lookupExecutor;
+    private final ScanPipeline scanPipeline;
+    private final AttendanceWriter attendanceWriter;
+    private final AttendanceJournal journal;
+    private final AuditLog auditLog;
+    private volatile RosterStore roster;
+    private volatile PeerSync peerSync;
+    private final Map<String, Booking> awaitingWriter = new ConcurrentHashMap<>();
+    private final Set<String> writingForPeers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Object syncLock = new Object();
+    private boolean syncing = false;
+    private boolean resyncRequested = false;
+    private final SyncEngine syncEngine;
+    private final ScheduledExecutorService reconciler;
+    private final BookingRefresher bookingRefresher;
+    private volatile SyncEngine.Listener syncListener;
     private final EventSwipeLogger logger;
     private final EventSwipeData data;
     private final BookingSystemAPI api;
+    private final Metrics metrics;
+    private final LatencyHistogram confirmLatency;
+    private final LatencyHistogram exportLatency;
+    private final AtomicLong markedCount;
+    private final AtomicLong failedCount;
+
+    private static final int LOOKUP_THREADS = 4;
+    private static final int PROGRESSIVE_LOAD_THRESHOLD = 500;
+    private static final int MAX_NAME_RESULTS = 100;
+    private static final int SCAN_QUEUE_CAPACITY = 64;
+    private static final int SCAN_WORKERS = 1; //so scans are shown in the order they were made
+    private static final int ATTENDANCE_BATCH_SIZE = 50;
+    private static final long ATTENDANCE_BATCH_DELAY = 500; //milliseconds
+    private static final int SYNC_THREADS = 4;
+    private static final long RECONCILE_PERIOD = 60; //seconds
+    private static final long BOOKING_REFRESH_PERIOD = 60; //seconds
+    private static final long METRICS_WRITE_PERIOD = 10; //seconds
+    private static final Logger LOG = Logger.getLogger(EventSwipeApp.class.getName());
 
 }
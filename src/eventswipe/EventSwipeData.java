@@ -1,11 +1,21 @@
 package eventswipe;
 
 import eventswipe.models.Booking;
+import eventswipe.models.BookingIndex;
 import eventswipe.models.Event;
+import eventswipe.models.LiveEvent;
+import eventswipe.models.NameIndex;
+import eventswipe.models.RecordedAttendees;
+import eventswipe.models.Session;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Contains all the data for an attendance recording session.
@@ -24,6 +34,10 @@ public class EventSwipeData {
     public final int EVENT_FULL_STATUS = -1;
 
     public static final String API_PROPERITES_PATH = "BookingSystem.properties";
+    public static final String JOURNAL_PATH = "EventSwipe.journal";
+    public static final String ROSTER_PATH = "EventSwipe.roster";
+    public static final String METRICS_PATH = "EventSwipe.metrics";
+    public static final String AUDIT_PATH = "EventSwipe.audit";
     public static final String HOST_KEY = "host";
     public static final String API_ID_KEY = "id";
     public static final String API_SECRET_KEY = "secret";
@@ -31,6 +45,17 @@ public class EventSwipeData {
     public static final String USERNAME_KEY = "username";
     public static final String PASSWORD_KEY = "password";
     public static final String STATUS_KEY = "status";
+    public static final String CONNECT_TIMEOUT_KEY = "connectTimeout";
+    public static final String READ_TIMEOUT_KEY = "readTimeout";
+    public static final String STATION_NAME_KEY = "stationName";
+    public static final String PEER_PORT_KEY = "peerPort";
+    public static final String PEERS_KEY = "peers";
+    public static final String PEER_SECRET_KEY = "peerSecret";
+    public static final String SERVICE_TOKEN_KEY = "serviceToken";
+    public static final String LOG_DIR_KEY = "logDir";
+    public static final String EXPORT_COLUMNS_KEY = "exportColumns";
+    public static final String EXPORT_SCOPE_KEY = "exportScope";
+    public static final String EXPORT_SCOPE_ALL = "all";
 
     public static final Map<String,String> DEFAULT_PROPS;
     static {
@@ -56,14 +81,19 @@ public class EventSwipeData {
     }
 
     private EventSwipeData() {
-        allFileBookedList = new ArrayList<>();
+        idle = new LiveEvent(new Event(), "");
     }
 
     /**
-     * @return The List of Events running (multiple when recording attendance for a multi-slot event)
+     * @return The current Event, or null if no event has been added
      * @see Event
      */
     public Event getEvent() {
+        LiveEvent live = current;
+        if (live == null) {
+            return null;
+        }
+        Event event = live.getEvent();
         if (null == event.getTitle()) {
             event.setTitle(eventTitle);
         }
@@ -71,24 +101,240 @@ public class EventSwipeData {
     }
 
     /**
-     * Sets the List of Events running (multiple when recording attendance for a multi-slot event)
+     * Sets the current Event, adding it if it hasn't been added.
      *
      * @param event The Event you are recording attendance for
      * @see Event
      */
     public void setEvent(Event event) {
-        this.event = event;
+        LiveEvent live = getLiveEvent(event);
+        current = live != null ? live : addLiveEvent(event);
     }
 
     /**
-     * Adds an Event (or entry slot in a multi-slot event) to start recording attendance
+     * Adds an Event (or entry slot in a multi-slot event) to start recording attendance,
+     * indexes its booking list and makes it the current Event. Events added before
+     * keep recording attendance until the data is cleared.
      *
      * @param event An Event
      * @see Event
+     * @see BookingIndex
      */
     public void addEvent(Event event) {
-        this.initialiseAttendees(event);
-        this.event = event;
+        current = addLiveEvent(event);
+    }
+
+    private LiveEvent addLiveEvent(Event event) {
+        event.setBookingIndex(new BookingIndex(event.getBookingList()));
+        event.setNameIndex(new NameIndex(event.getBookingList(), event.getWaitingList()));
+        LiveEvent live;
+        synchronized (liveEvents) {
+            live = new LiveEvent(event, eventTitle);
+            //offline events are keyed by title, which needn't be unique
+            for (int n = 2; event.getId() == null && liveEvents.containsKey(live.getKey()); n++) {
+                live = new LiveEvent(event, eventTitle, n);
+            }
+            live.setCheckingBookingList(bookingFlag);
+            live.setCheckingWaitingList(waitingListFlag);
+            live.setGlobalAttendeeCount(event.getAttendeeCount());
+            this.initialiseAttendees(live);
+            liveEvents.put(live.getKey(), live);
+        }
+        return live;
+    }
+
+    /**
+     * @return Every Event recording attendance, in the order they were added
+     */
+    public List<LiveEvent> getLiveEvents() {
+        synchronized (liveEvents) {
+            return new ArrayList<>(liveEvents.values());
+        }
+    }
+
+    /**
+     * @param key The key of a live Event, see {@link LiveEvent#getKey()}
+     * @return    The Event recording attendance with that key, or null if there isn't one
+     */
+    public LiveEvent getLiveEvent(String key) {
+        synchronized (liveEvents) {
+            return liveEvents.get(key);
+        }
+    }
+
+    /**
+     * @param event An Event
+     * @return      The Event's counters and recorded attendees, or null if it isn't recording attendance
+     */
+    public LiveEvent getLiveEvent(Event event) {
+        synchronized (liveEvents) {
+            for (LiveEvent live : liveEvents.values()) {
+                if (live.getEvent() == event) {
+                    return live;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The current Event's counters and recorded attendees
+     */
+    public LiveEvent getCurrentLiveEvent() {
+        LiveEvent live = current;
+        return live != null ? live : idle;
+    }
+
+    /**
+     * Sends the scans from a station (eg. a scanner on the door of one room)
+     * to an Event or to one session of an Event.
+     *
+     * @param station A name for the station
+     * @param key     The key of a live Event, or the id of a session of one
+     * @return        True if the station was routed, false if no live Event matches the key
+     */
+    public boolean routeStation(String station, String key) {
+        if (findRoute(key) == null) {
+            return false;
+        }
+        stationRoutes.put(station, key);
+        return true;
+    }
+
+    /**
+     * Finds the Event a station's scans are for. Stations which haven't been
+     * routed record attendance for the current Event.
+     *
+     * @param station The name of a station (may be null)
+     * @return        The Event's counters and recorded attendees
+     */
+    public LiveEvent getLiveEventForStation(String station) {
+        String key = station == null ? null : stationRoutes.get(station);
+        if (key != null) {
+            Route route = findRoute(key);
+            if (route != null) {
+                return route.live;
+            }
+        }
+        return getCurrentLiveEvent();
+    }
+
+    /**
+     * @param station The name of a station (may be null)
+     * @return        The session a station is routed to, or null if it is routed to a whole Event
+     */
+    public Session getSessionForStation(String station) {
+        String key = station == null ? null : stationRoutes.get(station);
+        Route route = key == null ? null : findRoute(key);
+        return route == null ? null : route.session;
+    }
+
+    private Route findRoute(String key) {
+        LiveEvent live = getLiveEvent(key);
+        if (live != null) {
+            return new Route(live, null);
+        }
+        for (LiveEvent l : getLiveEvents()) {
+            if (l.getEvent().getSessions() == null) {
+                continue;
+            }
+            for (Session session : l.getEvent().getSessions()) {
+                if (key.equals(session.getId())) {
+                    return new Route(l, session);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds bookings which arrived after the Event was added, eg. one session of a
+     * progressively loaded event, to its booking list and index.
+     *
+     * @param event    The Event the bookings belong to
+     * @param bookings A List of Bookings
+     */
+    public void addBookings(Event event, List<Booking> bookings) {
+        synchronized (event.getBookingList()) {
+            event.getBookingList().addAll(bookings);
+        }
+        for (Booking b : bookings) {
+            event.getBookingIndex().add(b);
+            event.getNameIndex().add(b);
+            if (this.isOnlineMode() && b.getStatus() == ATTENDED_STATUS) {
+                recordedAttendees(event).add(b.getStuNumber());
+            }
+        }
+    }
+
+    /**
+     * Applies changes to the booking list of an Event found by refreshing it from
+     * the booking system. Bookings are matched by student number and session, so
+     * a change to one of a student's sessions leaves their other bookings alone.
+     *
+     * @param event   The Event the bookings belong to
+     * @param added   New Bookings
+     * @param changed Bookings whose status or booking id has changed
+     * @param removed Bookings which have been cancelled
+     */
+    public void mergeBookings(Event event, List<Booking> added, List<Booking> changed, List<Booking> removed) {
+        addBookings(event, added);
+        for (Booking b : changed) {
+            Booking current = findBooking(event, b.getStuNumber(), b.getSessionId());
+            if (current == null) {
+                addBookings(event, Collections.singletonList(b));
+                continue;
+            }
+            current.setStatus(b.getStatus());
+            current.setBookingId(b.getBookingId());
+            if (this.isOnlineMode() && b.getStatus() == ATTENDED_STATUS) {
+                recordedAttendees(event).add(b.getStuNumber());
+            }
+        }
+        if (removed.isEmpty()) {
+            return;
+        }
+        synchronized (event.getBookingList()) {
+            for (Booking b : removed) {
+                Booking remaining = null;
+                Iterator<Booking> it = event.getBookingList().iterator();
+                while (it.hasNext()) {
+                    Booking listed = it.next();
+                    if (!listed.getStuNumber().equals(b.getStuNumber())) {
+                        continue;
+                    }
+                    if (equal(listed.getSessionId(), b.getSessionId()) &&
+                        listed.getBookingId() != null && listed.getBookingId().equals(b.getBookingId())) {
+                        it.remove();
+                        event.getBookingIndex().remove(listed);
+                    }
+                    else if (remaining == null) {
+                        remaining = listed;
+                    }
+                }
+                if (remaining != null) {
+                    event.getBookingIndex().add(remaining); //still booked onto another session
+                }
+                else if (!event.getWaitingListIndex().containsStuNumber(b.getStuNumber())) {
+                    event.getNameIndex().remove(b.getStuNumber());
+                }
+            }
+        }
+    }
+
+    private Booking findBooking(Event event, String stuNumber, String sessionId) {
+        synchronized (event.getBookingList()) {
+            for (Booking listed : event.getBookingList()) {
+                if (listed.getStuNumber().equals(stuNumber) && equal(listed.getSessionId(), sessionId)) {
+                    return listed;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
     }
 
     /**
@@ -144,71 +390,99 @@ public class EventSwipeData {
      * Clears all data in current attendance recording session.
      */
     public void clearData() {
-        setLocalAttendeeCount(0);
         setWaitingListFlag(false);
         setSlots(0);
         setEventTitle("");
-        clearList(allFileBookedList);
-        event = null;
+        synchronized (liveEvents) {
+            liveEvents.clear();
+        }
+        stationRoutes.clear();
+        current = null;
+        idle = new LiveEvent(new Event(), "");
     }
 
     /**
-     * Adds 1 to the number of attendees recorded on the
+     * Adds 1 to the number of attendees of the current Event recorded on the
      * machine where EventSwipe is running then returns this number.
      *
      * @return The number of locally recorded attendees, after incrementation
      */
     public int incrementAttendeesCount() {
-        setLocalAttendeeCount(getLocalAttendeeCount() + 1);
-        return getLocalAttendeeCount();
+        return getCurrentLiveEvent().incrementLocalAttendeeCount();
     }
 
     /**
-     * @return The number of attendees recorded on the machine where EventSwipe is running
+     * @return The number of attendees of the current Event recorded on the machine where EventSwipe is running
      */
     public int getLocalAttendeeCount() {
-        return localAttendeeCount;
+        return getCurrentLiveEvent().getLocalAttendeeCount();
     }
 
     /**
-     * Sets the number of attendees recorded on the machine where EventSwipe is running.
+     * Sets the number of attendees of the current Event recorded on the machine where EventSwipe is running.
      *
      * @param count The number of locally recorded attendees
      */
     public void setLocalAttendeeCount(int count) {
-        this.localAttendeeCount = count;
+        getCurrentLiveEvent().setLocalAttendeeCount(count);
     }
 
     /**
-     * @return The total number of attendees recorded for the Event(s)
+     * Returns the total number of attendees recorded for the current Event across all machines.
+     * This is kept locally and never needs the booking system.
+     *
+     * @return The total number of attendees recorded for the Event
      */
     public int getGlobalAttendeeCount() {
-        return localAttendeeCount;
+        return getCurrentLiveEvent().getGlobalAttendeeCount();
     }
 
     /**
-     * Sets the total number of attendees recorded for the Event(s)
+     * Sets the total number of attendees recorded for the current Event,
+     * eg. after reconciling with the booking system.
      *
      * @param count The total number of attendees recorded
      */
     public void setGlobalAttendeeCount(int count) {
-        this.localAttendeeCount = count;
+        getCurrentLiveEvent().setGlobalAttendeeCount(count);
     }
 
     /**
-     * @return A List of all the student number Strings that have been recorded
+     * Adds 1 to the total number of attendees recorded for the current Event
+     * when the booking system confirms an attendance record.
+     *
+     * @return The total number of attendees, after incrementation
+     */
+    public int incrementGlobalAttendeeCount() {
+        return getCurrentLiveEvent().incrementGlobalAttendeeCount();
+    }
+
+    /**
+     * @return A List of all the student number Strings that have been recorded for the current Event, in the order they were recorded
      */
     public List<String> getAllRecordedList() {
-        return allFileBookedList;
+        return getRecordedAttendees().toList();
+    }
+
+    /**
+     * @return The set of all the student numbers that have been recorded for the current Event
+     * @see RecordedAttendees
+     */
+    public RecordedAttendees getRecordedAttendees() {
+        return getCurrentLiveEvent().getRecordedAttendees();
     }
 
     /**
-     * Sets the List of everyone who has booked for the Event(s)
+     * Sets the List of everyone who has booked for the current Event
      *
      * @param allBookedList A List of student number Strings
      */
     public void setAllBookedList(ArrayList<String> allBookedList) {
-        this.allFileBookedList = allBookedList;
+        RecordedAttendees recordedAttendees = getRecordedAttendees();
+        recordedAttendees.clear();
+        for (String stuNumber : allBookedList) {
+            recordedAttendees.add(stuNumber);
+        }
     }
 
     /**
@@ -276,35 +550,46 @@ public class EventSwipeData {
     }
 
     /**
-     * @return True/false depending on whether EventSwipe is checking waiting lists or not
+     * @return True/false depending on whether the current Event is checking its waiting list or not
      */
     public boolean isWaitingListFlag() {
-        return waitingListFlag;
+        LiveEvent live = current;
+        return live != null ? live.isCheckingWaitingList() : waitingListFlag;
     }
 
     /**
-     * Sets whether or not EventSwipe is checking waiting lists.
+     * Sets whether or not the current Event, and Events added from now on, check waiting lists.
      *
      * @param waitingListFlag True/false to check waiting lists or not
      */
     public void setWaitingListFlag(boolean waitingListFlag) {
         this.waitingListFlag = waitingListFlag;
+        LiveEvent live = current;
+        if (live != null) {
+            live.setCheckingWaitingList(waitingListFlag);
+        }
     }
 
     /**
-     * @return True/false depending on whether EventSwipe is checking booking lists
+     * @return True/false depending on whether the current Event is checking its booking list
      */
     public boolean isCheckingBookingLists() {
-        return bookingFlag;
+        LiveEvent live = current;
+        return live != null ? live.isCheckingBookingList() : bookingFlag;
     }
 
     /**
-     * Sets whether EventSwipe checks booking lists during attendance recording or not.
+     * Sets whether the current Event, and Events added from now on, check booking
+     * lists during attendance recording or not.
      *
      * @param bookingFlag True/false to checking booking lists or not
      */
     public void setBookingFlag(boolean bookingFlag) {
         this.bookingFlag = bookingFlag;
+        LiveEvent live = current;
+        if (live != null) {
+            live.setCheckingBookingList(bookingFlag);
+        }
     }
 
     /**
@@ -373,28 +658,28 @@ public class EventSwipeData {
      * @return The number of bookings for all event entry slots
      */
     public Integer getBookingCount() {
-        return event.getBookingCount();
+        return getEvent().getBookingCount();
     }
 
     /**
      * @return The number of attendees for all event entry slots
      */
     public Integer getAttendeeCount() {
-        return this.getAllRecordedList().size();
+        return getRecordedAttendees().size();
     }
 
     /**
      * @return The number of saved attendees for all event entry slots
      */
     public Integer getSavedCount() {
-        return event.getAttendeeCount();
+        return getEvent().getAttendeeCount();
     }
 
     /**
      * @return The number of unsaved attendees for all event entry slots
      */
     public Integer getUnsavedCount() {
-        return event.getUnsavedList().size();
+        return getCurrentLiveEvent().getUnsavedCount();
     }
 
     /**
@@ -409,6 +694,7 @@ public class EventSwipeData {
      * @return The number of free places in all event entry slots
      */
     public Integer getCurrentNumberOfPlaces() {
+        Event event = getEvent();
         if (event.isUnlimited() || event.isDropIn()) {
             return -1;
         }
@@ -441,12 +727,12 @@ public class EventSwipeData {
         count = c;
     }
 
-    private Event event;
-
-    private List<String> allFileBookedList;
+    private final Map<String, LiveEvent> liveEvents = new LinkedHashMap<>();
+    private final ConcurrentMap<String, String> stationRoutes = new ConcurrentHashMap<>();
+    private volatile LiveEvent current;
+    private volatile LiveEvent idle;
 
     private String eventTitle;
-    private int localAttendeeCount = 0;
     private int slots;
     private boolean netFlag;
     private boolean onlineMode;
@@ -465,20 +751,32 @@ public class EventSwipeData {
 
     private static EventSwipeData instance = null;
 
-    private void initialiseAttendees(Event event) {
+    private void initialiseAttendees(LiveEvent live) {
+        Event event = live.getEvent();
         if (this.isOnlineMode() && !event.isDropIn() && event.getAttendeeCount() > 0) {
             for (Booking b : event.getBookingList()) {
                 if (b.getStatus() == ATTENDED_STATUS) {
-                    this.getAllRecordedList().add(b.getStuNumber());
+                    live.getRecordedAttendees().add(b.getStuNumber());
                 }
             } 
         }
     }
-    
-    private void clearList(List<String> list) {
-        if (!list.isEmpty()) {
-            list.clear();
+
+    private RecordedAttendees recordedAttendees(Event event) {
+        LiveEvent live = getLiveEvent(event);
+        return live != null ? live.getRecordedAttendees() : idle.getRecordedAttendees();
+    }
+
+    private static final class Route {
+
+        Route(LiveEvent live, Session session) {
+            this.live = live;
+            this.session = session;
         }
+
+        private final LiveEvent live;
+        private final Session session;
+
     }
 
 }
@@ -1,6 +1,7 @@
 package eventswipe;
 
 import eventswipe.exceptions.*;
+import eventswipe.sync.SyncEngine;
 import eventswipe.utils.*;
 import eventswipe.models.*;
 import java.awt.Color;
@@ -16,6 +17,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URLEncoder;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumMap;
@@ -23,6 +25,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Queue;
 import java.util.Stack;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -41,6 +44,8 @@ import javax.swing.JFormattedTextField;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JList;
+import javax.swing.JMenu;
+import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JPasswordField;
 import javax.swing.JRadioButton;
@@ -48,6 +53,7 @@ import javax.swing.JScrollPane;
 import javax.swing.JTextField;
 import javax.swing.KeyStroke;
 import javax.swing.ListSelectionModel;
+import javax.swing.SwingWorker;
 import javax.swing.Timer;
 import javax.swing.UIManager;
 import org.apache.commons.validator.routines.UrlValidator;
@@ -86,6 +92,116 @@ public class EventSwipeView extends FrameView {
         updateOnlineBookingPanel(true);
         panelStack = new Stack<>();
         panelStack.push((JPanel) this.getComponent());
+        historyLabelText = historyLabel.getText();
+        Timer attendeeCountTimer = new Timer(ATTENDEE_COUNT_DELAY, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent evt) {
+                if (app.isOnlineMode()) {
+                    totalAttendeeCountDisplay.setText(app.getAttendeeCount());
+                }
+            }
+        });
+        attendeeCountTimer.start();
+        initMenuItems();
+        app.setScanListener(new ScanPipeline.ScanListener() {
+            @Override
+            public void scanDecided(Booking booking) {
+                showDecision(booking);
+            }
+            @Override
+            public void scanFailed(String input, Exception ex) {
+                scanFailedDisplay(input, ex);
+            }
+            @Override
+            public void scanConfirmed(Booking booking, boolean saved, Exception reason) {
+                scanConfirmedDisplay(booking, saved, reason);
+            }
+            @Override
+            public void queueChanged(int depth, int capacity, boolean refused) {
+                scanQueueDisplay(depth, capacity, refused);
+            }
+        });
+        app.setSyncListener(new SyncEngine.Listener() {
+            @Override
+            public void progress(int done, int failed, int total) {
+                syncProgressDisplay(done, failed, total);
+            }
+            @Override
+            public void finished(SyncEngine.Result result) {
+                syncFinishedDisplay(result);
+            }
+        });
+    }
+
+    /**
+     * Adds the roster import item to the file menu, above Exit.
+     */
+    private void initMenuItems() {
+        ResourceMap resourceMap = Application.getInstance(eventswipe.EventSwipeApp.class)
+           .getContext().getResourceMap(EventSwipeView.class);
+        JMenuItem importRosterMenuItem = new JMenuItem(resourceMap.getString("importRosterMenuItem.text"));
+        importRosterMenuItem.setName("importRosterMenuItem"); // NOI18N
+        importRosterMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent evt) {
+                importRoster();
+            }
+        });
+        JMenu fileMenu = menuBar.getMenu(0);
+        fileMenu.insert(importRosterMenuItem, fileMenu.getItemCount() - 1);
+        JMenuItem metricsMenuItem = new JMenuItem(resourceMap.getString("metricsMenuItem.text"));
+        metricsMenuItem.setName("metricsMenuItem"); // NOI18N
+        metricsMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent evt) {
+                showMetrics();
+            }
+        });
+        fileMenu.insert(metricsMenuItem, fileMenu.getItemCount() - 1);
+    }
+
+    private void showMetrics() {
+        if (metricsDialog == null) {
+            JFrame mainFrame = app.getMainFrame();
+            metricsDialog = new JDialog(mainFrame, "Performance");
+            metricsDialog.setName("metricsDialog"); // NOI18N
+            metricsDialog.add(new MetricsPanel(app.getMetrics()));
+            metricsDialog.pack();
+            metricsDialog.setLocationRelativeTo(mainFrame);
+        }
+        metricsDialog.setVisible(true);
+    }
+
+    private void importRoster() {
+        JFileChooser fc = new JFileChooser();
+        fc.addChoosableFileFilter(new TextCSVFilter());
+        if (fc.showDialog(app.getMainFrame(), "Import") != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        final File file = fc.getSelectedFile();
+        new SwingWorker<Integer, Void>() {
+            @Override
+            protected Integer doInBackground() throws IOException {
+                return app.importRoster(file);
+            }
+            @Override
+            protected void done() {
+                try {
+                    JOptionPane.showMessageDialog(app.getMainFrame(),
+                      get() + " students were imported from " + file.getName() + ".",
+                      "Roster imported",
+                      JOptionPane.INFORMATION_MESSAGE);
+                } catch (InterruptedException | java.util.concurrent.ExecutionException ex) {
+                    Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                    Logger.getLogger(EventSwipeView.class.getName())
+                        .log(Level.SEVERE, "Error importing student roster", cause);
+                    JOptionPane.showMessageDialog(app.getMainFrame(),
+                      "The roster could not be imported: " + cause.getMessage(),
+                      "Roster import failed",
+                      JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }.execute();
     }
 
     javax.swing.Action save = new AbstractAction() {
@@ -2639,31 +2755,21 @@ private void searchButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-
     String input = searchInput.getText();
     if (!input.isEmpty()) {
         if (app.isValidId(input)) {
-            Booking booking;
-                try {
-                    booking = app.processSearchInput(input);
-                    updateBookingStatus(booking);
-                } catch (EventFullException ef) {
-                    app.getLogger().logException(ef);
-                    eventFullDisplay(ef.getStuNum());
-                } catch (EarlyRegistrationException er) {
-                    app.getLogger().logException(er);
-                    earlyRegistrationDisplay(input);
-                } catch (IOException ex) {
-                    Logger.getLogger(EventSwipeView.class.getName()).log(Level.SEVERE, null, ex);
-                    app.getLogger().logException(ex);
-                    showGenericErrorMessage();
-                }
-                finally {
-                    searchInput.setText("");
-                    searchInput.requestFocusInWindow();
-                }
+            if (!app.submitScan(input)) {
+                Utils.failureNoise();
+                String message = "Student " + input + " was not scanned because the scan queue is full. " +
+                                 "Please scan again.";
+                displayBookingMessage(message);
+                app.log(message);
+            }
+            searchInput.setText("");
+            searchInput.requestFocusInWindow();
         }
         else {
             searchInput.setText("");
             searchInput.requestFocusInWindow();
-            if (app.isOnlineMode()) {
-                List<Student> students = new ArrayList<>();
+            List<Student> students = app.searchNames(input);
+            if (students.isEmpty() && app.isOnlineMode()) {
                 try {
                     input = URLEncoder.encode(input, app.getCharset());
                     students = app.getStudents(input);
@@ -2673,6 +2779,8 @@ private void searchButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-
                     searchInput.setEnabled(true);
                     showGenericErrorMessage();
                 }
+            }
+            if (app.isOnlineMode() || !students.isEmpty()) {
                 if (students.isEmpty()) {
                     JOptionPane.showMessageDialog(app.getMainFrame(),
                                                   "No students could be found.",
@@ -2697,7 +2805,7 @@ private void searchButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-
                     int i = studentList.getSelectedIndex();
                     if (i != -1) {
                         String stuNum = students.get(i).getStuNumber();
-                        if (stuNum.equals(app.getEmptyStuNumString())) {
+                        if (stuNum == null || stuNum.equals(app.getEmptyStuNumString())) {
                             JOptionPane.showMessageDialog(app.getMainFrame(),
                                                           "Attendee has no student number.",
                                                           "Student number error",
@@ -2759,15 +2867,10 @@ private void connectionMenuItemActionPerformed(java.awt.event.ActionEvent evt) {
 }//GEN-LAST:event_connectionMenuItemActionPerformed
 
 private void refreshAttendeesButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_refreshAttendeesButtonActionPerformed
-    String currentCount = totalAttendeeCountDisplay.getText();
-    try {
-        totalAttendeeCountDisplay.setText(app.getAttendeeCount());
-        updateEventStatus();
-    } catch (IOException ex) {
-        Logger.getLogger(EventSwipeView.class.getName()).log(Level.SEVERE, null, ex);
-        app.getLogger().logException(ex);
-        totalAttendeeCountDisplay.setText(currentCount);
-    }
+    app.reconcileAttendeeCount();
+    app.refreshBookings();
+    totalAttendeeCountDisplay.setText(app.getAttendeeCount());
+    updateEventStatus();
 }//GEN-LAST:event_refreshAttendeesButtonActionPerformed
 
 private void formPropertyChange(java.beans.PropertyChangeEvent evt) {//GEN-FIRST:event_formPropertyChange
@@ -3028,14 +3131,7 @@ private boolean logIn(JTextField uField, JPasswordField pField) {
             app.setBookingFlag(app.getBookedCount() > 0);
             enableOnlineComponents(true);
             connectionMenuItem.setEnabled(true);
-            String totalAttendees = "0";
-            try {
-                totalAttendees = app.getAttendeeCount();
-            } catch (IOException ex) {
-                Logger.getLogger(EventSwipeView.class.getName()).log(Level.SEVERE, null, ex);
-                app.getLogger().logException(ex);
-            }
-            totalAttendeeCountDisplay.setText(totalAttendees);
+            totalAttendeeCountDisplay.setText(app.getAttendeeCount());
             switchToPanel(mainOnlinePanel);
         }
         else {
@@ -3064,6 +3160,7 @@ private boolean logIn(JTextField uField, JPasswordField pField) {
     }
 
     private void updateBookingStatus(Booking booking) {
+        shownBooking = booking;
         String stuNumber = booking.getStuNumber();
         String message = "Student " + stuNumber;
         Event event = app.getEvent();
@@ -3100,12 +3197,19 @@ private boolean logIn(JTextField uField, JPasswordField pField) {
                 message += " has arrived too early";
             }
         }
-        else if(booking.isOnWaitingList()) {
+        else if(booking.isOnWaitingList() || booking.isMaybeOnWaitingList()) {
             Utils.failureNoise();
+            boolean maybe = !booking.isOnWaitingList();
+            String prompt = maybe ?
+                            "Student is not booked but may be on the waiting list, as "
+                            + event.getWaitingListIndex().getUnresolvedCount()
+                            + " waiting list students haven't been identified yet. "
+                            + "Allow student to enter?" :
+                            "Student is on the waiting list. Allow student to enter?";
             int reply = JOptionPane.showConfirmDialog(app.getMainFrame(),
-                                                      "Student is on the waiting list. "
-                                                      + "Allow student to enter?",
-                                                      "Student on waiting list",
+                                                      prompt,
+                                                      maybe ? "Student may be on waiting list" :
+                                                              "Student on waiting list",
                                                       JOptionPane.YES_NO_OPTION);
             if (reply == JOptionPane.YES_OPTION) {
                 try {
@@ -3121,6 +3225,10 @@ private boolean logIn(JTextField uField, JPasswordField pField) {
                     showGenericErrorMessage();
                 }
             }
+            else if (maybe) {
+                bookingStatus = "May be on waiting list";
+                message += " may be on the waiting list";
+            }
             else {
                 bookingStatus = "Waiting list";
                 message += " is on the waiting list";
@@ -3226,14 +3334,99 @@ private boolean logIn(JTextField uField, JPasswordField pField) {
         timer.setRepeats(false);
         timer.start();
         if (app.isOnlineMode()){
-            try {
-                totalAttendeeCountDisplay.setText(app.getAttendeeCount());
-            } catch (IOException ex) {
-                Logger.getLogger(EventSwipeView.class.getName()).log(Level.SEVERE, null, ex);
-                app.getLogger().logException(ex);
-                totalAttendeeCountDisplay.setText(app.getLocalAttendeeCount());
-                //showGenericErrorMessage();
+            totalAttendeeCountDisplay.setText(app.getAttendeeCount());
+        }
+    }
+
+    /**
+     * Shows scan decisions one at a time, in the order they were decided. A
+     * decision which arrives while another's dialog is open, and so runs inside
+     * the dialog's event loop, waits until the dialog has been answered.
+     */
+    private void showDecision(Booking booking) {
+        pendingDecisions.add(booking);
+        if (showingDecision) {
+            return;
+        }
+        showingDecision = true;
+        try {
+            Booking next;
+            while ((next = pendingDecisions.poll()) != null) {
+                updateBookingStatus(next);
             }
+        } finally {
+            showingDecision = false;
+        }
+    }
+
+    private void scanFailedDisplay(String input, Exception ex) {
+        app.getLogger().logException(ex);
+        showGenericErrorMessage();
+    }
+
+    /**
+     * Shows the booking system's response to an attendance record. Only the
+     * scan on screen has its status changed; confirmations of earlier scans
+     * are added to the history without touching the status or the search box.
+     */
+    private void scanConfirmedDisplay(Booking booking, boolean saved, Exception reason) {
+        if (booking == shownBooking && reason instanceof EventFullException) {
+            eventFullDisplay(booking.getStuNumber());
+        }
+        else if (booking == shownBooking && reason instanceof EarlyRegistrationException) {
+            earlyRegistrationDisplay(booking.getStuNumber());
+        }
+        else {
+            String message = "Student " + booking.getStuNumber() +
+                             (saved ? " has been saved to CareerHub" :
+                                      " could not be saved to CareerHub and has been kept as unsaved");
+            bookingStatusTextArea1.append(message + "\n");
+            if (!saved) {
+                app.log(message);
+            }
+        }
+        updateEventStatus();
+    }
+
+    private void scanQueueDisplay(int depth, int capacity, boolean refused) {
+        ResourceMap resourceMap = Application.getInstance(eventswipe.EventSwipeApp.class)
+           .getContext().getResourceMap(EventSwipeView.class);
+        if (refused) {
+            historyLabel.setText(resourceMap.getString("scanQueueFullText"));
+            historyLabel.setForeground(Color.RED);
+        }
+        else if (depth > 0) {
+            historyLabel.setText(resourceMap.getString("scanQueueText", depth, capacity));
+            historyLabel.setForeground(depth * 2 > capacity ? Color.ORANGE : null);
+        }
+        else {
+            historyLabel.setText(historyLabelText);
+            historyLabel.setForeground(null);
+        }
+    }
+
+    private void syncProgressDisplay(int done, int failed, int total) {
+        ResourceMap resourceMap = Application.getInstance(eventswipe.EventSwipeApp.class)
+           .getContext().getResourceMap(EventSwipeView.class);
+        historyLabel.setText(resourceMap.getString("syncProgressText", done, total, failed));
+        historyLabel.setForeground(failed > 0 ? Color.ORANGE : null);
+    }
+
+    private void syncFinishedDisplay(SyncEngine.Result result) {
+        historyLabel.setText(historyLabelText);
+        historyLabel.setForeground(null);
+        String message = result.getSaved() + " offline records saved to CareerHub";
+        if (!result.getUnsaved().isEmpty()) {
+            message += ", " + result.getUnsaved().size() + " could not be saved";
+        }
+        if (result.isCancelled()) {
+            message += " (cancelled)";
+        }
+        displayBookingMessage(message);
+        app.log(message);
+        updateEventStatus();
+        if (!result.getEventFull().isEmpty()) {
+            eventFullDisplay(result.getEventFull().get(0));
         }
     }
 
@@ -3408,8 +3601,8 @@ private boolean logIn(JTextField uField, JPasswordField pField) {
             if (app.isLoggedIn()) {
                 try {
                     app.goToOnlineMode();
-                    String attendees = app.getAttendeeCount();
-                    totalAttendeeCountDisplay.setText(attendees);
+                    app.reconcileAttendeeCount();
+                    totalAttendeeCountDisplay.setText(app.getAttendeeCount());
                     success = true;
                 } catch (EventFullException ef) {
                     eventFullDisplay(ef.getStuNum());
@@ -3699,6 +3892,7 @@ private boolean logIn(JTextField uField, JPasswordField pField) {
     private javax.swing.JRadioButton yesWaitingListRadioButton;
     // End of variables declaration//GEN-END:variables
     private JDialog aboutBox;
+    private JDialog metricsDialog;
     private String titleInputDefault;
     private String fileInputDefault;
     private String idInputDefault;
@@ -3708,6 +3902,11 @@ private boolean logIn(JTextField uField, JPasswordField pField) {
     private String onlineModeTooltipText;
     private String offlineModeTooltipText;
     private Integer attendeesDisplay = 0;
+    private Booking shownBooking;
+    private final Queue<Booking> pendingDecisions = new ArrayDeque<>();
+    private boolean showingDecision;
+    private String historyLabelText;
+    private static final int ATTENDEE_COUNT_DELAY = 1000; //milliseconds
 
     private String defaultRegexType = ".";
     private String defaultRegexQuantifier = "+";
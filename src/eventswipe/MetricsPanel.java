@@ -0,0 +1,135 @@
+package eventswipe;
+
+import eventswipe.metrics.LatencyHistogram;
+import eventswipe.metrics.Metrics;
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.Timer;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * A live table of the application's metrics.
+ * <p>
+ * Latencies are shown for the last refresh period only, so the table shows
+ * how the station is doing now rather than since it started. Counters and
+ * gauges are shown as their current values. The table refreshes while the
+ * panel is showing.
+ *
+ * @author Matt Wildman http://bitbucket.org/mattwildman
+ */
+public class MetricsPanel extends JPanel {
+
+    /**
+     * Constructs a metrics panel.
+     *
+     * @param metrics The Metrics to show
+     */
+    public MetricsPanel(Metrics metrics) {
+        super(new BorderLayout());
+        this.metrics = metrics;
+        this.model = new MetricsTableModel();
+        JTable table = new JTable(model);
+        table.setFillsViewportHeight(true);
+        table.getColumnModel().getColumn(0).setPreferredWidth(NAME_WIDTH);
+        JScrollPane scrollPane = new JScrollPane(table);
+        scrollPane.setPreferredSize(new Dimension(PREFERRED_WIDTH, PREFERRED_HEIGHT));
+        add(scrollPane, BorderLayout.CENTER);
+        add(new JLabel("Latencies over the last " + REFRESH_PERIOD / 1000 + " seconds"), BorderLayout.SOUTH);
+        this.timer = new Timer(REFRESH_PERIOD, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                refresh();
+            }
+        });
+    }
+
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        refresh();
+        timer.start();
+    }
+
+    @Override
+    public void removeNotify() {
+        timer.stop();
+        super.removeNotify();
+    }
+
+    private void refresh() {
+        List<Object[]> rows = new ArrayList<>();
+        for (Map.Entry<String, LatencyHistogram> histogram : metrics.getHistograms().entrySet()) {
+            LatencyHistogram.Snapshot now = histogram.getValue().snapshot();
+            LatencyHistogram.Snapshot interval = now.since(previous.get(histogram.getKey()));
+            previous.put(histogram.getKey(), now);
+            rows.add(new Object[]{histogram.getKey(), interval.getCount(),
+                                  interval.getCount() == 0 ? null : millis(interval.getPercentileMillis(0.5)),
+                                  interval.getCount() == 0 ? null : millis(interval.getPercentileMillis(0.99)),
+                                  interval.getCount() == 0 ? null : millis(interval.getMaxMillis())});
+        }
+        for (Map.Entry<String, Long> value : metrics.getValues().entrySet()) {
+            rows.add(new Object[]{value.getKey(), value.getValue(), null, null, null});
+        }
+        model.setRows(rows);
+    }
+
+    private static String millis(double millis) {
+        return String.format("%.1f", millis);
+    }
+
+    private static class MetricsTableModel extends AbstractTableModel {
+
+        void setRows(List<Object[]> rows) {
+            this.rows = rows;
+            fireTableDataChanged();
+        }
+
+        @Override
+        public int getRowCount() {
+            return rows.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            return rows.get(row)[column];
+        }
+
+        private List<Object[]> rows = new ArrayList<>();
+
+        private static final long serialVersionUID = 1L;
+
+    }
+
+    private final Metrics metrics;
+    private final MetricsTableModel model;
+    private final Timer timer;
+    private final Map<String, LatencyHistogram.Snapshot> previous = new HashMap<>();
+
+    private static final String[] COLUMNS = {"Metric", "Count", "p50 ms", "p99 ms", "Max ms"};
+    private static final int REFRESH_PERIOD = 5000; //milliseconds
+    private static final int NAME_WIDTH = 220;
+    private static final int PREFERRED_WIDTH = 520;
+    private static final int PREFERRED_HEIGHT = 360;
+    private static final long serialVersionUID = 1L;
+
+}
@@ -0,0 +1,238 @@
+package eventswipe;
+
+import eventswipe.metrics.LatencyHistogram;
+import eventswipe.metrics.Metrics;
+import eventswipe.models.Booking;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.SwingUtilities;
+
+/**
+ * Takes scanned student numbers off the event dispatch thread.
+ * <p>
+ * Scans are put in a bounded queue and decided by worker threads, each for
+ * the event its station is routed to. Decisions,
+ * later confirmations from the booking system and changes in the queue depth
+ * are published to a ScanListener on the event dispatch thread. When the
+ * queue is full new scans are refused rather than blocking the scanner.
+ * <p>
+ * Decisions are only published in the order the scans were made with one
+ * worker, as a slow decision, eg. one which needs the booking system, would
+ * otherwise be overtaken by later scans. A pipeline driving a screen showing
+ * the student at the desk should have one worker.
+ * <p>
+ * Each stage of a scan is timed: "scan.ingest" is the wait in the queue,
+ * "scan.decide" the decision and "scan.display" the wait for the event
+ * dispatch thread and the listener's handling of the decision.
+ *
+ * @author Matt Wildman http://bitbucket.org/mattwildman
+ */
+public class ScanPipeline {
+
+    /**
+     * Receives the results of scans. All methods are called on the event dispatch thread.
+     */
+    public interface ScanListener {
+
+        /**
+         * Called when the booking status of a scan has been decided.
+         *
+         * @param booking The Booking for the scanned student number
+         */
+        void scanDecided(Booking booking);
+
+        /**
+         * Called when a scan could not be decided.
+         *
+         * @param input The scanned input
+         * @param ex    The reason the scan failed
+         */
+        void scanFailed(String input, Exception ex);
+
+        /**
+         * Called when the booking system has accepted or rejected an attendance record.
+         * The Booking is the one passed to scanDecided for the same scan, so a
+         * confirmation can be told apart from the scan currently shown.
+         *
+         * @param booking The Booking that was recorded
+         * @param saved   True if the booking system saved the attendance, false if it is unsaved
+         * @param reason  Why the attendance wasn't saved, eg. an EventFullException, or null
+         */
+        void scanConfirmed(Booking booking, boolean saved, Exception reason);
+
+        /**
+         * Called when the number of scans waiting to be decided changes.
+         *
+         * @param depth    The number of scans in the queue
+         * @param capacity The maximum number of scans the queue can hold
+         * @param refused  True if a scan has just been refused because the queue is full
+         */
+        void queueChanged(int depth, int capacity, boolean refused);
+    }
+
+    /**
+     * Constructs a scan pipeline and starts its worker threads.
+     *
+     * @param app      The application used to decide scans
+     * @param capacity The maximum number of scans waiting to be decided
+     * @param workers  The number of worker threads, which should be one if decisions must be published in order
+     */
+    public ScanPipeline(EventSwipeApp app, int capacity, int workers) {
+        this.app = app;
+        this.capacity = capacity;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        for (int i = 0; i < workers; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "scan-worker-" + (i + 1));
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * Sets the listener which receives scan results.
+     *
+     * @param listener A ScanListener
+     */
+    public void setListener(ScanListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Queues a scanned student number. Never blocks.
+     *
+     * @param station The station the scan came from (may be null for the current event)
+     * @param input   The scanned student number
+     * @return        True if the scan was queued, false if the queue is full
+     */
+    public boolean submit(String station, String input) {
+        boolean queued = queue.offer(new Scan(station, input));
+        if (!queued) {
+            refusedScans.incrementAndGet();
+        }
+        publishQueueChanged(!queued);
+        return queued;
+    }
+
+    /**
+     * @return The number of scans waiting to be decided
+     */
+    public int getDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return The maximum number of scans waiting to be decided
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Publishes the booking system's response to an attendance record.
+     *
+     * @param booking The Booking the scan was decided with
+     * @param saved   True if the booking system saved the attendance, false if not
+     * @param reason  Why the attendance wasn't saved, or null
+     */
+    public void confirm(final Booking booking, final boolean saved, final Exception reason) {
+        final ScanListener l = listener;
+        if (l != null) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    l.scanConfirmed(booking, saved, reason);
+                }
+            });
+        }
+    }
+
+    private void work() {
+        while (true) {
+            final Scan scan;
+            try {
+                scan = queue.take();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            final String input = scan.input;
+            long taken = System.nanoTime();
+            ingestLatency.record(taken - scan.submitted);
+            publishQueueChanged(false);
+            final ScanListener l = listener;
+            try {
+                final Booking booking = app.processScan(scan.station, input);
+                final long decided = System.nanoTime();
+                decideLatency.record(decided - taken);
+                if (l != null) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            l.scanDecided(booking);
+                            displayLatency.recordSince(decided);
+                        }
+                    });
+                }
+            } catch (final Exception ex) {
+                failedScans.incrementAndGet();
+                LOG.log(Level.SEVERE, "Error deciding scan " + input, ex);
+                if (l != null) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            l.scanFailed(input, ex);
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    private void publishQueueChanged(final boolean refused) {
+        final ScanListener l = listener;
+        final int depth = queue.size();
+        if (l != null) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    l.queueChanged(depth, capacity, refused);
+                }
+            });
+        }
+    }
+
+    private final EventSwipeApp app;
+    private final BlockingQueue<Scan> queue;
+    private final int capacity;
+    private volatile ScanListener listener;
+    private final LatencyHistogram ingestLatency = Metrics.getInstance().histogram("scan.ingest");
+    private final LatencyHistogram decideLatency = Metrics.getInstance().histogram("scan.decide");
+    private final LatencyHistogram displayLatency = Metrics.getInstance().histogram("scan.display");
+    private final AtomicLong refusedScans = Metrics.getInstance().counter("scan.refused");
+    private final AtomicLong failedScans = Metrics.getInstance().counter("scan.failed");
+
+    private static final Logger LOG = Logger.getLogger(ScanPipeline.class.getName());
+
+    private static final class Scan {
+
+        Scan(String station, String input) {
+            this.station = station;
+            this.input = input;
+            this.submitted = System.nanoTime();
+        }
+
+        private final String station;
+        private final String input;
+        private final long submitted;
+
+    }
+
+}
@@ -0,0 +1,415 @@
+package eventswipe;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import eventswipe.metrics.LatencyHistogram;
+import eventswipe.metrics.Metrics;
+import eventswipe.models.Booking;
+import eventswipe.models.LiveEvent;
+import eventswipe.utils.Utils;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs EventSwipe without its window, taking scans from card readers and
+ * gates over a local HTTP API.
+ * <p>
+ * The service listens on the loopback address unless told to bind to
+ * another, and every request must carry the "serviceToken" from
+ * BookingSystem.properties in an {@code Authorization: Bearer <token>}
+ * header, so nothing else on the network can record attendance or read
+ * students' names. Requests without it are refused with 401.
+ * <p>
+ * Scans are decided by the same booking logic as the desktop application and
+ * attendance is recorded, synced and journaled in the same way. Each request
+ * is decided on the thread which received it, so a decision for a student on
+ * a loaded booking list is made from memory.
+ * <pre>
+ * POST /scan?id=&lt;student number&gt;[&amp;station=&lt;station&gt;]
+ *   {"decision":"admit","stuNumber":"...","firstName":"...","lastName":"...",
+ *    "alreadyRecorded":false,"waitingList":false,"maybeWaitingList":false,
+ *    "event":"...","micros":85}
+ * GET /status
+ *   the scans handled and the counters of each event
+ * GET /metrics
+ *   the latencies, counters and gauges of the application as text
+ * </pre>
+ * A booked student is admitted, including on a repeat scan (marked
+ * alreadyRecorded). Anyone else is denied, marked maybeWaitingList if the
+ * waiting list couldn't be fully checked for them. Scans from a station are decided
+ * for the event or session the station is routed to.
+ * <p>
+ * Run with {@code java eventswipe.ScanService [--bind 127.0.0.1] [--port 8085]
+ * [--threads 16] [--waiting-list] --event <event id>[=<station>,<station>...] ...}
+ * from the directory holding BookingSystem.properties. The username and
+ * password in the properties are used to log in.
+ *
+ * @author Matt Wildman http://bitbucket.org/mattwildman
+ */
+public class ScanService {
+
+    /**
+     * Constructs a scan service.
+     *
+     * @param app     The application which decides scans
+     * @param address The address to listen on, eg. the loopback address
+     * @param port    The port to listen on
+     * @param threads The number of threads deciding scans
+     * @param token   The token every request must carry
+     * @throws IOException if the port can't be opened
+     * @throws IllegalArgumentException if the token is empty
+     */
+    public ScanService(EventSwipeApp app, InetAddress address, int port, int threads,
+                       String token) throws IOException {
+        if (token == null || token.isEmpty()) {
+            throw new IllegalArgumentException("A token is needed to take scans");
+        }
+        this.app = app;
+        this.authorization = ("Bearer " + token).getBytes(CHARSET);
+        this.server = HttpServer.create(new InetSocketAddress(address, port), BACKLOG);
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "scan-service-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        server.setExecutor(executor);
+        server.createContext("/scan", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (accept(exchange, "POST")) {
+                    handleScan(exchange);
+                }
+            }
+        });
+        server.createContext("/status", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (accept(exchange, "GET")) {
+                    handleStatus(exchange);
+                }
+            }
+        });
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (!accept(exchange, "GET")) {
+                    return;
+                }
+                byte[] body = Metrics.getInstance().format().getBytes(CHARSET);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts taking scans.
+     */
+    public void start() {
+        server.start();
+        LOG.log(Level.INFO, "Taking scans on {0}", server.getAddress());
+    }
+
+    /**
+     * Stops taking scans, letting scans in progress finish.
+     */
+    public void stop() {
+        server.stop(STOP_DELAY);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(STOP_DELAY, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return The port the service is listening on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Refuses a request which doesn't carry the token or uses the wrong method.
+     *
+     * @return True if the request should be handled
+     */
+    private boolean accept(HttpExchange exchange, String method) throws IOException {
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        if (header == null || !MessageDigest.isEqual(authorization, header.trim().getBytes(CHARSET))) {
+            LOG.log(Level.FINE, "Refused an unauthorised request from {0}", exchange.getRemoteAddress());
+            exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+            respond(exchange, 401, "{\"error\":\"unauthorized\"}");
+            return false;
+        }
+        if (!method.equalsIgnoreCase(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().set("Allow", method);
+            respond(exchange, 405, "{\"error\":\"method not allowed\"}");
+            return false;
+        }
+        return true;
+    }
+
+    private void handleScan(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        Map<String, String> params = readParams(exchange);
+        String stuNumber = params.get("id");
+        String station = params.get("station");
+        if (stuNumber == null || !app.isValidId(stuNumber.trim())) {
+            denied.incrementAndGet();
+            respond(exchange, 400, "{\"decision\":\"deny\",\"reason\":\"invalid\"}");
+            return;
+        }
+        stuNumber = stuNumber.trim();
+        try {
+            LiveEvent live = app.getData().getLiveEventForStation(station);
+            Booking booking = app.checkBooking(station, stuNumber);
+            if (booking.isBooked() && !booking.isAlreadyRecorded()) {
+                live.incrementLocalAttendeeCount();
+            }
+            long elapsed = System.nanoTime() - start;
+            scanLatency.record(elapsed);
+            long micros = elapsed / 1000;
+            (booking.isBooked() ? admitted : denied).incrementAndGet();
+            totalMicros.addAndGet(micros);
+            StringBuilder json = new StringBuilder(160);
+            json.append("{\"decision\":").append(booking.isBooked() ? "\"admit\"" : "\"deny\"");
+            appendField(json, "stuNumber", booking.getStuNumber());
+            appendField(json, "firstName", booking.getFirstName());
+            appendField(json, "lastName", booking.getLastName());
+            json.append(",\"alreadyRecorded\":").append(booking.isAlreadyRecorded());
+            json.append(",\"waitingList\":").append(booking.isOnWaitingList());
+            json.append(",\"maybeWaitingList\":").append(booking.isMaybeOnWaitingList());
+            appendField(json, "event", live.getKey());
+            json.append(",\"micros\":").append(micros).append('}');
+            respond(exchange, 200, json.toString());
+        } catch (IOException | RuntimeException ex) {
+            errors.incrementAndGet();
+            LOG.log(Level.SEVERE, "Error deciding scan " + stuNumber, ex);
+            respond(exchange, 503, "{\"decision\":\"deny\",\"reason\":\"error\"}");
+        }
+    }
+
+    private void handleStatus(HttpExchange exchange) throws IOException {
+        long decided = admitted.get() + denied.get();
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"admitted\":").append(admitted.get())
+            .append(",\"denied\":").append(denied.get())
+            .append(",\"errors\":").append(errors.get())
+            .append(",\"meanMicros\":").append(decided == 0 ? 0 : totalMicros.get() / decided)
+            .append(",\"online\":").append(app.isOnlineMode())
+            .append(",\"events\":[");
+        boolean first = true;
+        for (LiveEvent live : app.getLiveEvents()) {
+            json.append(first ? "{" : ",{");
+            first = false;
+            json.append("\"key\":").append(quote(live.getKey()));
+            appendField(json, "title", live.getEvent().getTitle());
+            json.append(",\"recorded\":").append(live.getRecordedAttendees().size())
+                .append(",\"local\":").append(live.getLocalAttendeeCount())
+                .append(",\"global\":").append(live.getGlobalAttendeeCount())
+                .append(",\"unsaved\":").append(live.getUnsavedCount())
+                .append('}');
+        }
+        json.append("]}");
+        respond(exchange, 200, json.toString());
+    }
+
+    /**
+     * Reads the parameters of the query string and of a form or a plain
+     * student number in the body.
+     */
+    private static Map<String, String> readParams(HttpExchange exchange) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        parseParams(exchange.getRequestURI().getRawQuery(), params);
+        String body = readBody(exchange.getRequestBody());
+        if (body.indexOf('=') >= 0) {
+            parseParams(body, params);
+        }
+        else if (!body.trim().isEmpty()) {
+            params.put("id", body.trim());
+        }
+        return params;
+    }
+
+    private static void parseParams(String query, Map<String, String> params) throws IOException {
+        if (query == null) {
+            return;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), Utils.UTF8),
+                           URLDecoder.decode(pair.substring(eq + 1), Utils.UTF8));
+            }
+        }
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[512];
+        int n;
+        while ((n = in.read(buffer)) != -1 && body.size() < MAX_BODY) {
+            body.write(buffer, 0, n);
+        }
+        return new String(body.toByteArray(), CHARSET);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(CHARSET);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void appendField(StringBuilder json, String name, String value) {
+        json.append(",\"").append(name).append("\":").append(quote(value));
+    }
+
+    private static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        InetAddress address = InetAddress.getLoopbackAddress();
+        int port = DEFAULT_PORT;
+        int threads = DEFAULT_THREADS;
+        boolean waitingList = false;
+        List<String> events = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--bind":
+                    address = InetAddress.getByName(args[++i]);
+                    break;
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--waiting-list":
+                    waitingList = true;
+                    break;
+                case "--event":
+                    events.add(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (events.isEmpty()) {
+            throw new IllegalArgumentException("At least one --event is needed");
+        }
+        final EventSwipeApp app = new EventSwipeApp();
+        EventSwipeData data = app.getData();
+        if (!app.loadProperties()) {
+            throw new IllegalStateException(EventSwipeData.API_PROPERITES_PATH + " has not been set up");
+        }
+        String token = data.getCustomProperties().get(EventSwipeData.SERVICE_TOKEN_KEY);
+        if (token == null || token.trim().isEmpty()) {
+            throw new IllegalStateException("A " + EventSwipeData.SERVICE_TOKEN_KEY + " must be set in "
+                                            + EventSwipeData.API_PROPERITES_PATH + " to take scans");
+        }
+        if (!app.logIn(data.getDefaultUsername(), data.getDefaultPassword().clone())) {
+            throw new IllegalStateException("Could not log in to the booking system");
+        }
+        app.setOnlineModeFlag(true);
+        app.setBookingFlag(true);
+        String firstEvent = null;
+        for (String event : events) {
+            String[] parts = event.split("=", 2);
+            app.loadEvent(parts[0], waitingList);
+            if (firstEvent == null) {
+                firstEvent = parts[0];
+            }
+            if (parts.length > 1) {
+                for (String station : parts[1].split(",")) {
+                    app.routeStation(station.trim(), parts[0]);
+                }
+            }
+        }
+        app.setCurrentEvent(firstEvent);
+        app.setEventTitle(data.getEvent().getTitle());
+        app.createLog();
+        try {
+            app.goToOnlineMode(); //syncs anything left unsaved by the last run
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "The booking system can't be reached, records will be kept unsaved", ex);
+        }
+        final ScanService service = new ScanService(app, address, port, threads, token.trim());
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                service.stop();
+                app.flushAttendance();
+            }
+        }, "scan-service-shutdown"));
+        service.start();
+    }
+
+    private final EventSwipeApp app;
+    private final byte[] authorization;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong denied = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final LatencyHistogram scanLatency = Metrics.getInstance().histogram("service.scan");
+
+    private static final int DEFAULT_PORT = 8085;
+    private static final int DEFAULT_THREADS = 16;
+    private static final int BACKLOG = 256;
+    private static final int STOP_DELAY = 2; //seconds
+    private static final int MAX_BODY = 4096; //bytes
+    private static final Charset CHARSET = Charset.forName(Utils.UTF8);
+    private static final Logger LOG = Logger.getLogger(ScanService.class.getName());
+
+}
@@ -0,0 +1,168 @@
+package eventswipe.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies, cheap enough to record on the scan path.
+ * <p>
+ * Latencies are counted in microsecond buckets which are exact below 16 µs
+ * and then get wider with each power of two, eight to a power, so any
+ * percentile is reported within about 12% of the true value. Recording is
+ * a few arithmetic operations and atomic increments, with no allocation.
+ *
+ * @author Matt Wildman http://bitbucket.org/mattwildman
+ */
+public class LatencyHistogram {
+
+    /**
+     * A consistent copy of the counts of a histogram.
+     */
+    public static class Snapshot {
+
+        private Snapshot(long[] counts, long sumMicros, long maxMicros) {
+            this.counts = counts;
+            this.sumMicros = sumMicros;
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            this.count = total;
+            this.maxMicros = maxMicros;
+        }
+
+        /**
+         * Returns the latencies recorded since an earlier snapshot of the same histogram.
+         * The maximum of the interval is the upper bound of its highest bucket.
+         *
+         * @param earlier An earlier snapshot, or null for all of them
+         * @return        The latencies recorded in between
+         */
+        public Snapshot since(Snapshot earlier) {
+            if (earlier == null) {
+                return this;
+            }
+            long[] interval = new long[counts.length];
+            int highest = -1;
+            for (int i = 0; i < counts.length; i++) {
+                interval[i] = counts[i] - earlier.counts[i];
+                if (interval[i] > 0) {
+                    highest = i;
+                }
+            }
+            long max = highest < 0 ? 0 : Math.min(upperBound(highest), maxMicros);
+            return new Snapshot(interval, sumMicros - earlier.sumMicros, max);
+        }
+
+        /**
+         * @return The number of latencies recorded
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return The mean latency in milliseconds, or 0 if none were recorded
+         */
+        public double getMeanMillis() {
+            return count == 0 ? 0 : sumMicros / 1000.0 / count;
+        }
+
+        /**
+         * @return The longest latency in milliseconds
+         */
+        public double getMaxMillis() {
+            return maxMicros / 1000.0;
+        }
+
+        /**
+         * @param percentile The percentile, eg. 0.99
+         * @return           The latency in milliseconds which that share of latencies were within
+         */
+        public double getPercentileMillis(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    return Math.min(upperBound(i), maxMicros) / 1000.0;
+                }
+            }
+            return maxMicros / 1000.0;
+        }
+
+        private final long[] counts;
+        private final long count;
+        private final long sumMicros;
+        private final long maxMicros;
+
+    }
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos The latency in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        counts.incrementAndGet(bucket(micros));
+        sumMicros.addAndGet(micros);
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    /**
+     * Records the time since a start time.
+     *
+     * @param startNanos The start time, from {@link System#nanoTime()}
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return A copy of the counts recorded so far
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy, sumMicros.get(), maxMicros.get());
+    }
+
+    private static int bucket(long micros) {
+        if (micros < LINEAR) {
+            return (int) micros;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+        int shift = magnitude - SUB_BITS + 1;
+        int index = (shift + 1) * HALF + (int) (micros >>> shift) - HALF;
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        int shift = bucket / HALF - 1;
+        long mantissa = bucket % HALF + HALF;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong sumMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    private static final int SUB_BITS = 4;
+    private static final int LINEAR = 1 << SUB_BITS;
+    private static final int HALF = LINEAR / 2;
+    private static final int MAX_MAGNITUDE = 38; //about 76 hours in microseconds
+    private static final int BUCKETS = (MAX_MAGNITUDE - SUB_BITS + 3) * HALF;
+
+}
@@ -0,0 +1,326 @@
+package eventswipe.metrics;
+
+import eventswipe.utils.Utils;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * The application's latency histograms, counters and gauges, by name.
+ * <p>
+ * Metrics are created the first time they are asked for, so instrumented code
+ * keeps a reference to each one and recording costs no lookup. Names are
+ * dotted, eg. "api.getBooking" or "scan.decide". Everything is published as
+ * the attributes of one MBean, "eventswipe:type=Metrics", and can be written
+ * to a plain text file periodically for stations without a JMX console.
+ *
+ * @author Matt Wildman http://bitbucket.org/mattwildman
+ */
+public class Metrics implements DynamicMBean {
+
+    /**
+     * A value which is read when metrics are published, eg. a queue depth.
+     */
+    public interface Gauge {
+
+        /**
+         * @return The current value
+         */
+        long get();
+    }
+
+    private Metrics() {}
+
+    /**
+     * @return The single Metrics instance
+     */
+    public static Metrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the latency histogram with a name, creating it if there isn't one.
+     *
+     * @param name The name of the histogram
+     * @return     The LatencyHistogram
+     */
+    public LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Returns the counter with a name, creating it if there isn't one.
+     *
+     * @param name The name of the counter
+     * @return     The counter
+     */
+    public AtomicLong counter(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Publishes a gauge, replacing any gauge with the same name.
+     *
+     * @param name  The name of the gauge
+     * @param gauge The Gauge to read
+     */
+    public void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * @return The latency histograms in name order
+     */
+    public Map<String, LatencyHistogram> getHistograms() {
+        return histograms;
+    }
+
+    /**
+     * @return The counters and the current values of the gauges in name order
+     */
+    public Map<String, Long> getValues() {
+        Map<String, Long> values = new ConcurrentSkipListMap<>();
+        for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+            values.put(counter.getKey(), counter.getValue().get());
+        }
+        for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+            values.put(gauge.getKey(), readGauge(gauge.getValue()));
+        }
+        return values;
+    }
+
+    /**
+     * @return Every metric as text, one per line
+     */
+    public String format() {
+        StringBuilder sb = new StringBuilder(2048);
+        sb.append("# EventSwipe metrics ").append(new Date()).append(NL);
+        sb.append(String.format("%-40s %9s %9s %9s %9s %9s %9s", "latency (ms)",
+                                "count", "mean", "p50", "p90", "p99", "max")).append(NL);
+        for (Map.Entry<String, LatencyHistogram> histogram : histograms.entrySet()) {
+            LatencyHistogram.Snapshot s = histogram.getValue().snapshot();
+            sb.append(String.format("%-40s %9d %9.1f %9.1f %9.1f %9.1f %9.1f", histogram.getKey(),
+                                    s.getCount(), s.getMeanMillis(), s.getPercentileMillis(0.5),
+                                    s.getPercentileMillis(0.9), s.getPercentileMillis(0.99),
+                                    s.getMaxMillis())).append(NL);
+        }
+        sb.append(NL);
+        for (Map.Entry<String, Long> value : getValues().entrySet()) {
+            sb.append(String.format("%-40s %9d", value.getKey(), value.getValue())).append(NL);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server as "eventswipe:type=Metrics".
+     * Does nothing if they are already registered.
+     */
+    public void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (JMException ex) {
+            LOG.log(Level.WARNING, "Error registering metrics MBean", ex);
+        }
+    }
+
+    /**
+     * Starts writing the metrics to a file periodically, on a background thread.
+     * The file is replaced whole each time, so it can be read at any moment.
+     *
+     * @param file          The file to write
+     * @param periodSeconds The time between writes
+     */
+    public synchronized void startWriting(final File file, long periodSeconds) {
+        if (writer != null) {
+            return;
+        }
+        writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "metrics-writer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        writer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                write(file);
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Writes the metrics to a file, replacing it.
+     *
+     * @param file The file to write
+     */
+    public void write(File file) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(tmp), Utils.UTF8)) {
+                out.write(format());
+            }
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("Could not replace " + file);
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            LOG.log(Level.WARNING, "Error writing metrics file", ex);
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        AtomicLong counter = counters.get(attribute);
+        if (counter != null) {
+            return counter.get();
+        }
+        Gauge gauge = gauges.get(attribute);
+        if (gauge != null) {
+            return readGauge(gauge);
+        }
+        int dot = attribute.lastIndexOf('.');
+        LatencyHistogram histogram = dot < 0 ? null : histograms.get(attribute.substring(0, dot));
+        if (histogram != null) {
+            LatencyHistogram.Snapshot s = histogram.snapshot();
+            switch (attribute.substring(dot + 1)) {
+                case "count":
+                    return s.getCount();
+                case "meanMillis":
+                    return s.getMeanMillis();
+                case "p50Millis":
+                    return s.getPercentileMillis(0.5);
+                case "p90Millis":
+                    return s.getPercentileMillis(0.9);
+                case "p99Millis":
+                    return s.getPercentileMillis(0.99);
+                case "maxMillis":
+                    return s.getMaxMillis();
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read only");
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException ex) {
+                //left out, as the MBean contract asks
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName), "Metrics have no operations");
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String name : histograms.keySet()) {
+            attributes.add(attribute(name + ".count", "long", "Latencies recorded"));
+            for (String field : HISTOGRAM_FIELDS) {
+                attributes.add(attribute(name + "." + field, "double", "Latency in milliseconds"));
+            }
+        }
+        for (String name : counters.keySet()) {
+            attributes.add(attribute(name, "long", "Counter"));
+        }
+        for (String name : gauges.keySet()) {
+            attributes.add(attribute(name, "long", "Gauge"));
+        }
+        return new MBeanInfo(Metrics.class.getName(), "EventSwipe latencies, counters and gauges",
+                             attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+                             null, new MBeanOperationInfo[0], new MBeanNotificationInfo[0]);
+    }
+
+    private static MBeanAttributeInfo attribute(String name, String type, String description) {
+        return new MBeanAttributeInfo(name, type, description, true, false, false);
+    }
+
+    private static long readGauge(Gauge gauge) {
+        try {
+            return gauge.get();
+        } catch (RuntimeException ex) {
+            return -1;
+        }
+    }
+
+    private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+    private ScheduledExecutorService writer;
+
+    private static final Metrics INSTANCE = new Metrics();
+    private static final String OBJECT_NAME = "eventswipe:type=Metrics";
+    private static final String[] HISTOGRAM_FIELDS = {"meanMillis", "p50Millis", "p90Millis", "p99Millis", "maxMillis"};
+    private static final String NL = System.getProperty("line.separator");
+    private static final Logger LOG = Logger.getLogger(Metrics.class.getName());
+
+}
@@ -25,6 +25,22 @@ public class Booking {
     public Booking(String stuNumber) {
         setStuNumber(stuNumber);
     }
+
+    /**
+     * Constructs a copy of the booking data of another Booking, without its
+     * scan status, so each scan is given a Booking of its own.
+     *
+     * @param other The Booking to copy
+     */
+    public Booking(Booking other) {
+        this.stuNumber = other.stuNumber;
+        this.bookingId = other.bookingId;
+        this.sessionId = other.sessionId;
+        this.id = other.id;
+        this.firstName = other.firstName;
+        this.lastName = other.lastName;
+        this.status = other.status;
+    }
     
     @Override
     public boolean equals(Object other) {
@@ -96,6 +112,23 @@ public class Booking {
         this.onWaitingList = waitingList;
     }
 
+    /**
+     * @return True if the attendee may be on the waiting list for the event,
+     *         as some of it couldn't be checked by student number
+     */
+    public boolean isMaybeOnWaitingList() {
+        return maybeOnWaitingList;
+    }
+
+    /**
+     * Sets whether the attendee may be on the waiting list for the event.
+     *
+     * @param maybeOnWaitingList True if the waiting list couldn't be fully checked for the attendee
+     */
+    public void setMaybeOnWaitingList(boolean maybeOnWaitingList) {
+        this.maybeOnWaitingList = maybeOnWaitingList;
+    }
+
     /**
      * @return The unique identifier of the attendee in the booking system
      */
@@ -205,5 +238,6 @@ public class Booking {
     private boolean booked;
     private boolean alreadyRecorded;
     private boolean onWaitingList;
+    private boolean maybeOnWaitingList;
     
 }
@@ -0,0 +1,155 @@
+package eventswipe.models;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A hash index over the bookings of an event, keyed by student number, by
+ * student number and session, and by the unique identifier of the attendee
+ * in the booking system.
+ * <p>
+ * Used on the scan path instead of walking the booking list, so looking up a
+ * booking costs the same for an event with 10 bookings as for one with 10,000.
+ *
+ * @author Matt Wildman http://bitbucket.org/mattwildman
+ * @see Booking
+ */
+public class BookingIndex {
+
+    /**
+     * Constructs an empty booking index.
+     */
+    public BookingIndex() {
+        byStuNumber = new ConcurrentHashMap<>();
+        bySession = new ConcurrentHashMap<>();
+        byId = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Constructs a booking index containing every Booking in a booking list.
+     *
+     * @param bookings A List of Bookings (may be null for events without a booking list)
+     */
+    public BookingIndex(List<Booking> bookings) {
+        this();
+        if (bookings != null) {
+            for (Booking booking : bookings) {
+                add(booking);
+            }
+        }
+    }
+
+    /**
+     * Adds a Booking to the index. If the attendee is already indexed
+     * (eg. booked onto more than one entry slot) the first Booking is kept.
+     *
+     * @param booking The Booking to index
+     */
+    public void add(Booking booking) {
+        if (booking.getStuNumber() != null) {
+            byStuNumber.putIfAbsent(booking.getStuNumber(), booking);
+            if (booking.getSessionId() != null) {
+                bySession.putIfAbsent(sessionKey(booking.getStuNumber(), booking.getSessionId()), booking);
+            }
+        }
+        if (booking.getId() != null) {
+            byId.putIfAbsent(booking.getId(), booking);
+        }
+    }
+
+    /**
+     * @param stuNumber A student number String
+     * @return          The Booking for that student number, or null if there isn't one
+     */
+    public Booking getByStuNumber(String stuNumber) {
+        return byStuNumber.get(stuNumber);
+    }
+
+    /**
+     * @param stuNumber A student number String
+     * @param sessionId The id of a session of the event
+     * @return          The student's Booking for that session, or null if they haven't booked onto it
+     */
+    public Booking getByStuNumber(String stuNumber, String sessionId) {
+        return bySession.get(sessionKey(stuNumber, sessionId));
+    }
+
+    /**
+     * @param id The unique identifier of the attendee in the booking system
+     * @return   The Booking for that attendee, or null if there isn't one
+     */
+    public Booking getById(Integer id) {
+        return byId.get(id);
+    }
+
+    /**
+     * @param stuNumber A student number String
+     * @return          True if there is a Booking for the student number, false if not
+     */
+    public boolean containsStuNumber(String stuNumber) {
+        return byStuNumber.containsKey(stuNumber);
+    }
+
+    /**
+     * Removes a Booking from the index, wherever the index still holds that booking.
+     *
+     * @param booking A Booking which no longer exists
+     */
+    public void remove(Booking booking) {
+        if (booking.getSessionId() != null) {
+            String key = sessionKey(booking.getStuNumber(), booking.getSessionId());
+            Booking inSession = bySession.get(key);
+            if (isSame(inSession, booking)) {
+                bySession.remove(key, inSession);
+            }
+        }
+        Booking current = byStuNumber.get(booking.getStuNumber());
+        if (isSame(current, booking)) {
+            byStuNumber.remove(booking.getStuNumber(), current);
+            if (current.getId() != null) {
+                byId.remove(current.getId(), current);
+            }
+        }
+    }
+
+    private static boolean isSame(Booking indexed, Booking booking) {
+        return indexed != null && (indexed == booking ||
+                                   (indexed.getBookingId() != null &&
+                                    indexed.getBookingId().equals(booking.getBookingId())));
+    }
+
+    private static String sessionKey(String stuNumber, String sessionId) {
+        return stuNumber + '\n' + sessionId;
+    }
+
+    /**
+     * Returns whether the booking list is still being loaded in the background.
+     * While it is, a student missing from the index may still be booked.
+     *
+     * @return True if bookings are still being added to the index
+     */
+    public boolean isLoading() {
+        return loading;
+    }
+
+    /**
+     * @param loading Whether the booking list is still being loaded in the background
+     */
+    public void setLoading(boolean loading) {
+        this.loading = loading;
+    }
+
+    /**
+     * @return The number of student numbers in the index
+     */
+    public int size() {
+        return byStuNumber.size();
+    }
+
+    private final ConcurrentMap<String, Booking> byStuNumber;
+    private final ConcurrentMap<String, Booking> bySession;
+    private final ConcurrentMap<Integer, Booking> byId;
+    private volatile boolean loading = false;
+
+}
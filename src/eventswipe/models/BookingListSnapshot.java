@@ -0,0 +1,73 @@
+package eventswipe.models;
+
+import java.util.List;
+
+/**
+ * The booking list of one session as last fetched from the booking system,
+ * with what is needed to tell whether it has changed since.
+ *
+ * @author Matt Wildman http://bitbucket.org/mattwildman
+ * @see Booking
+ */
+public class BookingListSnapshot {
+
+    /**
+     * Constructs a snapshot of a booking list which has changed.
+     *
+     * @param bookings The bookings in the list
+     * @param eTag     The entity tag the booking system gave the list, or null
+     * @param hash     A hash of the list as sent by the booking system
+     */
+    public BookingListSnapshot(List<Booking> bookings, String eTag, String hash) {
+        this(bookings, eTag, hash, true);
+    }
+
+    private BookingListSnapshot(List<Booking> bookings, String eTag, String hash, boolean modified) {
+        this.bookings = bookings;
+        this.eTag = eTag;
+        this.hash = hash;
+        this.modified = modified;
+    }
+
+    /**
+     * @param previous The snapshot the booking list still matches
+     * @return         A snapshot of the same list, marked as not modified
+     */
+    public static BookingListSnapshot unmodified(BookingListSnapshot previous) {
+        return new BookingListSnapshot(previous.bookings, previous.eTag, previous.hash, false);
+    }
+
+    /**
+     * @return The bookings in the list
+     */
+    public List<Booking> getBookings() {
+        return bookings;
+    }
+
+    /**
+     * @return The entity tag the booking system gave the list, or null
+     */
+    public String getETag() {
+        return eTag;
+    }
+
+    /**
+     * @return A hash of the list as sent by the booking system
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * @return True if the list has changed since the previous snapshot
+     */
+    public boolean isModified() {
+        return modified;
+    }
+
+    private final List<Booking> bookings;
+    private final String eTag;
+    private final String hash;
+    private final boolean modified;
+
+}
@@ -148,6 +148,54 @@ public class Event {
         this.bookingList = bookingList;
     }
 
+    /**
+     * @return The index of names on the booking list and waiting list
+     * @see NameIndex
+     */
+    public NameIndex getNameIndex() {
+        return nameIndex;
+    }
+
+    /**
+     * @param nameIndex A NameIndex built from the booking list and waiting list
+     * @see NameIndex
+     */
+    public void setNameIndex(NameIndex nameIndex) {
+        this.nameIndex = nameIndex;
+    }
+
+    /**
+     * @return The id of the event's attendance journal session, or null if it has none
+     */
+    public String getJournalSession() {
+        return journalSession;
+    }
+
+    /**
+     * @param journalSession The id of the event's attendance journal session
+     */
+    public void setJournalSession(String journalSession) {
+        this.journalSession = journalSession;
+    }
+
+    /**
+     * @return The index of the event's bookings by student number and attendee id
+     * @see BookingIndex
+     */
+    public BookingIndex getBookingIndex() {
+        return bookingIndex;
+    }
+
+    /**
+     * Sets the index of the event's bookings.
+     *
+     * @param bookingIndex A BookingIndex built from the booking list
+     * @see BookingIndex
+     */
+    public void setBookingIndex(BookingIndex bookingIndex) {
+        this.bookingIndex = bookingIndex;
+    }
+
     /**
      * @return A List of Students on the waiting list for the event
      * @see Student
@@ -166,6 +214,24 @@ public class Event {
         this.waitingList = waitingList;
     }
 
+    /**
+     * @return The index of the event's waiting list by student number and student id
+     * @see WaitingListIndex
+     */
+    public WaitingListIndex getWaitingListIndex() {
+        return waitingListIndex;
+    }
+
+    /**
+     * Sets the index of the event's waiting list.
+     *
+     * @param waitingListIndex A WaitingListIndex built from the waiting list
+     * @see WaitingListIndex
+     */
+    public void setWaitingListIndex(WaitingListIndex waitingListIndex) {
+        this.waitingListIndex = waitingListIndex;
+    }
+
     /**
      * @return A List of student numbers which could not be recorded by the booking system
      */
@@ -294,6 +360,23 @@ public class Event {
         this.sessions = sessions;
     }
 
+    /**
+     * Returns the entry slot session running now, or the last session if none is running.
+     *
+     * @return The current Session, or null if the event has no sessions
+     * @see Session
+     */
+    public Session getCurrentSession() {
+        Date now = new Date();
+        for (Session s : sessions) {
+            if (s.getStart() != null && s.getEnd() != null &&
+                now.compareTo(s.getStart()) >= 0 && now.compareTo(s.getEnd()) <= 0) {
+                return s;
+            }
+        }
+        return sessions.isEmpty() ? null : sessions.get(sessions.size() - 1);
+    }
+
     private String startDateString;
     private String title;
     private String id;
@@ -303,8 +386,12 @@ public class Event {
     private Date regStart;
 
     private List<Student> waitingList;
+    private WaitingListIndex waitingListIndex = new WaitingListIndex();
     private List<String> unsavedList;
     private List<Booking> bookingList;
+    private BookingIndex bookingIndex = new BookingIndex();
+    private NameIndex nameIndex = new NameIndex();
+    private volatile String journalSession;
 
     private int bookingLimit;
     private int attendeeCount;
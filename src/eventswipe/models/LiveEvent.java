@@ -0,0 +1,155 @@
+package eventswipe.models;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An Event which is recording attendance, with the counters and recorded
+ * attendees that belong to it rather than to the whole application, so
+ * several events can record attendance at once.
+ * The unsaved queue of the event is its {@link Event#getUnsavedList() unsaved list}.
+ *
+ * @author Matt Wildman http://bitbucket.org/mattwildman
+ * @see Event
+ */
+public class LiveEvent {
+
+    /**
+     * Constructs a live event.
+     *
+     * @param event The Event recording attendance
+     * @param title The title to use if the Event has neither an id nor a title
+     */
+    public LiveEvent(Event event, String title) {
+        this(event, title, 1);
+    }
+
+    /**
+     * Constructs a live event which shares its id or title with other live events,
+     * eg. one of several offline events with the same title.
+     *
+     * @param event  The Event recording attendance
+     * @param title  The title to use if the Event has neither an id nor a title
+     * @param number Which of the live events with that id or title this is, from 1
+     */
+    public LiveEvent(Event event, String title, int number) {
+        this.event = event;
+        String base;
+        if (event.getId() != null) {
+            base = event.getId();
+        }
+        else {
+            base = event.getTitle() != null ? event.getTitle() : title;
+        }
+        this.key = number > 1 ? base + " #" + number : base;
+    }
+
+    /**
+     * @return The Event recording attendance
+     */
+    public Event getEvent() {
+        return event;
+    }
+
+    /**
+     * @return The event's id in the booking system or, offline, its title,
+     *         followed by a number if another live event has the same one
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return True if scans are checked against the event's booking list
+     */
+    public boolean isCheckingBookingList() {
+        return checkingBookingList;
+    }
+
+    /**
+     * @param checkingBookingList Whether scans are checked against the event's booking list
+     */
+    public void setCheckingBookingList(boolean checkingBookingList) {
+        this.checkingBookingList = checkingBookingList;
+    }
+
+    /**
+     * @return True if students who haven't booked are checked against the event's waiting list
+     */
+    public boolean isCheckingWaitingList() {
+        return checkingWaitingList;
+    }
+
+    /**
+     * @param checkingWaitingList Whether students who haven't booked are checked against the event's waiting list
+     */
+    public void setCheckingWaitingList(boolean checkingWaitingList) {
+        this.checkingWaitingList = checkingWaitingList;
+    }
+
+    /**
+     * @return The set of student numbers recorded as attending the event
+     */
+    public RecordedAttendees getRecordedAttendees() {
+        return recordedAttendees;
+    }
+
+    /**
+     * @return The number of attendees recorded for the event on this machine
+     */
+    public int getLocalAttendeeCount() {
+        return localAttendeeCount.get();
+    }
+
+    /**
+     * @param count The number of attendees recorded for the event on this machine
+     */
+    public void setLocalAttendeeCount(int count) {
+        localAttendeeCount.set(count);
+    }
+
+    /**
+     * @return The number of attendees recorded on this machine, after incrementation
+     */
+    public int incrementLocalAttendeeCount() {
+        return localAttendeeCount.incrementAndGet();
+    }
+
+    /**
+     * @return The number of attendees recorded for the event across all machines
+     */
+    public int getGlobalAttendeeCount() {
+        return globalAttendeeCount.get();
+    }
+
+    /**
+     * @param count The number of attendees recorded for the event across all machines
+     */
+    public void setGlobalAttendeeCount(int count) {
+        globalAttendeeCount.set(count);
+    }
+
+    /**
+     * @return The number of attendees recorded across all machines, after incrementation
+     */
+    public int incrementGlobalAttendeeCount() {
+        return globalAttendeeCount.incrementAndGet();
+    }
+
+    /**
+     * @return The number of attendees who haven't been saved to the booking system
+     */
+    public int getUnsavedCount() {
+        synchronized (event.getUnsavedList()) {
+            return event.getUnsavedList().size();
+        }
+    }
+
+    private final Event event;
+    private final String key;
+    private final RecordedAttendees recordedAttendees = new RecordedAttendees();
+    private final AtomicInteger localAttendeeCount = new AtomicInteger();
+    private final AtomicInteger globalAttendeeCount = new AtomicInteger();
+    private volatile boolean checkingBookingList;
+    private volatile boolean checkingWaitingList;
+
+}
@@ -0,0 +1,214 @@
+package eventswipe.models;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A local index over the names of everyone on an event's booking list and
+ * waiting list, so attendees can be searched for by name without the
+ * booking system.
+ * <p>
+ * Names are split into tokens, ignoring case and accents. Every word of a
+ * search must match the start of a token of the name; whole-word matches
+ * rank above prefix matches.
+ *
+ * @author Matt Wildman http://bitbucket.org/mattwildman
+ * @see Student
+ */
+public class NameIndex {
+
+    /**
+     * Constructs an empty name index.
+     */
+    public NameIndex() {}
+
+    /**
+     * Constructs a name index over a booking list and waiting list.
+     *
+     * @param bookings    A List of Bookings (may be null)
+     * @param waitingList A List of waiting Students (may be null)
+     */
+    public NameIndex(List<Booking> bookings, List<Student> waitingList) {
+        if (bookings != null) {
+            for (Booking booking : bookings) {
+                add(booking);
+            }
+        }
+        if (waitingList != null) {
+            for (Student student : waitingList) {
+                add(student);
+            }
+        }
+    }
+
+    /**
+     * @param booking A Booking to make searchable by name
+     */
+    public void add(Booking booking) {
+        Student student = new Student();
+        student.setStuNumber(booking.getStuNumber());
+        student.setFirstName(booking.getFirstName());
+        student.setLastName(booking.getLastName());
+        student.setId(booking.getId());
+        add(student);
+    }
+
+    /**
+     * Adds a Student, unless a student with the same student number is already indexed.
+     *
+     * @param student A Student to make searchable by name
+     */
+    public synchronized void add(Student student) {
+        String stuNumber = student.getStuNumber();
+        if (stuNumber != null && byStuNumber.containsKey(stuNumber)) {
+            return;
+        }
+        List<String> names = tokenize(student.getFirstName());
+        names.addAll(tokenize(student.getLastName()));
+        if (names.isEmpty()) {
+            return;
+        }
+        int entry = entries.size();
+        entries.add(student);
+        if (stuNumber != null) {
+            byStuNumber.put(stuNumber, entry);
+        }
+        for (String name : names) {
+            List<Integer> matches = tokens.get(name);
+            if (matches == null) {
+                matches = new ArrayList<>(1);
+                tokens.put(name, matches);
+            }
+            matches.add(entry);
+        }
+    }
+
+    /**
+     * @param stuNumber The student number of a Student to stop finding
+     */
+    public synchronized void remove(String stuNumber) {
+        Integer entry = byStuNumber.remove(stuNumber);
+        if (entry == null) {
+            return;
+        }
+        Student student = entries.set(entry, null);
+        List<String> names = tokenize(student.getFirstName());
+        names.addAll(tokenize(student.getLastName()));
+        for (String name : names) {
+            List<Integer> matches = tokens.get(name);
+            if (matches != null) {
+                matches.remove(entry);
+                if (matches.isEmpty()) {
+                    tokens.remove(name);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the students whose names match a search.
+     *
+     * @param query      A name or part of a name, eg. "jo smi"
+     * @param maxResults The most Students to return
+     * @return           The matching Students, best matches first
+     */
+    public synchronized List<Student> search(String query, int maxResults) {
+        List<String> words = tokenize(query);
+        if (words.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Map<Integer, Integer> scores = null;
+        for (String word : words) {
+            Map<Integer, Integer> wordScores = new HashMap<>();
+            for (Map.Entry<String, List<Integer>> token : tokens.subMap(word, word + Character.MAX_VALUE).entrySet()) {
+                int score = token.getKey().length() == word.length() ? EXACT_SCORE : PREFIX_SCORE;
+                for (Integer entry : token.getValue()) {
+                    Integer best = wordScores.get(entry);
+                    if (best == null || best < score) {
+                        wordScores.put(entry, score);
+                    }
+                }
+            }
+            if (scores == null) {
+                scores = wordScores;
+            }
+            else {
+                Map<Integer, Integer> both = new HashMap<>();
+                for (Map.Entry<Integer, Integer> s : scores.entrySet()) {
+                    Integer score = wordScores.get(s.getKey());
+                    if (score != null) {
+                        both.put(s.getKey(), s.getValue() + score);
+                    }
+                }
+                scores = both;
+            }
+            if (scores.isEmpty()) {
+                return Collections.emptyList();
+            }
+        }
+        final Map<Integer, Integer> ranked = scores;
+        List<Integer> matches = new ArrayList<>(ranked.keySet());
+        Collections.sort(matches, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int byScore = ranked.get(b).compareTo(ranked.get(a));
+                if (byScore != 0) {
+                    return byScore;
+                }
+                return fullName(entries.get(a)).compareToIgnoreCase(fullName(entries.get(b)));
+            }
+        });
+        List<Student> results = new ArrayList<>(Math.min(maxResults, matches.size()));
+        for (Integer entry : matches) {
+            Student student = entries.get(entry);
+            if (student != null) {
+                results.add(student);
+                if (results.size() == maxResults) {
+                    break;
+                }
+            }
+        }
+        return results;
+    }
+
+    private static String fullName(Student student) {
+        return student == null ? "" : student.getLastName() + " " + student.getFirstName();
+    }
+
+    /**
+     * Splits a name into searchable words, ignoring case and accents.
+     *
+     * @param name A name (may be null)
+     * @return     The words of the name, eg. "José O'Neil" is ["jose", "o", "neil"]
+     */
+    public static List<String> tokenize(String name) {
+        List<String> words = new ArrayList<>();
+        if (name == null) {
+            return words;
+        }
+        String plain = Normalizer.normalize(name, Normalizer.Form.NFD)
+                                 .replaceAll("\\p{M}", "")
+                                 .toLowerCase(Locale.ENGLISH);
+        for (String word : plain.split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    private final List<Student> entries = new ArrayList<>();
+    private final Map<String, Integer> byStuNumber = new HashMap<>();
+    private final TreeMap<String, List<Integer>> tokens = new TreeMap<>();
+
+    private static final int EXACT_SCORE = 2;
+    private static final int PREFIX_SCORE = 1;
+
+}
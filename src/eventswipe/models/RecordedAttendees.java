@@ -0,0 +1,201 @@
+package eventswipe.models;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The set of student numbers recorded as attending an event.
+ * <p>
+ * Membership tests and add-if-absent are constant time and safe to call from
+ * the scan path and the attendance recording threads at the same time.
+ * Student numbers of up to 16 ASCII characters are packed into two longs
+ * rather than held as Strings; anything longer is stored as it is.
+ * The arrival order is kept so the set can be exported in the order
+ * attendees were recorded; the ordered list is only rebuilt after the set
+ * changes.
+ *
+ * @author Matt Wildman http://bitbucket.org/mattwildman
+ */
+public class RecordedAttendees {
+
+    /**
+     * Constructs an empty set of recorded attendees.
+     */
+    public RecordedAttendees() {
+        attendees = new ConcurrentHashMap<>();
+        sequence = new AtomicInteger();
+    }
+
+    /**
+     * Records a student number if it hasn't already been recorded.
+     *
+     * @param stuNumber A student number String
+     * @return          True if the student number was added, false if it was already recorded
+     */
+    public boolean add(String stuNumber) {
+        Key key = Key.of(stuNumber, sequence.getAndIncrement());
+        if (attendees.putIfAbsent(key, key) != null) {
+            return false;
+        }
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @param stuNumber A student number String
+     * @return          True if the student number has been recorded, false if not
+     */
+    public boolean contains(String stuNumber) {
+        return attendees.containsKey(Key.of(stuNumber, 0));
+    }
+
+    /**
+     * @return The number of recorded attendees
+     */
+    public int size() {
+        return attendees.size();
+    }
+
+    /**
+     * @return True if nobody has been recorded, false if not
+     */
+    public boolean isEmpty() {
+        return attendees.isEmpty();
+    }
+
+    /**
+     * Removes all recorded attendees.
+     */
+    public void clear() {
+        attendees.clear();
+        version.incrementAndGet();
+    }
+
+    /**
+     * @return An unmodifiable List of the recorded student number Strings in the order they were recorded
+     */
+    public List<String> toList() {
+        Ordered ordered = this.ordered;
+        int current = version.get();
+        if (ordered != null && ordered.version == current) {
+            return ordered.list;
+        }
+        List<Key> keys = new ArrayList<>(attendees.values());
+        Collections.sort(keys, ARRIVAL_ORDER);
+        List<String> list = new ArrayList<>(keys.size());
+        for (Key key : keys) {
+            list.add(key.toString());
+        }
+        ordered = new Ordered(current, Collections.unmodifiableList(list));
+        this.ordered = ordered;
+        return ordered.list;
+    }
+
+    private final ConcurrentMap<Key, Key> attendees;
+    private final AtomicInteger sequence;
+    private final AtomicInteger version = new AtomicInteger();
+    private volatile Ordered ordered;
+
+    /**
+     * The arrival ordered list as it was at one version of the set.
+     */
+    private static final class Ordered {
+
+        Ordered(int version, List<String> list) {
+            this.version = version;
+            this.list = list;
+        }
+
+        private final int version;
+        private final List<String> list;
+
+    }
+
+    private static final Comparator<Key> ARRIVAL_ORDER = new Comparator<Key>() {
+        @Override
+        public int compare(Key a, Key b) {
+            return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+        }
+    };
+
+    private static final class Key {
+
+        static Key of(String stuNumber, int seq) {
+            int length = stuNumber.length();
+            if (length > PACKED_CHARS) {
+                return new Key(0, 0, stuNumber, seq);
+            }
+            long hi = 0, lo = 0;
+            for (int i = 0; i < length; i++) {
+                char c = stuNumber.charAt(i);
+                if (c == 0 || c > 0x7F) {
+                    return new Key(0, 0, stuNumber, seq);
+                }
+                if (i < 8) {
+                    hi |= (long) c << (56 - i * 8);
+                }
+                else {
+                    lo |= (long) c << (56 - (i - 8) * 8);
+                }
+            }
+            return new Key(hi, lo, null, seq);
+        }
+
+        Key(long hi, long lo, String unpacked, int seq) {
+            this.hi = hi;
+            this.lo = lo;
+            this.unpacked = unpacked;
+            this.seq = seq;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) other;
+            return hi == k.hi && lo == k.lo &&
+                   (unpacked == null ? k.unpacked == null : unpacked.equals(k.unpacked));
+        }
+
+        @Override
+        public int hashCode() {
+            if (unpacked != null) {
+                return unpacked.hashCode();
+            }
+            long h = hi * 31 + lo;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        @Override
+        public String toString() {
+            if (unpacked != null) {
+                return unpacked;
+            }
+            StringBuilder sb = new StringBuilder(PACKED_CHARS);
+            for (int i = 0; i < PACKED_CHARS; i++) {
+                long word = i < 8 ? hi : lo;
+                char c = (char) ((word >>> (56 - (i % 8) * 8)) & 0xFF);
+                if (c == 0) {
+                    break;
+                }
+                sb.append(c);
+            }
+            return sb.toString();
+        }
+
+        private final long hi;
+        private final long lo;
+        private final String unpacked;
+        private final int seq;
+
+        private static final int PACKED_CHARS = 16;
+
+    }
+
+}
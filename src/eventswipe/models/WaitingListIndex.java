@@ -0,0 +1,175 @@
+package eventswipe.models;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A hash index over the waiting list of an event, keyed by student number and
+ * by the unique identifier of the student in the booking system.
+ * <p>
+ * Waiting lists taken from the booking system only carry the unique identifier,
+ * so those students are unresolved until their student number is looked up.
+ * Students whose lookup fails are given up on, so the index is complete once
+ * every lookup has finished. A student who is unresolved or given up on is
+ * not found by student number, so until the index is resolved a student
+ * number which isn't found has to be checked by identifier as well.
+ *
+ * @see #resolveId(Integer, String)
+ *
+ * @author Matt Wildman http://bitbucket.org/mattwildman
+ * @see Student
+ */
+public class WaitingListIndex {
+
+    /**
+     * Constructs an empty waiting list index.
+     */
+    public WaitingListIndex() {
+        byStuNumber = new ConcurrentHashMap<>();
+        byId = new ConcurrentHashMap<>();
+        unresolved = new ConcurrentHashMap<>();
+        unresolvable = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Constructs a waiting list index containing every Student on a waiting list.
+     *
+     * @param waitingList A List of Students (may be null)
+     */
+    public WaitingListIndex(List<Student> waitingList) {
+        this();
+        if (waitingList != null) {
+            for (Student student : waitingList) {
+                add(student);
+            }
+        }
+    }
+
+    /**
+     * Adds a Student to the index.
+     *
+     * @param student A Student on the waiting list
+     */
+    public void add(Student student) {
+        if (student.getId() != null) {
+            byId.put(student.getId(), student);
+        }
+        if (student.getStuNumber() != null) {
+            byStuNumber.put(student.getStuNumber(), student);
+        }
+        else if (student.getId() != null) {
+            unresolved.put(student.getId(), student);
+        }
+    }
+
+    /**
+     * Sets the student number of a waiting list Student and indexes them by it.
+     *
+     * @param student   A Student on the waiting list
+     * @param stuNumber The student number of the Student
+     */
+    public void resolve(Student student, String stuNumber) {
+        student.setStuNumber(stuNumber);
+        byStuNumber.put(stuNumber, student);
+        unresolved.remove(student.getId());
+        unresolvable.remove(student.getId());
+    }
+
+    /**
+     * Resolves the waiting list Student with a unique identifier, once their
+     * student number has been found another way.
+     *
+     * @param id        The unique identifier of a student in the booking system
+     * @param stuNumber The student number of the student
+     * @return          True if the student is on the waiting list, false if not
+     */
+    public boolean resolveId(Integer id, String stuNumber) {
+        Student student = id == null ? null : byId.get(id);
+        if (student == null) {
+            return false;
+        }
+        if (student.getStuNumber() == null) {
+            resolve(student, stuNumber);
+        }
+        return true;
+    }
+
+    /**
+     * Gives up looking up the student number of a waiting list Student, eg.
+     * when the booking system has no match for them.
+     *
+     * @param student A Student on the waiting list
+     */
+    public void giveUp(Student student) {
+        if (student.getId() != null && unresolved.remove(student.getId()) != null) {
+            unresolvable.put(student.getId(), student);
+        }
+    }
+
+    /**
+     * @param stuNumber A student number String
+     * @return          True if the student number is on the waiting list, false if not
+     */
+    public boolean containsStuNumber(String stuNumber) {
+        return byStuNumber.containsKey(stuNumber);
+    }
+
+    /**
+     * @param id The unique identifier of a student in the booking system
+     * @return   True if the student is on the waiting list, false if not
+     */
+    public boolean containsId(Integer id) {
+        return id != null && byId.containsKey(id);
+    }
+
+    /**
+     * @return True if every Student on the waiting list has a known student number
+     */
+    public boolean isResolved() {
+        return unresolved.isEmpty() && unresolvable.isEmpty();
+    }
+
+    /**
+     * @return The number of Students on the waiting list without a known student number
+     */
+    public int getUnresolvedCount() {
+        return unresolved.size() + unresolvable.size();
+    }
+
+    /**
+     * @return True if no student number lookups are outstanding, whether or not they succeeded
+     */
+    public boolean isComplete() {
+        return unresolved.isEmpty();
+    }
+
+    /**
+     * @return A List of the Students whose student numbers are not yet known
+     */
+    public List<Student> getUnresolved() {
+        return new ArrayList<>(unresolved.values());
+    }
+
+    /**
+     * @return A List of the Students whose student numbers could not be found
+     * @see #giveUp(Student)
+     */
+    public List<Student> getUnresolvable() {
+        return new ArrayList<>(unresolvable.values());
+    }
+
+    /**
+     * @return True if nobody is on the waiting list, false if not
+     */
+    public boolean isEmpty() {
+        return byId.isEmpty() && byStuNumber.isEmpty();
+    }
+
+    private final ConcurrentMap<String, Student> byStuNumber;
+    private final ConcurrentMap<Integer, Student> byId;
+    private final ConcurrentMap<Integer, Student> unresolved;
+    private final ConcurrentMap<Integer, Student> unresolvable;
+
+}
@@ -0,0 +1,430 @@
+package eventswipe.storage;
+
+import eventswipe.utils.Utils;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Exports attendance records as CSV, JSON or JSON Lines.
+ * <p>
+ * Rows are streamed from a {@link Source} one at a time, formatted into a
+ * reusable buffer and written to the file through one channel in large
+ * writes, so exports of any size hold only one row and one buffer in memory.
+ * Only the chosen columns are written, in the order they are given. CSV
+ * files start with a byte order mark and a header row so spreadsheets read
+ * names correctly, and cells which a spreadsheet would read as a formula are
+ * prefixed with a quote. JSON files hold one array of row objects; JSON
+ * Lines files hold one object per line.
+ *
+ * @author Matt Wildman http://bitbucket.org/mattwildman
+ */
+public class AttendanceExporter {
+
+    /**
+     * The file formats which can be exported.
+     */
+    public enum Format {
+
+        /**
+         * Comma separated values with a header row.
+         */
+        CSV(".csv"),
+
+        /**
+         * One JSON object per line.
+         */
+        JSON_LINES(".jsonl"),
+
+        /**
+         * One JSON array of objects.
+         */
+        JSON(".json");
+
+        private Format(String extension) {
+            this.extension = extension;
+        }
+
+        /**
+         * @return The file name extension of the format, eg. ".csv"
+         */
+        public String getExtension() {
+            return extension;
+        }
+
+        /**
+         * @param file An export file
+         * @return     JSON Lines for a .jsonl file, JSON for a .json file, otherwise CSV
+         */
+        public static Format forFile(File file) {
+            String name = file.getName().toLowerCase(Locale.ROOT);
+            if (name.endsWith(JSON_LINES.extension)) {
+                return JSON_LINES;
+            }
+            return name.endsWith(JSON.extension) ? JSON : CSV;
+        }
+
+        private final String extension;
+    }
+
+    /**
+     * The columns which can be exported.
+     */
+    public enum Column {
+
+        /**
+         * The event id or, offline, its title.
+         */
+        EVENT("Event", "event"),
+
+        /**
+         * The event title.
+         */
+        EVENT_TITLE("Event title", "eventTitle"),
+
+        /**
+         * The booked session, or entry slot offline.
+         */
+        SESSION("Session", "session"),
+
+        /**
+         * The student number.
+         */
+        STUDENT_NUMBER("Student number", "stuNumber"),
+
+        /**
+         * The student's first name, if known.
+         */
+        FIRST_NAME("First name", "firstName"),
+
+        /**
+         * The student's last name, if known.
+         */
+        LAST_NAME("Last name", "lastName"),
+
+        /**
+         * When the student was first recorded, if known.
+         */
+        RECORDED_AT("Recorded at", "recordedAt"),
+
+        /**
+         * Whether the attendance is confirmed by the booking system, recorded or unsaved.
+         */
+        STATUS("Status", "status");
+
+        private Column(String header, String key) {
+            this.header = header;
+            this.key = key;
+        }
+
+        /**
+         * Parses a comma separated list of column names, eg. "STUDENT_NUMBER,RECORDED_AT".
+         * Unknown names are ignored.
+         *
+         * @param names The column names, or null
+         * @return      The columns, or every column if none are named
+         */
+        public static List<Column> parse(String names) {
+            List<Column> columns = new ArrayList<>();
+            if (names != null) {
+                for (String name : names.split(",")) {
+                    try {
+                        columns.add(valueOf(name.trim().toUpperCase(Locale.ROOT)));
+                    } catch (IllegalArgumentException ex) {
+                        //not a column
+                    }
+                }
+            }
+            return columns.isEmpty() ? Arrays.asList(values()) : columns;
+        }
+
+        private final String header;
+        private final String key;
+    }
+
+    /**
+     * One exported row. Sources may reuse the same Row for every row they write.
+     */
+    public static class Row {
+
+        /**
+         * Clears every field, ready for the next row.
+         */
+        public void clear() {
+            Arrays.fill(values, null);
+            recordedAt = 0;
+        }
+
+        /**
+         * @param column The column to set, which must not be RECORDED_AT
+         * @param value  The value, or null if it isn't known
+         */
+        public void set(Column column, String value) {
+            values[column.ordinal()] = value;
+        }
+
+        /**
+         * @param time When the student was first recorded in epoch milliseconds, or 0 if it isn't known
+         */
+        public void setRecordedAt(long time) {
+            recordedAt = time;
+        }
+
+        private final String[] values = new String[Column.values().length];
+        private long recordedAt;
+
+    }
+
+    /**
+     * Receives the rows of an export.
+     */
+    public interface Sink {
+
+        /**
+         * @param row The next Row, which may be reused once this returns
+         * @throws IOException
+         */
+        void write(Row row) throws IOException;
+    }
+
+    /**
+     * Produces the rows of an export.
+     */
+    public interface Source {
+
+        /**
+         * Writes every row of the export to a sink, in order.
+         *
+         * @param sink The Sink to write to
+         * @throws IOException
+         */
+        void export(Sink sink) throws IOException;
+    }
+
+    /**
+     * Constructs an exporter.
+     *
+     * @param format  The file format
+     * @param columns The columns to write, in order
+     */
+    public AttendanceExporter(Format format, List<Column> columns) {
+        this.format = format;
+        this.columns = Collections.unmodifiableList(new ArrayList<>(columns));
+    }
+
+    /**
+     * Exports rows to a file, replacing it.
+     *
+     * @param source The rows to export
+     * @param file   The file to write
+     * @return       The number of rows written
+     * @throws IOException
+     */
+    public long export(Source source, File file) throws IOException {
+        try (FileChannel channel = new FileOutputStream(file).getChannel()) {
+            final Output out = new Output(channel);
+            if (format == Format.CSV) {
+                out.sb.append(BOM);
+                for (int i = 0; i < columns.size(); i++) {
+                    if (i > 0) {
+                        out.sb.append(',');
+                    }
+                    appendCsv(out.sb, columns.get(i).header);
+                }
+                out.sb.append(CSV_NL);
+            }
+            else if (format == Format.JSON) {
+                out.sb.append('[');
+            }
+            source.export(new Sink() {
+                @Override
+                public void write(Row row) throws IOException {
+                    if (format == Format.CSV) {
+                        appendCsvRow(out.sb, row);
+                    }
+                    else if (format == Format.JSON) {
+                        out.sb.append(out.rows == 0 ? JSON_NL : "," + JSON_NL);
+                        appendJsonRow(out.sb, row);
+                    }
+                    else {
+                        appendJsonRow(out.sb, row);
+                        out.sb.append(JSON_NL);
+                    }
+                    out.rows++;
+                    if (out.sb.length() >= FLUSH_CHARS) {
+                        out.flush();
+                    }
+                }
+            });
+            if (format == Format.JSON) {
+                out.sb.append(JSON_NL).append(']').append(JSON_NL);
+            }
+            out.flush();
+            return out.rows;
+        }
+    }
+
+    private void appendCsvRow(StringBuilder sb, Row row) {
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            Column column = columns.get(i);
+            if (column == Column.RECORDED_AT) {
+                if (row.recordedAt != 0) {
+                    sb.append(formatTime(row.recordedAt));
+                }
+            }
+            else {
+                appendCsv(sb, row.values[column.ordinal()]);
+            }
+        }
+        sb.append(CSV_NL);
+    }
+
+    private void appendJsonRow(StringBuilder sb, Row row) {
+        sb.append('{');
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            Column column = columns.get(i);
+            sb.append('"').append(column.key).append("\":");
+            if (column == Column.RECORDED_AT) {
+                appendJson(sb, row.recordedAt == 0 ? null : formatTime(row.recordedAt));
+            }
+            else {
+                appendJson(sb, row.values[column.ordinal()]);
+            }
+        }
+        sb.append('}');
+    }
+
+    /**
+     * Formats a time to the second, reusing the last result as attendees
+     * arrive many to a second.
+     */
+    private String formatTime(long time) {
+        long second = time / 1000;
+        if (second != lastSecond || lastTime == null) {
+            lastTime = timeFormat.format(new Date(second * 1000));
+            lastSecond = second;
+        }
+        return lastTime;
+    }
+
+    private static void appendCsv(StringBuilder sb, String value) {
+        if (value == null) {
+            return;
+        }
+        if (!value.isEmpty() && FORMULA_CHARS.indexOf(value.charAt(0)) >= 0) {
+            //stop spreadsheets running the cell as a formula
+            value = "'" + value;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!quote) {
+            sb.append(value);
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                sb.append('"');
+            }
+            sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    private static void appendJson(StringBuilder sb, String value) {
+        if (value == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                sb.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+            }
+            else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    private final Format format;
+    private final List<Column> columns;
+    private final DateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX");
+    private long lastSecond;
+    private String lastTime;
+
+    private static final String BOM = "\uFEFF";
+    private static final String CSV_NL = "\r\n";
+    private static final String JSON_NL = "\n";
+    private static final int FLUSH_CHARS = 32 * 1024;
+    private static final Charset CHARSET = Charset.forName(Utils.UTF8);
+    private static final String FORMULA_CHARS = "=+-@\t\r";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final class Output {
+
+        Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void flush() throws IOException {
+            CharBuffer chars = CharBuffer.wrap(sb);
+            while (true) {
+                CoderResult result = encoder.encode(chars, bytes, true);
+                bytes.flip();
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                bytes.clear();
+                if (result.isUnderflow()) {
+                    break;
+                }
+                if (result.isError()) {
+                    result.throwException();
+                }
+            }
+            encoder.reset();
+            sb.setLength(0);
+        }
+
+        private final FileChannel channel;
+        private final StringBuilder sb = new StringBuilder(FLUSH_CHARS + 1024);
+        private final CharsetEncoder encoder = CHARSET.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final ByteBuffer bytes = ByteBuffer.allocateDirect(FLUSH_CHARS * 2);
+        private long rows;
+
+    }
+
+}
@@ -0,0 +1,629 @@
+package eventswipe.storage;
+
+import eventswipe.metrics.LatencyHistogram;
+import eventswipe.metrics.Metrics;
+import eventswipe.utils.Utils;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An append-only local journal of attendance records.
+ * <p>
+ * Entries belong to a journal session: one event recording attendance, from
+ * when it is loaded until the station is finished with it. Sessions have
+ * generated ids, so events with the same title, or none, are never mixed up.
+ * A session which ends with nothing unsaved is closed and forgotten. One left
+ * open, by a crash or with unsaved records, is resumed if its event is loaded
+ * again within a few hours; otherwise only its unsaved records are carried
+ * into the event's new session.
+ * <p>
+ * The state of every open session is kept in memory, so replaying a session
+ * reads nothing from disk. Entries are handed to a background writer, which
+ * appends everything waiting in one write and then forces it to disk, so a
+ * burst of scans costs one fsync rather than one each. A failed write is
+ * retried until it succeeds. The journal is rewritten with just the open
+ * sessions when it is opened and whenever it has doubled in size since, so
+ * it doesn't grow from one event to the next. Each write and fsync is timed
+ * as "scan.persist".
+ *
+ * @author Matt Wildman http://bitbucket.org/mattwildman
+ */
+public class AttendanceJournal {
+
+    /**
+     * The types of journal entry.
+     */
+    public enum Type {
+
+        /**
+         * A student number was recorded as attending.
+         */
+        RECORDED,
+
+        /**
+         * A student number was added to the unsaved list.
+         */
+        UNSAVED,
+
+        /**
+         * The booking system confirmed an attendance record.
+         */
+        CONFIRMED,
+
+        /**
+         * The unsaved list was saved to a file or synced to the booking system.
+         */
+        SAVED,
+
+        /**
+         * A session was opened for an event. Written by {@link AttendanceJournal#open(String)}.
+         */
+        OPENED,
+
+        /**
+         * A session was closed. Written by {@link AttendanceJournal#end(String)}.
+         */
+        CLOSED
+    }
+
+    /**
+     * The state of a session rebuilt from the journal.
+     */
+    public static class Replay {
+
+        Replay() {}
+
+        Replay(Replay other) {
+            recorded.putAll(other.recorded);
+            unsaved.addAll(other.unsaved);
+            confirmed.addAll(other.confirmed);
+        }
+
+        /**
+         * @return The student numbers recorded as attending, in journal order
+         */
+        public List<String> getRecorded() {
+            return new ArrayList<>(recorded.keySet());
+        }
+
+        /**
+         * Returns the student numbers still unsaved, in journal order.
+         * Student numbers the booking system has confirmed are left out.
+         *
+         * @return A List of unsaved student number Strings
+         */
+        public List<String> getUnsaved() {
+            List<String> stillUnsaved = new ArrayList<>(unsaved.size());
+            for (String stuNumber : unsaved) {
+                if (!confirmed.contains(stuNumber)) {
+                    stillUnsaved.add(stuNumber);
+                }
+            }
+            return stillUnsaved;
+        }
+
+        /**
+         * @return The student numbers the booking system has confirmed as attending
+         */
+        public Set<String> getConfirmed() {
+            return confirmed;
+        }
+
+        /**
+         * @param stuNumber A student number
+         * @return          When the student number was first recorded in epoch milliseconds, or null
+         */
+        public Long getRecordedTime(String stuNumber) {
+            return recorded.get(stuNumber);
+        }
+
+        private final Map<String, Long> recorded = new LinkedHashMap<>();
+        private final Set<String> unsaved = new LinkedHashSet<>();
+        private final Set<String> confirmed = new HashSet<>();
+
+    }
+
+    /**
+     * Opens a journal file, compacts it and starts the background writer.
+     * Sessions opened by this process are ended when it exits normally.
+     *
+     * @param file The journal file
+     * @throws IOException
+     */
+    public AttendanceJournal(File file) throws IOException {
+        this.file = file;
+        this.queue = new LinkedBlockingQueue<>();
+        load();
+        dropStale(System.currentTimeMillis());
+        try {
+            replaceFile(serialize());
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Error compacting attendance journal", ex);
+            openChannel();
+            needsCompaction = true;
+        }
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "attendance-journal");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                endAll();
+                sync();
+            }
+        }));
+    }
+
+    /**
+     * Opens a session for an event, resuming the event's last session if it
+     * was left open within the last few hours. The unsaved records of any
+     * older open sessions of the event are carried into the session, and
+     * those sessions are closed.
+     *
+     * @param eventKey The event, eg. its id in the booking system or, offline, its title
+     * @return         The id of the session
+     */
+    public synchronized String open(String eventKey) {
+        String key = clean(eventKey);
+        long now = System.currentTimeMillis();
+        Session resume = null;
+        List<Session> older = new ArrayList<>();
+        for (Session s : sessions.values()) {
+            if (!s.eventKey.equals(key) || active.contains(s.id)) {
+                continue;
+            }
+            if (resume == null || s.lastTime > resume.lastTime) {
+                if (resume != null) {
+                    older.add(resume);
+                }
+                resume = s;
+            }
+            else {
+                older.add(s);
+            }
+        }
+        if (resume != null && now - resume.lastTime > RESUME_WINDOW) {
+            older.add(resume);
+            resume = null;
+        }
+        String id = resume != null ? resume.id : newSessionId();
+        if (resume == null) {
+            enqueue(now, id, Type.OPENED, key);
+        }
+        for (Session s : older) {
+            for (String stuNumber : s.state.getUnsaved()) {
+                enqueue(now, id, Type.UNSAVED, stuNumber);
+            }
+            enqueue(now, s.id, Type.CLOSED, null);
+        }
+        active.add(id);
+        return id;
+    }
+
+    /**
+     * Ends a session. It is closed if nothing in it is unsaved; otherwise it
+     * is left open so the unsaved records are recovered when its event is
+     * loaded again.
+     *
+     * @param sessionId The session to end
+     * @return          True if the session was closed, false if it was left open
+     */
+    public synchronized boolean end(String sessionId) {
+        active.remove(sessionId);
+        Session s = sessions.get(sessionId);
+        if (s == null) {
+            return true;
+        }
+        if (!s.state.getUnsaved().isEmpty()) {
+            return false;
+        }
+        enqueue(System.currentTimeMillis(), sessionId, Type.CLOSED, null);
+        return true;
+    }
+
+    /**
+     * Appends an entry to the journal. Never waits for the disk.
+     *
+     * @param sessionId The session the entry belongs to
+     * @param type      The type of entry
+     * @param stuNumber The student number, or null for entries about the whole session
+     */
+    public synchronized void append(String sessionId, Type type, String stuNumber) {
+        enqueue(System.currentTimeMillis(), sessionId, type, clean(stuNumber));
+    }
+
+    /**
+     * Waits until every entry appended so far has been forced to disk, for a few seconds at most.
+     *
+     * @return True if every entry is on disk, false if a write is failing or taking too long
+     */
+    public boolean sync() {
+        long deadline = System.currentTimeMillis() + SYNC_TIMEOUT;
+        synchronized (this) {
+            long target = appended;
+            while (synced < target) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0 || !writer.isAlive()) {
+                    return false;
+                }
+                try {
+                    wait(wait);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return The number of entries appended but not yet forced to disk
+     */
+    public synchronized long getBacklog() {
+        return appended - synced;
+    }
+
+    /**
+     * Returns the recorded attendees, unsaved list and confirmations of a session,
+     * including entries not yet on disk.
+     *
+     * @param sessionId The session to replay
+     * @return          A copy of the state of the session, which is empty if the session is closed
+     */
+    public synchronized Replay replay(String sessionId) {
+        Session s = sessions.get(sessionId);
+        return s == null ? new Replay() : new Replay(s.state);
+    }
+
+    private synchronized void endAll() {
+        for (String id : new ArrayList<>(active)) {
+            end(id);
+        }
+    }
+
+    private void enqueue(long time, String sessionId, Type type, String value) {
+        Entry entry = new Entry(time, sessionId, type, value == null ? "" : value);
+        apply(entry);
+        appended++;
+        queue.offer(entry);
+    }
+
+    private void apply(Entry e) {
+        if (e.type == Type.CLOSED) {
+            sessions.remove(e.session);
+            return;
+        }
+        Session s = sessions.get(e.session);
+        if (s == null) {
+            //entries from before sessions were keyed by their event
+            s = new Session(e.session, e.type == Type.OPENED ? e.value : e.session, e.time);
+            sessions.put(e.session, s);
+        }
+        s.lastTime = Math.max(s.lastTime, e.time);
+        Replay state = s.state;
+        switch (e.type) {
+            case RECORDED:
+                if (!state.recorded.containsKey(e.value)) {
+                    state.recorded.put(e.value, e.time);
+                }
+                break;
+            case UNSAVED:
+                state.unsaved.add(e.value);
+                break;
+            case CONFIRMED:
+                state.confirmed.add(e.value);
+                break;
+            case SAVED:
+                state.unsaved.clear();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Forgets sessions nobody has touched for a week which have nothing unsaved.
+     */
+    private void dropStale(long now) {
+        List<String> stale = new ArrayList<>();
+        for (Session s : sessions.values()) {
+            if (!active.contains(s.id) && now - s.lastTime > STALE_AGE && s.state.getUnsaved().isEmpty()) {
+                stale.add(s.id);
+            }
+        }
+        for (String id : stale) {
+            sessions.remove(id);
+        }
+    }
+
+    /**
+     * @return Entries which rebuild the state of every open session
+     */
+    private String serialize() {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Session s : sessions.values()) {
+            new Entry(s.opened, s.id, Type.OPENED, s.eventKey).appendTo(sb);
+            for (Map.Entry<String, Long> recorded : s.state.recorded.entrySet()) {
+                new Entry(recorded.getValue(), s.id, Type.RECORDED, recorded.getKey()).appendTo(sb);
+            }
+            for (String stuNumber : s.state.confirmed) {
+                new Entry(s.lastTime, s.id, Type.CONFIRMED, stuNumber).appendTo(sb);
+            }
+            new Entry(s.lastTime, s.id, Type.SAVED, "").appendTo(sb);
+            for (String stuNumber : s.state.unsaved) {
+                new Entry(s.lastTime, s.id, Type.UNSAVED, stuNumber).appendTo(sb);
+            }
+        }
+        return sb.toString();
+    }
+
+    private void load() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader in = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), CHARSET))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split(SEP, -1);
+                if (fields.length < 4) {
+                    continue; //a torn line
+                }
+                try {
+                    apply(new Entry(Long.parseLong(fields[0]), fields[1], Type.valueOf(fields[2]), fields[3]));
+                } catch (IllegalArgumentException ex) {
+                    //a torn line
+                }
+            }
+        }
+    }
+
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>();
+        StringBuilder unwritten = new StringBuilder();
+        long unwrittenEntries = 0;
+        while (true) {
+            try {
+                Entry first = unwrittenEntries == 0 ? queue.take() :
+                              queue.poll(RETRY_DELAY, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                }
+            } catch (InterruptedException ex) {
+                return;
+            }
+            queue.drainTo(batch);
+            for (Entry entry : batch) {
+                entry.appendTo(unwritten);
+            }
+            unwrittenEntries += batch.size();
+            batch.clear();
+            if (!write(unwritten)) {
+                continue;
+            }
+            unwritten.setLength(0);
+            markSynced(unwrittenEntries);
+            unwrittenEntries = 0;
+            if (needsCompaction || channelSize > Math.max(COMPACT_BYTES, 2 * compactedSize)) {
+                unwrittenEntries = compact(unwritten);
+            }
+        }
+    }
+
+    /**
+     * Appends text to the journal and forces it to disk. A failed write is
+     * truncated away so it can be written again whole.
+     */
+    private boolean write(StringBuilder text) {
+        long start = System.nanoTime();
+        try {
+            if (channel == null) {
+                openChannel();
+            }
+            if (torn) {
+                text.insert(0, NL); //ends any partly written line
+                torn = false;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(text.toString().getBytes(CHARSET));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+            channelSize = channel.size();
+            persistLatency.recordSince(start);
+            return true;
+        } catch (IOException ex) {
+            failures.incrementAndGet();
+            LOG.log(Level.SEVERE, "Error writing attendance journal", ex);
+            try {
+                if (channel != null) {
+                    channel.truncate(channelSize);
+                }
+            } catch (IOException | RuntimeException e) {
+                torn = true;
+                closeChannel();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Rewrites the journal with the state of the open sessions, which includes
+     * every entry still queued. If the rewrite fails the queued entries are
+     * added to the unwritten text to be appended as usual.
+     *
+     * @return The number of entries added to the unwritten text
+     */
+    private long compact(StringBuilder unwritten) {
+        List<Entry> drained = new ArrayList<>();
+        String content;
+        synchronized (this) {
+            dropStale(System.currentTimeMillis());
+            content = serialize();
+            queue.drainTo(drained);
+        }
+        try {
+            replaceFile(content);
+            needsCompaction = false;
+            markSynced(drained.size());
+            return 0;
+        } catch (IOException ex) {
+            failures.incrementAndGet();
+            LOG.log(Level.SEVERE, "Error compacting attendance journal", ex);
+            needsCompaction = true;
+            for (Entry entry : drained) {
+                entry.appendTo(unwritten);
+            }
+            return drained.size();
+        }
+    }
+
+    private void replaceFile(String content) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel out = new FileOutputStream(tmp).getChannel()) {
+            ByteBuffer buffer = ByteBuffer.wrap(content.getBytes(CHARSET));
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+        closeChannel();
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+        }
+        openChannel();
+        compactedSize = channelSize;
+        torn = false;
+    }
+
+    private void openChannel() throws IOException {
+        channel = new FileOutputStream(file, true).getChannel();
+        channelSize = channel.size();
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "Error closing attendance journal", ex);
+            }
+            channel = null;
+        }
+    }
+
+    private synchronized void markSynced(long entries) {
+        synced += entries;
+        notifyAll();
+    }
+
+    private String newSessionId() {
+        String id;
+        do {
+            id = Long.toString(System.currentTimeMillis(), 36) + "-" + Integer.toString(random.nextInt(ID_RANGE), 36);
+        } while (sessions.containsKey(id));
+        return id;
+    }
+
+    private static String clean(String field) {
+        return field == null ? "" : field.replaceAll("[\\t\\r\\n]", " ");
+    }
+
+    private static final class Session {
+
+        Session(String id, String eventKey, long opened) {
+            this.id = id;
+            this.eventKey = eventKey;
+            this.opened = opened;
+            this.lastTime = opened;
+        }
+
+        private final String id;
+        private final String eventKey;
+        private final long opened;
+        private long lastTime;
+        private final Replay state = new Replay();
+
+    }
+
+    private static final class Entry {
+
+        Entry(long time, String session, Type type, String value) {
+            this.time = time;
+            this.session = session;
+            this.type = type;
+            this.value = value;
+        }
+
+        void appendTo(StringBuilder sb) {
+            sb.append(time).append(SEP).append(session).append(SEP)
+              .append(type.name()).append(SEP).append(value).append(NL);
+        }
+
+        private final long time;
+        private final String session;
+        private final Type type;
+        private final String value;
+
+    }
+
+    private final File file;
+    private final BlockingQueue<Entry> queue;
+    private final Thread writer;
+    private final Map<String, Session> sessions = new LinkedHashMap<>();
+    private final Set<String> active = new HashSet<>();
+    private final Random random = new Random();
+    private long appended = 0;
+    private long synced = 0;
+    private final LatencyHistogram persistLatency = Metrics.getInstance().histogram("scan.persist");
+    private final AtomicLong failures = Metrics.getInstance().counter("journal.failures");
+
+    //only used by the writer thread, once the constructor has returned
+    private FileChannel channel;
+    private long channelSize;
+    private long compactedSize;
+    private boolean torn = false;
+    private boolean needsCompaction = false;
+
+    private static final String SEP = "\t";
+    private static final String NL = "\n";
+    private static final long SYNC_TIMEOUT = 5000; //milliseconds
+    private static final long RETRY_DELAY = 1000; //milliseconds
+    private static final long RESUME_WINDOW = TimeUnit.HOURS.toMillis(12);
+    private static final long STALE_AGE = TimeUnit.DAYS.toMillis(7);
+    private static final long COMPACT_BYTES = 4 * 1024 * 1024;
+    private static final int ID_RANGE = 36 * 36 * 36 * 36;
+    private static final Charset CHARSET = Charset.forName(Utils.UTF8);
+    private static final Logger LOG = Logger.getLogger(AttendanceJournal.class.getName());
+
+}
@@ -0,0 +1,718 @@
+package eventswipe.storage;
+
+import eventswipe.utils.Utils;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only binary log of every scan decision and booking system
+ * result, for reports such as who arrived in a session between two times.
+ * <p>
+ * Records are handed to a background writer, which appends everything
+ * waiting in one sequential write and forces the file to disk at most once a
+ * second. Each record carries a CRC32, so a torn or damaged tail is found and
+ * cut off when the log is next opened. Reading maps the file into memory and
+ * walks the records through one reusable buffer, checking each CRC and
+ * filtering on the raw bytes before any String is decoded:
+ * <pre>
+ * header:  magic, version (2 ints)
+ * record:  length of the rest of the record (int), CRC32 of the rest (int),
+ *          time in epoch milliseconds (long), scan to decision microseconds (int),
+ *          decision (byte), student number, event key, session and
+ *          station byte lengths (4 bytes), then the four UTF-8 strings
+ * </pre>
+ * Strings are cut to 255 bytes.
+ * <p>
+ * Run with {@code java eventswipe.storage.AuditLog <file> [--from yyyy-MM-dd'T'HH:mm]
+ * [--to yyyy-MM-dd'T'HH:mm] [--event key] [--session id] [--station name]
+ * [--student number] [--decision ADMITTED,WALK_UP,...]} to print the
+ * matching records as tab separated values.
+ *
+ * @author Matt Wildman http://bitbucket.org/mattwildman
+ */
+public class AuditLog {
+
+    /**
+     * The outcomes recorded in the log.
+     */
+    public enum Decision {
+
+        /**
+         * A booked student was admitted and their attendance recorded.
+         */
+        ADMITTED,
+
+        /**
+         * A student already recorded as attending was scanned again.
+         */
+        REPEAT,
+
+        /**
+         * A student without a booking was admitted and is being booked.
+         */
+        WALK_UP,
+
+        /**
+         * A student without a booking is on the waiting list.
+         */
+        WAITING_LIST,
+
+        /**
+         * A student without a booking was turned away.
+         */
+        DENIED,
+
+        /**
+         * The booking system saved an attendance record.
+         */
+        CONFIRMED,
+
+        /**
+         * An attendance record was kept as unsaved.
+         */
+        UNSAVED,
+
+        /**
+         * A student without a booking may be on the waiting list, which
+         * couldn't be fully checked for them.
+         */
+        MAYBE_WAITING_LIST
+    }
+
+    /**
+     * The records to read from the log. Every condition left unset matches any record.
+     */
+    public static class Query {
+
+        /**
+         * @param from The earliest time to match, in epoch milliseconds
+         * @return     This Query
+         */
+        public Query setFrom(long from) {
+            this.from = from;
+            return this;
+        }
+
+        /**
+         * @param to The time to match up to but not including, in epoch milliseconds
+         * @return   This Query
+         */
+        public Query setTo(long to) {
+            this.to = to;
+            return this;
+        }
+
+        /**
+         * @param decisions The decisions to match
+         * @return          This Query
+         */
+        public Query setDecisions(Set<Decision> decisions) {
+            this.decisions = EnumSet.copyOf(decisions);
+            return this;
+        }
+
+        /**
+         * @param stuNumber The student number to match
+         * @return          This Query
+         */
+        public Query setStuNumber(String stuNumber) {
+            this.stuNumber = encode(stuNumber);
+            return this;
+        }
+
+        /**
+         * @param eventKey The event key to match
+         * @return         This Query
+         */
+        public Query setEventKey(String eventKey) {
+            this.eventKey = encode(eventKey);
+            return this;
+        }
+
+        /**
+         * @param session The session id to match
+         * @return        This Query
+         */
+        public Query setSession(String session) {
+            this.session = encode(session);
+            return this;
+        }
+
+        /**
+         * @param station The station name to match
+         * @return        This Query
+         */
+        public Query setStation(String station) {
+            this.station = encode(station);
+            return this;
+        }
+
+        private long from = Long.MIN_VALUE;
+        private long to = Long.MAX_VALUE;
+        private Set<Decision> decisions = EnumSet.allOf(Decision.class);
+        private byte[] stuNumber;
+        private byte[] eventKey;
+        private byte[] session;
+        private byte[] station;
+
+    }
+
+    /**
+     * One record of the log, valid only during the call to
+     * {@link Visitor#visit(Record)} it is passed to.
+     */
+    public static class Record {
+
+        /**
+         * @return The time of the record in epoch milliseconds
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return The time from the scan to its decision in microseconds, or 0
+         */
+        public int getLatencyMicros() {
+            return latencyMicros;
+        }
+
+        /**
+         * @return The decision or result recorded
+         */
+        public Decision getDecision() {
+            return decision;
+        }
+
+        /**
+         * @return The student number
+         */
+        public String getStuNumber() {
+            return decode(0);
+        }
+
+        /**
+         * @return The event key
+         */
+        public String getEventKey() {
+            return decode(1);
+        }
+
+        /**
+         * @return The session id, or an empty String if there was none
+         */
+        public String getSession() {
+            return decode(2);
+        }
+
+        /**
+         * @return The station, or an empty String for the station's own scanner
+         */
+        public String getStation() {
+            return decode(3);
+        }
+
+        private String decode(int field) {
+            return new String(bytes, offsets[field], lengths[field], CHARSET);
+        }
+
+        private boolean matches(int field, byte[] wanted) {
+            if (wanted == null) {
+                return true;
+            }
+            if (lengths[field] != wanted.length) {
+                return false;
+            }
+            int offset = offsets[field];
+            for (int i = 0; i < wanted.length; i++) {
+                if (bytes[offset + i] != wanted[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private byte[] bytes = new byte[RECORD_SIZE_HINT];
+        private final int[] offsets = new int[FIELDS];
+        private final int[] lengths = new int[FIELDS];
+        private long time;
+        private int latencyMicros;
+        private Decision decision;
+
+    }
+
+    /**
+     * Receives the records matching a query.
+     */
+    public interface Visitor {
+
+        /**
+         * @param record A matching Record
+         * @return       True to carry on reading, false to stop
+         */
+        boolean visit(Record record);
+    }
+
+    /**
+     * A read-only view of the log as it was when the reader was opened.
+     */
+    public static class Reader {
+
+        private Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * Reads the records matching a query, in the order they were written.
+         * Reading stops at the first record which is torn or fails its CRC.
+         *
+         * @param query   The records to match
+         * @param visitor Receives each matching record, may be null to count them
+         * @return        The number of matching records
+         */
+        public long scan(Query query, Visitor visitor) {
+            Record record = new Record();
+            CRC32 crc = new CRC32();
+            ByteBuffer view = buffer.duplicate();
+            long matched = 0;
+            int position = HEADER_SIZE;
+            int limit = buffer.limit();
+            while (position + 2 * INT_BYTES <= limit) {
+                int length = buffer.getInt(position);
+                if (length < FIXED_SIZE || length > MAX_RECORD_SIZE || length > limit - position - 2 * INT_BYTES) {
+                    break;
+                }
+                if (record.bytes.length < length) {
+                    record.bytes = new byte[Math.max(length, record.bytes.length * 2)];
+                }
+                view.position(position + 2 * INT_BYTES);
+                view.get(record.bytes, 0, length);
+                crc.reset();
+                crc.update(record.bytes, 0, length);
+                if ((int) crc.getValue() != buffer.getInt(position + INT_BYTES)) {
+                    break;
+                }
+                position += 2 * INT_BYTES + length;
+                records++;
+                if (!read(record, length)) {
+                    break;
+                }
+                if (record.time < query.from || record.time >= query.to ||
+                    !query.decisions.contains(record.decision) ||
+                    !record.matches(1, query.eventKey) || !record.matches(2, query.session) ||
+                    !record.matches(0, query.stuNumber) || !record.matches(3, query.station)) {
+                    continue;
+                }
+                matched++;
+                if (visitor != null && !visitor.visit(record)) {
+                    break;
+                }
+            }
+            validLength = Math.max(validLength, position);
+            return matched;
+        }
+
+        /**
+         * @return The number of bytes of whole, valid records read so far, including the header
+         */
+        public long getValidLength() {
+            return validLength;
+        }
+
+        /**
+         * @return The number of valid records read so far
+         */
+        public long getRecordsRead() {
+            return records;
+        }
+
+        private static boolean read(Record record, int length) {
+            byte[] b = record.bytes;
+            record.time = getLong(b, 0);
+            record.latencyMicros = getInt(b, 8);
+            int decision = b[12];
+            if (decision < 0 || decision >= DECISIONS.length) {
+                return false;
+            }
+            record.decision = DECISIONS[decision];
+            int offset = FIXED_SIZE;
+            for (int i = 0; i < FIELDS; i++) {
+                record.offsets[i] = offset;
+                record.lengths[i] = b[13 + i] & 0xff;
+                offset += record.lengths[i];
+            }
+            return offset == length;
+        }
+
+        private final ByteBuffer buffer;
+        private long validLength = HEADER_SIZE;
+        private long records = 0;
+
+    }
+
+    /**
+     * Opens a log for appending, cutting off any torn or damaged records at
+     * its end, and starts the background writer.
+     *
+     * @param file The log file, which is created if it doesn't exist
+     * @throws IOException if the file can't be opened or isn't an audit log
+     */
+    public AuditLog(File file) throws IOException {
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+        if (channel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+        }
+        else {
+            Reader reader = openReader(channel);
+            reader.scan(new Query(), null);
+            if (reader.getValidLength() < channel.size()) {
+                LOG.log(Level.WARNING, "Cutting {0} bytes of torn or damaged records from {1}",
+                        new Object[]{channel.size() - reader.getValidLength(), file});
+                channel.truncate(reader.getValidLength());
+            }
+        }
+        channel.position(channel.size());
+        this.queue = new LinkedBlockingQueue<>();
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "audit-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sync();
+            }
+        }));
+    }
+
+    /**
+     * Appends a record to the log. Never waits for the disk.
+     *
+     * @param time          The time of the decision or result, in epoch milliseconds
+     * @param decision      The decision or result
+     * @param stuNumber     The student number
+     * @param eventKey      The event the record belongs to
+     * @param session       The session id, or null
+     * @param station       The station, or null for the station's own scanner
+     * @param latencyMicros The time from the scan to its decision in microseconds, or 0
+     */
+    public void append(long time, Decision decision, String stuNumber, String eventKey,
+                       String session, String station, int latencyMicros) {
+        Entry entry = new Entry(time, decision, stuNumber, eventKey, session, station, latencyMicros);
+        synchronized (this) {
+            appended++;
+        }
+        queue.offer(entry);
+    }
+
+    /**
+     * Waits until every record appended so far has been forced to disk.
+     */
+    public void sync() {
+        synchronized (this) {
+            syncRequested = true;
+        }
+        queue.offer(FORCE);
+        synchronized (this) {
+            long target = appended;
+            while (synced < target && writer.isAlive()) {
+                try {
+                    wait(SYNC_TIMEOUT);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Syncs the log and maps it for reading.
+     *
+     * @return A Reader of every record appended so far
+     * @throws IOException
+     */
+    public Reader openReader() throws IOException {
+        sync();
+        return openReader(channel);
+    }
+
+    /**
+     * Maps a log file for reading.
+     *
+     * @param file The log file
+     * @return     A Reader of the records in the file
+     * @throws IOException if the file can't be read or isn't an audit log
+     */
+    public static Reader openReader(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            return openReader(in.getChannel());
+        }
+    }
+
+    private static Reader openReader(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("The audit log is too large to map");
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        if (size < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not an attendance audit log");
+        }
+        return new Reader(buffer);
+    }
+
+    private void writeLoop() {
+        ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER);
+        CRC32 crc = new CRC32();
+        List<Entry> batch = new ArrayList<>();
+        long unforced = 0;
+        long lastForce = System.nanoTime();
+        while (true) {
+            try {
+                Entry first = queue.poll(FORCE_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                }
+            } catch (InterruptedException ex) {
+                return;
+            }
+            queue.drainTo(batch);
+            for (Entry entry : batch) {
+                if (entry != FORCE) {
+                    unforced++;
+                }
+            }
+            try {
+                for (Entry entry : batch) {
+                    if (entry == FORCE) {
+                        continue;
+                    }
+                    if (buffer.remaining() < MAX_RECORD_SIZE + 2 * INT_BYTES) {
+                        flip(buffer);
+                    }
+                    encode(entry, buffer, crc);
+                }
+                flip(buffer);
+                boolean force;
+                synchronized (this) {
+                    force = syncRequested;
+                    syncRequested = false;
+                }
+                if (unforced > 0 && (force ||
+                    System.nanoTime() - lastForce >= TimeUnit.MILLISECONDS.toNanos(FORCE_INTERVAL))) {
+                    channel.force(false);
+                    lastForce = System.nanoTime();
+                    markSynced(unforced);
+                    unforced = 0;
+                }
+            } catch (IOException ex) {
+                LOG.log(Level.SEVERE, "Error writing attendance audit log", ex);
+                buffer.clear();
+                markSynced(unforced); //lost, so no longer waited for
+                unforced = 0;
+            }
+            batch.clear();
+        }
+    }
+
+    private synchronized void markSynced(long count) {
+        synced += count;
+        notifyAll();
+    }
+
+    private void flip(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static void encode(Entry entry, ByteBuffer buffer, CRC32 crc) {
+        int start = buffer.position();
+        int length = FIXED_SIZE + entry.stuNumber.length + entry.eventKey.length +
+                     entry.session.length + entry.station.length;
+        buffer.putInt(length);
+        buffer.putInt(0); //the CRC, filled in below
+        buffer.putLong(entry.time);
+        buffer.putInt(entry.latencyMicros);
+        buffer.put((byte) entry.decision.ordinal());
+        buffer.put((byte) entry.stuNumber.length);
+        buffer.put((byte) entry.eventKey.length);
+        buffer.put((byte) entry.session.length);
+        buffer.put((byte) entry.station.length);
+        buffer.put(entry.stuNumber).put(entry.eventKey).put(entry.session).put(entry.station);
+        crc.reset();
+        crc.update(buffer.array(), buffer.arrayOffset() + start + 2 * INT_BYTES, length);
+        buffer.putInt(start + INT_BYTES, (int) crc.getValue());
+    }
+
+    private static byte[] encode(String field) {
+        if (field == null) {
+            return new byte[0];
+        }
+        byte[] bytes = field.getBytes(CHARSET);
+        if (bytes.length <= MAX_FIELD_BYTES) {
+            return bytes;
+        }
+        int cut = MAX_FIELD_BYTES;
+        while (cut > 0 && (bytes[cut] & 0xc0) == 0x80) {
+            cut--; //don't split a character
+        }
+        byte[] cutBytes = new byte[cut];
+        System.arraycopy(bytes, 0, cutBytes, 0, cut);
+        return cutBytes;
+    }
+
+    private static long getLong(byte[] b, int i) {
+        return ((long) getInt(b, i) << 32) | (getInt(b, i + 4) & 0xffffffffL);
+    }
+
+    private static int getInt(byte[] b, int i) {
+        return (b[i] << 24) | ((b[i + 1] & 0xff) << 16) | ((b[i + 2] & 0xff) << 8) | (b[i + 3] & 0xff);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: AuditLog <file> [--from yyyy-MM-dd'T'HH:mm] [--to yyyy-MM-dd'T'HH:mm] " +
+                               "[--event key] [--session id] [--station name] [--student number] " +
+                               "[--decision ADMITTED,WALK_UP,...]");
+            System.exit(1);
+        }
+        Query query = new Query();
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--from":
+                    query.setFrom(parseTime(args[++i]));
+                    break;
+                case "--to":
+                    query.setTo(parseTime(args[++i]));
+                    break;
+                case "--event":
+                    query.setEventKey(args[++i]);
+                    break;
+                case "--session":
+                    query.setSession(args[++i]);
+                    break;
+                case "--station":
+                    query.setStation(args[++i]);
+                    break;
+                case "--student":
+                    query.setStuNumber(args[++i]);
+                    break;
+                case "--decision":
+                    Set<Decision> decisions = EnumSet.noneOf(Decision.class);
+                    for (String d : args[++i].split(",")) {
+                        decisions.add(Decision.valueOf(d.trim().toUpperCase()));
+                    }
+                    query.setDecisions(decisions);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        final SimpleDateFormat format = new SimpleDateFormat(PRINT_FORMAT);
+        final StringBuilder out = new StringBuilder();
+        Reader reader = openReader(new File(args[0]));
+        long start = System.nanoTime();
+        long matched = reader.scan(query, new Visitor() {
+            @Override
+            public boolean visit(Record r) {
+                out.append(format.format(new Date(r.getTime()))).append('\t')
+                   .append(r.getDecision()).append('\t').append(r.getStuNumber()).append('\t')
+                   .append(r.getEventKey()).append('\t').append(r.getSession()).append('\t')
+                   .append(r.getStation()).append('\t').append(r.getLatencyMicros()).append('\n');
+                if (out.length() > PRINT_BUFFER) {
+                    System.out.print(out);
+                    out.setLength(0);
+                }
+                return true;
+            }
+        });
+        System.out.print(out);
+        System.err.println(String.format("%d of %d records matched in %.1f ms", matched,
+                                         reader.getRecordsRead(), (System.nanoTime() - start) / 1e6));
+    }
+
+    private static long parseTime(String time) throws ParseException {
+        return new SimpleDateFormat(QUERY_FORMAT).parse(time).getTime();
+    }
+
+    private final FileChannel channel;
+    private final BlockingQueue<Entry> queue;
+    private final Thread writer;
+    private long appended = 0;
+    private long synced = 0;
+    private boolean syncRequested = false;
+
+    private static final int MAGIC = 0x4553414c; //"ESAL"
+    private static final int VERSION = 1;
+    private static final int INT_BYTES = 4;
+    private static final int HEADER_SIZE = 2 * INT_BYTES;
+    private static final int FIELDS = 4;
+    private static final int FIXED_SIZE = 8 + INT_BYTES + 1 + FIELDS;
+    private static final int MAX_FIELD_BYTES = 255;
+    private static final int MAX_RECORD_SIZE = FIXED_SIZE + FIELDS * MAX_FIELD_BYTES;
+    private static final int RECORD_SIZE_HINT = 128;
+    private static final int WRITE_BUFFER = 64 * 1024;
+    private static final long FORCE_INTERVAL = 1000; //milliseconds
+    private static final long SYNC_TIMEOUT = 1000; //milliseconds
+    private static final int PRINT_BUFFER = 64 * 1024;
+    private static final String QUERY_FORMAT = "yyyy-MM-dd'T'HH:mm";
+    private static final String PRINT_FORMAT = "yyyy-MM-dd HH:mm:ss.SSS";
+    private static final Decision[] DECISIONS = Decision.values();
+    private static final Charset CHARSET = Charset.forName(Utils.UTF8);
+    private static final Entry FORCE = new Entry(0, Decision.ADMITTED, null, null, null, null, 0);
+    private static final Logger LOG = Logger.getLogger(AuditLog.class.getName());
+
+    private static final class Entry {
+
+        Entry(long time, Decision decision, String stuNumber, String eventKey,
+              String session, String station, int latencyMicros) {
+            this.time = time;
+            this.decision = decision;
+            this.stuNumber = encode(stuNumber);
+            this.eventKey = encode(eventKey);
+            this.session = encode(session);
+            this.station = encode(station);
+            this.latencyMicros = latencyMicros;
+        }
+
+        private final long time;
+        private final Decision decision;
+        private final byte[] stuNumber;
+        private final byte[] eventKey;
+        private final byte[] session;
+        private final byte[] station;
+        private final int latencyMicros;
+
+    }
+
+}
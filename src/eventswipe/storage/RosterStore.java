@@ -0,0 +1,547 @@
+package eventswipe.storage;
+
+import eventswipe.models.NameIndex;
+import eventswipe.models.Student;
+import eventswipe.utils.Utils;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * A read-only store of every student at the institution, imported from a CSV
+ * roster, so names can be shown and searched for without the booking system.
+ * <p>
+ * The store is a single file which is memory-mapped when opened, so lookups
+ * don't put the roster on the heap. It holds fixed-width records sorted by
+ * student number, for binary search, and a sorted table of name tokens for
+ * prefix search, pointing into a pool of UTF-8 strings. The header holds the
+ * length of the file and a CRC-32 of everything after the header, which are
+ * checked on opening, so a torn or damaged store is refused rather than
+ * failing on the scan path:
+ * <pre>
+ * header:  magic, version, record count, token count,
+ *          records offset, tokens offset, strings offset,
+ *          file length, CRC-32 (9 ints)
+ * record:  number offset (int), number length (short),
+ *          first name offset (int), first name length (short),
+ *          last name offset (int), last name length (short)
+ * token:   token offset (int), token length (short), record (int)
+ * </pre>
+ *
+ * @author Matt Wildman http://bitbucket.org/mattwildman
+ */
+public class RosterStore {
+
+    /**
+     * Imports a CSV roster with student number, first name and last name
+     * columns into a new store file. A header row naming the columns (eg.
+     * "Student number,First name,Surname") is optional; without one the
+     * columns are read in that order. Rows repeating a student number are skipped.
+     *
+     * @param csv   The roster CSV file
+     * @param store The store file to write, which is replaced
+     * @return      The number of students imported
+     * @throws IOException
+     */
+    public static int importCsv(File csv, File store) throws IOException {
+        List<String[]> rows = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(
+                new InputStreamReader(new FileInputStream(csv), CHARSET))) {
+            int[] columns = {0, 1, 2};
+            Set<String> seen = new HashSet<>();
+            String line;
+            boolean first = true;
+            while ((line = in.readLine()) != null) {
+                if (first) {
+                    line = line.replace("\uFEFF", "");
+                }
+                List<String> cells = parseCsvLine(line);
+                if (first) {
+                    first = false;
+                    int[] header = findColumns(cells);
+                    if (header != null) {
+                        columns = header;
+                        continue;
+                    }
+                }
+                String stuNumber = cell(cells, columns[0]);
+                if (stuNumber.isEmpty() || !seen.add(stuNumber)) {
+                    continue;
+                }
+                rows.add(new String[]{stuNumber, cell(cells, columns[1]), cell(cells, columns[2])});
+            }
+        }
+        write(rows, store);
+        return rows.size();
+    }
+
+    /**
+     * Opens a store file by mapping it into memory.
+     *
+     * @param store The store file
+     * @return      The opened RosterStore
+     * @throws IOException if the file can't be read or isn't a roster store
+     */
+    public static RosterStore open(File store) throws IOException {
+        File pending = new File(store.getPath() + ".tmp");
+        if (pending.exists() && isComplete(pending)) {
+            replace(pending, store);
+        }
+        MappedByteBuffer buffer = map(store);
+        if (!isValid(buffer)) {
+            throw new IOException(store + " is not a student roster store, or is damaged");
+        }
+        return new RosterStore(buffer);
+    }
+
+    private static MappedByteBuffer map(File store) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(store, "r")) {
+            return file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        }
+    }
+
+    private static boolean isComplete(File store) {
+        try {
+            return isValid(map(store));
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks the header describes the whole file and the checksum matches,
+     * so every offset read later lies within the file.
+     */
+    private static boolean isValid(ByteBuffer buffer) {
+        if (buffer.capacity() < HEADER_SIZE ||
+            buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION ||
+            buffer.getInt(28) != buffer.capacity()) {
+            return false;
+        }
+        long recordCount = buffer.getInt(8);
+        long tokenCount = buffer.getInt(12);
+        long recordsOffset = buffer.getInt(16);
+        long tokensOffset = buffer.getInt(20);
+        long stringsOffset = buffer.getInt(24);
+        if (recordCount < 0 || tokenCount < 0 || recordsOffset != HEADER_SIZE ||
+            tokensOffset != recordsOffset + recordCount * RECORD_SIZE ||
+            stringsOffset != tokensOffset + tokenCount * TOKEN_SIZE ||
+            stringsOffset > buffer.capacity()) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[CRC_CHUNK];
+        ByteBuffer body = buffer.duplicate();
+        body.position(HEADER_SIZE);
+        while (body.hasRemaining()) {
+            int n = Math.min(chunk.length, body.remaining());
+            body.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+        }
+        return (int) crc.getValue() == buffer.getInt(32);
+    }
+
+    private RosterStore(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.recordCount = buffer.getInt(8);
+        this.tokenCount = buffer.getInt(12);
+        this.recordsOffset = buffer.getInt(16);
+        this.tokensOffset = buffer.getInt(20);
+        this.stringsOffset = buffer.getInt(24);
+    }
+
+    /**
+     * @return The number of students in the store
+     */
+    public int size() {
+        return recordCount;
+    }
+
+    /**
+     * @param stuNumber A student number
+     * @return          The Student with that number, or null if there isn't one
+     */
+    public Student get(String stuNumber) {
+        byte[] key = stuNumber.getBytes(CHARSET);
+        int low = 0;
+        int high = recordCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int record = recordsOffset + mid * RECORD_SIZE;
+            int cmp = compare(buffer.getInt(record), buffer.getShort(record + 4), key);
+            if (cmp < 0) {
+                low = mid + 1;
+            }
+            else if (cmp > 0) {
+                high = mid - 1;
+            }
+            else {
+                return readStudent(mid);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the students whose names match a search, ranked like {@link NameIndex#search}.
+     *
+     * @param query      A name or part of a name, eg. "jo smi"
+     * @param maxResults The most Students to return
+     * @return           The matching Students, best matches first
+     */
+    public List<Student> search(String query, int maxResults) {
+        List<String> words = NameIndex.tokenize(query);
+        if (words.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Map<Integer, Integer> scores = null;
+        for (String word : words) {
+            byte[] prefix = word.getBytes(CHARSET);
+            Map<Integer, Integer> wordScores = new HashMap<>();
+            for (int i = lowerBound(prefix); i < tokenCount; i++) {
+                int token = tokensOffset + i * TOKEN_SIZE;
+                int length = buffer.getShort(token + 4);
+                if (!startsWith(buffer.getInt(token), length, prefix)) {
+                    break;
+                }
+                int record = buffer.getInt(token + 6);
+                int score = length == prefix.length ? EXACT_SCORE : PREFIX_SCORE;
+                Integer best = wordScores.get(record);
+                if (best == null || best < score) {
+                    wordScores.put(record, score);
+                }
+            }
+            if (scores == null) {
+                scores = wordScores;
+            }
+            else {
+                Map<Integer, Integer> both = new HashMap<>();
+                for (Map.Entry<Integer, Integer> s : scores.entrySet()) {
+                    Integer score = wordScores.get(s.getKey());
+                    if (score != null) {
+                        both.put(s.getKey(), s.getValue() + score);
+                    }
+                }
+                scores = both;
+            }
+            if (scores.isEmpty()) {
+                return Collections.emptyList();
+            }
+        }
+        final Map<Integer, Integer> ranked = scores;
+        List<Integer> matches = new ArrayList<>(ranked.keySet());
+        Collections.sort(matches, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return ranked.get(b).compareTo(ranked.get(a));
+            }
+        });
+        //only the students which can make the results need their names read to be ranked by name
+        int cutoff = ranked.get(matches.get(Math.min(maxResults, matches.size()) - 1));
+        final Map<Integer, Student> candidates = new HashMap<>();
+        for (Integer record : matches) {
+            if (ranked.get(record) < cutoff) {
+                break;
+            }
+            candidates.put(record, readStudent(record));
+        }
+        List<Integer> best = new ArrayList<>(candidates.keySet());
+        Collections.sort(best, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int byScore = ranked.get(b).compareTo(ranked.get(a));
+                if (byScore != 0) {
+                    return byScore;
+                }
+                Student sa = candidates.get(a);
+                Student sb = candidates.get(b);
+                return (sa.getLastName() + " " + sa.getFirstName())
+                        .compareToIgnoreCase(sb.getLastName() + " " + sb.getFirstName());
+            }
+        });
+        List<Student> results = new ArrayList<>();
+        for (Integer record : best.subList(0, Math.min(maxResults, best.size()))) {
+            results.add(candidates.get(record));
+        }
+        return results;
+    }
+
+    private Student readStudent(int index) {
+        int record = recordsOffset + index * RECORD_SIZE;
+        Student student = new Student();
+        student.setStuNumber(readString(buffer.getInt(record), buffer.getShort(record + 4)));
+        student.setFirstName(readString(buffer.getInt(record + 6), buffer.getShort(record + 10)));
+        student.setLastName(readString(buffer.getInt(record + 12), buffer.getShort(record + 16)));
+        return student;
+    }
+
+    private String readString(int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(stringsOffset + offset);
+        view.get(bytes);
+        return new String(bytes, CHARSET);
+    }
+
+    /**
+     * @return The index of the first token not less than the prefix
+     */
+    private int lowerBound(byte[] prefix) {
+        int low = 0;
+        int high = tokenCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int token = tokensOffset + mid * TOKEN_SIZE;
+            if (compare(buffer.getInt(token), buffer.getShort(token + 4), prefix) < 0) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int compare(int offset, int length, byte[] key) {
+        int start = stringsOffset + offset;
+        int n = Math.min(length, key.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = (buffer.get(start + i) & 0xFF) - (key[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - key.length;
+    }
+
+    private boolean startsWith(int offset, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        int start = stringsOffset + offset;
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(start + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void write(List<String[]> rows, File store) throws IOException {
+        final List<byte[]> numbers = new ArrayList<>(rows.size());
+        for (String[] row : rows) {
+            numbers.add(row[0].getBytes(CHARSET));
+        }
+        Integer[] order = new Integer[rows.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return compareBytes(numbers.get(a), numbers.get(b));
+            }
+        });
+        ByteArrayOutputStream strings = new ByteArrayOutputStream(rows.size() * 32);
+        ByteArrayOutputStream records = new ByteArrayOutputStream(rows.size() * RECORD_SIZE);
+        DataOutputStream recordOut = new DataOutputStream(records);
+        final List<byte[]> tokenBytes = new ArrayList<>();
+        final List<int[]> tokens = new ArrayList<>(); //{offset, record}
+        for (int record = 0; record < order.length; record++) {
+            String[] row = rows.get(order[record]);
+            for (String field : row) {
+                byte[] bytes = field.getBytes(CHARSET);
+                recordOut.writeInt(strings.size());
+                recordOut.writeShort(Math.min(bytes.length, Short.MAX_VALUE));
+                strings.write(bytes, 0, Math.min(bytes.length, Short.MAX_VALUE));
+            }
+            Set<String> names = new HashSet<>(NameIndex.tokenize(row[1]));
+            names.addAll(NameIndex.tokenize(row[2]));
+            for (String name : names) {
+                tokenBytes.add(name.getBytes(CHARSET));
+                tokens.add(new int[]{0, record});
+            }
+        }
+        for (int i = 0; i < tokens.size(); i++) {
+            tokens.get(i)[0] = i; //sort positions, then write strings in sorted order
+        }
+        Collections.sort(tokens, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                int cmp = compareBytes(tokenBytes.get(a[0]), tokenBytes.get(b[0]));
+                return cmp != 0 ? cmp : a[1] - b[1];
+            }
+        });
+        ByteArrayOutputStream tokenTable = new ByteArrayOutputStream(tokens.size() * TOKEN_SIZE);
+        DataOutputStream tokenOut = new DataOutputStream(tokenTable);
+        byte[] previous = null;
+        int previousOffset = 0;
+        for (int[] token : tokens) {
+            byte[] bytes = tokenBytes.get(token[0]);
+            if (previous == null || !Arrays.equals(previous, bytes)) {
+                previous = bytes;
+                previousOffset = strings.size();
+                strings.write(bytes, 0, bytes.length);
+            }
+            tokenOut.writeInt(previousOffset);
+            tokenOut.writeShort(bytes.length);
+            tokenOut.writeInt(token[1]);
+        }
+        CRC32 crc = new CRC32();
+        for (ByteArrayOutputStream part : Arrays.asList(records, tokenTable, strings)) {
+            byte[] bytes = part.toByteArray();
+            crc.update(bytes, 0, bytes.length);
+        }
+        File tmp = new File(store.getPath() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(order.length);
+            out.writeInt(tokens.size());
+            out.writeInt(HEADER_SIZE);
+            out.writeInt(HEADER_SIZE + records.size());
+            out.writeInt(HEADER_SIZE + records.size() + tokenTable.size());
+            out.writeInt(HEADER_SIZE + records.size() + tokenTable.size() + strings.size());
+            out.writeInt((int) crc.getValue());
+            records.writeTo(out);
+            tokenTable.writeTo(out);
+            strings.writeTo(out);
+            out.flush();
+            file.getChannel().force(true); //on disk before it replaces the old store
+        }
+        if (!replace(tmp, store)) {
+            throw new IOException("Could not replace " + store + " while it is open, the new roster will be used next time");
+        }
+    }
+
+    /**
+     * Moves a newly written store into place. A store which is mapped can't be
+     * replaced on some platforms, so the new file is left to be moved when the
+     * store is next opened.
+     */
+    private static boolean replace(File tmp, File store) {
+        if (store.exists() && !store.delete()) {
+            return false;
+        }
+        return tmp.renameTo(store);
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private static int[] findColumns(List<String> header) {
+        int[] columns = {-1, -1, -1};
+        for (int i = 0; i < header.size(); i++) {
+            String name = header.get(i).toLowerCase(Locale.ENGLISH).replaceAll("[^a-z]", "");
+            if (columns[0] < 0 && NUMBER_HEADERS.contains(name)) {
+                columns[0] = i;
+            }
+            else if (columns[1] < 0 && FIRST_NAME_HEADERS.contains(name)) {
+                columns[1] = i;
+            }
+            else if (columns[2] < 0 && LAST_NAME_HEADERS.contains(name)) {
+                columns[2] = i;
+            }
+        }
+        if (columns[0] < 0) {
+            return null;
+        }
+        return columns;
+    }
+
+    private static String cell(List<String> cells, int column) {
+        return column >= 0 && column < cells.size() ? cells.get(column).trim() : "";
+    }
+
+    /**
+     * Splits a CSV line into cells, allowing quoted cells with doubled quotes.
+     */
+    private static List<String> parseCsvLine(String line) {
+        List<String> cells = new ArrayList<>();
+        StringBuilder cell = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    cell.append('"');
+                    i++;
+                }
+                else if (c == '"') {
+                    quoted = false;
+                }
+                else {
+                    cell.append(c);
+                }
+            }
+            else if (c == '"') {
+                quoted = true;
+            }
+            else if (c == ',') {
+                cells.add(cell.toString());
+                cell.setLength(0);
+            }
+            else {
+                cell.append(c);
+            }
+        }
+        cells.add(cell.toString());
+        return cells;
+    }
+
+    private final ByteBuffer buffer;
+    private final int recordCount;
+    private final int tokenCount;
+    private final int recordsOffset;
+    private final int tokensOffset;
+    private final int stringsOffset;
+
+    private static final int MAGIC = 0x45535253; //"ESRS"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 36;
+    private static final int RECORD_SIZE = 18;
+    private static final int TOKEN_SIZE = 10;
+    private static final int EXACT_SCORE = 2;
+    private static final int PREFIX_SCORE = 1;
+    private static final int CRC_CHUNK = 64 * 1024;
+    private static final Charset CHARSET = Charset.forName(Utils.UTF8);
+
+    private static final Set<String> NUMBER_HEADERS = new HashSet<>(Arrays.asList(
+            "studentnumber", "studentno", "studentid", "stunumber", "stunum", "externalid", "number", "id"));
+    private static final Set<String> FIRST_NAME_HEADERS = new HashSet<>(Arrays.asList(
+            "firstname", "forename", "forenames", "givenname", "first"));
+    private static final Set<String> LAST_NAME_HEADERS = new HashSet<>(Arrays.asList(
+            "lastname", "surname", "familyname", "last"));
+
+}
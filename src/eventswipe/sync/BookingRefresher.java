@@ -0,0 +1,173 @@
+package eventswipe.sync;
+
+import eventswipe.APIs.BookingSystemAPI;
+import eventswipe.EventSwipeData;
+import eventswipe.models.Booking;
+import eventswipe.models.BookingListSnapshot;
+import eventswipe.models.Event;
+import eventswipe.models.LiveEvent;
+import eventswipe.models.Session;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the booking lists of live events up to date with the booking system.
+ * <p>
+ * Each session's booking list of every live event is polled in the background. A list which
+ * hasn't changed since the last poll (by entity tag or by a hash of the
+ * response) is skipped; otherwise only the bookings which were added, changed
+ * or cancelled are merged into the event, so walk-up bookings made elsewhere
+ * are picked up without reloading the event. Bookings are compared by student
+ * number and session, as a student may be booked onto several sessions.
+ *
+ * @author Matt Wildman http://bitbucket.org/mattwildman
+ */
+public class BookingRefresher {
+
+    /**
+     * Constructs a booking refresher.
+     *
+     * @param data          The data holding the event to refresh
+     * @param api           The booking system to poll
+     * @param periodSeconds The time between polls
+     */
+    public BookingRefresher(EventSwipeData data, BookingSystemAPI api, long periodSeconds) {
+        this.data = data;
+        this.api = api;
+        this.periodSeconds = periodSeconds;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "booking-refresher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Starts polling.
+     */
+    public void start() {
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Polls the booking system now, in the background.
+     */
+    public void refreshNow() {
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        });
+    }
+
+    private void refresh() {
+        Map<Event, Map<String, BookingListSnapshot>> live = new IdentityHashMap<>();
+        for (LiveEvent l : data.getLiveEvents()) {
+            Map<String, BookingListSnapshot> eventSnapshots = snapshots.get(l.getEvent());
+            live.put(l.getEvent(), eventSnapshots != null ? eventSnapshots : new HashMap<String, BookingListSnapshot>());
+        }
+        snapshots = live; //forget events which have been cleared
+        if (!data.isOnlineMode()) {
+            return;
+        }
+        for (Map.Entry<Event, Map<String, BookingListSnapshot>> e : live.entrySet()) {
+            refresh(e.getKey(), e.getValue());
+        }
+    }
+
+    private void refresh(Event event, Map<String, BookingListSnapshot> eventSnapshots) {
+        if (event.getId() == null || event.isDropIn() ||
+            event.getBookingList() == null || event.getBookingIndex().isLoading()) {
+            return;
+        }
+        for (Session session : event.getSessions()) {
+            try {
+                BookingListSnapshot previous = eventSnapshots.get(session.getId());
+                BookingListSnapshot snapshot = api.getBookingListSnapshot(event.getId(), session.getId(), previous);
+                if (snapshot.isModified()) {
+                    merge(event, session.getId(), previous, snapshot);
+                    eventSnapshots.put(session.getId(), snapshot);
+                }
+            } catch (Exception ex) {
+                LOG.log(Level.WARNING, "Error refreshing bookings for session " + session.getId(), ex);
+            }
+        }
+    }
+
+    /**
+     * Merges the bookings of a session which differ from the event's booking
+     * list. Bookings are only removed if the previous snapshot had them, so
+     * bookings made on this machine since are kept.
+     */
+    private void merge(Event event, String sessionId, BookingListSnapshot previous, BookingListSnapshot snapshot) {
+        List<Booking> added = new ArrayList<>();
+        List<Booking> changed = new ArrayList<>();
+        List<Booking> removed = new ArrayList<>();
+        Map<String, Booking> listed = new HashMap<>();
+        synchronized (event.getBookingList()) {
+            for (Booking b : event.getBookingList()) {
+                if (sessionId.equals(b.getSessionId()) && !listed.containsKey(b.getStuNumber())) {
+                    listed.put(b.getStuNumber(), b);
+                }
+            }
+        }
+        Set<String> current = new HashSet<>();
+        for (Booking b : snapshot.getBookings()) {
+            b.setSessionId(sessionId);
+            current.add(b.getStuNumber());
+            Booking known = listed.get(b.getStuNumber());
+            if (known == null) {
+                added.add(b);
+            }
+            else if (!equal(known.getStatus(), b.getStatus()) ||
+                     !equal(known.getBookingId(), b.getBookingId())) {
+                changed.add(b);
+            }
+        }
+        if (previous != null) {
+            for (Booking b : previous.getBookings()) {
+                if (!current.contains(b.getStuNumber())) {
+                    removed.add(b);
+                }
+            }
+        }
+        if (!added.isEmpty() || !changed.isEmpty() || !removed.isEmpty()) {
+            data.mergeBookings(event, added, changed, removed);
+            LOG.log(Level.INFO, "Refreshed bookings for event {0}: {1} added, {2} changed, {3} removed",
+                    new Object[]{event.getId(), added.size(), changed.size(), removed.size()});
+        }
+    }
+
+    private static boolean equal(Integer a, Integer b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private final EventSwipeData data;
+    private final BookingSystemAPI api;
+    private final long periodSeconds;
+    private final ScheduledExecutorService scheduler;
+    private Map<Event, Map<String, BookingListSnapshot>> snapshots = new IdentityHashMap<>();
+
+    private static final Logger LOG = Logger.getLogger(BookingRefresher.class.getName());
+
+}
@@ -0,0 +1,595 @@
+package eventswipe.sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Shares recorded attendees between the EventSwipe stations on one entrance
+ * over the local network, so a student can only be recorded once across all
+ * of them and only one station writes attendance to the booking system.
+ * <p>
+ * Each station keeps a numbered log of the attendees it has recorded and of
+ * the records the booking system has confirmed. Stations push each new
+ * entry to their peers as it is made and, every {@value #GOSSIP_PERIOD} ms,
+ * send each peer a digest of how much of every station's log they have. A
+ * peer answers a digest with the entries the sender is missing, so stations
+ * which have been cut off from each other catch up once they can talk again.
+ * Entries are sent in UDP datagrams which fit a single Ethernet frame, with
+ * the event keys of each datagram sent once.
+ * <p>
+ * Every datagram ends with an HMAC-SHA256 of its contents keyed by a secret
+ * shared by the stations, and datagrams without a valid one are dropped, so
+ * nothing else on the network can record attendees or stand for election.
+ * A replayed datagram is harmless, as every entry is applied only once.
+ * <p>
+ * The station with the lowest id which has been heard from in the last
+ * {@value #PEER_TIMEOUT} ms writes to the booking system for the group. No
+ * station writes for the first {@value #ELECTION_DELAY} ms, while it hears
+ * from its peers; the records made meanwhile are written once elected. A
+ * newly elected writer writes every record which hasn't been confirmed, and
+ * writes them again every {@value #RETRY_PERIOD} ms until they are, which is
+ * safe as marking a student as attended twice has no effect.
+ * Station ids include a random part chosen at start-up, so a restarted
+ * station starts a new log and is sent everything it had before.
+ *
+ * @author Matt Wildman http://bitbucket.org/mattwildman
+ */
+public class PeerSync {
+
+    /**
+     * Receives the records made on other stations. Methods are called on the
+     * peer sync threads.
+     */
+    public interface Listener {
+
+        /**
+         * Called the first time a station records an attendee of an event.
+         *
+         * @param eventKey  The key of the event
+         * @param stuNumber The student number recorded
+         */
+        void recorded(String eventKey, String stuNumber);
+
+        /**
+         * Called the first time the booking system confirms an attendee written
+         * by another station.
+         *
+         * @param eventKey  The key of the event
+         * @param stuNumber The student number confirmed
+         */
+        void confirmed(String eventKey, String stuNumber);
+
+        /**
+         * Called on the writer for each record it should write to the booking system.
+         *
+         * @param eventKey  The key of the event
+         * @param stuNumber The student number to write
+         */
+        void write(String eventKey, String stuNumber);
+    }
+
+    /**
+     * Constructs a peer sync.
+     *
+     * @param stationName A name for this station, which orders the election of the writer
+     * @param port        The UDP port to listen on
+     * @param peers       The addresses of the other stations
+     * @param secret      The secret shared by the stations, which signs every datagram
+     * @param listener    Receives the records made on other stations
+     * @throws SocketException if the port can't be opened
+     * @throws IllegalArgumentException if the secret is empty
+     */
+    public PeerSync(String stationName, int port, List<InetSocketAddress> peers, byte[] secret,
+                    Listener listener) throws SocketException {
+        if (secret == null || secret.length == 0) {
+            throw new IllegalArgumentException("A shared secret is needed to sync stations");
+        }
+        this.key = new SecretKeySpec(secret.clone(), MAC_ALGORITHM);
+        this.stationId = stationName + "#" + Long.toString(new Random().nextLong() & Long.MAX_VALUE, 36);
+        this.peers = new ArrayList<SocketAddress>(peers);
+        this.listener = listener;
+        this.socket = new DatagramSocket(port);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "peer-sync");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        logs.put(stationId, new ArrayList<Entry>());
+    }
+
+    /**
+     * Starts listening to peers and gossiping with them.
+     */
+    public void start() {
+        Thread receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive();
+            }
+        }, "peer-sync-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+        startedAt = System.currentTimeMillis();
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    gossip();
+                } catch (RuntimeException ex) {
+                    LOG.log(Level.WARNING, "Error gossiping with peers", ex);
+                }
+            }
+        }, 0, GOSSIP_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops gossiping and closes the socket.
+     */
+    public void stop() {
+        scheduler.shutdownNow();
+        socket.close();
+    }
+
+    /**
+     * Shares an attendee recorded on this station with the other stations.
+     *
+     * @param eventKey  The key of the event
+     * @param stuNumber The student number recorded
+     */
+    public void record(String eventKey, String stuNumber) {
+        append(Entry.RECORDED, eventKey, stuNumber);
+    }
+
+    /**
+     * Shares the booking system's confirmation of a record written by this station.
+     *
+     * @param eventKey  The key of the event
+     * @param stuNumber The student number confirmed
+     */
+    public void confirm(String eventKey, String stuNumber) {
+        append(Entry.CONFIRMED, eventKey, stuNumber);
+    }
+
+    /**
+     * @return True if this station writes attendance to the booking system for the group
+     */
+    public boolean isWriter() {
+        return writer;
+    }
+
+    /**
+     * @return This station's id
+     */
+    public String getStationId() {
+        return stationId;
+    }
+
+    /**
+     * @return The ids of the stations heard from recently, including this one
+     */
+    public synchronized Set<String> getLiveStations() {
+        Set<String> live = new TreeSet<>();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Long> heard : lastHeard.entrySet()) {
+            if (now - heard.getValue() < PEER_TIMEOUT) {
+                live.add(heard.getKey());
+            }
+        }
+        live.add(stationId);
+        return live;
+    }
+
+    private void append(byte type, String eventKey, String stuNumber) {
+        Entry entry = new Entry(type, eventKey, stuNumber);
+        int seq;
+        synchronized (this) {
+            List<Entry> log = logs.get(stationId);
+            log.add(entry);
+            seq = log.size();
+            apply(entry);
+        }
+        List<byte[]> packets = new ArrayList<>();
+        encodeDelta(stationId, seq, Collections.singletonList(entry), packets);
+        for (SocketAddress peer : peers) {
+            send(packets, peer);
+        }
+    }
+
+    /**
+     * Notes an entry as seen, returning whether it was new.
+     */
+    private boolean apply(Entry entry) {
+        String key = entry.eventKey + '\n' + entry.stuNumber;
+        if (entry.type == Entry.CONFIRMED) {
+            return confirmed.add(key);
+        }
+        return recorded.add(key);
+    }
+
+    /**
+     * Elects the writer, once there has been time to hear from every peer, and
+     * sends each peer a digest.
+     */
+    private void gossip() {
+        List<Entry> toWrite = Collections.emptyList();
+        if (System.currentTimeMillis() - startedAt >= ELECTION_DELAY) {
+            synchronized (this) {
+                Set<String> live = getLiveStations();
+                boolean isWriter = stationId.equals(live.iterator().next());
+                if (isWriter && !writer) {
+                    LOG.log(Level.INFO, "Station {0} is now writing attendance for {1} stations",
+                            new Object[]{stationId, live.size()});
+                    toWrite = unconfirmed();
+                    lastRetry = System.currentTimeMillis();
+                }
+                else if (isWriter && System.currentTimeMillis() - lastRetry >= RETRY_PERIOD) {
+                    toWrite = unconfirmed();
+                    lastRetry = System.currentTimeMillis();
+                }
+                else if (!isWriter && writer) {
+                    LOG.log(Level.INFO, "Station {0} has stopped writing attendance", stationId);
+                }
+                writer = isWriter;
+            }
+        }
+        for (Entry entry : toWrite) {
+            listener.write(entry.eventKey, entry.stuNumber);
+        }
+        byte[] digest = encodeDigest();
+        for (SocketAddress peer : peers) {
+            send(Collections.singletonList(digest), peer);
+        }
+    }
+
+    private synchronized List<Entry> unconfirmed() {
+        List<Entry> entries = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (List<Entry> log : logs.values()) {
+            for (Entry entry : log) {
+                String key = entry.eventKey + '\n' + entry.stuNumber;
+                if (entry.type == Entry.RECORDED && !confirmed.contains(key) && seen.add(key)) {
+                    entries.add(entry);
+                }
+            }
+        }
+        return entries;
+    }
+
+    private void receive() {
+        byte[] buffer = new byte[MAX_DATAGRAM];
+        while (!socket.isClosed()) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+                handle(packet);
+            } catch (IOException ex) {
+                if (!socket.isClosed()) {
+                    LOG.log(Level.WARNING, "Error receiving from peer", ex);
+                }
+            } catch (RuntimeException ex) {
+                LOG.log(Level.WARNING, "Error handling packet from " + packet.getSocketAddress(), ex);
+            }
+        }
+    }
+
+    private void handle(DatagramPacket packet) throws IOException {
+        int length = packet.getLength() - MAC_LENGTH;
+        if (length < 0 || !verify(packet.getData(), packet.getOffset(), length)) {
+            LOG.log(Level.FINE, "Dropped an unsigned datagram from {0}", packet.getSocketAddress());
+            return;
+        }
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(packet.getData(), packet.getOffset(), length));
+        if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+            return;
+        }
+        byte type = in.readByte();
+        String sender = in.readUTF();
+        if (sender.equals(stationId)) {
+            return;
+        }
+        synchronized (this) {
+            lastHeard.put(sender, System.currentTimeMillis());
+        }
+        if (type == DIGEST) {
+            handleDigest(in, packet.getSocketAddress());
+        }
+        else if (type == DELTA) {
+            handleDelta(in, packet.getSocketAddress());
+        }
+    }
+
+    /**
+     * Sends a peer the entries it is missing, and asks for the entries it has
+     * which this station is missing.
+     */
+    private void handleDigest(DataInputStream in, SocketAddress from) throws IOException {
+        Map<String, Integer> theirs = new HashMap<>();
+        int origins = in.readUnsignedShort();
+        for (int i = 0; i < origins; i++) {
+            theirs.put(in.readUTF(), in.readInt());
+        }
+        List<byte[]> packets = new ArrayList<>();
+        boolean behind = false;
+        synchronized (this) {
+            for (Map.Entry<String, List<Entry>> log : logs.entrySet()) {
+                Integer known = theirs.get(log.getKey());
+                int have = known == null ? 0 : known;
+                List<Entry> entries = log.getValue();
+                if (have < entries.size()) {
+                    encodeDelta(log.getKey(), have + 1, entries.subList(have, entries.size()), packets);
+                }
+            }
+            for (Map.Entry<String, Integer> t : theirs.entrySet()) {
+                List<Entry> log = logs.get(t.getKey());
+                if (t.getValue() > (log == null ? 0 : log.size())) {
+                    behind = true;
+                }
+            }
+        }
+        send(packets.subList(0, Math.min(packets.size(), MAX_PACKETS_PER_REPLY)), from);
+        if (behind) {
+            send(Collections.singletonList(encodeDigest()), from);
+        }
+    }
+
+    /**
+     * Adds the entries which follow on from what this station has of the
+     * origin's log. A gap means packets were lost, so a digest is sent back
+     * to have them resent.
+     */
+    private void handleDelta(DataInputStream in, SocketAddress from) throws IOException {
+        String origin = in.readUTF();
+        int firstSeq = in.readInt();
+        String[] events = new String[in.readUnsignedByte()];
+        for (int i = 0; i < events.length; i++) {
+            events[i] = in.readUTF();
+        }
+        int count = in.readUnsignedShort();
+        List<Entry> recordedEntries = new ArrayList<>();
+        List<Entry> confirmedEntries = new ArrayList<>();
+        List<Entry> toWrite = new ArrayList<>();
+        boolean gap = false;
+        synchronized (this) {
+            List<Entry> log = logs.get(origin);
+            if (log == null) {
+                log = new ArrayList<>();
+                logs.put(origin, log);
+            }
+            for (int i = 0; i < count; i++) {
+                byte type = in.readByte();
+                Entry entry = new Entry(type, events[in.readUnsignedByte()], in.readUTF());
+                int seq = firstSeq + i;
+                if (seq <= log.size()) {
+                    continue; //already have it
+                }
+                if (seq > log.size() + 1) {
+                    gap = true;
+                    break;
+                }
+                log.add(entry);
+                if (apply(entry)) {
+                    (type == Entry.CONFIRMED ? confirmedEntries : recordedEntries).add(entry);
+                    if (writer && type == Entry.RECORDED && !isConfirmed(entry)) {
+                        toWrite.add(entry);
+                    }
+                }
+            }
+        }
+        for (Entry entry : recordedEntries) {
+            listener.recorded(entry.eventKey, entry.stuNumber);
+        }
+        for (Entry entry : confirmedEntries) {
+            listener.confirmed(entry.eventKey, entry.stuNumber);
+        }
+        for (Entry entry : toWrite) {
+            listener.write(entry.eventKey, entry.stuNumber);
+        }
+        if (gap) {
+            send(Collections.singletonList(encodeDigest()), from);
+        }
+    }
+
+    private synchronized boolean isConfirmed(Entry entry) {
+        return confirmed.contains(entry.eventKey + '\n' + entry.stuNumber);
+    }
+
+    private synchronized byte[] encodeDigest() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = header(bytes, DIGEST);
+            out.writeShort(logs.size());
+            for (Map.Entry<String, List<Entry>> log : logs.entrySet()) {
+                out.writeUTF(log.getKey());
+                out.writeInt(log.getValue().size());
+            }
+            return sign(bytes);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Encodes a run of one station's log entries into as few datagrams as fit.
+     */
+    private void encodeDelta(String origin, int firstSeq, List<Entry> entries, List<byte[]> packets) {
+        try {
+            int start = 0;
+            while (start < entries.size()) {
+                List<String> events = new ArrayList<>();
+                int size = HEADER_SIZE + MAC_LENGTH + utfLength(stationId) + utfLength(origin);
+                int end = start;
+                while (end < entries.size()) {
+                    Entry entry = entries.get(end);
+                    int entrySize = 2 + utfLength(entry.stuNumber);
+                    if (!events.contains(entry.eventKey)) {
+                        if (events.size() == MAX_EVENTS_PER_PACKET) {
+                            break;
+                        }
+                        entrySize += utfLength(entry.eventKey);
+                    }
+                    if (size + entrySize > MAX_PACKET && end > start) {
+                        break;
+                    }
+                    if (!events.contains(entry.eventKey)) {
+                        events.add(entry.eventKey);
+                    }
+                    size += entrySize;
+                    end++;
+                }
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(size);
+                DataOutputStream out = header(bytes, DELTA);
+                out.writeUTF(origin);
+                out.writeInt(firstSeq + start);
+                out.writeByte(events.size());
+                for (String event : events) {
+                    out.writeUTF(event);
+                }
+                out.writeShort(end - start);
+                for (Entry entry : entries.subList(start, end)) {
+                    out.writeByte(entry.type);
+                    out.writeByte(events.indexOf(entry.eventKey));
+                    out.writeUTF(entry.stuNumber);
+                }
+                packets.add(sign(bytes));
+                start = end;
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private DataOutputStream header(ByteArrayOutputStream bytes, byte type) throws IOException {
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(type);
+        out.writeUTF(stationId);
+        return out;
+    }
+
+    /**
+     * @return The datagram, followed by its MAC
+     */
+    private byte[] sign(ByteArrayOutputStream bytes) {
+        byte[] mac = mac(bytes.toByteArray(), 0, bytes.size());
+        bytes.write(mac, 0, MAC_LENGTH);
+        return bytes.toByteArray();
+    }
+
+    private boolean verify(byte[] data, int offset, int length) {
+        byte[] expected = Arrays.copyOf(mac(data, offset, length), MAC_LENGTH);
+        byte[] actual = Arrays.copyOfRange(data, offset + length, offset + length + MAC_LENGTH);
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    private byte[] mac(byte[] data, int offset, int length) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(key);
+            mac.update(data, offset, length);
+            return mac.doFinal();
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private void send(List<byte[]> packets, SocketAddress to) {
+        for (byte[] packet : packets) {
+            try {
+                socket.send(new DatagramPacket(packet, packet.length, to));
+            } catch (IOException ex) {
+                LOG.log(Level.FINE, "Error sending to peer " + to, ex);
+            }
+        }
+    }
+
+    private static int utfLength(String s) {
+        int length = 2;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            length += (c >= 0x0001 && c <= 0x007F) ? 1 : (c > 0x07FF ? 3 : 2);
+        }
+        return length;
+    }
+
+    private final String stationId;
+    private final SecretKeySpec key;
+    private final List<SocketAddress> peers;
+    private final Listener listener;
+    private final DatagramSocket socket;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, List<Entry>> logs = new HashMap<>();
+    private final Map<String, Long> lastHeard = new HashMap<>();
+    private final Set<String> recorded = new HashSet<>();
+    private final Set<String> confirmed = new HashSet<>();
+    private volatile boolean writer = false;
+    private volatile long startedAt;
+    private long lastRetry;
+
+    private static final int MAGIC = 0x45535053; //"ESPS"
+    private static final byte VERSION = 2;
+    private static final byte DIGEST = 1;
+    private static final byte DELTA = 2;
+    private static final int MAX_PACKET = 1400; //bytes, to fit one Ethernet frame
+    private static final int MAX_DATAGRAM = 65507; //bytes
+    private static final int HEADER_SIZE = 13; //bytes, besides the station ids
+    private static final int MAC_LENGTH = 16; //bytes, of the HMAC kept
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MAX_EVENTS_PER_PACKET = 255;
+    private static final int MAX_PACKETS_PER_REPLY = 32;
+    private static final long GOSSIP_PERIOD = 1000; //milliseconds
+    private static final long PEER_TIMEOUT = 5000; //milliseconds
+    private static final long ELECTION_DELAY = 3000; //milliseconds
+    private static final long RETRY_PERIOD = 30000; //milliseconds
+    private static final Logger LOG = Logger.getLogger(PeerSync.class.getName());
+
+    private static final class Entry {
+
+        Entry(byte type, String eventKey, String stuNumber) {
+            this.type = type;
+            this.eventKey = eventKey;
+            this.stuNumber = stuNumber;
+        }
+
+        private final byte type;
+        private final String eventKey;
+        private final String stuNumber;
+
+        private static final byte RECORDED = 1;
+        private static final byte CONFIRMED = 2;
+
+    }
+
+}
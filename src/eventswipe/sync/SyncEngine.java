@@ -0,0 +1,309 @@
+package eventswipe.sync;
+
+import eventswipe.APIs.AttendanceWriter;
+import eventswipe.APIs.BookingSystemAPI;
+import eventswipe.exceptions.EventFullException;
+import eventswipe.models.Booking;
+import eventswipe.models.Event;
+import eventswipe.models.Session;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.SwingUtilities;
+
+/**
+ * Saves records made offline to the booking system when going online.
+ * <p>
+ * Unsaved student numbers are resolved to bookings by a bounded pool of
+ * threads and marked as attended through an {@link AttendanceWriter}, so the
+ * marks are batched. Student numbers which have already been confirmed are
+ * skipped and students are only booked if the booking system says they
+ * aren't booked yet, so an interrupted sync can simply be run again.
+ * A failure only affects its own record. Only one sync runs at a time, so
+ * a student can't be booked twice by overlapping syncs.
+ *
+ * @author Matt Wildman http://bitbucket.org/mattwildman
+ */
+public class SyncEngine {
+
+    /**
+     * Receives the progress of a sync. All methods are called on the event dispatch thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called each time a record has been saved or has failed.
+         *
+         * @param done   The number of records processed so far
+         * @param failed The number of records which could not be saved so far
+         * @param total  The number of records being synced
+         */
+        void progress(int done, int failed, int total);
+
+        /**
+         * Called when every record has been processed or the sync was cancelled.
+         *
+         * @param result The outcome of the sync
+         */
+        void finished(Result result);
+    }
+
+    /**
+     * Receives each record the booking system has confirmed, so it can be checkpointed.
+     * Called on the sync threads.
+     */
+    public interface Checkpoint {
+
+        /**
+         * @param booking The Booking confirmed as attended
+         */
+        void confirmed(Booking booking);
+    }
+
+    /**
+     * The outcome of a sync.
+     */
+    public static class Result {
+
+        /**
+         * @return The number of records saved to the booking system
+         */
+        public int getSaved() {
+            return saved;
+        }
+
+        /**
+         * @return The student numbers which are still unsaved
+         */
+        public List<String> getUnsaved() {
+            return unsaved;
+        }
+
+        /**
+         * @return The student numbers which couldn't be booked because the event is full
+         */
+        public List<String> getEventFull() {
+            return eventFull;
+        }
+
+        /**
+         * @return True if the sync was cancelled before every record was processed
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        private int saved;
+        private boolean cancelled;
+        private final List<String> unsaved = Collections.synchronizedList(new ArrayList<String>());
+        private final List<String> eventFull = Collections.synchronizedList(new ArrayList<String>());
+
+    }
+
+    /**
+     * Constructs a sync engine.
+     *
+     * @param api     The booking system to sync to
+     * @param writer  The writer used to mark attendance
+     * @param threads The maximum number of records resolved at once
+     */
+    public SyncEngine(BookingSystemAPI api, AttendanceWriter writer, int threads) {
+        this.api = api;
+        this.writer = writer;
+        this.threads = threads;
+    }
+
+    /**
+     * Syncs unsaved records in the background.
+     *
+     * @param event      The event the records belong to
+     * @param unsaved    The unsaved student numbers
+     * @param confirmed  Student numbers already confirmed by the booking system, which are skipped
+     * @param checkpoint Receives each record as it is confirmed
+     * @param listener   Receives the progress and outcome of the sync
+     * @throws IllegalStateException if a sync is already running
+     */
+    public synchronized void start(final Event event,
+                                   List<String> unsaved,
+                                   Set<String> confirmed,
+                                   final Checkpoint checkpoint,
+                                   final Listener listener) {
+        if (running) {
+            throw new IllegalStateException("A sync is already running");
+        }
+        final Set<String> pending = new LinkedHashSet<>(unsaved);
+        final Result result = new Result();
+        result.saved = 0;
+        for (String stuNumber : new ArrayList<>(pending)) {
+            if (confirmed.contains(stuNumber)) {
+                pending.remove(stuNumber);
+                result.saved++;
+            }
+        }
+        final int total = pending.size();
+        final AtomicInteger done = new AtomicInteger();
+        final AtomicInteger saved = new AtomicInteger(result.saved);
+        final CountDownLatch latch = new CountDownLatch(total);
+        cancelled = false;
+        running = true;
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "sync-" + event.getId());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        final AttendanceWriter.Callback callback = new AttendanceWriter.Callback() {
+            @Override
+            public void marked(Booking booking) {
+                checkpoint.confirmed(booking);
+                saved.incrementAndGet();
+                finishRecord(done, result, total, latch, listener);
+            }
+            @Override
+            public void failed(Booking booking, Exception ex) {
+                LOG.log(Level.WARNING, "Could not sync " + booking.getStuNumber(), ex);
+                result.unsaved.add(booking.getStuNumber());
+                finishRecord(done, result, total, latch, listener);
+            }
+        };
+        for (final String stuNumber : pending) {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (cancelled) {
+                        result.unsaved.add(stuNumber);
+                        finishRecord(done, result, total, latch, listener);
+                        return;
+                    }
+                    try {
+                        Booking booking = resolve(event, stuNumber);
+                        if (booking == null) {
+                            checkpoint.confirmed(new Booking(stuNumber));
+                            saved.incrementAndGet(); //already attended
+                            finishRecord(done, result, total, latch, listener);
+                        }
+                        else {
+                            writer.submit(event.getId(), booking, callback);
+                        }
+                    } catch (EventFullException ef) {
+                        result.eventFull.add(stuNumber);
+                        result.unsaved.add(stuNumber);
+                        finishRecord(done, result, total, latch, listener);
+                    } catch (Exception ex) {
+                        LOG.log(Level.WARNING, "Could not sync " + stuNumber, ex);
+                        result.unsaved.add(stuNumber);
+                        finishRecord(done, result, total, latch, listener);
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    latch.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                result.saved = saved.get();
+                result.cancelled = cancelled;
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (SyncEngine.this) {
+                            running = false;
+                        }
+                        listener.finished(result);
+                    }
+                });
+            }
+        }, "sync-waiter");
+        waiter.setDaemon(true);
+        waiter.start();
+    }
+
+    /**
+     * @return True if a sync has been started and its listener hasn't yet been told it finished
+     */
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Stops starting new records. Records already in progress are finished and
+     * the rest are left unsaved.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Finds the booking for an unsaved student number, booking the student if
+     * the booking system says they haven't booked.
+     *
+     * @param event     The Event the student attended
+     * @param stuNumber The student number
+     * @return          The Booking to mark as attended, which always has a
+     *                  booking id, or null if already attended
+     * @throws Exception if the booking system can't be reached or the student can't be booked
+     */
+    public Booking resolve(Event event, String stuNumber) throws Exception {
+        Booking booking = event.getBookingIndex().getByStuNumber(stuNumber);
+        if (booking != null && booking.getBookingId() != null && booking.getBookingId() != 0) {
+            return booking;
+        }
+        Booking remote = api.getBooking(stuNumber, event.getId());
+        if (remote.getStatus() == api.getATTENDED_STATUS()) {
+            return null;
+        }
+        if (remote.getStatus() != api.getNOT_BOOKED_STATUS() &&
+            remote.getBookingId() != null && remote.getBookingId() != 0) {
+            event.getBookingIndex().add(remote);
+            return remote;
+        }
+        Session session = event.getCurrentSession();
+        String sessionId = session == null ? "" : session.getId();
+        Booking newBooking = api.bookStudentWithStuNumber(stuNumber, event.getId(), sessionId);
+        if (newBooking.getBookingId() == null || newBooking.getBookingId() == 0) {
+            throw new IOException("Student " + stuNumber + " could not be booked");
+        }
+        newBooking.setSessionId(sessionId);
+        event.getBookingIndex().add(newBooking);
+        return newBooking;
+    }
+
+    private void finishRecord(AtomicInteger done, Result result, final int total,
+                              CountDownLatch latch, final Listener listener) {
+        final int d = done.incrementAndGet();
+        final int failed = result.unsaved.size();
+        latch.countDown();
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                listener.progress(d, failed, total);
+            }
+        });
+    }
+
+    private final BookingSystemAPI api;
+    private final AttendanceWriter writer;
+    private final int threads;
+    private volatile boolean cancelled;
+    private boolean running = false;
+
+    private static final Logger LOG = Logger.getLogger(SyncEngine.class.getName());
+
+}
@@ -1,80 +1,353 @@
 package eventswipe.utils;
 
-import eventswipe.EventSwipeView;
+import eventswipe.metrics.Metrics;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Queue;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 /**
+ * Writes the session log of attendance and errors.
+ * <p>
+ * Logging never waits for the disk. Messages are handed to a single
+ * background writer through a lock-free queue, and the writer appends
+ * everything waiting in one write. At most 10,000 messages wait at once;
+ * beyond that messages are dropped and the number dropped is written to the
+ * log instead. A session's log rolls to a new file when it reaches 5 MB and
+ * at midnight, and only the newest 100 log files are kept. Messages logged
+ * before a session starts go to a log of their own.
+ * <p>
+ * Logs are written to the directory in the "eventswipe.logDir" system
+ * property or, failing that, to EventSwipeLogs in the user's documents.
  *
  * @author wildmanm
  */
 public class EventSwipeLogger {
-    
+
    /**
      * Singleton constructor for EventSwipeLogger
      * @return the instance of EventSwipeLogger
     */
-    public static EventSwipeLogger getInstance() {
+    public static synchronized EventSwipeLogger getInstance() {
         if (instance == null) {
             instance = new EventSwipeLogger();
         }
         return instance;
     }
-    
-    protected EventSwipeLogger() {}
 
+    protected EventSwipeLogger() {
+        logDir = defaultLogDir();
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "session-logger");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                closing = true;
+                LockSupport.unpark(writer);
+                try {
+                    writer.join(SHUTDOWN_WAIT);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }));
+    }
+
+    /**
+     * Sets the directory new session logs are written to.
+     *
+     * @param dir The log directory
+     */
+    public void setLogDir(File dir) {
+        logDir = dir;
+    }
+
+    /**
+     * @return The directory new session logs are written to
+     */
+    public File getLogDir() {
+        return logDir;
+    }
+
+    /**
+     * Starts a new session log, named after the session and the time it started.
+     *
+     * @param title The session title, eg. the event title
+     */
     public void createLog(String title) {
         title = title.replaceAll("\\W", "");
         if (title.length() > MAX_FILE_NAME) {
             title = title.substring(0, MAX_FILE_NAME);
         }
-        sessionTitle = title + Utils.getDate("dd-MM-yyyy HHmmss");
-        if(!logDir.exists()) {
-            logDir.mkdirs();
+        enqueue(new Entry(System.currentTimeMillis(), title, null, true));
+    }
+
+    /**
+     * Logs a message. Never blocks.
+     *
+     * @param message The message to log
+     */
+    public void log(String message) {
+        enqueue(new Entry(System.currentTimeMillis(), message, null, false));
+    }
+
+    /**
+     * Logs an exception and its stack trace. Never blocks.
+     *
+     * @param ex The exception to log
+     */
+    public <T extends Exception> void logException(T ex) {
+        enqueue(new Entry(System.currentTimeMillis(), null, ex, false));
+    }
+
+    private void enqueue(Entry entry) {
+        if (pending.incrementAndGet() > MAX_PENDING && !entry.session) {
+            pending.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        queue.offer(entry);
+        LockSupport.unpark(writer);
+    }
+
+    private void writeLoop() {
+        StringBuilder batch = new StringBuilder(BATCH_CHARS);
+        DateFormat timeFormat = new SimpleDateFormat(TIME_FORMAT);
+        while (true) {
+            Entry entry;
+            while ((entry = queue.poll()) != null) {
+                pending.decrementAndGet();
+                if (entry.session) {
+                    writeBatch(batch);
+                    startSession(entry.message, entry.time);
+                    batch.append(sessionTitle).append(NL);
+                    continue;
+                }
+                long lost = dropped.getAndSet(0);
+                if (lost > 0) {
+                    droppedCount.addAndGet(lost);
+                    batch.append(timeFormat.format(new Date(entry.time)))
+                         .append(lost).append(" log messages were dropped").append(NL);
+                }
+                batch.append(timeFormat.format(new Date(entry.time)));
+                if (entry.ex != null) {
+                    appendException(batch, entry.ex);
+                }
+                else {
+                    batch.append(entry.message);
+                }
+                batch.append(NL);
+                if (batch.length() >= BATCH_CHARS) {
+                    writeBatch(batch);
+                }
+            }
+            writeBatch(batch);
+            if (closing && queue.isEmpty()) {
+                closeChannel();
+                return;
+            }
+            LockSupport.parkNanos(this, IDLE_WAIT);
         }
+    }
+
+    private void appendException(StringBuilder sb, Exception ex) {
+        sb.append("***** ERROR: ").append(ex.getClass()).append(" *****").append(NL);
+        sb.append("    \"").append(ex.getMessage()).append('"').append(NL);
+        sb.append("    STACK TRACE:").append(NL);
+        for (StackTraceElement ste : ex.getStackTrace()) {
+            sb.append("        ").append(ste).append(NL);
+        }
+        sb.append("**********");
+    }
+
+    private void writeBatch(StringBuilder batch) {
+        if (batch.length() == 0) {
+            return;
+        }
+        byte[] bytes = batch.toString().getBytes(CHARSET);
+        batch.setLength(0);
         try {
-            logFile = new File(LOG_DIR, sessionTitle);
-            try (FileWriter fw = new FileWriter(logFile.getAbsoluteFile(), true)) {
-                fw.write(sessionTitle + NL);
+            long now = System.currentTimeMillis();
+            if (channel == null && sessionTitle.isEmpty()) {
+                startSession(DEFAULT_TITLE, now);
+            }
+            else if (channel == null) {
+                openSegment(segment, now); //reopen after a failed write
+            }
+            else if (segmentBytes + bytes.length > MAX_FILE_BYTES || day(now) != segmentDay) {
+                openSegment(segment + 1, now);
             }
+            if (channel == null) {
+                return; //the log couldn't be created, which has been reported
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            segmentBytes += bytes.length;
         } catch (IOException e) {
-            System.err.println("Error: " + e.getMessage());
+            LOG.log(Level.SEVERE, "Error writing session log", e);
+            closeChannel();
         }
     }
 
-    public void log(String message) {
+    private void startSession(String title, long time) {
+        DateFormat titleFormat = new SimpleDateFormat(TITLE_DATE_FORMAT);
+        sessionTitle = title + titleFormat.format(new Date(time));
         try {
-            try (FileWriter fw = new FileWriter(logFile.getAbsoluteFile(), true)) {
-                fw.write(Utils.getDate("HH:mm:ss dd/MM/yyyy ") + message + NL);
+            openSegment(1, time);
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Error creating session log", e);
+            closeChannel();
+        }
+    }
+
+    private void openSegment(int number, long time) throws IOException {
+        closeChannel();
+        File dir = logDir;
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create log directory " + dir);
+        }
+        segment = number;
+        logFile = new File(dir, segment == 1 ? sessionTitle + LOG_SUFFIX :
+                                sessionTitle + "." + segment + LOG_SUFFIX);
+        channel = new FileOutputStream(logFile, true).getChannel();
+        segmentBytes = channel.size();
+        segmentDay = day(time);
+        removeOldLogs(dir);
+    }
+
+    /**
+     * Deletes the oldest session logs beyond the most kept. Only files named
+     * like a session log are counted, so other logs kept in the directory are left alone.
+     */
+    private void removeOldLogs(File dir) {
+        File[] logs = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.isFile() && LOG_NAME.matcher(f.getName()).matches();
+            }
+        });
+        if (logs == null || logs.length <= MAX_LOG_FILES) {
+            return;
+        }
+        Arrays.sort(logs, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (int i = 0; i < logs.length - MAX_LOG_FILES; i++) {
+            if (!logs[i].equals(logFile)) {
+                logs[i].delete();
             }
-        } catch (IOException | NullPointerException e) {
-            Logger.getLogger(EventSwipeView.class.getName()).log(Level.SEVERE, null, e);
         }
     }
 
-    public <T extends Exception> void logException(T ex) {
-        String errorMsg = "***** ERROR: " + ex.getClass() + " *****" + NL;
-        errorMsg += "    " + "\"" + ex.getMessage() + "\"" + NL;
-        errorMsg += "    " + "STACK TRACE:" + NL;
-        for (StackTraceElement ste : ex.getStackTrace()) {
-           errorMsg += "        " + ste.toString() + NL;
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Error closing session log", e);
+            }
+            channel = null;
         }
-        errorMsg += "**********";
-        this.log(errorMsg);
     }
 
-    private final String LOG_DIR = System.getenv("USERPROFILE") + "\\My Documents\\EventSwipeLogs\\";
-    private final int MAX_FILE_NAME = 100;
-    private final String NL = System.getProperty("line.separator");
+    private static long day(long time) {
+        return (time + TimeZone.getDefault().getOffset(time)) / TimeUnit.DAYS.toMillis(1);
+    }
 
-    private String sessionTitle = "";
+    private static File defaultLogDir() {
+        String configured = System.getProperty(LOG_DIR_PROPERTY);
+        if (configured != null && !configured.trim().isEmpty()) {
+            return new File(configured.trim());
+        }
+        File home = new File(System.getProperty("user.home"));
+        File documents = new File(home, "Documents");
+        if (!documents.isDirectory()) {
+            File myDocuments = new File(home, "My Documents");
+            documents = myDocuments.isDirectory() ? myDocuments : home;
+        }
+        return new File(documents, LOG_DIR_NAME);
+    }
 
-    private final File logDir = new File(LOG_DIR);
+    private static final class Entry {
+
+        Entry(long time, String message, Exception ex, boolean session) {
+            this.time = time;
+            this.message = message;
+            this.ex = ex;
+            this.session = session;
+        }
+
+        private final long time;
+        private final String message;
+        private final Exception ex;
+        private final boolean session;
+
+    }
+
+    private final Queue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong droppedCount = Metrics.getInstance().counter("log.dropped");
+    private final Thread writer;
+    private volatile File logDir;
+    private volatile boolean closing = false;
+
+    //only used by the writer thread
+    private String sessionTitle = "";
     private File logFile;
+    private FileChannel channel;
+    private int segment;
+    private long segmentBytes;
+    private long segmentDay;
 
     private static EventSwipeLogger instance = null;
 
+    private static final int MAX_FILE_NAME = 100;
+    private static final int MAX_PENDING = 10000;
+    private static final long MAX_FILE_BYTES = 5 * 1024 * 1024;
+    private static final int MAX_LOG_FILES = 100;
+    private static final int BATCH_CHARS = 64 * 1024;
+    private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long SHUTDOWN_WAIT = 2000; //milliseconds
+    private static final String LOG_DIR_PROPERTY = "eventswipe.logDir";
+    private static final String LOG_DIR_NAME = "EventSwipeLogs";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String DEFAULT_TITLE = "EventSwipe";
+    private static final String TIME_FORMAT = "HH:mm:ss dd/MM/yyyy ";
+    private static final String TITLE_DATE_FORMAT = "dd-MM-yyyy HHmmss";
+    private static final Pattern LOG_NAME = Pattern.compile(
+            "\\w{0," + MAX_FILE_NAME + "}\\d{2}-\\d{2}-\\d{4} \\d{6}(\\.\\d+)?" + Pattern.quote(LOG_SUFFIX));
+    private static final String NL = System.getProperty("line.separator");
+    private static final Charset CHARSET = Charset.forName(Utils.UTF8);
+    private static final Logger LOG = Logger.getLogger(EventSwipeLogger.class.getName());
+
 }
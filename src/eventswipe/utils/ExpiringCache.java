@@ -0,0 +1,117 @@
+package eventswipe.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A thread-safe cache which holds a limited number of entries, each for a
+ * limited time. When full, the least recently used entry is evicted.
+ * Hits, misses and evictions are counted.
+ *
+ * @author Matt Wildman http://bitbucket.org/mattwildman
+ * @param <K> The type of key
+ * @param <V> The type of value
+ */
+public class ExpiringCache<K, V> {
+
+    /**
+     * Constructs an empty cache.
+     *
+     * @param maxEntries The most entries to hold
+     * @param ttlMillis  How long an entry is held for
+     */
+    public ExpiringCache(final int maxEntries, long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<K, CachedValue<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, CachedValue<V>> eldest) {
+                if (size() > maxEntries) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param key The key to look up
+     * @return    The cached value, or null if there is none or it has expired
+     */
+    public synchronized V get(K key) {
+        CachedValue<V> entry = entries.get(key);
+        if (entry != null && entry.expires < System.currentTimeMillis()) {
+            entries.remove(key);
+            evictions++;
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    /**
+     * @param key   The key to cache the value under
+     * @param value The value to cache
+     */
+    public synchronized void put(K key, V value) {
+        entries.put(key, new CachedValue<>(value, System.currentTimeMillis() + ttlMillis));
+    }
+
+    /**
+     * @param key The key to stop caching
+     */
+    public synchronized void remove(K key) {
+        entries.remove(key);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * @return The fraction of lookups which were hits, or 0 if there have been none
+     */
+    public synchronized double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    private final long ttlMillis;
+    private final LinkedHashMap<K, CachedValue<V>> entries;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    private static final class CachedValue<V> {
+
+        CachedValue(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+
+        private final V value;
+        private final long expires;
+
+    }
+
+}
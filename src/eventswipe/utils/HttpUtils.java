@@ -1,10 +1,13 @@
 package eventswipe.utils;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.Reader;
 import java.net.CookieHandler;
 import java.net.CookieManager;
 import java.net.CookiePolicy;
@@ -13,9 +16,123 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
+/**
+ * The HTTP transport used to talk to the booking system.
+ * <p>
+ * Connections are kept alive and pooled by the JVM between requests to the
+ * same host, as long as every response is read or closed. Responses are
+ * requested gzipped and are exposed as a {@link Response} stream, so large
+ * booking lists can be parsed without building a String first. The String
+ * methods remain for small responses.
+ * <p>
+ * HTTP/2 isn't available to HttpURLConnection, so requests use HTTP/1.1 keep-alive.
+ *
+ * @author Matt Wildman http://bitbucket.org/mattwildman
+ */
 public class HttpUtils {
 
+    /**
+     * An open HTTP response. Closing it returns the connection to the pool.
+     */
+    public static class Response implements Closeable {
+
+        private Response(HttpURLConnection connection, InputStream stream) {
+            this.connection = connection;
+            this.stream = stream;
+        }
+
+        /**
+         * @return The HTTP status code
+         * @throws IOException
+         */
+        public int getStatus() throws IOException {
+            return connection.getResponseCode();
+        }
+
+        /**
+         * @param name The name of a response header
+         * @return     The value of the header, or null if it wasn't sent
+         */
+        public String getHeader(String name) {
+            return connection.getHeaderField(name);
+        }
+
+        /**
+         * @return The charset named by the response's Content-Type, or UTF-8
+         */
+        public String getCharset() {
+            String contentType = connection.getContentType();
+            if (contentType != null) {
+                for (String param : contentType.split(";")) {
+                    param = param.trim();
+                    if (param.toLowerCase().startsWith("charset=")) {
+                        return param.substring(8).replace("\"", "").trim();
+                    }
+                }
+            }
+            return Utils.UTF8;
+        }
+
+        /**
+         * @return The decompressed response body
+         */
+        public InputStream getStream() {
+            return stream;
+        }
+
+        /**
+         * @return A buffered reader over the response body in its charset
+         * @throws IOException
+         */
+        public Reader getReader() throws IOException {
+            return new BufferedReader(new InputStreamReader(stream, getCharset()), BUFFER_SIZE);
+        }
+
+        /**
+         * Reads the rest of the response body.
+         *
+         * @return The response body
+         * @throws IOException
+         */
+        public String asString() throws IOException {
+            Reader in = getReader();
+            StringBuilder sb = new StringBuilder(Math.max(connection.getContentLength(), BUFFER_SIZE));
+            char[] buffer = new char[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                sb.append(buffer, 0, read);
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Reads the rest of the response body.
+         *
+         * @return The decompressed response body
+         * @throws IOException
+         */
+        public byte[] asBytes() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(connection.getContentLength(), BUFFER_SIZE));
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+        }
+
+        private final HttpURLConnection connection;
+        private final InputStream stream;
+
+    }
+
     public static CookieManager cm;
 
     public static void setCookiePolicy() {
@@ -24,21 +141,70 @@ public class HttpUtils {
         CookieHandler.setDefault(cm);
     }
 
-    public static HttpURLConnection connectToURL(String url, 
+    /**
+     * Sets the timeouts used by every request.
+     *
+     * @param connectMillis The longest to wait for a connection
+     * @param readMillis    The longest to wait for data once connected
+     */
+    public static void setTimeouts(int connectMillis, int readMillis) {
+        connectTimeout = connectMillis;
+        readTimeout = readMillis;
+    }
+
+    public static HttpURLConnection connectToURL(String url,
                                                  String method,
                                                  Map<String, String> headers) throws MalformedURLException, IOException {
-        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
-        connection.setConnectTimeout(10000);
-        connection.setRequestMethod(method);
-        connection.setDoInput(true);
-        connection.setDoOutput(true);
-        if (!headers.isEmpty()) {
-            for (Map.Entry<String, String> entry : headers.entrySet()) {
-                connection.setRequestProperty(entry.getKey(), entry.getValue());
+        return connectToURL(url, method, headers, false);
+    }
+
+    /**
+     * Sends a request and opens its response.
+     *
+     * @param url     The URL to request
+     * @param method  The HTTP method
+     * @param data    The request body, or null for none
+     * @param charset The charset of the request body
+     * @param headers The request headers
+     * @return        The open response, which must be closed
+     * @throws IOException if the request fails or the server returns an error status
+     */
+    public static Response request(String url,
+                                   String method,
+                                   String data,
+                                   String charset,
+                                   Map<String,String> headers) throws MalformedURLException, IOException {
+        HttpURLConnection connection = connectToURL(url, method, headers, data != null);
+        if (data != null) {
+            try (OutputStream output = connection.getOutputStream()) {
+                output.write(data.getBytes(charset));
             }
         }
-        connection.connect();
-        return connection;
+        InputStream response;
+        try {
+            response = connection.getInputStream();
+        } catch (IOException ex) {
+            discard(connection.getErrorStream());
+            throw ex;
+        }
+        int status = connection.getResponseCode();
+        if (status != HttpURLConnection.HTTP_NO_CONTENT && status != HttpURLConnection.HTTP_NOT_MODIFIED &&
+            "gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+            response = new GZIPInputStream(response, BUFFER_SIZE);
+        }
+        return new Response(connection, response);
+    }
+
+    /**
+     * Opens the response to a GET request.
+     *
+     * @param url     The URL to request
+     * @param headers The request headers
+     * @return        The open response, which must be closed
+     * @throws IOException
+     */
+    public static Response getResponseFromURL(String url, Map<String,String> headers) throws MalformedURLException, IOException {
+        return request(url, "GET", null, null, headers);
     }
 
     public static String sendDataToURL(String url,
@@ -46,64 +212,75 @@ public class HttpUtils {
                                        String data,
                                        String charset,
                                        Map<String,String> headers) throws MalformedURLException, IOException {
-        HttpURLConnection connection = connectToURL(url, method, headers);
-        try (OutputStream output = connection.getOutputStream()) {
-            output.write(data.getBytes(charset));
-        }
-        //explicitly request headers to set session cookie
-        Map responseHeaders = connection.getHeaderFields();
-        InputStream response = connection.getInputStream();
-        String responseData;
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(response))) {
-            String inputLine;
-            responseData = "";
-            while ((inputLine = in.readLine()) != null) {
-                responseData += inputLine;
-            }
+        try (Response response = request(url, method, data, charset, headers)) {
+            return response.asString();
         }
-        return responseData;
     }
 
     public static String getDataFromURL(String url) throws MalformedURLException, IOException {
-        HttpURLConnection connection = connectToURL(url, "GET", new HashMap());
-        InputStream response = connection.getInputStream();
-        String responseData;
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(response))) {
-            String inputLine;
-            responseData = "";
-            while ((inputLine = in.readLine()) != null) {
-                responseData += inputLine;
-            }
-        }
-        return responseData;
+        return getDataFromURL(url, new HashMap<String,String>());
     }
 
     public static String getDataFromURL(String url, Map<String,String> headers) throws MalformedURLException, IOException {
-        HttpURLConnection connection = connectToURL(url, "GET", headers);
-        InputStream response = connection.getInputStream();
-        String responseData;
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(response))) {
-            String inputLine;
-            responseData = "";
-            while ((inputLine = in.readLine()) != null) {
-                responseData += inputLine;
-            }
+        try (Response response = getResponseFromURL(url, headers)) {
+            return response.asString();
         }
-        return responseData;
     }
-    
+
     public static String sendDeleteRequestToUrl(String url, Map<String,String> headers) throws IOException {
-        HttpURLConnection connection = connectToURL(url, "DELETE", headers);
-        InputStream response = connection.getInputStream();
-        String responseData;
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(response))) {
-            String inputLine;
-            responseData = "";
-            while ((inputLine = in.readLine()) != null) {
-                responseData += inputLine;
+        try (Response response = request(url, "DELETE", null, null, headers)) {
+            return response.asString();
+        }
+    }
+
+    private static HttpURLConnection connectToURL(String url,
+                                                  String method,
+                                                  Map<String, String> headers,
+                                                  boolean output) throws MalformedURLException, IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setRequestMethod(method);
+        connection.setDoInput(true);
+        connection.setDoOutput(output);
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        if (!headers.isEmpty()) {
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                connection.setRequestProperty(entry.getKey(), entry.getValue());
+            }
+        }
+        connection.connect();
+        return connection;
+    }
+
+    /**
+     * Reads and closes an error body so its connection can be reused.
+     */
+    private static void discard(InputStream error) {
+        if (error == null) {
+            return;
+        }
+        try (InputStream in = error) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (in.read(buffer) != -1) {
+                //discard
             }
+        } catch (IOException ex) {
+            //the connection will not be reused
+        }
+    }
+
+    private static volatile int connectTimeout = 10000; //milliseconds
+    private static volatile int readTimeout = 30000; //milliseconds
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_CONNECTIONS = 8;
+
+    static {
+        System.setProperty("http.keepAlive", "true");
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(MAX_CONNECTIONS));
         }
-        return responseData;
     }
 
-}
\ No newline at end of file
+}
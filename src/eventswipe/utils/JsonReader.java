@@ -0,0 +1,421 @@
+package eventswipe.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A pull parser for JSON which reads tokens straight from a character stream.
+ * <p>
+ * Nothing is buffered beyond a fixed block of characters, so a response can be
+ * decoded into model objects as it arrives without first building a String or
+ * a tree of the whole document. Values are read in document order; use
+ * {@link #skipValue()} for anything not needed.
+ *
+ * @author Matt Wildman http://bitbucket.org/mattwildman
+ */
+public class JsonReader implements Closeable {
+
+    /**
+     * The kinds of token in a JSON document.
+     */
+    public enum Token {
+        BEGIN_ARRAY, END_ARRAY, BEGIN_OBJECT, END_OBJECT, NAME,
+        STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+    }
+
+    /**
+     * Constructs a reader over a JSON document.
+     *
+     * @param in The document to read
+     */
+    public JsonReader(Reader in) {
+        this.in = in;
+        this.stack[depth++] = EMPTY_DOCUMENT;
+    }
+
+    /**
+     * @return The kind of the next token, without consuming it
+     * @throws IOException if the document is malformed
+     */
+    public Token peek() throws IOException {
+        if (peeked != null) {
+            return peeked;
+        }
+        int c;
+        switch (stack[depth - 1]) {
+            case EMPTY_ARRAY:
+                stack[depth - 1] = NONEMPTY_ARRAY;
+                c = nextNonWhitespace();
+                if (c == ']') {
+                    return peeked = Token.END_ARRAY;
+                }
+                if (c == -1) {
+                    throw syntaxError("Unterminated array");
+                }
+                pos--;
+                return peeked = peekValue();
+            case NONEMPTY_ARRAY:
+                c = nextNonWhitespace();
+                if (c == ']') {
+                    return peeked = Token.END_ARRAY;
+                }
+                if (c != ',') {
+                    throw syntaxError("Expected ',' or ']'");
+                }
+                return peeked = peekValue();
+            case EMPTY_OBJECT:
+            case NONEMPTY_OBJECT:
+                c = nextNonWhitespace();
+                if (c == '}') {
+                    return peeked = Token.END_OBJECT;
+                }
+                if (stack[depth - 1] == NONEMPTY_OBJECT) {
+                    if (c != ',') {
+                        throw syntaxError("Expected ',' or '}'");
+                    }
+                    c = nextNonWhitespace();
+                }
+                if (c != '"') {
+                    throw syntaxError("Expected a name");
+                }
+                stack[depth - 1] = DANGLING_NAME;
+                return peeked = Token.NAME;
+            case DANGLING_NAME:
+                if (nextNonWhitespace() != ':') {
+                    throw syntaxError("Expected ':'");
+                }
+                stack[depth - 1] = NONEMPTY_OBJECT;
+                return peeked = peekValue();
+            case EMPTY_DOCUMENT:
+                stack[depth - 1] = NONEMPTY_DOCUMENT;
+                return peeked = peekValue();
+            default:
+                if (nextNonWhitespace() != -1) {
+                    throw syntaxError("Expected end of document");
+                }
+                return peeked = Token.END_DOCUMENT;
+        }
+    }
+
+    /**
+     * @return True if the current array or object has another element
+     * @throws IOException
+     */
+    public boolean hasNext() throws IOException {
+        Token t = peek();
+        return t != Token.END_OBJECT && t != Token.END_ARRAY && t != Token.END_DOCUMENT;
+    }
+
+    public void beginObject() throws IOException {
+        expect(Token.BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    public void endObject() throws IOException {
+        expect(Token.END_OBJECT);
+        depth--;
+    }
+
+    public void beginArray() throws IOException {
+        expect(Token.BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    public void endArray() throws IOException {
+        expect(Token.END_ARRAY);
+        depth--;
+    }
+
+    /**
+     * @return The name of the next property in the current object
+     * @throws IOException
+     */
+    public String nextName() throws IOException {
+        expect(Token.NAME);
+        return readString();
+    }
+
+    /**
+     * @return The next value as a String. Numbers are returned as written.
+     * @throws IOException if the next value is not a string or number
+     */
+    public String nextString() throws IOException {
+        Token t = peek();
+        if (t == Token.STRING) {
+            peeked = null;
+            return readString();
+        }
+        if (t == Token.NUMBER) {
+            peeked = null;
+            return readNumber();
+        }
+        throw syntaxError("Expected a string but was " + t);
+    }
+
+    /**
+     * @return The next value as a String, or null if it is null
+     * @throws IOException
+     */
+    public String nextStringOrNull() throws IOException {
+        if (peek() == Token.NULL) {
+            nextNull();
+            return null;
+        }
+        return nextString();
+    }
+
+    /**
+     * @return The next value as an int. Numeric strings are accepted.
+     * @throws IOException if the next value is not a number
+     */
+    public int nextInt() throws IOException {
+        String value = nextString();
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            try {
+                return (int) Double.parseDouble(value);
+            } catch (NumberFormatException ex2) {
+                throw syntaxError("Expected an int but was " + value);
+            }
+        }
+    }
+
+    public boolean nextBoolean() throws IOException {
+        expect(Token.BOOLEAN);
+        if (buffer[pos - 1] == 't') {
+            readLiteral("rue");
+            return true;
+        }
+        readLiteral("alse");
+        return false;
+    }
+
+    public void nextNull() throws IOException {
+        expect(Token.NULL);
+        readLiteral("ull");
+    }
+
+    /**
+     * Skips the next value, including any nested arrays and objects.
+     *
+     * @throws IOException
+     */
+    public void skipValue() throws IOException {
+        switch (peek()) {
+            case BEGIN_OBJECT:
+                beginObject();
+                while (hasNext()) {
+                    nextName();
+                    skipValue();
+                }
+                endObject();
+                break;
+            case BEGIN_ARRAY:
+                beginArray();
+                while (hasNext()) {
+                    skipValue();
+                }
+                endArray();
+                break;
+            case NAME:
+                nextName();
+                break;
+            case BOOLEAN:
+                nextBoolean();
+                break;
+            case NULL:
+                nextNull();
+                break;
+            case STRING:
+            case NUMBER:
+                nextString();
+                break;
+            default:
+                throw syntaxError("Expected a value");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private Token peekValue() throws IOException {
+        int c = nextNonWhitespace();
+        switch (c) {
+            case '{':
+                return Token.BEGIN_OBJECT;
+            case '[':
+                return Token.BEGIN_ARRAY;
+            case '"':
+                return Token.STRING;
+            case 't':
+            case 'f':
+                return Token.BOOLEAN;
+            case 'n':
+                return Token.NULL;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    pos--;
+                    return Token.NUMBER;
+                }
+                throw syntaxError("Unexpected character");
+        }
+    }
+
+    private void expect(Token expected) throws IOException {
+        Token t = peek();
+        if (t != expected) {
+            throw syntaxError("Expected " + expected + " but was " + t);
+        }
+        peeked = null;
+    }
+
+    private void push(int scope) {
+        if (depth == stack.length) {
+            int[] bigger = new int[depth * 2];
+            System.arraycopy(stack, 0, bigger, 0, depth);
+            stack = bigger;
+        }
+        stack[depth++] = scope;
+    }
+
+    /**
+     * Reads the rest of a string whose opening quote has been consumed.
+     */
+    private String readString() throws IOException {
+        text.setLength(0);
+        while (true) {
+            int start = pos;
+            while (pos < limit) {
+                char c = buffer[pos++];
+                if (c == '"') {
+                    text.append(buffer, start, pos - 1 - start);
+                    return text.toString();
+                }
+                if (c == '\\') {
+                    text.append(buffer, start, pos - 1 - start);
+                    text.append(readEscape());
+                    start = pos;
+                }
+            }
+            text.append(buffer, start, pos - start);
+            if (!fill()) {
+                throw syntaxError("Unterminated string");
+            }
+        }
+    }
+
+    private char readEscape() throws IOException {
+        int c = read();
+        switch (c) {
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(read(), 16);
+                    if (digit < 0) {
+                        throw syntaxError("Invalid unicode escape");
+                    }
+                    value = (value << 4) | digit;
+                }
+                return (char) value;
+            case -1:
+                throw syntaxError("Unterminated escape");
+            default:
+                return (char) c; // " \ and /
+        }
+    }
+
+    private String readNumber() throws IOException {
+        text.setLength(0);
+        while (true) {
+            if (pos == limit && !fill()) {
+                break;
+            }
+            char c = buffer[pos];
+            if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+                text.append(c);
+                pos++;
+            }
+            else {
+                break;
+            }
+        }
+        return text.toString();
+    }
+
+    private void readLiteral(String rest) throws IOException {
+        for (int i = 0; i < rest.length(); i++) {
+            if (read() != rest.charAt(i)) {
+                throw syntaxError("Invalid literal");
+            }
+        }
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        while (true) {
+            if (pos == limit && !fill()) {
+                return -1;
+            }
+            char c = buffer[pos++];
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+        }
+    }
+
+    private int read() throws IOException {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        return buffer[pos++];
+    }
+
+    private boolean fill() throws IOException {
+        offset += limit;
+        pos = 0;
+        limit = in.read(buffer, 0, buffer.length);
+        if (limit < 0) {
+            limit = 0;
+            return false;
+        }
+        return true;
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException(message + " at character " + (offset + pos));
+    }
+
+    private final Reader in;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private final StringBuilder text = new StringBuilder();
+    private int pos = 0;
+    private int limit = 0;
+    private long offset = 0;
+    private int[] stack = new int[32];
+    private int depth = 0;
+    private Token peeked;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final int EMPTY_ARRAY = 1;
+    private static final int NONEMPTY_ARRAY = 2;
+    private static final int EMPTY_OBJECT = 3;
+    private static final int DANGLING_NAME = 4;
+    private static final int NONEMPTY_OBJECT = 5;
+    private static final int EMPTY_DOCUMENT = 6;
+    private static final int NONEMPTY_DOCUMENT = 7;
+
+}
@@ -0,0 +1,1223 @@
+package eventswipe.bench;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import eventswipe.utils.Utils;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A local stand-in for CareerHub, so {@link eventswipe.APIs.CareerHubAPI} can
+ * be load tested without touching a real CareerHub.
+ * <p>
+ * It serves the endpoints CareerHubAPI uses (login, oauth/token, the
+ * integrations events and bookings API, the booking list query, the attendance
+ * markers, booking creation, the student search and the waiting list page)
+ * from synthetic events, students and bookings held in memory. Attendance
+ * marked through it is kept, so booking lists, attendance counts and ETags
+ * change as they would in CareerHub.
+ * <p>
+ * Faults can be injected per endpoint: a latency distribution, a rate of 5xx
+ * errors, 409 conflicts on walk-up bookings, 400 "too early" responses when
+ * marking attendance and a rate limit which answers 429.
+ * <p>
+ * Run with {@code java eventswipe.bench.CareerHubStandIn [options]} and set
+ * {@code host=http://localhost:<port>/} in BookingSystem.properties to point
+ * EventSwipe or the {@link eventswipe.ScanService} at it, or let
+ * {@link LoadDriver} start one. The options are listed in {@link Settings}.
+ *
+ * @author Matt Wildman http://bitbucket.org/mattwildman
+ */
+public class CareerHubStandIn {
+
+    /**
+     * The CareerHub endpoints served, for per endpoint faults and statistics.
+     */
+    public enum Endpoint {
+        LOGIN, TOKEN, EVENTS, EVENT, BOOKING, BOOKING_QUERY, CREATE_BOOKING, MARK, WAITING_LIST, SEARCH
+    }
+
+    /**
+     * A distribution of response delays.
+     */
+    public static class Latency {
+
+        /**
+         * Parses a latency distribution, in milliseconds.
+         *
+         * @param spec {@code <ms>}, {@code fixed:<ms>}, {@code uniform:<min ms>:<max ms>}
+         *             or {@code lognormal:<median ms>:<sigma>}
+         * @return     The Latency
+         */
+        public static Latency parse(String spec) {
+            String[] parts = spec.split(":");
+            switch (parts[0]) {
+                case "fixed":
+                    return new Latency(FIXED, Double.parseDouble(parts[1]), 0);
+                case "uniform":
+                    return new Latency(UNIFORM, Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+                case "lognormal":
+                    return new Latency(LOGNORMAL, Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+                default:
+                    return new Latency(FIXED, Double.parseDouble(parts[0]), 0);
+            }
+        }
+
+        private Latency(int type, double a, double b) {
+            this.type = type;
+            this.a = a;
+            this.b = b;
+        }
+
+        /**
+         * @return A delay drawn from the distribution, in milliseconds
+         */
+        public long sample() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            double millis;
+            switch (type) {
+                case UNIFORM:
+                    millis = a + random.nextDouble() * (b - a);
+                    break;
+                case LOGNORMAL:
+                    millis = a * Math.exp(b * random.nextGaussian());
+                    break;
+                default:
+                    millis = a;
+            }
+            return (long) Math.min(Math.max(millis, 0), MAX_LATENCY);
+        }
+
+        @Override
+        public String toString() {
+            switch (type) {
+                case UNIFORM:
+                    return "uniform " + a + "-" + b + " ms";
+                case LOGNORMAL:
+                    return "lognormal median " + a + " ms sigma " + b;
+                default:
+                    return a + " ms";
+            }
+        }
+
+        private final int type;
+        private final double a;
+        private final double b;
+
+        private static final int FIXED = 0;
+        private static final int UNIFORM = 1;
+        private static final int LOGNORMAL = 2;
+        private static final long MAX_LATENCY = 60000; //milliseconds
+
+    }
+
+    /**
+     * The data sizes and faults of a stand-in.
+     * <pre>
+     * --port n              the port to listen on, 0 for any (default 8086)
+     * --threads n           the threads serving requests (default 64)
+     * --events n            the number of events (default 3)
+     * --first-event n       the id of the first event (default 1000)
+     * --sessions n          the sessions of each event (default 1)
+     * --bookings n          the bookings of each event (default 2000)
+     * --booking-limit n     the booking limit of each event, 0 for unlimited
+     *                       (default 10% above the bookings)
+     * --waiting n           the waiting list of each event (default 100)
+     * --students n          the students who can be searched and booked (default 20000)
+     * --token-lifetime s    the lifetime of API tokens in seconds (default 3600)
+     * --latency [endpoint=]spec    a {@link Latency} for every or one endpoint
+     * --error-rate [endpoint=]p    the fraction of requests answered 500 or 503
+     * --conflict-rate p     the fraction of walk-up bookings answered 409
+     * --early-rate p        the fraction of attendance markings answered 400
+     * --rate-limit n        the requests per second served before 429, 0 for none
+     * </pre>
+     * Endpoints are named as in {@link Endpoint}, eg. {@code --latency mark=uniform:50:400}.
+     */
+    public static class Settings {
+
+        /**
+         * Reads one option.
+         *
+         * @param args The command line
+         * @param i    The index of the option
+         * @return     The index of the option's value, or -1 if the option is unknown
+         */
+        public int parse(String[] args, int i) {
+            switch (args[i]) {
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--events":
+                    events = Integer.parseInt(args[++i]);
+                    break;
+                case "--first-event":
+                    firstEventId = Integer.parseInt(args[++i]);
+                    break;
+                case "--sessions":
+                    sessions = Integer.parseInt(args[++i]);
+                    break;
+                case "--bookings":
+                    bookings = Integer.parseInt(args[++i]);
+                    break;
+                case "--booking-limit":
+                    bookingLimit = Integer.parseInt(args[++i]);
+                    break;
+                case "--waiting":
+                    waiting = Integer.parseInt(args[++i]);
+                    break;
+                case "--students":
+                    students = Integer.parseInt(args[++i]);
+                    break;
+                case "--token-lifetime":
+                    tokenLifetime = Integer.parseInt(args[++i]);
+                    break;
+                case "--latency":
+                    String latency = args[++i];
+                    Endpoint endpoint = endpointOf(latency);
+                    Latency l = Latency.parse(endpoint == null ? latency : valueOf(latency));
+                    if (endpoint == null) {
+                        defaultLatency = l;
+                    }
+                    else {
+                        latencies.put(endpoint, l);
+                    }
+                    break;
+                case "--error-rate":
+                    String rate = args[++i];
+                    Endpoint rateEndpoint = endpointOf(rate);
+                    if (rateEndpoint == null) {
+                        defaultErrorRate = Double.parseDouble(rate);
+                    }
+                    else {
+                        errorRates.put(rateEndpoint, Double.parseDouble(valueOf(rate)));
+                    }
+                    break;
+                case "--conflict-rate":
+                    conflictRate = Double.parseDouble(args[++i]);
+                    break;
+                case "--early-rate":
+                    earlyRate = Double.parseDouble(args[++i]);
+                    break;
+                case "--rate-limit":
+                    rateLimit = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    return -1;
+            }
+            return i;
+        }
+
+        /**
+         * @param firstEventId The id of the first event
+         */
+        public void setFirstEventId(int firstEventId) {
+            this.firstEventId = firstEventId;
+        }
+
+        /**
+         * @param port The port to listen on, 0 for any
+         */
+        public void setPort(int port) {
+            this.port = port;
+        }
+
+        Latency getLatency(Endpoint endpoint) {
+            Latency l = latencies.get(endpoint);
+            return l != null ? l : defaultLatency;
+        }
+
+        double getErrorRate(Endpoint endpoint) {
+            Double rate = errorRates.get(endpoint);
+            return rate != null ? rate : defaultErrorRate;
+        }
+
+        int getBookingLimit() {
+            return bookingLimit >= 0 ? bookingLimit : bookings + bookings / 10;
+        }
+
+        private static Endpoint endpointOf(String option) {
+            int eq = option.indexOf('=');
+            return eq < 0 ? null : Endpoint.valueOf(option.substring(0, eq).toUpperCase().replace('-', '_'));
+        }
+
+        private static String valueOf(String option) {
+            return option.substring(option.indexOf('=') + 1);
+        }
+
+        private int port = DEFAULT_PORT;
+        private int threads = 64;
+        private int events = 3;
+        private int firstEventId = 1000;
+        private int sessions = 1;
+        private int bookings = 2000;
+        private int bookingLimit = -1;
+        private int waiting = 100;
+        private int students = 20000;
+        private int tokenLifetime = 3600; //seconds
+        private Latency defaultLatency = Latency.parse("0");
+        private final Map<Endpoint, Latency> latencies = new EnumMap<>(Endpoint.class);
+        private double defaultErrorRate = 0;
+        private final Map<Endpoint, Double> errorRates = new EnumMap<>(Endpoint.class);
+        private double conflictRate = 0;
+        private double earlyRate = 0;
+        private int rateLimit = 0; //requests per second
+
+    }
+
+    /**
+     * Constructs a stand-in and generates its data.
+     *
+     * @param settings The data sizes and faults
+     * @throws IOException if the port can't be opened
+     */
+    public CareerHubStandIn(Settings settings) throws IOException {
+        this.settings = settings;
+        this.started = new Date();
+        this.rateLimiter = new RateLimiter();
+        generate();
+        this.server = HttpServer.create(new InetSocketAddress(settings.port), BACKLOG);
+        this.executor = Executors.newFixedThreadPool(settings.threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "careerhub-stand-in-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    dispatch(exchange);
+                } catch (IOException | RuntimeException ex) {
+                    LOG.log(Level.WARNING, "Error serving " + exchange.getRequestURI(), ex);
+                    respond(exchange, null, 500, TEXT, "Stand-in error");
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        for (Endpoint endpoint : Endpoint.values()) {
+            statuses.put(endpoint, new ConcurrentHashMap<Integer, AtomicLong>());
+        }
+    }
+
+    /**
+     * Starts serving requests.
+     */
+    public void start() {
+        server.start();
+        LOG.log(Level.INFO, "CareerHub stand-in serving {0}", getHost());
+    }
+
+    /**
+     * Stops serving requests.
+     */
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return The host to set in BookingSystem.properties, eg. http://localhost:8086/
+     */
+    public String getHost() {
+        return "http://localhost:" + server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * @return The ids of the events served
+     */
+    public List<String> getEventIds() {
+        List<String> ids = new ArrayList<>();
+        for (EventRecord event : events.values()) {
+            ids.add(String.valueOf(event.id));
+        }
+        return ids;
+    }
+
+    /**
+     * @param eventId The id of an event
+     * @return        The student numbers of everyone booked on the event
+     */
+    public List<String> getBookedStuNumbers(String eventId) {
+        EventRecord event = getEventRecord(eventId);
+        List<String> booked = new ArrayList<>();
+        synchronized (event) {
+            for (BookingRecord booking : event.bookings.values()) {
+                booked.add(booking.student.stuNumber);
+            }
+        }
+        return booked;
+    }
+
+    /**
+     * @param eventId The id of an event
+     * @param max     The most student numbers to return
+     * @return        The student numbers of students not booked on the event
+     */
+    public List<String> getUnbookedStuNumbers(String eventId, int max) {
+        EventRecord event = getEventRecord(eventId);
+        List<String> unbooked = new ArrayList<>();
+        synchronized (event) {
+            for (int i = 0; i < students.length && unbooked.size() < max; i++) {
+                if (!event.byStuNumber.containsKey(students[i].stuNumber)) {
+                    unbooked.add(students[i].stuNumber);
+                }
+            }
+        }
+        Collections.shuffle(unbooked);
+        return unbooked;
+    }
+
+    /**
+     * @return The number of bookings marked as attended
+     */
+    public long getMarkedCount() {
+        return marked.get();
+    }
+
+    /**
+     * @return The requests served and their statuses, by endpoint
+     */
+    public String getStats() {
+        StringBuilder sb = new StringBuilder(String.format("%-15s %9s  %s%n", "endpoint", "requests", "statuses"));
+        for (Endpoint endpoint : Endpoint.values()) {
+            Map<Integer, AtomicLong> counts = new TreeMap<>(statuses.get(endpoint));
+            long total = 0;
+            StringBuilder byStatus = new StringBuilder();
+            for (Map.Entry<Integer, AtomicLong> count : counts.entrySet()) {
+                total += count.getValue().get();
+                byStatus.append(count.getKey()).append(':').append(count.getValue().get()).append(' ');
+            }
+            if (total > 0) {
+                sb.append(String.format("%-15s %9d  %s%n", endpoint.name().toLowerCase(), total, byStatus));
+            }
+        }
+        sb.append("Bookings marked as attended: ").append(marked.get());
+        return sb.toString();
+    }
+
+    private void dispatch(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        if (path.equals(STATS_PATH)) {
+            respond(exchange, null, 200, TEXT, getStats());
+            return;
+        }
+        Endpoint endpoint = route(path);
+        if (endpoint == null) {
+            respond(exchange, null, 404, TEXT, "Not found");
+            return;
+        }
+        if (!rateLimiter.acquire()) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            respond(exchange, endpoint, 429, TEXT, "Too many requests");
+            return;
+        }
+        sleep(settings.getLatency(endpoint).sample());
+        if (!isAuthorised(exchange, endpoint)) {
+            respond(exchange, endpoint, 401, TEXT, "Unauthorised");
+            return;
+        }
+        if (chance(settings.getErrorRate(endpoint))) {
+            int status = ThreadLocalRandom.current().nextBoolean() ? 500 : 503;
+            respond(exchange, endpoint, status, TEXT, "Injected error");
+            return;
+        }
+        Map<String, String> query = parseParams(exchange.getRequestURI().getRawQuery());
+        switch (endpoint) {
+            case LOGIN:
+                serveLogin(exchange);
+                break;
+            case TOKEN:
+                serveToken(exchange);
+                break;
+            case EVENTS:
+                serveEvents(exchange);
+                break;
+            case EVENT:
+                serveEvent(exchange, lastSegment(path));
+                break;
+            case BOOKING:
+                serveBooking(exchange, path, query.get("sessionId"));
+                break;
+            case BOOKING_QUERY:
+                serveBookingQuery(exchange, lastSegment(path), query.get("sessionId"));
+                break;
+            case CREATE_BOOKING:
+                serveCreateBooking(exchange, lastSegment(path));
+                break;
+            case MARK:
+                serveMark(exchange, path);
+                break;
+            case WAITING_LIST:
+                serveWaitingList(exchange, query.get("id"));
+                break;
+            case SEARCH:
+                serveSearch(exchange, query);
+                break;
+        }
+    }
+
+    private static Endpoint route(String path) {
+        if (path.startsWith("/admin/login")) {
+            return Endpoint.LOGIN;
+        }
+        if (path.equals("/oauth/token")) {
+            return Endpoint.TOKEN;
+        }
+        if (path.equals(EVENTS_PATH)) {
+            return Endpoint.EVENTS;
+        }
+        if (path.startsWith(EVENTS_PATH + "bookings/")) {
+            return Endpoint.BOOKING;
+        }
+        if (path.startsWith(EVENTS_PATH)) {
+            return Endpoint.EVENT;
+        }
+        if (path.startsWith("/admin/events/bookings/query/")) {
+            return Endpoint.BOOKING_QUERY;
+        }
+        if (path.startsWith("/admin/events/bookings/create/")) {
+            return Endpoint.CREATE_BOOKING;
+        }
+        if (path.startsWith("/admin/events/bookings/mark")) {
+            return Endpoint.MARK;
+        }
+        if (path.startsWith("/admin/eventwaitinglist.aspx")) {
+            return Endpoint.WAITING_LIST;
+        }
+        if (path.startsWith("/admin/suggest/JobSeeker")) {
+            return Endpoint.SEARCH;
+        }
+        return null;
+    }
+
+    /**
+     * Admin pages need the login cookie and the integrations API needs a
+     * current token, as in CareerHub.
+     */
+    private boolean isAuthorised(HttpExchange exchange, Endpoint endpoint) {
+        switch (endpoint) {
+            case LOGIN:
+            case TOKEN:
+                return true;
+            case EVENTS:
+            case EVENT:
+            case BOOKING:
+                String auth = exchange.getRequestHeaders().getFirst("Authorization");
+                if (auth == null || !auth.startsWith("Bearer ")) {
+                    return false;
+                }
+                Long expiry = tokens.get(auth.substring(7));
+                return expiry != null && expiry > System.currentTimeMillis();
+            default:
+                List<String> cookies = exchange.getRequestHeaders().get("Cookie");
+                if (cookies != null) {
+                    for (String cookie : cookies) {
+                        for (String c : cookie.split(";")) {
+                            String[] pair = c.trim().split("=", 2);
+                            if (pair.length == 2 && pair[0].equals(AUTH_COOKIE) && logins.contains(pair[1])) {
+                                return true;
+                            }
+                        }
+                    }
+                }
+                return false;
+        }
+    }
+
+    private void serveLogin(HttpExchange exchange) throws IOException {
+        if ("POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+            readBody(exchange.getRequestBody());
+            String login = Long.toHexString(ThreadLocalRandom.current().nextLong());
+            logins.add(login);
+            exchange.getResponseHeaders().add("Set-Cookie", AUTH_COOKIE + "=" + login + "; Path=/");
+            respond(exchange, Endpoint.LOGIN, 200, HTML, "<html><body>Logged in</body></html>");
+        }
+        else {
+            respond(exchange, Endpoint.LOGIN, 200, HTML,
+                    "<html><body><form method=\"post\">" +
+                    "<input name=\"__RequestVerificationToken\" type=\"hidden\" value=\"stand-in\"/>" +
+                    "</form></body></html>");
+        }
+    }
+
+    private void serveToken(HttpExchange exchange) throws IOException {
+        Map<String, String> form = parseParams(readBody(exchange.getRequestBody()));
+        if (!"client_credentials".equals(form.get("grant_type"))) {
+            respond(exchange, Endpoint.TOKEN, 400, JSON, "{\"error\":\"unsupported_grant_type\"}");
+            return;
+        }
+        String token = Long.toHexString(ThreadLocalRandom.current().nextLong()) +
+                       Long.toHexString(ThreadLocalRandom.current().nextLong());
+        tokens.put(token, System.currentTimeMillis() + settings.tokenLifetime * 1000L);
+        respond(exchange, Endpoint.TOKEN, 200, JSON,
+                "{\"access_token\":\"" + token + "\",\"token_type\":\"Bearer\"," +
+                "\"expires_in\":" + settings.tokenLifetime + "}");
+    }
+
+    private void serveEvents(HttpExchange exchange) throws IOException {
+        StringBuilder json = new StringBuilder("[");
+        for (EventRecord event : events.values()) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append("{\"entityId\":").append(event.id);
+            appendField(json, "name", event.title);
+            appendField(json, "start", formatDate(event.start));
+            appendField(json, "building", BUILDING);
+            appendField(json, "location", event.location);
+            json.append('}');
+        }
+        respond(exchange, Endpoint.EVENTS, 200, JSON, json.append(']').toString());
+    }
+
+    private void serveEvent(HttpExchange exchange, String eventId) throws IOException {
+        EventRecord event = getEventRecord(eventId);
+        if (event == null) {
+            respond(exchange, Endpoint.EVENT, 404, JSON, "{\"error\":\"Event not found\"}");
+            return;
+        }
+        StringBuilder json = new StringBuilder(512);
+        synchronized (event) {
+            int attended = 0;
+            int unspecified = 0;
+            for (BookingRecord booking : event.bookings.values()) {
+                if (booking.status == ATTENDED) {
+                    attended++;
+                }
+                else if (booking.status == UNSPECIFIED) {
+                    unspecified++;
+                }
+            }
+            json.append("{\"id\":").append(event.id);
+            appendField(json, "name", event.title);
+            appendField(json, "start", formatDate(event.start));
+            appendField(json, "end", formatDate(event.end));
+            appendField(json, "building", BUILDING);
+            appendField(json, "location", event.location);
+            json.append(",\"offCampusVenue\":null,\"bookingType\":").append(CAREERHUB_BOOKING)
+                .append(",\"bookingSettings\":{\"bookingLimit\":")
+                .append(event.limit > 0 ? String.valueOf(event.limit) : "null")
+                .append("},\"sessions\":[");
+            for (int s = 0; s < event.sessionIds.size(); s++) {
+                String sessionId = event.sessionIds.get(s);
+                json.append(s > 0 ? ",{" : "{");
+                json.append("\"id\":").append(sessionId);
+                appendField(json, "start", formatDate(event.start));
+                appendField(json, "end", formatDate(event.end));
+                json.append(",\"bookings\":").append(event.countSession(sessionId)).append('}');
+            }
+            json.append("],\"attendance\":{\"attended\":").append(attended)
+                .append(",\"total\":").append(event.bookings.size())
+                .append(",\"unspecified\":").append(unspecified).append("}}");
+        }
+        respond(exchange, Endpoint.EVENT, 200, JSON, json.toString());
+    }
+
+    /**
+     * The integrations API booking of a student: looked up by GET, made by
+     * POST (the walk-up booking) and cancelled by DELETE.
+     */
+    private void serveBooking(HttpExchange exchange, String path, String sessionId) throws IOException {
+        String[] parts = path.substring((EVENTS_PATH + "bookings/").length()).split("/");
+        StudentRecord student = parts.length == 2 ? byStuNumber.get(parts[0]) : null;
+        EventRecord event = parts.length == 2 ? getEventRecord(parts[1]) : null;
+        if (student == null || event == null) {
+            respond(exchange, Endpoint.BOOKING, 404, JSON, "{\"error\":\"Not found\"}");
+            return;
+        }
+        String method = exchange.getRequestMethod().toUpperCase();
+        if (method.equals("POST")) {
+            readBody(exchange.getRequestBody());
+            BookingRecord booking;
+            synchronized (event) {
+                booking = event.byStuNumber.get(student.stuNumber);
+                if (booking == null) {
+                    if (event.isFull() || chance(settings.conflictRate)) {
+                        respond(exchange, Endpoint.BOOKING, 409, JSON, "{\"error\":\"Event is fully booked\"}");
+                        return;
+                    }
+                    booking = event.book(student, sessionOrFirst(event, sessionId), nextBookingId.incrementAndGet());
+                }
+            }
+            respond(exchange, Endpoint.BOOKING, 200, JSON,
+                    "{\"jobSeekerId\":" + student.jobSeekerId + ",\"bookingId\":" + booking.id + "}");
+        }
+        else if (method.equals("DELETE")) {
+            synchronized (event) {
+                event.cancel(student.stuNumber);
+            }
+            respond(exchange, Endpoint.BOOKING, 200, JSON, "{}");
+        }
+        else {
+            StringBuilder json = new StringBuilder(128);
+            synchronized (event) {
+                BookingRecord booking = event.byStuNumber.get(student.stuNumber);
+                json.append("{\"isBooked\":").append(booking != null)
+                    .append(",\"status\":").append(booking != null ? quote(statusName(booking.status)) : "null")
+                    .append(",\"jobSeekerId\":").append(student.jobSeekerId)
+                    .append(",\"bookingId\":").append(booking != null ? String.valueOf(booking.id) : "null")
+                    .append('}');
+            }
+            respond(exchange, Endpoint.BOOKING, 200, JSON, json.toString());
+        }
+    }
+
+    private void serveBookingQuery(HttpExchange exchange, String eventId, String sessionId) throws IOException {
+        EventRecord event = getEventRecord(eventId);
+        if (event == null) {
+            respond(exchange, Endpoint.BOOKING_QUERY, 404, JSON, "{\"error\":\"Event not found\"}");
+            return;
+        }
+        StringBuilder json;
+        String etag;
+        synchronized (event) {
+            etag = "\"" + event.id + "-" + sessionId + "-" + event.version + "\"";
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.getResponseHeaders().set("ETag", etag);
+                respond(exchange, Endpoint.BOOKING_QUERY, 304, JSON, null);
+                return;
+            }
+            json = new StringBuilder(event.bookings.size() * 120 + 32).append("{\"bookings\":[");
+            int total = 0;
+            for (BookingRecord booking : event.bookings.values()) {
+                if (sessionId != null && !sessionId.equals(booking.sessionId)) {
+                    continue;
+                }
+                json.append(total++ > 0 ? ",{" : "{");
+                json.append("\"id\":").append(booking.id)
+                    .append(",\"jobSeekerId\":").append(booking.student.jobSeekerId);
+                appendField(json, "externalId", booking.student.stuNumber);
+                appendField(json, "firstName", booking.student.firstName);
+                appendField(json, "lastName", booking.student.lastName);
+                json.append(",\"status\":").append(booking.status).append(",\"notes\":null}");
+            }
+            json.append("],\"total\":").append(total).append('}');
+        }
+        exchange.getResponseHeaders().set("ETag", etag);
+        respond(exchange, Endpoint.BOOKING_QUERY, 200, JSON, json.toString());
+    }
+
+    private void serveCreateBooking(HttpExchange exchange, String eventId) throws IOException {
+        String body = readBody(exchange.getRequestBody());
+        EventRecord event = getEventRecord(eventId);
+        StudentRecord student = byJobSeekerId.get(jsonInt(body, "jobSeekerID"));
+        if (event == null || student == null) {
+            respond(exchange, Endpoint.CREATE_BOOKING, 404, JSON, "{\"error\":\"Not found\"}");
+            return;
+        }
+        BookingRecord booking;
+        synchronized (event) {
+            booking = event.byStuNumber.get(student.stuNumber);
+            if (booking == null) {
+                if (event.isFull() || chance(settings.conflictRate)) {
+                    respond(exchange, Endpoint.CREATE_BOOKING, 409, JSON, "{\"error\":\"Event is fully booked\"}");
+                    return;
+                }
+                Integer sessionId = jsonInt(body, "sessionID");
+                booking = event.book(student, sessionOrFirst(event, sessionId == null ? null : sessionId.toString()),
+                                     nextBookingId.incrementAndGet());
+            }
+        }
+        StringBuilder json = new StringBuilder("{\"booking\":{\"id\":").append(booking.id)
+            .append(",\"jobSeekerId\":").append(student.jobSeekerId);
+        appendField(json, "externalId", student.stuNumber);
+        appendField(json, "firstName", student.firstName);
+        appendField(json, "lastName", student.lastName);
+        json.append(",\"status\":").append(booking.status).append("}}");
+        respond(exchange, Endpoint.CREATE_BOOKING, 200, JSON, json.toString());
+    }
+
+    private void serveMark(HttpExchange exchange, String path) throws IOException {
+        String body = readBody(exchange.getRequestBody());
+        String action = path.substring("/admin/events/bookings/".length(), path.lastIndexOf('/'));
+        EventRecord event = getEventRecord(lastSegment(path));
+        if (event == null) {
+            respond(exchange, Endpoint.MARK, 404, JSON, "{\"error\":\"Event not found\"}");
+            return;
+        }
+        int status;
+        switch (action) {
+            case "markattended":
+                status = ATTENDED;
+                if (chance(settings.earlyRate)) {
+                    respond(exchange, Endpoint.MARK, 400, JSON,
+                            "{\"error\":\"You can only set attendance from an hour before the event starts\"}");
+                    return;
+                }
+                break;
+            case "markabsent":
+                status = ABSENT;
+                break;
+            default:
+                status = UNSPECIFIED;
+        }
+        int updated = 0;
+        Matcher ids = IDS.matcher(body);
+        if (ids.find()) {
+            synchronized (event) {
+                for (String id : ids.group(1).split(",")) {
+                    if (id.trim().isEmpty()) {
+                        continue;
+                    }
+                    BookingRecord booking = event.bookings.get(Integer.valueOf(id.trim()));
+                    if (booking != null) {
+                        if (status == ATTENDED && booking.status != ATTENDED) {
+                            marked.incrementAndGet();
+                        }
+                        booking.status = status;
+                        updated++;
+                    }
+                }
+                event.version++;
+            }
+        }
+        respond(exchange, Endpoint.MARK, 200, JSON, "{\"success\":true,\"updated\":" + updated + "}");
+    }
+
+    private void serveWaitingList(HttpExchange exchange, String eventId) throws IOException {
+        EventRecord event = getEventRecord(eventId);
+        if (event == null) {
+            respond(exchange, Endpoint.WAITING_LIST, 404, HTML, "<html><body>Event not found</body></html>");
+            return;
+        }
+        StringBuilder html = new StringBuilder("<html><body><table id=\"ctl00_ctl00_mainContent_mainContent_grid\">" +
+                                               "<thead><tr><th>#</th><th>Name</th></tr></thead><tbody>");
+        int position = 0;
+        for (StudentRecord student : event.waiting) {
+            html.append("<tr><td>").append(++position).append("</td><td><a href=\"/admin/jobseeker.aspx?id=")
+                .append(student.jobSeekerId).append("\">").append(student.firstName).append(' ')
+                .append(student.lastName).append("</a></td></tr>");
+        }
+        respond(exchange, Endpoint.WAITING_LIST, 200, HTML, html.append("</tbody></table></body></html>").toString());
+    }
+
+    /**
+     * Finds students by exact student number, or by name: exact matches of
+     * the whole name first, then names starting with the search.
+     */
+    private void serveSearch(HttpExchange exchange, Map<String, String> query) throws IOException {
+        String s = query.get("s") == null ? "" : query.get("s").trim();
+        int max = query.get("maxResults") == null ? 100 : Integer.parseInt(query.get("maxResults"));
+        Set<StudentRecord> matches = new LinkedHashSet<>();
+        StudentRecord byNumber = byStuNumber.get(s);
+        if (byNumber != null) {
+            matches.add(byNumber);
+        }
+        String name = s.toLowerCase().replaceAll("\\s+", " ");
+        if (!name.isEmpty()) {
+            addMatches(byName.subMap(name + "#", true, name + "#\uffff", true), matches, max);
+            addMatches(byName.subMap(name, true, name + "\uffff", true), matches, max);
+        }
+        StringBuilder json = new StringBuilder("[");
+        for (StudentRecord student : matches) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append("{\"Id\":").append(student.jobSeekerId);
+            appendField(json, "ExternalId", student.stuNumber);
+            appendField(json, "FirstName", student.firstName);
+            appendField(json, "LastName", student.lastName);
+            json.append('}');
+        }
+        respond(exchange, Endpoint.SEARCH, 200, JSON, json.append(']').toString());
+    }
+
+    private static void addMatches(NavigableMap<String, StudentRecord> range, Set<StudentRecord> matches, int max) {
+        for (StudentRecord student : range.values()) {
+            if (matches.size() >= max) {
+                return;
+            }
+            matches.add(student);
+        }
+    }
+
+    /**
+     * Generates the students, then each event with its bookings followed by
+     * its waiting list, taken from consecutive students.
+     */
+    private void generate() {
+        students = new StudentRecord[settings.students];
+        for (int i = 0; i < students.length; i++) {
+            StudentRecord student = new StudentRecord();
+            student.stuNumber = String.valueOf(STU_NUMBER_BASE + i);
+            student.jobSeekerId = JOB_SEEKER_BASE + i;
+            student.firstName = FIRST_NAMES[i % FIRST_NAMES.length];
+            int combination = i / FIRST_NAMES.length;
+            student.lastName = LAST_NAMES[combination % LAST_NAMES.length] +
+                               (combination >= LAST_NAMES.length ? String.valueOf(combination / LAST_NAMES.length) : "");
+            students[i] = student;
+            byStuNumber.put(student.stuNumber, student);
+            byJobSeekerId.put(student.jobSeekerId, student);
+            byName.put((student.firstName + " " + student.lastName).toLowerCase() + "#" + i, student);
+        }
+        int next = 0;
+        long hour = 60 * 60 * 1000;
+        for (int e = 0; e < settings.events; e++) {
+            EventRecord event = new EventRecord();
+            event.id = settings.firstEventId + e;
+            event.title = "Stand-in event " + event.id;
+            event.location = "Room " + (e + 1);
+            event.start = new Date(started.getTime() + hour / 2); //attendance can be marked from an hour before
+            event.end = new Date(event.start.getTime() + 2 * hour);
+            event.limit = settings.getBookingLimit();
+            for (int s = 0; s < settings.sessions; s++) {
+                event.sessionIds.add(String.valueOf(event.id * 100 + s + 1));
+            }
+            for (int b = 0; b < settings.bookings && b < students.length; b++) {
+                String sessionId = event.sessionIds.get(b % event.sessionIds.size());
+                event.book(students[next++ % students.length], sessionId, nextBookingId.incrementAndGet());
+            }
+            for (int w = 0; w < settings.waiting; w++) {
+                StudentRecord student = students[next++ % students.length];
+                if (!event.byStuNumber.containsKey(student.stuNumber)) {
+                    event.waiting.add(student);
+                }
+            }
+            events.put(String.valueOf(event.id), event);
+        }
+    }
+
+    private EventRecord getEventRecord(String eventId) {
+        return eventId == null ? null : events.get(eventId);
+    }
+
+    private static String sessionOrFirst(EventRecord event, String sessionId) {
+        if (sessionId != null && event.sessionIds.contains(sessionId)) {
+            return sessionId;
+        }
+        return event.sessionIds.get(0);
+    }
+
+    private static String statusName(int status) {
+        switch (status) {
+            case ATTENDED:
+                return "Attended";
+            case ABSENT:
+                return "Absent";
+            default:
+                return "Unspecified";
+        }
+    }
+
+    private static boolean chance(double probability) {
+        return probability > 0 && ThreadLocalRandom.current().nextDouble() < probability;
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String lastSegment(String path) {
+        String trimmed = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+        return trimmed.substring(trimmed.lastIndexOf('/') + 1);
+    }
+
+    private static Integer jsonInt(String json, String name) {
+        Matcher m = Pattern.compile("\"" + name + "\"\\s*:\\s*(\\d+)").matcher(json);
+        return m.find() ? Integer.valueOf(m.group(1)) : null;
+    }
+
+    private static String formatDate(Date date) {
+        String s = new SimpleDateFormat(DATE_FORMAT).format(date);
+        return s.substring(0, s.length() - 2) + ":" + s.substring(s.length() - 2);
+    }
+
+    private static Map<String, String> parseParams(String query) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        if (query == null) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), Utils.UTF8),
+                           URLDecoder.decode(pair.substring(eq + 1), Utils.UTF8));
+            }
+        }
+        return params;
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            body.write(buffer, 0, n);
+        }
+        return new String(body.toByteArray(), CHARSET);
+    }
+
+    /**
+     * Sends a response, gzipped if the client accepts it and it is large
+     * enough to be worth it, and counts it against its endpoint.
+     */
+    private void respond(HttpExchange exchange, Endpoint endpoint, int status,
+                         String contentType, String body) throws IOException {
+        if (endpoint != null) {
+            ConcurrentMap<Integer, AtomicLong> counts = statuses.get(endpoint);
+            AtomicLong count = counts.get(status);
+            if (count == null) {
+                AtomicLong created = new AtomicLong();
+                count = counts.putIfAbsent(status, created);
+                if (count == null) {
+                    count = created;
+                }
+            }
+            count.incrementAndGet();
+        }
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        byte[] bytes = body.getBytes(CHARSET);
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (bytes.length >= GZIP_THRESHOLD && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            ByteArrayOutputStream gzipped = new ByteArrayOutputStream(bytes.length / 4);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(gzipped)) {
+                gzip.write(bytes);
+            }
+            bytes = gzipped.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static void appendField(StringBuilder json, String name, String value) {
+        json.append(",\"").append(name).append("\":").append(quote(value));
+    }
+
+    private static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Settings settings = new Settings();
+        for (int i = 0; i < args.length; i++) {
+            int next = settings.parse(args, i);
+            if (next < 0) {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+            i = next;
+        }
+        final CareerHubStandIn standIn = new CareerHubStandIn(settings);
+        standIn.start();
+        System.out.println("CareerHub stand-in at " + standIn.getHost() + " serving events " + standIn.getEventIds());
+        System.out.println("Statistics at " + standIn.getHost() + STATS_PATH.substring(1));
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                standIn.stop();
+                System.out.println(standIn.getStats());
+            }
+        }, "careerhub-stand-in-shutdown"));
+    }
+
+    /**
+     * Limits the requests served each second, allowing a second's worth of burst.
+     */
+    private final class RateLimiter {
+
+        synchronized boolean acquire() {
+            int limit = settings.rateLimit;
+            if (limit <= 0) {
+                return true;
+            }
+            long now = System.nanoTime();
+            permits = Math.min(limit, permits + (now - last) * limit / 1e9);
+            last = now;
+            if (permits < 1) {
+                return false;
+            }
+            permits--;
+            return true;
+        }
+
+        private double permits = settings.rateLimit;
+        private long last = System.nanoTime();
+
+    }
+
+    private static final class StudentRecord {
+
+        private String stuNumber;
+        private int jobSeekerId;
+        private String firstName;
+        private String lastName;
+
+    }
+
+    private static final class BookingRecord {
+
+        private int id;
+        private StudentRecord student;
+        private String sessionId;
+        private int status;
+
+    }
+
+    /**
+     * An event and its bookings. Guarded by its own lock.
+     */
+    private static final class EventRecord {
+
+        BookingRecord book(StudentRecord student, String sessionId, int bookingId) {
+            BookingRecord booking = new BookingRecord();
+            booking.id = bookingId;
+            booking.student = student;
+            booking.sessionId = sessionId;
+            booking.status = UNSPECIFIED;
+            bookings.put(booking.id, booking);
+            byStuNumber.put(student.stuNumber, booking);
+            version++;
+            return booking;
+        }
+
+        void cancel(String stuNumber) {
+            BookingRecord booking = byStuNumber.remove(stuNumber);
+            if (booking != null) {
+                bookings.remove(booking.id);
+                version++;
+            }
+        }
+
+        boolean isFull() {
+            return limit > 0 && bookings.size() >= limit;
+        }
+
+        int countSession(String sessionId) {
+            int count = 0;
+            for (BookingRecord booking : bookings.values()) {
+                if (booking.sessionId.equals(sessionId)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private int id;
+        private String title;
+        private String location;
+        private Date start;
+        private Date end;
+        private int limit;
+        private long version;
+        private final List<String> sessionIds = new ArrayList<>();
+        private final Map<Integer, BookingRecord> bookings = new LinkedHashMap<>();
+        private final Map<String, BookingRecord> byStuNumber = new HashMap<>();
+        private final List<StudentRecord> waiting = new ArrayList<>();
+
+    }
+
+    private final Settings settings;
+    private final Date started;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private StudentRecord[] students;
+    private final Map<String, StudentRecord> byStuNumber = new HashMap<>();
+    private final Map<Integer, StudentRecord> byJobSeekerId = new HashMap<>();
+    private final NavigableMap<String, StudentRecord> byName = new TreeMap<>();
+    private final Map<String, EventRecord> events = new LinkedHashMap<>();
+    private final ConcurrentMap<String, Long> tokens = new ConcurrentHashMap<>();
+    private final Set<String> logins = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Map<Endpoint, ConcurrentMap<Integer, AtomicLong>> statuses = new EnumMap<>(Endpoint.class);
+    private final AtomicInteger nextBookingId = new AtomicInteger(100000);
+    private final AtomicLong marked = new AtomicLong();
+    private final RateLimiter rateLimiter;
+
+    private static final int DEFAULT_PORT = 8086;
+    private static final int BACKLOG = 256;
+    private static final int GZIP_THRESHOLD = 1024; //bytes
+    private static final int STU_NUMBER_BASE = 10000000;
+    private static final int JOB_SEEKER_BASE = 500000;
+    private static final int UNSPECIFIED = 0;
+    private static final int ATTENDED = 1;
+    private static final int ABSENT = 2;
+    private static final int CAREERHUB_BOOKING = 1;
+    private static final String EVENTS_PATH = "/api/integrations/v1/events/";
+    private static final String STATS_PATH = "/standin/stats";
+    private static final String AUTH_COOKIE = ".CHAUTH";
+    private static final String BUILDING = "Stand-in building";
+    private static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ssZ";
+    private static final String JSON = "application/json; charset=utf-8";
+    private static final String HTML = "text/html; charset=utf-8";
+    private static final String TEXT = "text/plain; charset=utf-8";
+    private static final Pattern IDS = Pattern.compile("\"ids\"\\s*:\\s*\\[([^\\]]*)\\]");
+    private static final Charset CHARSET = Charset.forName(Utils.UTF8);
+    private static final String[] FIRST_NAMES = {
+        "Amy", "Ben", "Chloe", "Dan", "Ella", "Finn", "Grace", "Harry", "Isla", "Jack", "Kate", "Liam",
+        "Maya", "Noah", "Olivia", "Priya", "Quinn", "Rosa", "Sam", "Tom", "Uma", "Vikram", "Will", "Zoe"
+    };
+    private static final String[] LAST_NAMES = {
+        "Smith", "Jones", "Taylor", "Brown", "Williams", "Wilson", "Johnson", "Davies", "Patel", "Wright",
+        "Robinson", "Thompson", "Evans", "Walker", "White", "Roberts", "Green", "Hall", "Wood", "Khan"
+    };
+    private static final Logger LOG = Logger.getLogger(CareerHubStandIn.class.getName());
+
+}
@@ -0,0 +1,146 @@
+package eventswipe.bench;
+
+import eventswipe.APIs.CareerHubDecoder;
+import eventswipe.models.Booking;
+import eventswipe.utils.JsonReader;
+import eventswipe.utils.Utils;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Compares decoding a booking list with {@link CareerHubDecoder} against the
+ * previous path of reading the response into a String and building an
+ * org.json tree.
+ * <p>
+ * Run with {@code java eventswipe.bench.DecoderBenchmark [bookings] [seconds]}.
+ * Prints the throughput and, on JVMs which can measure it, the bytes
+ * allocated per decode for each path.
+ *
+ * @author Matt Wildman http://bitbucket.org/mattwildman
+ */
+public class DecoderBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int bookings = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        byte[] payload = bookingList(bookings).getBytes(Utils.UTF8);
+        System.out.println("Booking list of " + bookings + " bookings, " + payload.length + " bytes");
+        for (int round = 0; round < 2; round++) {
+            String label = round == 0 ? " (warm up)" : "";
+            report("org.json" + label, new TreeDecode(payload), seconds);
+            report("streaming" + label, new StreamingDecode(payload), seconds);
+        }
+    }
+
+    private interface Decode {
+        int run() throws IOException;
+    }
+
+    private static void report(String name, Decode decode, int seconds) throws IOException {
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        long ops = 0;
+        int sink = 0;
+        while (System.nanoTime() < end) {
+            sink += decode.run();
+            ops++;
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        String allocation = allocatedBefore < 0 ? "n/a" : String.valueOf(allocated / ops) + " bytes/op";
+        System.out.println(String.format("%-22s %10.1f ops/s  %s  (%d bookings decoded)",
+                                         name, ops * 1e9 / elapsed, allocation, sink));
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+            if (hotspot.isThreadAllocatedMemorySupported()) {
+                return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private static String bookingList(int count) {
+        StringBuilder sb = new StringBuilder("{\"bookings\":[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"id\":").append(100000 + i)
+              .append(",\"jobSeekerId\":").append(500000 + i)
+              .append(",\"externalId\":\"").append(10000000 + i)
+              .append("\",\"firstName\":\"First").append(i)
+              .append("\",\"lastName\":\"Last").append(i)
+              .append("\",\"status\":0,\"notes\":null}");
+        }
+        return sb.append("],\"total\":").append(count).append('}').toString();
+    }
+
+    private static class StreamingDecode implements Decode {
+
+        StreamingDecode(byte[] payload) {
+            this.payload = payload;
+        }
+
+        @Override
+        public int run() throws IOException {
+            List<Booking> bookings = new ArrayList<>();
+            JsonReader json = new JsonReader(new BufferedReader(
+                    new InputStreamReader(new ByteArrayInputStream(payload), Utils.UTF8)));
+            CareerHubDecoder.readBookingList(json, "1", bookings);
+            return bookings.size();
+        }
+
+        private final byte[] payload;
+
+    }
+
+    private static class TreeDecode implements Decode {
+
+        TreeDecode(byte[] payload) {
+            this.payload = payload;
+        }
+
+        @Override
+        public int run() throws IOException {
+            StringBuilder response = new StringBuilder();
+            try (BufferedReader in = new BufferedReader(
+                    new InputStreamReader(new ByteArrayInputStream(payload), Utils.UTF8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    response.append(line);
+                }
+            }
+            List<Booking> bookings = new ArrayList<>();
+            JSONArray jsonBookings = new JSONObject(response.toString()).getJSONArray("bookings");
+            for (int i = 0; i < jsonBookings.length(); i++) {
+                JSONObject jsonBooking = jsonBookings.getJSONObject(i);
+                Booking booking = new Booking(jsonBooking.getString("externalId"));
+                booking.setFirstName(jsonBooking.getString("firstName"));
+                booking.setLastName(jsonBooking.getString("lastName"));
+                booking.setId(jsonBooking.getInt("jobSeekerId"));
+                booking.setBookingId(jsonBooking.getInt("id"));
+                booking.setSessionId("1");
+                booking.setStatus(jsonBooking.getInt("status"));
+                bookings.add(booking);
+            }
+            return bookings.size();
+        }
+
+        private final byte[] payload;
+
+    }
+
+}
@@ -0,0 +1,356 @@
+package eventswipe.bench;
+
+import eventswipe.EventSwipeApp;
+import eventswipe.EventSwipeData;
+import eventswipe.ScanPipeline;
+import eventswipe.APIs.BookingSystemAPI;
+import eventswipe.APIs.CareerHubAPI;
+import eventswipe.models.Booking;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a scan arrival curve against EventSwipe talking to a
+ * {@link CareerHubStandIn}, and reports how long scans took to be decided and
+ * to be confirmed by the booking system.
+ * <p>
+ * The driver starts a stand-in, logs in and loads one of its events through
+ * {@link CareerHubAPI}, then submits scans to the scan pipeline as the
+ * desktop application does. Arrivals are random (Poisson) at the rate of each
+ * phase of the curve. Latency is measured from when each scan was due to
+ * arrive, so a stalled pipeline shows as latency rather than fewer scans, to
+ * when the view would hear of the decision and of the booking system's
+ * confirmation.
+ * <pre>
+ * --curve rate:seconds,...  scans per second for each phase (default 2:10,25:20,5:10)
+ * --mode list|lookup        check the loaded booking list, or book walk-ups
+ *                           without checking it (default list)
+ * --unbooked percent        scans of students who haven't booked (default 10)
+ * --repeat percent          repeat scans of students already scanned (default 10)
+ * --drain seconds           the longest to wait for confirmations (default 30)
+ * --seed n                  the seed for arrivals and scans
+ * </pre>
+ * Any other option configures the stand-in, see {@link CareerHubStandIn.Settings}.
+ * Each run uses new event ids, as attendance is journaled to the working directory.
+ * <p>
+ * Run with eg. {@code java eventswipe.bench.LoadDriver --curve 5:10,60:30
+ * --latency mark=lognormal:80:0.6 --error-rate mark=0.02 --rate-limit 40}.
+ *
+ * @author Matt Wildman http://bitbucket.org/mattwildman
+ */
+public class LoadDriver {
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        CareerHubStandIn.Settings settings = new CareerHubStandIn.Settings();
+        settings.setPort(0);
+        settings.setFirstEventId((int) (System.currentTimeMillis() / 1000 % FIRST_EVENT_RANGE) * 10 + 1000);
+        String curve = DEFAULT_CURVE;
+        boolean checkingLists = true;
+        int unbookedPercent = 10;
+        int repeatPercent = 10;
+        int drainSeconds = 30;
+        long seed = System.nanoTime();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--curve":
+                    curve = args[++i];
+                    break;
+                case "--mode":
+                    checkingLists = !args[++i].equals("lookup");
+                    break;
+                case "--unbooked":
+                    unbookedPercent = Integer.parseInt(args[++i]);
+                    break;
+                case "--repeat":
+                    repeatPercent = Integer.parseInt(args[++i]);
+                    break;
+                case "--drain":
+                    drainSeconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    int next = settings.parse(args, i);
+                    if (next < 0) {
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                    }
+                    i = next;
+            }
+        }
+        double[][] phases = parseCurve(curve);
+
+        CareerHubStandIn standIn = new CareerHubStandIn(settings);
+        standIn.start();
+        try {
+            BookingSystemAPI api = CareerHubAPI.getInstance();
+            EventSwipeApp app = new EventSwipeApp(api);
+            EventSwipeData data = app.getData();
+            Map<String, String> props = new HashMap<>();
+            props.put(EventSwipeData.HOST_KEY, standIn.getHost());
+            props.put(EventSwipeData.API_ID_KEY, "load-driver");
+            props.put(EventSwipeData.API_SECRET_KEY, "load-driver");
+            props.put(EventSwipeData.STUDENT_ID_PATTERN_KEY, "\\d{8}");
+            data.setCustomProperties(props);
+            data.setPropertiesFlag(true);
+            api.init();
+            if (!app.logIn("load-driver", "load-driver".toCharArray())) {
+                throw new IllegalStateException("Could not log in to the stand-in");
+            }
+            app.setOnlineModeFlag(true);
+            app.setBookingFlag(checkingLists);
+            String eventId = standIn.getEventIds().get(0);
+            long loadStart = System.nanoTime();
+            app.loadEvent(eventId, true);
+            System.out.println(String.format("Loaded event %s in %.0f ms (%s, %s)", eventId,
+                    (System.nanoTime() - loadStart) / 1e6,
+                    checkingLists ? "checking the booking list" : "booking walk-ups", standIn.getHost()));
+
+            Random random = new Random(seed);
+            List<String> booked = standIn.getBookedStuNumbers(eventId);
+            Collections.shuffle(booked, random);
+            List<String> unbooked = standIn.getUnbookedStuNumbers(eventId, booked.size());
+            Tracker tracker = new Tracker();
+            app.setScanListener(tracker);
+
+            List<String> scanned = new ArrayList<>();
+            int nextBooked = 0;
+            int nextUnbooked = 0;
+            long submitted = 0;
+            long refused = 0;
+            long start = System.nanoTime();
+            long due = start;
+            for (double[] phase : phases) {
+                double rate = phase[0];
+                long phaseEnd = due + (long) (phase[1] * 1e9);
+                while (true) {
+                    due += (long) (-Math.log(1 - random.nextDouble()) / rate * 1e9);
+                    if (due >= phaseEnd) {
+                        due = phaseEnd;
+                        break;
+                    }
+                    int roll = random.nextInt(100);
+                    String stuNumber;
+                    if (roll < repeatPercent && !scanned.isEmpty()) {
+                        stuNumber = scanned.get(random.nextInt(scanned.size()));
+                    }
+                    else if ((roll < repeatPercent + unbookedPercent || nextBooked == booked.size()) &&
+                             nextUnbooked < unbooked.size()) {
+                        stuNumber = unbooked.get(nextUnbooked++);
+                    }
+                    else if (nextBooked < booked.size()) {
+                        stuNumber = booked.get(nextBooked++);
+                    }
+                    else {
+                        continue;
+                    }
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    tracker.submitted(stuNumber, due);
+                    if (app.submitScan(stuNumber)) {
+                        scanned.add(stuNumber);
+                        submitted++;
+                    }
+                    else {
+                        tracker.refused(stuNumber);
+                        refused++;
+                    }
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            long drainEnd = System.nanoTime() + drainSeconds * 1000000000L;
+            app.flushAttendance();
+            while (System.nanoTime() < drainEnd && !tracker.isDrained()) {
+                Thread.sleep(DRAIN_POLL);
+            }
+            tracker.report(submitted, refused, seconds);
+            System.out.println();
+            System.out.println(standIn.getStats());
+        } finally {
+            standIn.stop();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * @return Each phase of the curve as {scans per second, seconds}
+     */
+    private static double[][] parseCurve(String curve) {
+        String[] phases = curve.split(",");
+        double[][] parsed = new double[phases.length][];
+        for (int i = 0; i < phases.length; i++) {
+            String[] parts = phases[i].split(":");
+            parsed[i] = new double[]{Double.parseDouble(parts[0]), Double.parseDouble(parts[1])};
+        }
+        return parsed;
+    }
+
+    /**
+     * Follows each scan from when it was due to its decision and its
+     * confirmation. Listener methods are called on the event dispatch thread
+     * and the results are read from the main thread, so both hold the lock.
+     */
+    private static class Tracker implements ScanPipeline.ScanListener {
+
+        void submitted(String stuNumber, long due) {
+            Queue<Long> times = deciding.get(stuNumber);
+            if (times == null) {
+                Queue<Long> created = new ConcurrentLinkedQueue<>();
+                times = deciding.putIfAbsent(stuNumber, created);
+                if (times == null) {
+                    times = created;
+                }
+            }
+            times.add(due);
+        }
+
+        void refused(String stuNumber) {
+            pollDue(stuNumber);
+        }
+
+        synchronized boolean isDrained() {
+            return confirming.isEmpty() && pending() == 0;
+        }
+
+        @Override
+        public synchronized void scanDecided(Booking booking) {
+            long now = System.nanoTime();
+            Long due = pollDue(booking.getStuNumber());
+            if (due == null) {
+                return;
+            }
+            decision.add(now - due);
+            if (!booking.isBooked()) {
+                denied++;
+            }
+            else if (booking.isAlreadyRecorded()) {
+                repeats++;
+            }
+            else {
+                Long confirmed = confirmedEarly.remove(booking.getStuNumber());
+                if (confirmed != null) {
+                    confirmation.add(confirmed - due);
+                }
+                else {
+                    confirming.put(booking.getStuNumber(), due);
+                }
+            }
+        }
+
+        @Override
+        public synchronized void scanFailed(String input, Exception ex) {
+            pollDue(input);
+            failed++;
+        }
+
+        @Override
+        public synchronized void scanConfirmed(Booking booking, boolean saved, Exception reason) {
+            long now = System.nanoTime();
+            Long due = confirming.remove(booking.getStuNumber());
+            if (!saved) {
+                if (due != null) {
+                    unsaved.add(now - due);
+                }
+                return;
+            }
+            if (due != null) {
+                confirmation.add(now - due);
+            }
+            else {
+                confirmedEarly.put(booking.getStuNumber(), now); //confirmed before its decision was heard
+            }
+        }
+
+        @Override
+        public synchronized void queueChanged(int depth, int capacity, boolean refused) {
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        synchronized void report(long submitted, long refused, double seconds) {
+            System.out.println(String.format("%d scans submitted in %.1f s (%.1f/s), %d refused by a full queue, " +
+                                             "max queue depth %d", submitted, seconds, submitted / seconds,
+                                             refused, maxDepth));
+            System.out.println(String.format("%d denied, %d repeats, %d failed, %d never confirmed",
+                                             denied, repeats, failed, confirming.size()));
+            System.out.println(String.format("%-30s %8s %9s %9s %9s %9s %9s",
+                                             "latency", "count", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+            decision.print("scan to decision");
+            confirmation.print("scan to confirmation");
+            unsaved.print("scan to unsaved");
+        }
+
+        private Long pollDue(String stuNumber) {
+            Queue<Long> times = deciding.get(stuNumber);
+            return times == null ? null : times.poll();
+        }
+
+        private int pending() {
+            int count = 0;
+            for (Queue<Long> times : deciding.values()) {
+                count += times.size();
+            }
+            return count;
+        }
+
+        private final ConcurrentMap<String, Queue<Long>> deciding = new ConcurrentHashMap<>();
+        private final ConcurrentMap<String, Long> confirming = new ConcurrentHashMap<>();
+        private final Map<String, Long> confirmedEarly = new HashMap<>();
+        private final Latencies decision = new Latencies();
+        private final Latencies confirmation = new Latencies();
+        private final Latencies unsaved = new Latencies();
+        private int denied;
+        private int repeats;
+        private int failed;
+        private int maxDepth;
+
+    }
+
+    private static class Latencies {
+
+        void add(long nanos) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = nanos;
+        }
+
+        void print(String name) {
+            if (count == 0) {
+                System.out.println(String.format("%-30s %8d", name, 0));
+                return;
+            }
+            long[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            System.out.println(String.format("%-30s %8d %9.1f %9.1f %9.1f %9.1f %9.1f", name, count,
+                    millis(sorted, 0.5), millis(sorted, 0.9), millis(sorted, 0.99), millis(sorted, 0.999),
+                    sorted[count - 1] / 1e6));
+        }
+
+        private static double millis(long[] sorted, double percentile) {
+            return sorted[Math.min(sorted.length - 1, (int) (sorted.length * percentile))] / 1e6;
+        }
+
+        private long[] values = new long[1024];
+        private int count;
+
+    }
+
+    private static final String DEFAULT_CURVE = "2:10,25:20,5:10";
+    private static final int FIRST_EVENT_RANGE = 100000;
+    private static final long DRAIN_POLL = 100; //milliseconds
+
+}
@@ -0,0 +1,219 @@
+package eventswipe.bench;
+
+import eventswipe.sync.PeerSync;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs several {@link PeerSync} stations on the loopback interface and checks
+ * they agree on every recorded attendee, as stations on one entrance would.
+ * <p>
+ * Students are recorded on random stations, with some recorded on more than
+ * one. The elected writer confirms each record it is asked to write, as the
+ * booking system would. Once every station has every record confirmed, the
+ * writer is stopped, as if it crashed, and more students are recorded on the
+ * others, which must elect a new writer and confirm those too. A station with
+ * the wrong secret records students throughout, and none of its records may
+ * reach the others.
+ * <pre>
+ * --stations n   the number of stations (default 3)
+ * --students n   the students recorded before and after the writer stops (default 200)
+ * --port n       the first UDP port to use (default a free one)
+ * --wait seconds the longest to wait for the stations to agree (default 30)
+ * --seed n       the seed for which station records each student
+ * </pre>
+ * Exits with status 1 if the stations don't agree in time.
+ *
+ * @author Matt Wildman http://bitbucket.org/mattwildman
+ */
+public class PeerSyncHarness {
+
+    public static void main(String[] args) throws Exception {
+        int stations = 3;
+        int students = 200;
+        int firstPort = 0;
+        int waitSeconds = 30;
+        long seed = System.nanoTime();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--stations":
+                    stations = Integer.parseInt(args[++i]);
+                    break;
+                case "--students":
+                    students = Integer.parseInt(args[++i]);
+                    break;
+                case "--port":
+                    firstPort = Integer.parseInt(args[++i]);
+                    break;
+                case "--wait":
+                    waitSeconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (firstPort == 0) {
+            try (DatagramSocket probe = new DatagramSocket(0)) {
+                firstPort = probe.getLocalPort() + 1;
+            }
+        }
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (int i = 0; i <= stations; i++) {
+            addresses.add(new InetSocketAddress("127.0.0.1", firstPort + i));
+        }
+        List<Station> group = new ArrayList<>();
+        for (int i = 0; i < stations; i++) {
+            group.add(new Station("station-" + i, firstPort + i, others(addresses, i), SECRET));
+        }
+        Station intruder = new Station("0-intruder", firstPort + stations, others(addresses, stations),
+                                       "not the secret");
+        for (Station station : group) {
+            station.sync.start();
+        }
+        intruder.sync.start();
+        System.out.println(stations + " stations on ports " + firstPort + "-" + (firstPort + stations - 1)
+                           + ", seed " + seed);
+
+        Random random = new Random(seed);
+        Set<String> expected = new HashSet<>();
+        record(group, intruder, expected, 0, students, random);
+        boolean agreed = awaitAgreement(group, expected, waitSeconds);
+        report("All stations running", group, expected, agreed);
+
+        Station writer = null;
+        for (Station station : group) {
+            if (station.sync.isWriter()) {
+                writer = station;
+            }
+        }
+        boolean ok = agreed && writer != null;
+        if (writer != null && group.size() > 1) {
+            writer.sync.stop();
+            group.remove(writer);
+            System.out.println("Stopped the writer " + writer.sync.getStationId());
+            record(group, intruder, expected, students, students * 2, random);
+            agreed = awaitAgreement(group, expected, waitSeconds);
+            report("After the writer stopped", group, expected, agreed);
+            ok = ok && agreed;
+        }
+        for (Station station : group) {
+            station.sync.stop();
+        }
+        intruder.sync.stop();
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static List<InetSocketAddress> others(List<InetSocketAddress> addresses, int self) {
+        List<InetSocketAddress> others = new ArrayList<>(addresses);
+        others.remove(self);
+        return others;
+    }
+
+    /**
+     * Records students on random stations, a tenth of them on two stations,
+     * and has the intruder record a student of its own for each.
+     */
+    private static void record(List<Station> group, Station intruder, Set<String> expected,
+                               int from, int to, Random random) throws InterruptedException {
+        for (int i = from; i < to; i++) {
+            String stuNumber = String.format("%08d", i);
+            expected.add(stuNumber);
+            group.get(random.nextInt(group.size())).record(stuNumber);
+            if (random.nextInt(10) == 0) {
+                group.get(random.nextInt(group.size())).record(stuNumber);
+            }
+            intruder.record("X" + stuNumber);
+            Thread.sleep(5);
+        }
+    }
+
+    private static boolean awaitAgreement(List<Station> group, Set<String> expected, int waitSeconds)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + waitSeconds * 1000L;
+        while (System.currentTimeMillis() < deadline) {
+            boolean agreed = true;
+            for (Station station : group) {
+                agreed = agreed && station.recorded.equals(expected) && station.confirmed.equals(expected);
+            }
+            if (agreed) {
+                return true;
+            }
+            Thread.sleep(100);
+        }
+        return false;
+    }
+
+    private static void report(String phase, List<Station> group, Set<String> expected, boolean agreed) {
+        System.out.println(phase + ": " + (agreed ? "agreed" : "did NOT agree") + " on "
+                           + expected.size() + " students");
+        for (Station station : group) {
+            System.out.println(String.format("  %-24s %s recorded %d, confirmed %d, wrote %d, saw %d from the intruder",
+                    station.sync.getStationId(), station.sync.isWriter() ? "writer" : "      ",
+                    station.recorded.size(), station.confirmed.size(), station.writes.get(),
+                    station.intruded.get()));
+        }
+    }
+
+    private static final class Station {
+
+        Station(String name, int port, List<InetSocketAddress> peers, String secret) throws Exception {
+            sync = new PeerSync(name, port, peers, secret.getBytes("UTF-8"), new PeerSync.Listener() {
+                @Override
+                public void recorded(String eventKey, String stuNumber) {
+                    note(recorded, stuNumber);
+                }
+                @Override
+                public void confirmed(String eventKey, String stuNumber) {
+                    note(confirmed, stuNumber);
+                }
+                @Override
+                public void write(String eventKey, String stuNumber) {
+                    writes.incrementAndGet();
+                    note(confirmed, stuNumber);
+                    sync.confirm(eventKey, stuNumber); //as the booking system would
+                }
+            });
+        }
+
+        void record(String stuNumber) {
+            note(recorded, stuNumber);
+            sync.record(EVENT_KEY, stuNumber);
+            if (sync.isWriter()) {
+                writes.incrementAndGet();
+                note(confirmed, stuNumber);
+                sync.confirm(EVENT_KEY, stuNumber);
+            }
+        }
+
+        private void note(Set<String> seen, String stuNumber) {
+            if (stuNumber.startsWith("X")) {
+                intruded.incrementAndGet();
+            }
+            else {
+                seen.add(stuNumber);
+            }
+        }
+
+        private final PeerSync sync;
+        private final Set<String> recorded = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        private final Set<String> confirmed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        private final AtomicInteger writes = new AtomicInteger();
+        private final AtomicInteger intruded = new AtomicInteger();
+
+    }
+
+    private static final String SECRET = "loopback harness secret";
+    private static final String EVENT_KEY = "harness";
+
+}
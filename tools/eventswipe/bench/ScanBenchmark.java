@@ -0,0 +1,177 @@
+package eventswipe.bench;
+
+import eventswipe.EventSwipeApp;
+import eventswipe.EventSwipeData;
+import eventswipe.models.Booking;
+import eventswipe.models.Event;
+import eventswipe.models.Session;
+import eventswipe.models.Student;
+import eventswipe.models.WaitingListIndex;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the scan decision path, {@link EventSwipeApp#checkBooking(String)},
+ * against a {@link StubBookingSystem}, for booking lists of 100 to 50,000
+ * bookings.
+ * <p>
+ * Each round scans a synthetic event with a mix of first scans of booked
+ * students, waiting list students and repeat scans. The booking lists are
+ * checked both locally (checking booking lists, which records attendance) and
+ * through the booking system lookup used when they aren't checked.
+ * <p>
+ * Run with {@code java eventswipe.bench.ScanBenchmark [seconds per size]}
+ * in a scratch directory, as attendance is journaled to the working
+ * directory. Prints the throughput, latency percentiles and, on JVMs which
+ * can measure it, the bytes allocated per scan on the scanning thread.
+ *
+ * @author Matt Wildman http://bitbucket.org/mattwildman
+ */
+public class ScanBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        StubBookingSystem api = new StubBookingSystem();
+        EventSwipeApp app = new EventSwipeApp(api);
+        EventSwipeData data = app.getData();
+        data.setOnlineMode(true);
+        System.out.println(String.format("%-26s %8s %12s %8s %8s %8s %8s %8s %12s",
+                "path", "bookings", "scans/s", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us", "bytes/scan"));
+        for (int round = 0; round < 2; round++) {
+            boolean warmUp = round == 0;
+            for (int size : SIZES) {
+                run(app, data, size, true, warmUp ? 1 : seconds, warmUp);
+                run(app, data, size, false, warmUp ? 1 : seconds, warmUp);
+            }
+        }
+        System.out.println("Attendance records sent to the stub: " + api.getMarkedCount());
+        System.exit(0);
+    }
+
+    private static void run(EventSwipeApp app, EventSwipeData data, int size,
+                            boolean checkingLists, int seconds, boolean warmUp) throws Exception {
+        Random random = new Random(size);
+        long[] latencies = new long[1 << 16];
+        int count = 0;
+        long scanNanos = 0;
+        long allocated = 0;
+        long end = System.nanoTime() + seconds * 1000000000L;
+        while (System.nanoTime() < end) {
+            data.clearData();
+            data.setBookingFlag(checkingLists);
+            data.addEvent(event(size, random));
+            data.setWaitingListFlag(true);
+            List<String> scans = scans(data.getEvent(), random);
+            long allocatedBefore = allocatedBytes();
+            for (String stuNumber : scans) {
+                long start = System.nanoTime();
+                app.checkBooking(stuNumber);
+                long elapsed = System.nanoTime() - start;
+                scanNanos += elapsed;
+                if (count == latencies.length) {
+                    latencies = Arrays.copyOf(latencies, count * 2);
+                }
+                latencies[count++] = elapsed;
+            }
+            allocated += allocatedBytes() - allocatedBefore;
+            app.flushAttendance();
+        }
+        if (warmUp) {
+            return;
+        }
+        Arrays.sort(latencies, 0, count);
+        String allocation = allocatedBytes() < 0 ? "n/a" : String.valueOf(allocated / count);
+        System.out.println(String.format("%-26s %8d %12.0f %8.1f %8.1f %8.1f %8.1f %8.1f %12s",
+                checkingLists ? "checkBooking (local list)" : "checkBooking (getBooking)",
+                size, count * 1e9 / scanNanos,
+                micros(latencies, count, 0.5), micros(latencies, count, 0.9),
+                micros(latencies, count, 0.99), micros(latencies, count, 0.999),
+                latencies[count - 1] / 1000.0, allocation));
+    }
+
+    private static double micros(long[] sorted, int count, double percentile) {
+        return sorted[Math.min(count - 1, (int) (count * percentile))] / 1000.0;
+    }
+
+    private static Event event(int size, Random random) {
+        Event event = new Event();
+        event.setId("bench-" + size);
+        event.setTitle("Benchmark event of " + size);
+        event.setRegStart(new Date(0));
+        event.setBookingLimit(size * 2);
+        event.setBookingCount(size);
+        Session session = new Session();
+        session.setId("1");
+        event.setSessions(new ArrayList<>(Collections.singletonList(session)));
+        List<Booking> bookings = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            Booking booking = new Booking(String.valueOf(BOOKED_BASE + i));
+            booking.setBookingId(i + 1);
+            booking.setId(i + 1);
+            booking.setSessionId("1");
+            booking.setStatus(0);
+            booking.setFirstName("First" + i);
+            booking.setLastName("Last" + i);
+            bookings.add(booking);
+        }
+        event.setBookingList(bookings);
+        List<Student> waitingList = new ArrayList<>();
+        for (int i = 0; i < Math.max(1, size / 10); i++) {
+            Student student = new Student();
+            student.setStuNumber(String.valueOf(WAITING_BASE + i));
+            waitingList.add(student);
+        }
+        event.setWaitingList(waitingList);
+        event.setWaitingListIndex(new WaitingListIndex(waitingList));
+        return event;
+    }
+
+    /**
+     * Every booked student once, with waiting list students and repeat scans
+     * of students already scanned mixed in.
+     */
+    private static List<String> scans(Event event, Random random) {
+        List<String> booked = new ArrayList<>();
+        for (Booking booking : event.getBookingList()) {
+            booked.add(booking.getStuNumber());
+        }
+        Collections.shuffle(booked, random);
+        List<String> scans = new ArrayList<>();
+        List<Student> waiting = event.getWaitingList();
+        for (String stuNumber : booked) {
+            scans.add(stuNumber);
+            int roll = random.nextInt(100);
+            if (roll < WAITING_PERCENT) {
+                scans.add(waiting.get(random.nextInt(waiting.size())).getStuNumber());
+            }
+            else if (roll < WAITING_PERCENT + REPEAT_PERCENT) {
+                scans.add(scans.get(random.nextInt(scans.size())));
+            }
+        }
+        return scans;
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+            if (hotspot.isThreadAllocatedMemorySupported()) {
+                return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private static final int[] SIZES = {100, 1000, 10000, 50000};
+    private static final int BOOKED_BASE = 10000000;
+    private static final int WAITING_BASE = 20000000;
+    private static final int WAITING_PERCENT = 15;
+    private static final int REPEAT_PERCENT = 15;
+
+}
@@ -0,0 +1,187 @@
+package eventswipe.bench;
+
+import eventswipe.APIs.BookingSystemAPI;
+import eventswipe.models.Booking;
+import eventswipe.models.BookingListSnapshot;
+import eventswipe.models.Event;
+import eventswipe.models.Student;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A booking system which answers from memory straight away, so benchmarks
+ * measure EventSwipe rather than the network. Every student is valid, walk-up
+ * bookings always succeed and attendance records are counted and dropped.
+ *
+ * @author Matt Wildman http://bitbucket.org/mattwildman
+ */
+public class StubBookingSystem extends BookingSystemAPI {
+
+    /**
+     * @return The number of attendance records received
+     */
+    public long getMarkedCount() {
+        return marked.get();
+    }
+
+    @Override
+    public boolean logIn(String username, char[] password) {
+        return true;
+    }
+
+    @Override
+    public String getAPIToken(String scope) {
+        return "stub";
+    }
+
+    @Override
+    public List<Booking> getBookingList(String eventKey, String sessionKey) {
+        return new ArrayList<>();
+    }
+
+    @Override
+    public BookingListSnapshot getBookingListSnapshot(String eventKey, String sessionKey,
+                                                      BookingListSnapshot previous) {
+        return BookingListSnapshot.unmodified(previous);
+    }
+
+    @Override
+    public List<Student> getWaitingList(String eventKey) {
+        return new ArrayList<>();
+    }
+
+    @Override
+    public List<String> getUnspecified(String eventKey) {
+        return new ArrayList<>();
+    }
+
+    @Override
+    public int getAttendeeCount(String eventKey) {
+        return (int) marked.get();
+    }
+
+    @Override
+    public Booking getBooking(String studentKey, String eventKey) {
+        Booking booking = new Booking(studentKey);
+        booking.setStatus(NOT_BOOKED);
+        return booking;
+    }
+
+    @Override
+    public void markStatus(STATUS status, String studentKey, String eventKey) {
+        marked.incrementAndGet();
+    }
+
+    @Override
+    public void markStatus(STATUS status, List<String> studentKeys, String eventKey) {
+        marked.addAndGet(studentKeys.size());
+    }
+
+    @Override
+    public void markAbsent(List<String> studentKeys, String eventKey, Boolean notify) {}
+
+    @Override
+    public void markAllUnspecifiedAbsent(String eventKey, Boolean notify) {}
+
+    @Override
+    public void cancelBooking(String studentKey, String eventKey) {}
+
+    @Override
+    public Booking bookStudent(String studentKey, String eventKey, String sessionKey) {
+        return bookStudentWithStuNumber(studentKey, eventKey, sessionKey);
+    }
+
+    @Override
+    public Booking bookStudentWithStuNumber(String stuNumber, String eventKey, String sessionKey) {
+        Booking booking = new Booking(stuNumber);
+        booking.setBookingId(nextId.incrementAndGet());
+        booking.setId(nextId.incrementAndGet());
+        booking.setSessionId(sessionKey);
+        return booking;
+    }
+
+    @Override
+    public Student getStudent(String stuNumber) {
+        Student student = new Student();
+        student.setStuNumber(stuNumber);
+        student.setId(nextId.incrementAndGet());
+        return student;
+    }
+
+    @Override
+    public List<Student> getStudents(String search) {
+        return new ArrayList<>();
+    }
+
+    @Override
+    public List<Event> getEventsList() {
+        return new ArrayList<>();
+    }
+
+    @Override
+    public Event getEvent(String eventKey, boolean getBookings) throws IOException {
+        throw new IOException("The stub booking system has no events");
+    }
+
+    @Override
+    public String getAdminEventURL(String eventKey) {
+        return "";
+    }
+
+    @Override
+    public String getCharset() {
+        return "UTF-8";
+    }
+
+    @Override
+    public String getEmptyStuNumString() {
+        return "";
+    }
+
+    @Override
+    public int getATTENDED_STATUS() {
+        return 1;
+    }
+
+    @Override
+    public int getEVENT_FULL_STATUS() {
+        return -1;
+    }
+
+    @Override
+    public int getABSENT_STATUS() {
+        return 2;
+    }
+
+    @Override
+    public int getUNSPECIFIED_STATUS() {
+        return 0;
+    }
+
+    @Override
+    public int getNOT_BOOKED_STATUS() {
+        return NOT_BOOKED;
+    }
+
+    @Override
+    public boolean isValidStuNum(String stuNum) {
+        return stuNum != null && !stuNum.isEmpty();
+    }
+
+    @Override
+    public String getDateFormat() {
+        return "yyyy-MM-dd'T'HH:mm:ss";
+    }
+
+    @Override
+    public void init() {}
+
+    private final AtomicLong marked = new AtomicLong();
+    private final AtomicInteger nextId = new AtomicInteger(1000000);
+
+    private static final int NOT_BOOKED = -2;
+
+}